@@ -0,0 +1,62 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.rest.ApiController;
+import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ApiController down to AssetServiceImpl, with the database and S3 faked out. This is the cost of our own code on
+ * each request, without Spring MVC's request handling and without any I/O
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerBenchmark
+{
+    private final UUID assetId = UUID.randomUUID();
+    private final UpdateRequest uploaded = new UpdateRequest("uploaded");
+
+    private ApiController controller;
+
+    @Setup
+    public void setUp()
+    {
+        controller = new ApiController(Fixtures.assetService(5), 60, 900, 86400, 1000);
+    }
+
+    @Benchmark
+    public CreateResult create() throws AssetException
+    {
+        return controller.create();
+    }
+
+    @Benchmark
+    public GetResult get() throws AssetException
+    {
+        return controller.get(assetId, null);
+    }
+
+    @Benchmark
+    public void complete() throws AssetException
+    {
+        controller.complete(assetId, uploaded);
+    }
+}
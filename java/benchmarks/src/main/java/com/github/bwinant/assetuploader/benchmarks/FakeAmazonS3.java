@@ -0,0 +1,31 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+
+/**
+ * AmazonS3 where every object exists, the rest of the interface throws UnsupportedOperationException
+ */
+class FakeAmazonS3 extends AbstractAmazonS3
+{
+    @Override
+    public URL getUrl(String bucketName, String key)
+    {
+        try
+        {
+            return new URL("https://" + bucketName + ".s3.us-east-1.amazonaws.com/" + key);
+        }
+        catch (MalformedURLException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String objectName)
+    {
+        return true;
+    }
+}
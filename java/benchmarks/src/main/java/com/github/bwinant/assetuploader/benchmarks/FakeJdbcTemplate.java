@@ -0,0 +1,71 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * JdbcTemplate that answers JdbcAssetStateStore's queries from memory.
+ *
+ * Every asset looks uploaded and every completion succeeds, so the benchmarks can call the same asset over and over.
+ * Nothing is stored, otherwise memory would keep growing for as long as create is being measured.
+ */
+class FakeJdbcTemplate extends JdbcTemplate
+{
+    private final ResultSet statusRow = row(Map.of("status", uploaded.toString()));
+    private final ResultSet completionRow = row(Map.of("status", created.toString(), "completed", 1));
+
+    @Override
+    public int update(String sql, Object... args)
+    {
+        return 1;
+    }
+
+    @Override
+    public int[] batchUpdate(String sql, List<Object[]> batchArgs)
+    {
+        int[] counts = new int[batchArgs.size()];
+        Arrays.fill(counts, 1);
+        return counts;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public <T> T queryForObject(String sql, Object[] args, RowMapper<T> rowMapper)
+    {
+        // completeAsset() is the only query that starts with a CTE
+        ResultSet rs = sql.startsWith("WITH") ? completionRow : statusRow;
+        try
+        {
+            return rowMapper.mapRow(rs, 0);
+        }
+        catch (SQLException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ResultSet row(Map<String, Object> columns)
+    {
+        // Only the getters AssetServiceImpl's row mappers use are supported
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName())
+            {
+                case "getString":
+                    return (String) columns.get((String) args[0]);
+                case "getInt":
+                    return (Integer) columns.get((String) args[0]);
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl;
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl.CompletionMode;
+import com.github.bwinant.assetuploader.impl.ContentCache;
+import com.github.bwinant.assetuploader.impl.DownloadUrlCache;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import com.github.bwinant.assetuploader.storage.S3Storage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Wires the service up the way Application does, against FakeJdbcTemplate and FakeAmazonS3
+ */
+final class Fixtures
+{
+    static final String BUCKET = "benchmark-bucket";
+    static final String REGION = "us-east-1";
+
+    private Fixtures()
+    {
+    }
+
+    /**
+     * @param downloadCacheWindowSecs how long download URLs are reused, 0 signs every one
+     */
+    static AssetServiceImpl assetService(long downloadCacheWindowSecs)
+    {
+        AmazonS3 s3Client = new FakeAmazonS3();
+        S3Presigner presigner = new S3Presigner(
+            new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY")),
+            s3Client, REGION, BUCKET);
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        DownloadUrlCache downloadUrlCache = new DownloadUrlCache(100000, downloadCacheWindowSecs, meterRegistry);
+
+        S3Storage storage = new S3Storage(s3Client, presigner, meterRegistry, BUCKET, 50, 8 * 1024 * 1024, 4, 16);
+
+        // Downloads aren't proxied, so there's no content cache
+        return new AssetServiceImpl(new JdbcAssetStateStore(new FakeJdbcTemplate(), new TransactionTemplate()), storage, downloadUrlCache,
+                                    new AssetIdGenerator(IdType.time),
+                                    new DefaultListableBeanFactory().getBeanProvider(ContentCache.class), meterRegistry,
+                                    CompletionMode.head, 16 * 1024 * 1024);
+    }
+}
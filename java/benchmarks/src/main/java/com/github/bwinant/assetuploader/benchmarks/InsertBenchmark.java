@@ -0,0 +1,140 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import com.zaxxer.hikari.HikariDataSource;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Insert throughput of the assets table as it grows, with random (version 4) against time ordered (version 7) ids.
+ *
+ * Random ids land anywhere in the primary key index, so once the index is larger than shared_buffers most inserts
+ * read a page back in and leave it half full after a split. Time ordered ids all go to the rightmost pages. Too long
+ * for JMH: every id type gets a fresh embedded PostgreSQL that's filled with createAll() batches, and the insert rate
+ * is printed every million rows, followed by the size of the index and how often its pages were found in
+ * shared_buffers.
+ *
+ * Options, all optional:
+ *   --rows=20000000        rows to insert for each id type
+ *   --ids=random,time      id types to run, one after the other
+ *   --threads=4            threads inserting at once
+ *   --batch=1000           rows per createAll(), like POST /asset/batch at its largest
+ *   --shared-buffers=128MB PostgreSQL's shared_buffers
+ */
+public class InsertBenchmark
+{
+    private static final long REPORT_EVERY = 1_000_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args)
+        {
+            if (!arg.startsWith("--") || !arg.contains("="))
+            {
+                throw new IllegalArgumentException("Unexpected argument " + arg + ", options look like --name=value");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        long rows = Long.parseLong(options.getOrDefault("rows", "20000000"));
+        List<String> idTypes = Arrays.asList(options.getOrDefault("ids", "random,time").split(","));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        int batch = Integer.parseInt(options.getOrDefault("batch", "1000"));
+        String sharedBuffers = options.getOrDefault("shared-buffers", "128MB");
+
+        for (String idType : idTypes)
+        {
+            run(IdType.valueOf(idType), rows, threads, batch, sharedBuffers);
+        }
+    }
+
+    private static void run(IdType idType, long rows, int threads, int batch, String sharedBuffers) throws Exception
+    {
+        System.out.printf("%n%s ids, %,d rows, %d threads, batches of %d, shared_buffers %s%n", idType, rows, threads, batch, sharedBuffers);
+        System.out.printf("%12s %12s %12s%n", "rows", "rows/s", "total s");
+
+        try (EmbeddedPostgres postgres = EmbeddedPostgres.builder().setServerConfig("shared_buffers", sharedBuffers).start();
+             HikariDataSource dataSource = new HikariDataSource())
+        {
+            dataSource.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+            dataSource.setMaximumPoolSize(threads);
+
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            try (InputStream schema = JdbcAssetStateStore.class.getResourceAsStream("/schema.sql"))
+            {
+                jdbcTemplate.execute(new String(schema.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            JdbcAssetStateStore stateStore = new JdbcAssetStateStore(jdbcTemplate, new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+            AssetIdGenerator idGenerator = new AssetIdGenerator(idType);
+
+            AtomicLong inserted = new AtomicLong();
+            long start = System.nanoTime();
+            long[] lastReport = {start, 0};
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try
+            {
+                Future<?>[] writers = new Future<?>[threads];
+                for (int t = 0; t < threads; t++)
+                {
+                    writers[t] = executor.submit(() -> {
+                        while (inserted.get() < rows)
+                        {
+                            List<UUID> assetIds = idGenerator.next(batch);
+                            stateStore.createAll(assetIds);
+                            long total = inserted.addAndGet(batch);
+                            if (total / REPORT_EVERY != (total - batch) / REPORT_EVERY)
+                            {
+                                report(total, start, lastReport);
+                            }
+                        }
+                    });
+                }
+                for (Future<?> writer : writers)
+                {
+                    writer.get();
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Object> index = jdbcTemplate.queryForMap(
+                "SELECT pg_relation_size('assets_pkey') AS size, idx_blks_read AS read, idx_blks_hit AS hit " +
+                "FROM pg_statio_user_indexes WHERE indexrelname = 'assets_pkey'");
+            long read = ((Number) index.get("read")).longValue();
+            long hit = ((Number) index.get("hit")).longValue();
+            System.out.printf("%s ids: %,d rows in %.0fs, %,.0f rows/s. Primary key %,d MB, %.1f%% of its pages found in shared_buffers%n",
+                idType, inserted.get(), seconds, inserted.get() / seconds, ((Number) index.get("size")).longValue() / (1024 * 1024),
+                100.0 * hit / Math.max(1, hit + read));
+        }
+    }
+
+    private static synchronized void report(long total, long start, long[] lastReport)
+    {
+        long now = System.nanoTime();
+        double rate = (total - lastReport[1]) / ((now - lastReport[0]) / 1e9);
+        System.out.printf("%,12d %,12.0f %12.0f%n", total, rate, (now - start) / 1e9);
+        lastReport[0] = now;
+        lastReport[1] = total;
+    }
+}
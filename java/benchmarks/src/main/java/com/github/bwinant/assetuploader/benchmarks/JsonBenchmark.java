@@ -0,0 +1,177 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
+import com.github.bwinant.assetuploader.rest.AssetJsonConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.GenericHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+/**
+ * Serialization of the API responses, with an ObjectMapper configured the way Spring MVC's is.
+ *
+ * The createResult/getResult/createResults/updateRequest benchmarks go through the message converter Spring MVC
+ * would use for them, Jackson's or AssetJsonConverter, the way it does for a request, into a reused output message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark
+{
+    private static final Type CREATE_RESULTS = new ParameterizedTypeReference<List<CreateResult>>() {}.getType();
+
+    @Param({"jackson", "asset"})
+    public String converterName;
+
+    private ObjectWriter createResultWriter;
+    private ObjectWriter getResultWriter;
+    private GenericHttpMessageConverter<Object> converter;
+
+    private CreateResult createResult;
+    private GetResult getResult;
+    private List<CreateResult> createResults;
+    private byte[] updateRequest;
+
+    private final OutputMessage output = new OutputMessage();
+    private final HttpHeaders inputHeaders = new HttpHeaders();
+
+    @Setup
+    public void setUp()
+    {
+        createResultWriter = Jackson2ObjectMapperBuilder.json().build().writerFor(CreateResult.class);
+        getResultWriter = Jackson2ObjectMapperBuilder.json().build().writerFor(GetResult.class);
+        converter = converterName.equals("asset") ? new AssetJsonConverter() :
+                    new MappingJackson2HttpMessageConverter(Jackson2ObjectMapperBuilder.json().build());
+
+        // Real URLs, their length is most of the payload
+        UUID assetId = UUID.randomUUID();
+        createResult = new CreateResult(assetId, Fixtures.assetService(0).getUploadUrl(assetId, 900));
+        getResult = new GetResult(Fixtures.assetService(0).getDownloadUrl(assetId, 60));
+
+        // What POST /asset/batch returns by default
+        createResults = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            UUID id = UUID.randomUUID();
+            createResults.add(new CreateResult(id, Fixtures.assetService(0).getUploadUrl(id, 900)));
+        }
+
+        updateRequest = "{\"Status\":\"uploaded\"}".getBytes(StandardCharsets.UTF_8);
+        inputHeaders.setContentType(MediaType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public byte[] createResultWriter() throws JsonProcessingException
+    {
+        return createResultWriter.writeValueAsBytes(createResult);
+    }
+
+    @Benchmark
+    public byte[] getResultWriter() throws JsonProcessingException
+    {
+        return getResultWriter.writeValueAsBytes(getResult);
+    }
+
+    @Benchmark
+    public int createResult() throws IOException
+    {
+        return write(createResult, CreateResult.class);
+    }
+
+    @Benchmark
+    public int getResult() throws IOException
+    {
+        return write(getResult, GetResult.class);
+    }
+
+    @Benchmark
+    public int createResults() throws IOException
+    {
+        return write(createResults, CREATE_RESULTS);
+    }
+
+    @Benchmark
+    public Object updateRequest() throws IOException
+    {
+        HttpInputMessage input = new HttpInputMessage()
+        {
+            @Override
+            public InputStream getBody()
+            {
+                return new ByteArrayInputStream(updateRequest);
+            }
+
+            @Override
+            public HttpHeaders getHeaders()
+            {
+                return inputHeaders;
+            }
+        };
+        return converter.read(UpdateRequest.class, null, input);
+    }
+
+    private int write(Object value, Type type) throws IOException
+    {
+        output.reset();
+        converter.write(value, type, MediaType.APPLICATION_JSON, output);
+        return output.body.size();
+    }
+
+    private static class OutputMessage implements HttpOutputMessage
+    {
+        private final HttpHeaders headers = new HttpHeaders();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(16384);
+
+        void reset()
+        {
+            headers.clear();
+            body.reset();
+        }
+
+        @Override
+        public OutputStream getBody()
+        {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders()
+        {
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pre-signed upload and download URLs. Download URLs are measured with and without DownloadUrlCache in front
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresignBenchmark
+{
+    private final UUID assetId = UUID.randomUUID();
+
+    private AssetServiceImpl assetService;
+    private AssetServiceImpl uncachedAssetService;
+
+    @Setup
+    public void setUp()
+    {
+        assetService = Fixtures.assetService(5);
+        uncachedAssetService = Fixtures.assetService(0);
+    }
+
+    @Benchmark
+    public String uploadUrl()
+    {
+        return assetService.getUploadUrl(assetId, 900);
+    }
+
+    @Benchmark
+    public String downloadUrl()
+    {
+        return assetService.getDownloadUrl(assetId, 60);
+    }
+
+    @Benchmark
+    public String downloadUrlUncached()
+    {
+        return uncachedAssetService.getDownloadUrl(assetId, 60);
+    }
+}
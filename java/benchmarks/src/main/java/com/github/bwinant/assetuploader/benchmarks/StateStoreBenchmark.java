@@ -0,0 +1,156 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import com.github.bwinant.assetuploader.state.AssetPartitions;
+import com.github.bwinant.assetuploader.state.AssetStateStore;
+import com.github.bwinant.assetuploader.state.Completion;
+import com.github.bwinant.assetuploader.state.EmbeddedAssetStateStore;
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import com.github.bwinant.assetuploader.state.PartitionedAssetStateStore;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * EmbeddedAssetStateStore against JdbcAssetStateStore and PartitionedAssetStateStore on an embedded PostgreSQL, all
+ * durable (fsync on commit).
+ *
+ * create + complete is the write path of every upload, with several threads writing at once so concurrent commits can
+ * share an fsync. getAsset is looked up among assetCount existing assets. Ids are made the way the service makes them,
+ * time ordered unless run with -p ids=random
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateStoreBenchmark
+{
+    @Param({"embedded", "jdbc", "partitioned"})
+    public String store;
+
+    @Param({"100000"})
+    public int assetCount;
+
+    @Param({"time"})
+    public String ids;
+
+    private Path dir;
+    private EmbeddedPostgres postgres;
+    private HikariDataSource dataSource;
+    private AssetStateStore stateStore;
+    private AssetIdGenerator idGenerator;
+    private UUID[] assetIds;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        if (store.equals("embedded"))
+        {
+            dir = Files.createTempDirectory("asset-state");
+            stateStore = new EmbeddedAssetStateStore(new SimpleMeterRegistry(), dir.toString(), assetCount * 2, 64 * 1024 * 1024);
+        }
+        else
+        {
+            postgres = EmbeddedPostgres.builder().start();
+            dataSource = new HikariDataSource();
+            dataSource.setJdbcUrl(postgres.getJdbcUrl("postgres", "postgres"));
+            dataSource.setMaximumPoolSize(8);
+
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+            boolean partitioned = store.equals("partitioned");
+            try (InputStream schema = JdbcAssetStateStore.class.getResourceAsStream(partitioned ? "/schema-partitioned.sql" : "/schema.sql"))
+            {
+                jdbcTemplate.execute(new String(schema.readAllBytes(), StandardCharsets.UTF_8));
+            }
+
+            if (partitioned)
+            {
+                new AssetPartitions(jdbcTemplate, transactionTemplate, new SimpleMeterRegistry(), 90, 7, false);
+                stateStore = new PartitionedAssetStateStore(jdbcTemplate, transactionTemplate, 90);
+            }
+            else
+            {
+                stateStore = new JdbcAssetStateStore(jdbcTemplate, transactionTemplate);
+            }
+        }
+
+        idGenerator = new AssetIdGenerator(IdType.valueOf(ids));
+        assetIds = new UUID[assetCount];
+        List<UUID> batch = new ArrayList<>();
+        for (int i = 0; i < assetCount; i++)
+        {
+            assetIds[i] = idGenerator.next();
+            batch.add(assetIds[i]);
+            if (batch.size() == 1000 || i == assetCount - 1)
+            {
+                stateStore.createAll(batch);
+                stateStore.completeAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (stateStore instanceof EmbeddedAssetStateStore)
+        {
+            ((EmbeddedAssetStateStore) stateStore).close();
+            FileSystemUtils.deleteRecursively(dir);
+        }
+        if (postgres != null)
+        {
+            dataSource.close();
+            postgres.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Completion createAndComplete()
+    {
+        UUID assetId = idGenerator.next();
+        stateStore.create(assetId);
+        return stateStore.complete(assetId);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Asset getAsset()
+    {
+        return stateStore.getAsset(assetIds[ThreadLocalRandom.current().nextInt(assetIds.length)]);
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.bwinant.assetuploader.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Asset id generation, UUID.randomUUID() as createAsset() used to against AssetIdGenerator. UUID.randomUUID() shares
+ * one SecureRandom, so both are also measured with several threads calling them at once
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UuidBenchmark
+{
+    private final AssetIdGenerator timeIds = new AssetIdGenerator(IdType.time);
+    private final AssetIdGenerator randomIds = new AssetIdGenerator(IdType.random);
+
+    @Benchmark
+    public UUID randomUuid()
+    {
+        return UUID.randomUUID();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public UUID randomUuidContended()
+    {
+        return UUID.randomUUID();
+    }
+
+    @Benchmark
+    public UUID timeId()
+    {
+        return timeIds.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public UUID timeIdContended()
+    {
+        return timeIds.next();
+    }
+
+    @Benchmark
+    public UUID randomId()
+    {
+        return randomIds.next();
+    }
+}
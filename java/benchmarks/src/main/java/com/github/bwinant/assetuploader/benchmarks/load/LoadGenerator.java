@@ -0,0 +1,342 @@
+package com.github.bwinant.assetuploader.benchmarks.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Drives asset lifecycles against the app at a fixed rate: create, upload to the pre-signed URL, complete, get and
+ * delete, one after the other. With proxy uploads the upload goes through PUT /asset/{id}/content instead, which
+ * completes the asset as well. With multipart uploads the asset is created with POST /asset/multipart, all parts are
+ * uploaded to their URLs at once and the complete lists their ETags.
+ *
+ * Cycles are started on schedule whether or not earlier ones have finished (an open loop), so a slow app shows up as
+ * growing latency instead of quietly lowering the request rate. Cycle latency is measured from when the cycle should
+ * have started, which includes any time spent waiting to be scheduled. If too many cycles are in flight, new ones are
+ * dropped and counted rather than piling up without bound.
+ */
+class LoadGenerator
+{
+    enum Upload
+    {
+        direct,
+        proxy,
+        multipart
+    }
+
+    enum Endpoint
+    {
+        create("POST /asset"),
+        createMultipart("POST /asset/multipart"),
+        upload("PUT upload URL"),
+        parts("PUT part URLs"),
+        complete("PUT /asset/{id}"),
+        content("PUT /asset/{id}/content"),
+        get("GET /asset/{id}"),
+        delete("DELETE /asset/{id}"),
+        cycle("whole cycle");
+
+        final String label;
+
+        Endpoint(String label)
+        {
+            this.label = label;
+        }
+    }
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient;
+    private final String baseUrl;
+    private final byte[] payload;
+    private final int maxInFlight;
+    private final Upload upload;
+
+    LoadGenerator(String baseUrl, int payloadSize, int maxInFlight, Upload upload)
+    {
+        this.baseUrl = baseUrl;
+        this.payload = new byte[payloadSize];
+        this.maxInFlight = maxInFlight;
+        this.upload = upload;
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(REQUEST_TIMEOUT)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+    }
+
+    /**
+     * Starts rate cycles per second for the given duration and waits for all of them to finish
+     */
+    Result run(int rate, Duration duration)
+    {
+        Map<Endpoint, Recorder> latencies = new EnumMap<>(Endpoint.class);
+        Map<Endpoint, LongAdder> errors = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values())
+        {
+            latencies.put(endpoint, new Recorder(3));
+            errors.put(endpoint, new LongAdder());
+        }
+
+        LongAdder completed = new LongAdder();
+        LongAdder dropped = new LongAdder();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+        {
+            for (long next = start; next < end; next += interval)
+            {
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+
+                if (!inFlight.tryAcquire())
+                {
+                    dropped.increment();
+                    continue;
+                }
+
+                long scheduled = next;
+                executor.execute(() -> {
+                    try
+                    {
+                        if (cycle(latencies, errors))
+                        {
+                            record(latencies, Endpoint.cycle, scheduled);
+                            completed.increment();
+                        }
+                    }
+                    finally
+                    {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        // Closing the executor waits for the cycles still in flight, they count towards the elapsed time
+        double elapsedSecs = (System.nanoTime() - start) / 1e9;
+
+        Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+        Map<Endpoint, Long> errorCounts = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values())
+        {
+            histograms.put(endpoint, latencies.get(endpoint).getIntervalHistogram());
+            errorCounts.put(endpoint, errors.get(endpoint).sum());
+        }
+        return new Result(rate, elapsedSecs, completed.sum(), dropped.sum(), histograms, errorCounts);
+    }
+
+    private boolean cycle(Map<Endpoint, Recorder> latencies, Map<Endpoint, LongAdder> errors)
+    {
+        Endpoint endpoint = upload == Upload.multipart ? Endpoint.createMultipart : Endpoint.create;
+        try
+        {
+            long start = System.nanoTime();
+            String createUrl = upload == Upload.multipart ? baseUrl + "/asset/multipart?size=" + payload.length : baseUrl + "/asset";
+            HttpResponse<String> created = send(HttpRequest.newBuilder(URI.create(createUrl)).POST(BodyPublishers.noBody()));
+            if (!succeeded(created, latencies, errors, endpoint, start))
+            {
+                return false;
+            }
+            JsonNode asset = objectMapper.readTree(created.body());
+            String assetUrl = baseUrl + "/asset/" + asset.get("id").asText();
+
+            if (upload == Upload.multipart)
+            {
+                endpoint = Endpoint.parts;
+                start = System.nanoTime();
+                String parts = uploadParts(asset);
+                if (parts == null)
+                {
+                    errors.get(endpoint).increment();
+                    return false;
+                }
+                record(latencies, endpoint, start);
+
+                endpoint = Endpoint.complete;
+                start = System.nanoTime();
+                HttpResponse<String> completed = send(HttpRequest.newBuilder(URI.create(assetUrl))
+                    .header("Content-Type", "application/json")
+                    .PUT(BodyPublishers.ofString("{\"Status\":\"uploaded\",\"parts\":" + parts + "}")));
+                if (!succeeded(completed, latencies, errors, endpoint, start))
+                {
+                    return false;
+                }
+            }
+            else if (upload == Upload.proxy)
+            {
+                endpoint = Endpoint.content;
+                start = System.nanoTime();
+                HttpResponse<String> uploaded = send(HttpRequest.newBuilder(URI.create(assetUrl + "/content"))
+                    .header("Content-Type", "application/octet-stream")
+                    .PUT(BodyPublishers.ofByteArray(payload)));
+                if (!succeeded(uploaded, latencies, errors, endpoint, start))
+                {
+                    return false;
+                }
+            }
+            else
+            {
+                endpoint = Endpoint.upload;
+                start = System.nanoTime();
+                HttpResponse<String> uploaded = send(HttpRequest.newBuilder(URI.create(asset.get("upload_url").asText())).PUT(BodyPublishers.ofByteArray(payload)));
+                if (!succeeded(uploaded, latencies, errors, endpoint, start))
+                {
+                    return false;
+                }
+
+                endpoint = Endpoint.complete;
+                start = System.nanoTime();
+                HttpResponse<String> completed = send(HttpRequest.newBuilder(URI.create(assetUrl))
+                    .header("Content-Type", "application/json")
+                    .PUT(BodyPublishers.ofString("{\"Status\":\"uploaded\"}")));
+                if (!succeeded(completed, latencies, errors, endpoint, start))
+                {
+                    return false;
+                }
+            }
+
+            endpoint = Endpoint.get;
+            start = System.nanoTime();
+            if (!succeeded(send(HttpRequest.newBuilder(URI.create(assetUrl)).GET()), latencies, errors, endpoint, start))
+            {
+                return false;
+            }
+
+            endpoint = Endpoint.delete;
+            start = System.nanoTime();
+            return succeeded(send(HttpRequest.newBuilder(URI.create(assetUrl)).DELETE()), latencies, errors, endpoint, start);
+        }
+        catch (IOException e)
+        {
+            errors.get(endpoint).increment();
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Uploads every part at once
+     *
+     * @return the parts to complete the upload with as a JSON array, null if a part failed
+     */
+    private String uploadParts(JsonNode asset) throws IOException, InterruptedException
+    {
+        int partSize = asset.get("part_size").asInt();
+        JsonNode partUrls = asset.get("part_urls");
+
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>(partUrls.size());
+        for (int i = 0; i < partUrls.size(); i++)
+        {
+            int offset = i * partSize;
+            HttpRequest request = HttpRequest.newBuilder(URI.create(partUrls.get(i).asText()))
+                .timeout(REQUEST_TIMEOUT)
+                .PUT(BodyPublishers.ofByteArray(payload, offset, Math.min(partSize, payload.length - offset)))
+                .build();
+            responses.add(httpClient.sendAsync(request, BodyHandlers.discarding()));
+        }
+
+        ArrayNode parts = objectMapper.createArrayNode();
+        for (int i = 0; i < responses.size(); i++)
+        {
+            HttpResponse<Void> response;
+            try
+            {
+                response = responses.get(i).get();
+            }
+            catch (ExecutionException e)
+            {
+                return null;
+            }
+            if (response.statusCode() / 100 != 2)
+            {
+                return null;
+            }
+            parts.addObject().put("part_number", i + 1).put("etag", response.headers().firstValue("ETag").orElse(""));
+        }
+        return objectMapper.writeValueAsString(parts);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException
+    {
+        return httpClient.send(request.timeout(REQUEST_TIMEOUT).build(), BodyHandlers.ofString());
+    }
+
+    private static boolean succeeded(HttpResponse<String> response,
+                                     Map<Endpoint, Recorder> latencies,
+                                     Map<Endpoint, LongAdder> errors,
+                                     Endpoint endpoint,
+                                     long start)
+    {
+        if (response.statusCode() / 100 != 2)
+        {
+            errors.get(endpoint).increment();
+            return false;
+        }
+        record(latencies, endpoint, start);
+        return true;
+    }
+
+    private static void record(Map<Endpoint, Recorder> latencies, Endpoint endpoint, long start)
+    {
+        latencies.get(endpoint).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * What happened during one run() at a given rate. Latencies are in microseconds
+     */
+    record Result(int rate, double elapsedSecs, long completed, long dropped, Map<Endpoint, Histogram> latencies, Map<Endpoint, Long> errors)
+    {
+        double throughput()
+        {
+            return completed / elapsedSecs;
+        }
+
+        long failed()
+        {
+            return errors.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        /**
+         * Whether the app kept up: nearly all cycles that were due got done, without errors
+         */
+        boolean keptUp(Duration duration)
+        {
+            return dropped == 0 && failed() == 0 && completed >= rate * duration.toSeconds() * 0.95;
+        }
+    }
+}
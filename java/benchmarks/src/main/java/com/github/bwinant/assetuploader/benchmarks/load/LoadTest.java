@@ -0,0 +1,227 @@
+package com.github.bwinant.assetuploader.benchmarks.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.benchmarks.load.LoadGenerator.Endpoint;
+import com.github.bwinant.assetuploader.benchmarks.load.LoadGenerator.Result;
+import com.github.bwinant.assetuploader.benchmarks.load.LoadGenerator.Upload;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.HdrHistogram.Histogram;
+
+/**
+ * End to end load test that runs without AWS or a database server.
+ *
+ * Starts an embedded PostgreSQL and LocalS3, then the app jar in its own JVM pointed at both, and runs LoadGenerator
+ * against it at each of the given rates in turn. Prints latency percentiles per endpoint for every rate, and the
+ * highest throughput the app reached, which is its saturation point if the last rates were more than it could take.
+ *
+ * Options, all optional:
+ *   --app=path          app jar, default ../target/asset-uploader-exec.jar
+ *   --profile=name      Spring profiles to run the app with, e.g. virtual, reactive or embedded
+ *   --app-opts="..."    JVM options for the app, e.g. "-Xmx512m"
+ *   --rates=50,100      asset lifecycles per second to run at, one after the other
+ *   --duration=30       seconds to run each rate for
+ *   --warmup=10         seconds to run the first rate for before measuring
+ *   --payload=1024      size in bytes of every upload
+ *   --upload=direct     direct uploads to the pre-signed URL, proxy to upload through PUT /asset/{id}/content,
+ *                       or multipart to upload in parts to pre-signed part URLs
+ *   --s3-latency=0      milliseconds LocalS3 waits before answering each request
+ *   --max-in-flight=1000  lifecycles in flight before new ones are dropped
+ * Arguments after -- are passed on to the app, e.g. -- --spring.datasource.hikari.maximum-pool-size=20
+ */
+public class LoadTest
+{
+    private static final String BUCKET = "load-test";
+    private static final String REGION = "us-east-1";
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        List<String> appArgs = new ArrayList<>();
+        parse(args, options, appArgs);
+
+        File appJar = new File(options.getOrDefault("app", "../target/asset-uploader-exec.jar"));
+        int[] rates = Arrays.stream(options.getOrDefault("rates", "50,100,200,400").split(",")).mapToInt(Integer::parseInt).toArray();
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        int payloadSize = Integer.parseInt(options.getOrDefault("payload", "1024"));
+        long s3Latency = Long.parseLong(options.getOrDefault("s3-latency", "0"));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("max-in-flight", "1000"));
+        Upload upload = Upload.valueOf(options.getOrDefault("upload", "direct"));
+
+        if (!appJar.isFile())
+        {
+            throw new IllegalArgumentException(appJar + " not found, build the app first or point --app at its jar");
+        }
+
+        Path workDir = Files.createTempDirectory("asset-uploader-load");
+        System.out.println("App logs are in " + workDir);
+
+        try (EmbeddedPostgres postgres = EmbeddedPostgres.builder().start();
+             LocalS3 s3 = new LocalS3(s3Latency))
+        {
+            int port = freePort();
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.add("--add-opens=java.base/java.lang=ALL-UNNAMED");
+            command.add("--add-opens=java.base/java.io=ALL-UNNAMED");
+            if (options.containsKey("app-opts"))
+            {
+                command.addAll(Arrays.asList(options.get("app-opts").trim().split("\\s+")));
+            }
+            command.add("-jar");
+            command.add(appJar.getAbsolutePath());
+            command.add("--server.port=" + port);
+            command.add("--server.tomcat.basedir=" + workDir.resolve("tomcat"));
+            command.add("--logging.file.name=" + workDir.resolve("server.log"));
+            command.add("--spring.datasource.url=" + postgres.getJdbcUrl("postgres", "postgres"));
+            command.add("--spring.datasource.username=postgres");
+            command.add("--asset.state.dir=" + workDir.resolve("state"));
+            command.add("--aws.s3.endpoint=" + s3.endpoint());
+            if (options.containsKey("profile"))
+            {
+                command.add("--spring.profiles.active=" + options.get("profile"));
+            }
+            command.addAll(appArgs);
+
+            ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("app.out").toFile());
+            builder.environment().put("REGION", REGION);
+            builder.environment().put("ASSET_BUCKET", BUCKET);
+            builder.environment().put("AWS_ACCESS_KEY_ID", "AKIDEXAMPLE");
+            builder.environment().put("AWS_SECRET_ACCESS_KEY", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+
+            Process app = builder.start();
+            try
+            {
+                String baseUrl = "http://localhost:" + port;
+                awaitHealthy(app, baseUrl, workDir);
+
+                LoadGenerator generator = new LoadGenerator(baseUrl, payloadSize, maxInFlight, upload);
+                if (!warmup.isZero())
+                {
+                    System.out.printf("Warming up at %d/s for %ds%n", rates[0], warmup.toSeconds());
+                    generator.run(rates[0], warmup);
+                }
+
+                Result best = null;
+                for (int rate : rates)
+                {
+                    Result result = generator.run(rate, duration);
+                    print(result, duration);
+                    if (best == null || result.throughput() > best.throughput())
+                    {
+                        best = result;
+                    }
+                }
+
+                System.out.printf("%nSaturation throughput: %.1f lifecycles/s (%.1f requests/s to the app), reached at %d/s%n",
+                    best.throughput(), best.throughput() * 4, best.rate());
+                System.out.printf("Objects left in LocalS3: %d (deleted ones are removed in the background)%n", s3.objectCount());
+            }
+            finally
+            {
+                app.destroy();
+                if (!app.waitFor(30, TimeUnit.SECONDS))
+                {
+                    app.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    private static void print(Result result, Duration duration)
+    {
+        System.out.printf("%nRate %d/s for %ds: %d lifecycles done, %.1f/s, %d failed, %d dropped%s%n",
+            result.rate(), duration.toSeconds(), result.completed(), result.throughput(), result.failed(), result.dropped(),
+            result.keptUp(duration) ? "" : "  <- not keeping up");
+        System.out.printf("  %-24s %8s %8s %8s %8s %8s %8s %8s%n", "ms", "count", "errors", "p50", "p90", "p99", "p99.9", "max");
+        for (Endpoint endpoint : Endpoint.values())
+        {
+            // Each kind of upload uses different endpoints, only show the ones that were used
+            Histogram h = result.latencies().get(endpoint);
+            if (h.getTotalCount() == 0 && result.errors().get(endpoint) == 0)
+            {
+                continue;
+            }
+            System.out.printf("  %-24s %8d %8d %8.1f %8.1f %8.1f %8.1f %8.1f%n",
+                endpoint.label, h.getTotalCount(), result.errors().get(endpoint),
+                millis(h, 50), millis(h, 90), millis(h, 99), millis(h, 99.9), h.getMaxValue() / 1000.0);
+        }
+    }
+
+    private static double millis(Histogram histogram, double percentile)
+    {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static void awaitHealthy(Process app, String baseUrl, Path workDir) throws IOException, InterruptedException
+    {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest health = HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/health")).timeout(Duration.ofSeconds(5)).build();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (System.nanoTime() < deadline)
+        {
+            if (!app.isAlive())
+            {
+                throw new IllegalStateException("App exited with " + app.exitValue() + ", see " + workDir.resolve("app.out"));
+            }
+            try
+            {
+                if (client.send(health, BodyHandlers.discarding()).statusCode() == 200)
+                {
+                    return;
+                }
+            }
+            catch (IOException e)
+            {
+                // Not listening yet
+            }
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        throw new IllegalStateException("App didn't become healthy, see " + workDir.resolve("app.out"));
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void parse(String[] args, Map<String, String> options, List<String> appArgs)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--"))
+            {
+                appArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                return;
+            }
+            if (!args[i].startsWith("--") || !args[i].contains("="))
+            {
+                throw new IllegalArgumentException("Unexpected argument " + args[i] + ", options look like --name=value");
+            }
+            int eq = args[i].indexOf('=');
+            options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.github.bwinant.assetuploader.benchmarks.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Just enough of S3 for the app and its clients, kept in memory: PUT, HEAD, GET and DELETE of objects, DeleteObjects
+ * and multipart uploads. Paths are /bucket/key, the app talks to it with path style URLs (see aws.s3.endpoint).
+ * ETags are MD5s like the real ones, the SDK checks them against what it sent.
+ *
+ * Signatures aren't checked, pre-signed URLs are accepted as long as they point at the right object.
+ * An optional delay is added to every request to stand in for the round trip to the real thing.
+ */
+class LocalS3 implements AutoCloseable
+{
+    private static final Pattern DELETE_KEY = Pattern.compile("<Key>([^<]+)</Key>");
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final long latencyMillis;
+
+    LocalS3(long latencyMillis) throws IOException
+    {
+        this.latencyMillis = latencyMillis;
+
+        // By default the server closes idle connections past the 200th, which the S3 client finds out about by
+        // failing requests on them. Has to be set before the first server is created
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.start();
+    }
+
+    String endpoint()
+    {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    int objectCount()
+    {
+        return objects.size();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            if (latencyMillis > 0)
+            {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            switch (exchange.getRequestMethod())
+            {
+                case "PUT":
+                    byte[] body = readBody(exchange);
+                    String uploadId = param(query, "uploadId");
+                    if (uploadId != null)
+                    {
+                        Map<Integer, byte[]> parts = uploads.get(uploadId);
+                        if (parts == null)
+                        {
+                            exchange.sendResponseHeaders(404, -1);
+                            break;
+                        }
+                        parts.put(Integer.parseInt(param(query, "partNumber")), body);
+                    }
+                    else
+                    {
+                        objects.put(path, body);
+                    }
+                    exchange.getResponseHeaders().set("ETag", "\"" + md5(body) + "\"");
+                    exchange.sendResponseHeaders(200, -1);
+                    break;
+
+                case "HEAD":
+                    byte[] head = objects.get(path);
+                    if (head == null)
+                    {
+                        exchange.sendResponseHeaders(404, -1);
+                    }
+                    else
+                    {
+                        exchange.getResponseHeaders().set("Content-Length", Integer.toString(head.length));
+                        exchange.sendResponseHeaders(200, -1);
+                    }
+                    break;
+
+                case "GET":
+                    byte[] object = objects.get(path);
+                    if (object == null)
+                    {
+                        exchange.sendResponseHeaders(404, -1);
+                    }
+                    else
+                    {
+                        exchange.sendResponseHeaders(200, object.length == 0 ? -1 : object.length);
+                        try (OutputStream out = exchange.getResponseBody())
+                        {
+                            out.write(object);
+                        }
+                    }
+                    break;
+
+                case "DELETE":
+                    if (param(query, "uploadId") != null)
+                    {
+                        uploads.remove(param(query, "uploadId"));
+                    }
+                    else
+                    {
+                        objects.remove(path);
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                    break;
+
+                case "POST":
+                    if (param(query, "delete") != null)
+                    {
+                        deleteObjects(exchange, path);
+                        break;
+                    }
+                    if (param(query, "uploads") != null)
+                    {
+                        String id = UUID.randomUUID().toString();
+                        uploads.put(id, new ConcurrentSkipListMap<>());
+                        sendXml(exchange, "InitiateMultipartUploadResult", "<UploadId>" + id + "</UploadId>");
+                        break;
+                    }
+                    if (param(query, "uploadId") != null)
+                    {
+                        completeMultipartUpload(exchange, path, param(query, "uploadId"));
+                        break;
+                    }
+                    // Fall through, nothing else is supported
+
+                default:
+                    exchange.sendResponseHeaders(405, -1);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deleteObjects(HttpExchange exchange, String bucketPath) throws IOException
+    {
+        String prefix = bucketPath.endsWith("/") ? bucketPath : bucketPath + "/";
+
+        Matcher m = DELETE_KEY.matcher(new String(readBody(exchange), StandardCharsets.UTF_8));
+        while (m.find())
+        {
+            objects.remove(prefix + m.group(1));
+        }
+
+        // The app only sends quiet deletes, which list errors but not the deleted keys
+        sendXml(exchange, "DeleteResult", "");
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String path, String uploadId) throws IOException
+    {
+        // The part list in the request is taken on trust, all uploaded parts are joined in order
+        readBody(exchange);
+        Map<Integer, byte[]> parts = uploads.remove(uploadId);
+        if (parts == null)
+        {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        for (byte[] part : parts.values())
+        {
+            object.write(part);
+        }
+        objects.put(path, object.toByteArray());
+        sendXml(exchange, "CompleteMultipartUploadResult", "<ETag>\"" + md5(object.toByteArray()) + "-" + parts.size() + "\"</ETag>");
+    }
+
+    private static void sendXml(HttpExchange exchange, String root, String elements) throws IOException
+    {
+        byte[] response = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + root +
+            " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">" + elements + "</" + root + ">").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(response);
+        }
+    }
+
+    /**
+     * @return the value of the query parameter, empty if it has none, or null if it isn't there
+     */
+    private static String param(String query, String name)
+    {
+        if (query == null)
+        {
+            return null;
+        }
+        for (String param : query.split("&"))
+        {
+            int eq = param.indexOf('=');
+            if ((eq == -1 ? param : param.substring(0, eq)).equals(name))
+            {
+                return eq == -1 ? "" : param.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String md5(byte[] bytes)
+    {
+        try
+        {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(bytes));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException
+    {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody())
+        {
+            body = in.readAllBytes();
+        }
+
+        // Over plain HTTP the SDK signs the payload a chunk at a time, each chunk is prefixed with its size and signature
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        return contentSha256 != null && contentSha256.startsWith("STREAMING-") ? decodeChunks(body) : body;
+    }
+
+    /**
+     * Strips the framing from an aws-chunked body: hex-size;chunk-signature=...\r\n data \r\n, ending with a 0 size chunk
+     */
+    private static byte[] decodeChunks(byte[] body)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int i = 0;
+        while (i < body.length)
+        {
+            int headerEnd = i;
+            while (body[headerEnd] != '\r')
+            {
+                headerEnd++;
+            }
+            String header = new String(body, i, headerEnd - i, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            if (size == 0)
+            {
+                break;
+            }
+            out.write(body, headerEnd + 2, size);
+            i = headerEnd + 2 + size + 2;
+        }
+        return out.toByteArray();
+    }
+}
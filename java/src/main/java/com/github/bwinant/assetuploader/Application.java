@@ -1,23 +1,44 @@
 package com.github.bwinant.assetuploader;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 import javax.sql.DataSource;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.http.IdleConnectionReaper;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.bwinant.assetuploader.events.InMemoryUploadEventQueue;
+import com.github.bwinant.assetuploader.events.SqsUploadEventQueue;
+import com.github.bwinant.assetuploader.events.UploadEventQueue;
+import com.github.bwinant.assetuploader.impl.S3ConnectionPoolMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Profile;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
-@SpringBootApplication
+// R2DBC is only used with the reactive profile, which sets up its own pool (see ReactiveConfiguration)
+@SpringBootApplication(exclude = R2dbcAutoConfiguration.class)
+@EnableScheduling
 public class Application
 {
-    @Profile("default")
+    @Profile("!dev")
     @Bean
     public AWSCredentialsProvider envCredentialsProvider()
     {
@@ -32,14 +53,69 @@ public class Application
     }
 
     @Bean
-    public AmazonS3 s3Client(AWSCredentialsProvider credentialsProvider, @Value("${aws.region}") String region)
+    public AmazonS3 s3Client(AWSCredentialsProvider credentialsProvider,
+                             @Value("${aws.region}") String region,
+                             @Value("${aws.s3.endpoint:}") String endpoint,
+                             @Value("${aws.s3.max.connections:50}") int maxConnections,
+                             MeterRegistry meterRegistry)
     {
-        return AmazonS3ClientBuilder.standard()
+        // Every request waiting on S3 holds one of these connections, with virtual threads this is the limit
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
             .withCredentials(credentialsProvider)
-            .withRegion(region)
-            .build();
+            .withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections));
+
+        // S3 compatible stores (and local stand-ins used for testing) are usually only reachable with path style URLs
+        if (endpoint.isEmpty())
+        {
+            builder.withRegion(region);
+        }
+        else
+        {
+            builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, region)).withPathStyleAccessEnabled(true);
+        }
+
+        // The SDK doesn't expose the client's connection pool, but it does register it with its idle connection reaper.
+        // The wrappers it registers don't even equal themselves, hence the identity comparison
+        Set<HttpClientConnectionManager> existing = Collections.newSetFromMap(new IdentityHashMap<>());
+        existing.addAll(IdleConnectionReaper.getRegisteredConnectionManagers());
+
+        AmazonS3 s3Client = builder.build();
+        IdleConnectionReaper.getRegisteredConnectionManagers().stream()
+            .filter(manager -> !existing.contains(manager) && manager instanceof ConnPoolControl)
+            .findFirst()
+            .ifPresent(manager -> new S3ConnectionPoolMetrics((ConnPoolControl<?>) manager).bindTo(meterRegistry));
+        return s3Client;
     }
     
+    @Bean
+    @ConditionalOnProperty(name = "asset.completion.mode", havingValue = "events")
+    public UploadEventQueue uploadEventQueue(AWSCredentialsProvider credentialsProvider,
+                                             ObjectMapper objectMapper,
+                                             @Value("${aws.region}") String region,
+                                             @Value("${asset.bucket}") String bucketName,
+                                             @Value("${asset.completion.queue.url:}") String queueUrl,
+                                             @Value("${asset.completion.queue.wait.secs:5}") int waitSecs)
+    {
+        // Without a queue the in-memory one is only useful for testing, nothing outside the process can publish to it
+        if (queueUrl.isEmpty())
+        {
+            return new InMemoryUploadEventQueue(waitSecs * 1000L);
+        }
+
+        return new SqsUploadEventQueue(
+            AmazonSQSClientBuilder.standard()
+                .withCredentials(credentialsProvider)
+                .withRegion(region)
+                .build(),
+            queueUrl,
+            bucketName,
+            waitSecs,
+            objectMapper
+        );
+    }
+
+    // The embedded profile keeps asset state in this process (EmbeddedAssetStateStore) and has no database
+    @Profile("!embedded")
     @Bean
     public JdbcTemplate jdbcTemplate(DataSource dataSource)
     {
@@ -6,8 +6,47 @@ public class Asset
 {
     public enum Status
     {
-        created,
-        uploaded
+        created(1),
+        uploaded(2),
+
+        /**
+         * Deleted, but the object and row have not been cleaned up yet
+         */
+        deleted(3),
+
+        /**
+         * Uploaded as far as storage is concerned (UploadEventConsumer has seen the object), but not completed by the
+         * client yet
+         */
+        stored(4);
+
+        private final short code;
+
+        Status(int code)
+        {
+            this.code = (short) code;
+        }
+
+        /**
+         * @return the status as stored in the partitioned schema, where it is a smallint, and in the embedded state
+         * store's log and snapshots, where it is a byte. Never reuse a code, and never use 0
+         */
+        public short getCode()
+        {
+            return code;
+        }
+
+        public static Status fromCode(int code)
+        {
+            for (Status status : values())
+            {
+                if (status.code == code)
+                {
+                    return status;
+                }
+            }
+            throw new IllegalArgumentException("Unknown status code " + code);
+        }
     }
 
     private final UUID id;
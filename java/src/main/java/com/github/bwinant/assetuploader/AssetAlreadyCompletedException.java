@@ -0,0 +1,21 @@
+package com.github.bwinant.assetuploader;
+
+import java.util.UUID;
+
+public class AssetAlreadyCompletedException extends AssetException
+{
+    private AssetAlreadyCompletedException(UUID assetId)
+    {
+        super("Upload of asset " + assetId + " is already completed", false);
+    }
+
+    /**
+     * Clients retrying a complete get one of these, so it doesn't have a stack trace
+     *
+     * @return the exception for an asset that was completed before
+     */
+    public static AssetAlreadyCompletedException of(UUID assetId)
+    {
+        return new AssetAlreadyCompletedException(assetId);
+    }
+}
@@ -11,4 +11,14 @@ public class AssetException extends Exception
     {
         super(message, cause);
     }
+
+    /**
+     * For outcomes that are part of normal operation rather than something going wrong, which are thrown a lot and
+     * only ever caught to be turned into a response. Filling in the stack trace is most of the cost of throwing, and
+     * it says nothing about where the problem is
+     */
+    protected AssetException(String message, boolean writableStackTrace)
+    {
+        super(message, null, false, writableStackTrace);
+    }
 }
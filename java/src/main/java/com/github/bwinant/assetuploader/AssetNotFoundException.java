@@ -1,5 +1,7 @@
 package com.github.bwinant.assetuploader;
 
+import java.util.UUID;
+
 public class AssetNotFoundException extends AssetException
 {
     public AssetNotFoundException(String message)
@@ -11,4 +13,19 @@ public class AssetNotFoundException extends AssetException
     {
         super(message, cause);
     }
+
+    private AssetNotFoundException(UUID assetId)
+    {
+        super("Asset " + assetId + " not found", false);
+    }
+
+    /**
+     * Anyone trying random ids gets one of these, so it doesn't have a stack trace
+     *
+     * @return the exception for an asset that doesn't exist or can't be used yet
+     */
+    public static AssetNotFoundException of(UUID assetId)
+    {
+        return new AssetNotFoundException(assetId);
+    }
 }
@@ -1,5 +1,8 @@
 package com.github.bwinant.assetuploader;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.UUID;
 
 public interface AssetService
@@ -8,10 +11,83 @@ public interface AssetService
 
     UUID createAsset() throws AssetException;
 
-    void completeAsset(Asset asset) throws AssetException;
+    /**
+     * Creates multiple assets in a single database round trip
+     *
+     * @param count the number of assets to create
+     *
+     * @return the ids of the created assets
+     */
+    List<UUID> createAssets(int count) throws AssetException;
+
+    /**
+     * Marks the asset as uploaded.
+     * The status change is atomic, so if the asset is completed concurrently exactly one caller succeeds
+     *
+     * @param assetId the asset to complete
+     *
+     * @throws AssetNotFoundException if the asset does not exist or was not uploaded
+     * @throws AssetAlreadyCompletedException if the asset was already completed
+     * @throws AssetException if the asset is a multipart upload
+     */
+    void completeAsset(UUID assetId) throws AssetException;
+
+    /**
+     * Creates an asset that is uploaded in parts, for assets too large for a single upload URL (over 5 GB) or clients
+     * that want to upload in parallel. The part size is picked from the size of the asset
+     *
+     * @param size the size of the asset in bytes
+     * @param expires amount of time in seconds before the part URLs expire
+     *
+     * @return the asset id and an upload URL per part
+     *
+     * @throws MultipartUnsupportedException if the storage doesn't do multipart uploads
+     * @throws AssetException if the asset is too large
+     */
+    MultipartUpload createMultipartAsset(long size, long expires) throws AssetException;
+
+    /**
+     * Assembles the uploaded parts of an asset created with createMultipartAsset() and marks the asset as uploaded.
+     * Like completeAsset(), exactly one caller succeeds if the asset is completed concurrently
+     *
+     * @param assetId the asset to complete
+     * @param etags the ETag returned for each uploaded part, in part order
+     *
+     * @throws AssetNotFoundException if the asset does not exist
+     * @throws AssetAlreadyCompletedException if the asset was already completed
+     * @throws AssetException if the asset isn't a multipart upload or the parts don't match what was uploaded
+     */
+    void completeMultipartAsset(UUID assetId, List<String> etags) throws AssetException;
+
+    /**
+     * Uploads the asset contents through the service and marks the asset as uploaded, for clients that can't reach
+     * the storage with the upload URL. Like completeAsset(), exactly one caller succeeds if the asset is uploaded
+     * concurrently
+     *
+     * @param assetId the asset to upload
+     * @param content the asset contents, read until the end
+     *
+     * @throws AssetNotFoundException if the asset does not exist
+     * @throws AssetAlreadyCompletedException if the asset was already completed
+     * @throws AssetException if the asset is a multipart upload
+     * @throws IOException if reading the contents failed
+     */
+    void uploadAsset(UUID assetId, InputStream content) throws AssetException, IOException;
+
+    /**
+     * Marks multiple assets as stored in a single database round trip, their objects are in storage.
+     * They still need to be completed with completeAsset() like any other upload, which then doesn't have to check
+     * storage. Assets that do not exist or are past created are skipped
+     *
+     * @param assetIds the assets whose objects were stored
+     *
+     * @return the number of assets that were marked
+     */
+    int completeAssets(List<UUID> assetIds);
 
     /**
      * Deletes the asset.
+     * The asset is no longer visible once this returns, the S3 object and database row are cleaned up in the background.
      * If the asset does not exist, no exceptions are thrown
      *
      * @param assetId the asset to delete
@@ -28,6 +104,16 @@ public interface AssetService
      */
     String getUploadUrl(UUID assetId, long expires);
 
+    /**
+     * Returns pre-signed PUT URLs for multiple assets, all sharing the same expiration time
+     *
+     * @param assetIds the asset ids
+     * @param expires amount of time in seconds before the URLs expire
+     *
+     * @return pre-signed upload URLs, in the same order as the asset ids
+     */
+    List<String> getUploadUrls(List<UUID> assetIds, long expires);
+
     /**
      * Returns a pre-signed GET URL to download an asset from S3
      *
@@ -37,4 +123,15 @@ public interface AssetService
      * @return a pre-signed download URL
      */
     String getDownloadUrl(UUID assetId, long expires);
+
+    /**
+     * Returns pre-signed GET URLs for multiple assets, looking all of them up in a single database round trip.
+     * Assets that don't exist or haven't been uploaded get an error instead of a URL, the rest of the batch is unaffected
+     *
+     * @param assetIds the asset ids
+     * @param expires amount of time in seconds before the URLs expire
+     *
+     * @return a download URL or error per asset, in the same order as the asset ids
+     */
+    List<DownloadUrl> getDownloadUrls(List<UUID> assetIds, long expires);
 }
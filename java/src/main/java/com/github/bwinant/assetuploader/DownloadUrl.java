@@ -0,0 +1,64 @@
+package com.github.bwinant.assetuploader;
+
+import java.util.UUID;
+
+/**
+ * The download URL of one asset out of a batch, or why it doesn't have one
+ */
+public class DownloadUrl
+{
+    private final UUID assetId;
+    private final String url;
+    private final Error error;
+
+    private DownloadUrl(UUID assetId, String url, Error error)
+    {
+        this.assetId = assetId;
+        this.url = url;
+        this.error = error;
+    }
+
+    public static DownloadUrl of(UUID assetId, String url)
+    {
+        return new DownloadUrl(assetId, url, null);
+    }
+
+    public static DownloadUrl failed(UUID assetId, Error error)
+    {
+        return new DownloadUrl(assetId, null, error);
+    }
+
+    public UUID getAssetId()
+    {
+        return assetId;
+    }
+
+    /**
+     * @return a pre-signed download URL, null if there is an error
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return why there is no URL, null if there is one
+     */
+    public Error getError()
+    {
+        return error;
+    }
+
+    public enum Error
+    {
+        /**
+         * The asset does not exist or was deleted
+         */
+        notFound,
+
+        /**
+         * The asset exists but hasn't been uploaded yet
+         */
+        notUploaded
+    }
+}
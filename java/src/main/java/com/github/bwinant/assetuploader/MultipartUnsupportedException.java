@@ -0,0 +1,13 @@
+package com.github.bwinant.assetuploader;
+
+/**
+ * Thrown when a multipart upload is asked for but the storage doesn't do them. It's down to how the service is set up
+ * rather than anything going wrong, so it doesn't have a stack trace
+ */
+public class MultipartUnsupportedException extends AssetException
+{
+    public MultipartUnsupportedException(String message)
+    {
+        super(message, false);
+    }
+}
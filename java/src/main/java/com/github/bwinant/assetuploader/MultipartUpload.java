@@ -0,0 +1,39 @@
+package com.github.bwinant.assetuploader;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An asset that is uploaded in parts. Every part is partSize bytes except the last one, which is whatever is left
+ */
+public class MultipartUpload
+{
+    private final UUID assetId;
+    private final long partSize;
+    private final List<String> partUrls;
+
+    public MultipartUpload(UUID assetId, long partSize, List<String> partUrls)
+    {
+        this.assetId = assetId;
+        this.partSize = partSize;
+        this.partUrls = partUrls;
+    }
+
+    public UUID getAssetId()
+    {
+        return assetId;
+    }
+
+    public long getPartSize()
+    {
+        return partSize;
+    }
+
+    /**
+     * @return an upload URL per part, in part order
+     */
+    public List<String> getPartUrls()
+    {
+        return partUrls;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.bwinant.assetuploader;
+
+import java.util.List;
+import java.util.UUID;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking counterpart of AssetService, used by the reactive web stack.
+ * Same semantics as AssetService, errors are signalled through the returned Mono instead of being thrown.
+ * Pre-signing URLs is pure computation, so those methods return directly
+ */
+public interface ReactiveAssetService
+{
+    /**
+     * @throws AssetNotFoundException (signalled) if the asset does not exist
+     */
+    Mono<Asset> getAsset(UUID assetId);
+
+    Mono<UUID> createAsset();
+
+    /**
+     * Creates multiple assets in a single database round trip
+     *
+     * @param count the number of assets to create
+     *
+     * @return the ids of the created assets
+     */
+    Mono<List<UUID>> createAssets(int count);
+
+    /**
+     * Marks the asset as uploaded, see AssetService.completeAsset()
+     *
+     * @param assetId the asset to complete
+     *
+     * @return completes empty on success, signals AssetNotFoundException if the asset does not exist or was not uploaded
+     * and AssetAlreadyCompletedException if the asset was already completed
+     */
+    Mono<Void> completeAsset(UUID assetId);
+
+    /**
+     * Deletes the asset, see AssetService.deleteAsset()
+     *
+     * @param assetId the asset to delete
+     */
+    Mono<Void> deleteAsset(UUID assetId);
+
+    String getUploadUrl(UUID assetId, long expires);
+
+    List<String> getUploadUrls(List<UUID> assetIds, long expires);
+
+    String getDownloadUrl(UUID assetId, long expires);
+}
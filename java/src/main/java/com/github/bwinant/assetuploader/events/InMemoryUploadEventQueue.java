@@ -0,0 +1,68 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload event queue that lives entirely in memory, for running and testing event driven completion without AWS
+ */
+public class InMemoryUploadEventQueue implements UploadEventQueue
+{
+    private final BlockingQueue<UploadEvent> queue = new LinkedBlockingQueue<>();
+    private final long waitMillis;
+
+    public InMemoryUploadEventQueue(long waitMillis)
+    {
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Adds an object created notification to the queue
+     *
+     * @param key the key of the object that was created
+     */
+    public void publish(String key)
+    {
+        queue.add(new UploadEvent(key, null));
+    }
+
+    public int size()
+    {
+        return queue.size();
+    }
+
+    @Override
+    public List<UploadEvent> poll(int maxEvents)
+    {
+        List<UploadEvent> events = new ArrayList<>(Math.min(maxEvents, 1024));
+        try
+        {
+            UploadEvent event = queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+            if (event != null)
+            {
+                events.add(event);
+                queue.drainTo(events, maxEvents - 1);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return events;
+    }
+
+    @Override
+    public void acknowledge(List<UploadEvent> events)
+    {
+        // Polled events have already been removed from the queue
+    }
+
+    @Override
+    public void reject(List<UploadEvent> events)
+    {
+        queue.addAll(events);
+    }
+}
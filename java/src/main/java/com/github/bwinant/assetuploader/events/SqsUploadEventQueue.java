@@ -0,0 +1,171 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads S3 event notifications that the asset bucket publishes to an SQS queue
+ */
+public class SqsUploadEventQueue implements UploadEventQueue
+{
+    private static final Logger log = LoggerFactory.getLogger(SqsUploadEventQueue.class);
+
+    // SQS limit for receive and batch requests
+    private static final int MAX_BATCH = 10;
+
+    private final AmazonSQS sqsClient;
+    private final String queueUrl;
+    private final String bucketName;
+    private final int waitSecs;
+    private final ObjectMapper objectMapper;
+
+    public SqsUploadEventQueue(AmazonSQS sqsClient, String queueUrl, String bucketName, int waitSecs, ObjectMapper objectMapper)
+    {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+        this.bucketName = bucketName;
+        this.waitSecs = waitSecs;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public List<UploadEvent> poll(int maxEvents)
+    {
+        List<UploadEvent> events = new ArrayList<>();
+        List<String> ignored = new ArrayList<>();
+
+        // SQS only hands out 10 messages at a time. Long poll for the first page, then keep going
+        // without waiting for as long as the queue has full pages to give us
+        int wait = waitSecs;
+        while (events.size() < maxEvents)
+        {
+            ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(MAX_BATCH)
+                .withWaitTimeSeconds(wait);
+            List<Message> messages = sqsClient.receiveMessage(request).getMessages();
+
+            for (Message message : messages)
+            {
+                List<String> keys = parseKeys(message.getBody());
+                if (keys.isEmpty())
+                {
+                    ignored.add(message.getReceiptHandle());
+                }
+                for (String key : keys)
+                {
+                    events.add(new UploadEvent(key, message.getReceiptHandle()));
+                }
+            }
+
+            if (messages.size() < MAX_BATCH)
+            {
+                break;
+            }
+            wait = 0;
+        }
+
+        // Test events, other buckets, etc. There is nothing to do for these
+        if (!ignored.isEmpty())
+        {
+            delete(ignored);
+        }
+        return events;
+    }
+
+    @Override
+    public void acknowledge(List<UploadEvent> events)
+    {
+        delete(receipts(events));
+    }
+
+    @Override
+    public void reject(List<UploadEvent> events)
+    {
+        List<String> receipts = new ArrayList<>(receipts(events));
+        for (int i = 0; i < receipts.size(); i += MAX_BATCH)
+        {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH);
+            for (String receipt : receipts.subList(i, Math.min(i + MAX_BATCH, receipts.size())))
+            {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(entries.size()), receipt).withVisibilityTimeout(0));
+            }
+            sqsClient.changeMessageVisibilityBatch(queueUrl, entries);
+        }
+    }
+
+    /**
+     * Extracts the keys of created objects in our bucket from an S3 event notification
+     */
+    List<String> parseKeys(String body)
+    {
+        JsonNode records;
+        try
+        {
+            records = objectMapper.readTree(body).path("Records");
+        }
+        catch (IOException e)
+        {
+            log.warn("Ignoring unparseable message: {}", body);
+            return Collections.emptyList();
+        }
+
+        List<String> keys = new ArrayList<>(records.size());
+        for (JsonNode record : records)
+        {
+            if (!record.path("eventName").asText().startsWith("ObjectCreated:") ||
+                !bucketName.equals(record.path("s3").path("bucket").path("name").asText()))
+            {
+                continue;
+            }
+
+            // Keys in event notifications are URL encoded
+            keys.add(URLDecoder.decode(record.path("s3").path("object").path("key").asText(), StandardCharsets.UTF_8));
+        }
+        return keys;
+    }
+
+    private void delete(Iterable<String> receipts)
+    {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH);
+        for (String receipt : receipts)
+        {
+            entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(entries.size()), receipt));
+            if (entries.size() == MAX_BATCH)
+            {
+                sqsClient.deleteMessageBatch(queueUrl, entries);
+                entries = new ArrayList<>(MAX_BATCH);
+            }
+        }
+        if (!entries.isEmpty())
+        {
+            sqsClient.deleteMessageBatch(queueUrl, entries);
+        }
+    }
+
+    private static Set<String> receipts(List<UploadEvent> events)
+    {
+        // A single message can contain several records, so receipts can repeat
+        Set<String> receipts = new LinkedHashSet<>();
+        for (UploadEvent event : events)
+        {
+            receipts.add(event.getReceipt());
+        }
+        return receipts;
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.bwinant.assetuploader.events;
+
+/**
+ * Notification that an object was created in the asset bucket
+ */
+public class UploadEvent
+{
+    private final String key;
+    private final String receipt;
+
+    public UploadEvent(String key, String receipt)
+    {
+        this.key = key;
+        this.receipt = receipt;
+    }
+
+    /**
+     * @return the key of the object that was created
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return opaque handle the queue uses to acknowledge the message this event came from
+     */
+    public String getReceipt()
+    {
+        return receipt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return key;
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.AssetService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Marks assets as stored as object created notifications for them arrive, so that completing an asset
+ * doesn't need to ask S3 whether it was uploaded. Each poll is applied with a single batched UPDATE.
+ * Assets still have to be completed by the client before they can be downloaded, like without events
+ */
+@Component
+@ConditionalOnProperty(name = "asset.completion.mode", havingValue = "events")
+public class UploadEventConsumer
+{
+    private static final Logger log = LoggerFactory.getLogger(UploadEventConsumer.class);
+
+    private final UploadEventQueue queue;
+    private final AssetService assetService;
+    private final int batchSize;
+
+    @Autowired
+    public UploadEventConsumer(UploadEventQueue queue,
+                               AssetService assetService,
+                               @Value("${asset.completion.events.batch.size:1000}") int batchSize)
+    {
+        this.queue = queue;
+        this.assetService = assetService;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Processes one batch of events
+     *
+     * @return the number of events processed
+     */
+    @Scheduled(fixedDelayString = "${asset.completion.events.poll.delay.ms:100}")
+    public int poll()
+    {
+        List<UploadEvent> events = queue.poll(batchSize);
+        if (events.isEmpty())
+        {
+            return 0;
+        }
+
+        List<UUID> assetIds = new ArrayList<>(events.size());
+        for (UploadEvent event : events)
+        {
+            try
+            {
+                assetIds.add(UUID.fromString(event.getKey()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Not something we created, nothing to complete
+                log.warn("Ignoring upload of unknown object {}", event.getKey());
+            }
+        }
+
+        try
+        {
+            int completed = assetIds.isEmpty() ? 0 : assetService.completeAssets(assetIds);
+            queue.acknowledge(events);
+            log.debug("Completed {} of {} uploaded assets", completed, events.size());
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Unable to complete {} uploaded assets, will retry", events.size(), e);
+            queue.reject(events);
+        }
+        return events.size();
+    }
+}
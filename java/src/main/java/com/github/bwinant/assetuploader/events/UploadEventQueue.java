@@ -0,0 +1,34 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.util.List;
+
+/**
+ * Source of object created notifications for the asset bucket.
+ *
+ * Events are delivered at least once: anything that is polled but not acknowledged will eventually be delivered again.
+ */
+public interface UploadEventQueue
+{
+    /**
+     * Receives up to maxEvents events, waiting a bounded amount of time if none are available
+     *
+     * @param maxEvents the maximum number of events to return
+     *
+     * @return the received events, possibly empty
+     */
+    List<UploadEvent> poll(int maxEvents);
+
+    /**
+     * Removes processed events from the queue
+     *
+     * @param events events previously returned by poll()
+     */
+    void acknowledge(List<UploadEvent> events);
+
+    /**
+     * Makes events that could not be processed available to be polled again
+     *
+     * @param events events previously returned by poll()
+     */
+    void reject(List<UploadEvent> events);
+}
@@ -0,0 +1,94 @@
+package com.github.bwinant.assetuploader.impl;
+
+import com.github.bwinant.assetuploader.state.AssetStateStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes assets that were created but never completed.
+ *
+ * Clients that call POST /asset and then never upload leave created rows behind forever. Anything still created (or
+ * stored, uploaded but never completed) after asset.sweeper.max.age.secs is turned into a tombstone, and
+ * DeletionPipeline takes care of the row and whatever made it to S3. Work is done in small batches with a pause in
+ * between, and a run stops after a fixed number of batches, so a large backlog is worked off gradually instead of
+ * competing with foreground traffic.
+ */
+@Component
+@ConditionalOnProperty(name = "asset.sweeper.enabled", havingValue = "true", matchIfMissing = true)
+public class AbandonedAssetSweeper
+{
+    private static final Logger log = LoggerFactory.getLogger(AbandonedAssetSweeper.class);
+
+    private final AssetStateStore stateStore;
+    private final long maxAgeSecs;
+    private final int batchSize;
+    private final int maxBatches;
+    private final long pauseMillis;
+
+    private final Counter swept;
+
+    @Autowired
+    public AbandonedAssetSweeper(AssetStateStore stateStore,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${asset.sweeper.max.age.secs:86400}") long maxAgeSecs,
+                                 @Value("${asset.sweeper.batch.size:500}") int batchSize,
+                                 @Value("${asset.sweeper.max.batches:20}") int maxBatches,
+                                 @Value("${asset.sweeper.pause.ms:200}") long pauseMillis)
+    {
+        this.stateStore = stateStore;
+        this.maxAgeSecs = maxAgeSecs;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.pauseMillis = pauseMillis;
+        this.swept = meterRegistry.counter("assets.sweeper.swept");
+    }
+
+    /**
+     * Runs one sweep
+     *
+     * @return the number of abandoned assets that were deleted
+     */
+    @Scheduled(fixedDelayString = "${asset.sweeper.delay.ms:60000}")
+    public int sweep()
+    {
+        int total = 0;
+        for (int i = 0; i < maxBatches; i++)
+        {
+            int count = stateStore.deleteAbandoned(maxAgeSecs, batchSize);
+            total += count;
+            swept.increment(count);
+
+            if (count < batchSize || !pause())
+            {
+                break;
+            }
+        }
+
+        if (total > 0)
+        {
+            log.info("Deleted {} abandoned assets", total);
+        }
+        return total;
+    }
+
+    private boolean pause()
+    {
+        try
+        {
+            Thread.sleep(pauseMillis);
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
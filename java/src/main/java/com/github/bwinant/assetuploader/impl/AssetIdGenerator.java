@@ -0,0 +1,180 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Makes asset ids. They are UUIDs to prevent users from poking at API URLs: if GET /asset/1 works, there is a good
+ * chance GET /asset/2 does too.
+ *
+ * By default (asset.id.type=time) they are version 7 UUIDs, which start with the time they were made in milliseconds.
+ * New assets then go next to each other at the end of the primary key index instead of anywhere in it, and the
+ * partitioned store can tell which partitions an asset can be in. The other 74 bits are random, so an id can't be
+ * guessed from another one made in the same millisecond. asset.id.type=random makes version 4 UUIDs, 122 random bits
+ * like UUID.randomUUID().
+ *
+ * The random bits come from SecureRandom, but not the one UUID.randomUUID() shares with everything else, which on Linux
+ * takes a lock for every read. There are a few generators instead, each filling a buffer that's good for a couple of
+ * hundred ids at a time, and a thread takes whichever one is free. Not thread locals, which virtual threads would get
+ * one of per request.
+ */
+@Component
+public class AssetIdGenerator
+{
+    // 256 ids' worth
+    private static final int BUFFER_SIZE = 4096;
+
+    private final IdType type;
+    private final LongSupplier clock;
+    private final AtomicReferenceArray<Entropy> pool = new AtomicReferenceArray<>(2 * Runtime.getRuntime().availableProcessors());
+
+    @Autowired
+    public AssetIdGenerator(@Value("${asset.id.type:time}") IdType type)
+    {
+        this(type, System::currentTimeMillis);
+    }
+
+    AssetIdGenerator(IdType type, LongSupplier clock)
+    {
+        this.type = type;
+        this.clock = clock;
+    }
+
+    public UUID next()
+    {
+        Entropy entropy = acquire();
+        try
+        {
+            return next(entropy);
+        }
+        finally
+        {
+            release(entropy);
+        }
+    }
+
+    /**
+     * @return count new ids
+     */
+    public List<UUID> next(int count)
+    {
+        List<UUID> ids = new ArrayList<>(count);
+        Entropy entropy = acquire();
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                ids.add(next(entropy));
+            }
+        }
+        finally
+        {
+            release(entropy);
+        }
+        return ids;
+    }
+
+    private UUID next(Entropy entropy)
+    {
+        long msb = entropy.nextLong();
+        long lsb = entropy.nextLong();
+
+        // Version in bits 48-51, variant (0b10) in the top 2 bits of lsb, see RFC 9562
+        if (type == IdType.time)
+        {
+            msb = clock.getAsLong() << 16 | 0x7000 | msb & 0x0FFF;
+        }
+        else
+        {
+            msb = msb & ~0xF000L | 0x4000;
+        }
+        lsb = lsb & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+
+    private Entropy acquire()
+    {
+        int start = (int) (Thread.currentThread().threadId() % pool.length());
+        for (int i = 0; i < pool.length(); i++)
+        {
+            int slot = (start + i) % pool.length();
+            Entropy entropy = pool.get(slot);
+            if (entropy != null && pool.compareAndSet(slot, entropy, null))
+            {
+                return entropy;
+            }
+        }
+
+        // All taken (or not made yet), pooled when it's released if there's room
+        return new Entropy();
+    }
+
+    private void release(Entropy entropy)
+    {
+        int start = (int) (Thread.currentThread().threadId() % pool.length());
+        for (int i = 0; i < pool.length(); i++)
+        {
+            int slot = (start + i) % pool.length();
+            if (pool.get(slot) == null && pool.compareAndSet(slot, null, entropy))
+            {
+                return;
+            }
+        }
+    }
+
+    public enum IdType
+    {
+        /**
+         * Version 7 UUIDs, time ordered
+         */
+        time,
+
+        /**
+         * Version 4 UUIDs, all random
+         */
+        random
+    }
+
+    /**
+     * Random bytes, generated a buffer at a time. Only used by one thread at a time
+     */
+    private static class Entropy
+    {
+        private final SecureRandom random;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private final ByteBuffer buffer = ByteBuffer.wrap(bytes).position(BUFFER_SIZE);
+
+        Entropy()
+        {
+            try
+            {
+                // Seeded from the OS, and unlike NativePRNG with state of its own
+                random = SecureRandom.getInstance("DRBG");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException("DRBG SecureRandom not available", e);
+            }
+        }
+
+        long nextLong()
+        {
+            if (!buffer.hasRemaining())
+            {
+                random.nextBytes(bytes);
+                buffer.clear();
+            }
+            return buffer.getLong();
+        }
+    }
+}
@@ -1,23 +1,38 @@
 package com.github.bwinant.assetuploader.impl;
 
-import java.net.URL;
-import java.util.Date;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import com.amazonaws.HttpMethod;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
 import com.github.bwinant.assetuploader.Asset;
-import com.github.bwinant.assetuploader.Asset.Status;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
 import com.github.bwinant.assetuploader.AssetException;
 import com.github.bwinant.assetuploader.AssetNotFoundException;
 import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUnsupportedException;
+import com.github.bwinant.assetuploader.MultipartUpload;
+import com.github.bwinant.assetuploader.state.AssetState;
+import com.github.bwinant.assetuploader.state.AssetStateStore;
+import com.github.bwinant.assetuploader.state.Completion;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.InvalidPartsException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 
 import static com.github.bwinant.assetuploader.Asset.Status.*;
@@ -27,109 +42,438 @@ public class AssetServiceImpl implements AssetService
 {
     private static final Logger log = LoggerFactory.getLogger(AssetServiceImpl.class);
 
-    private final JdbcTemplate jdbcTemplate;
-    private final AmazonS3 s3Client;
-    private final String bucketName;
+    // S3 limits for multipart uploads
+    private static final long MAX_SIZE = 5L * 1024 * 1024 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    private static final long MB = 1024 * 1024;
+
+    // Fewer URLs than this aren't worth handing to another thread
+    private static final int MIN_PRESIGN_CHUNK = 32;
+
+    private final AssetStateStore stateStore;
+    private final AssetStorage storage;
+    private final DownloadUrlCache downloadUrlCache;
+    private final AssetIdGenerator idGenerator;
+    private final ContentCache contentCache;
+    private final CompletionMode completionMode;
+    private final long minPartSize;
+
+    // Signing is all CPU, so a batch of download URLs is split up among the cores
+    private final ExecutorService presigners = Executors.newVirtualThreadPerTaskExecutor();
+    private final int presignParallelism = Runtime.getRuntime().availableProcessors();
+
+    // State store (database) and storage time of each call, so the service timers (see TimedAssetService) can be broken
+    // down. They go into the request's trace too, see RequestTrace
+    private final TracedTimer dbGet;
+    private final TracedTimer dbGetBatch;
+    private final TracedTimer dbCreate;
+    private final TracedTimer dbCreateBatch;
+    private final TracedTimer dbCreateMultipart;
+    private final TracedTimer dbComplete;
+    private final TracedTimer dbCompleteBatch;
+    private final TracedTimer dbDelete;
+    private final TracedTimer storageExists;
+    private final TracedTimer storageWrite;
+    private final TracedTimer storagePresign;
+    private final TracedTimer storageInitiate;
+    private final TracedTimer storageCompleteMultipart;
 
     @Autowired
-    public AssetServiceImpl(JdbcTemplate jdbcTemplate, AmazonS3 s3Client, @Value("${asset.bucket}") String bucketName)
+    public AssetServiceImpl(AssetStateStore stateStore,
+                            AssetStorage storage,
+                            DownloadUrlCache downloadUrlCache,
+                            AssetIdGenerator idGenerator,
+                            ObjectProvider<ContentCache> contentCache,
+                            MeterRegistry meterRegistry,
+                            @Value("${asset.completion.mode:head}") CompletionMode completionMode,
+                            @Value("${asset.multipart.part.size:16777216}") long minPartSize)
+    {
+        // The content cache is only there when downloads are proxied (asset.content.cache.enabled)
+        this(stateStore, storage, downloadUrlCache, idGenerator, contentCache.getIfAvailable(), meterRegistry, completionMode, minPartSize);
+    }
+
+    AssetServiceImpl(AssetStateStore stateStore,
+                     AssetStorage storage,
+                     DownloadUrlCache downloadUrlCache,
+                     AssetIdGenerator idGenerator,
+                     ContentCache contentCache,
+                     MeterRegistry meterRegistry,
+                     CompletionMode completionMode,
+                     long minPartSize)
     {
-        this.jdbcTemplate = jdbcTemplate;
-        this.s3Client = s3Client;
-        this.bucketName = bucketName;
+        this.stateStore = stateStore;
+        this.storage = storage;
+        this.downloadUrlCache = downloadUrlCache;
+        this.idGenerator = idGenerator;
+        this.contentCache = contentCache;
+        this.completionMode = completionMode;
+        this.minPartSize = minPartSize;
+
+        this.dbGet = dbTimer(meterRegistry, "get");
+        this.dbGetBatch = dbTimer(meterRegistry, "getBatch");
+        this.dbCreate = dbTimer(meterRegistry, "create");
+        this.dbCreateBatch = dbTimer(meterRegistry, "createBatch");
+        this.dbCreateMultipart = dbTimer(meterRegistry, "createMultipart");
+        this.dbComplete = dbTimer(meterRegistry, "complete");
+        this.dbCompleteBatch = dbTimer(meterRegistry, "completeBatch");
+        this.dbDelete = dbTimer(meterRegistry, "delete");
+        this.storageExists = tracedStorageTimer(meterRegistry, "exists");
+        this.storageWrite = tracedStorageTimer(meterRegistry, "write");
+        this.storagePresign = tracedStorageTimer(meterRegistry, "presign");
+        this.storageInitiate = tracedStorageTimer(meterRegistry, "initiate");
+        this.storageCompleteMultipart = tracedStorageTimer(meterRegistry, "completeMultipart");
     }
 
     @Override
     public Asset getAsset(UUID assetId) throws AssetException
     {
-        try
-        {
-            return jdbcTemplate.queryForObject(
-                "SELECT status FROM assets WHERE id = ?",
-                new Object[]{assetId},
-                (rs, i) -> new Asset(assetId, Status.valueOf(rs.getString("status")))
-            );
-        }
-        catch (EmptyResultDataAccessException e)
+        Asset asset = dbGet.record(() -> stateStore.getAsset(assetId));
+        if (asset == null)
         {
-            throw new AssetNotFoundException("Asset " + assetId + " not found");
+            throw AssetNotFoundException.of(assetId);
         }
+        return asset;
     }
 
     @Override
     public UUID createAsset()
     {
         // Will use UUIDs for identifying assets.
-        // Reason is to prevent users from poking at API URLs: if GET /asset/1 works, there is a good chance GET asset/2 does too
-        UUID assetId = UUID.randomUUID();
+        // Reason is to prevent users from poking at API URLs: if GET /asset/1 works, there is a good chance GET asset/2 does too.
+        // Time ordered by default, but still unguessable, see AssetIdGenerator
+        UUID assetId = idGenerator.next();
 
-        // Track asset upload state in PostgreSQL
-        jdbcTemplate.update("INSERT INTO assets (id) VALUES(?)", assetId);
+        // Track asset upload state in PostgreSQL (or wherever the state store keeps it)
+        dbCreate.record(() -> stateStore.create(assetId));
         log.debug("Initialized asset {}", assetId);
         return assetId;
     }
 
     @Override
-    public void completeAsset(Asset asset) throws AssetException
+    public List<UUID> createAssets(int count)
     {
-        UUID assetId = asset.getId();
+        List<UUID> assetIds = idGenerator.next(count);
 
-        // Verify asset was actually uploaded
-        boolean exists = s3Client.doesObjectExist(bucketName, assetId.toString());
+        // All of them at once, a single JDBC batch with the default state store
+        dbCreateBatch.record(() -> stateStore.createAll(assetIds));
+        log.debug("Initialized {} assets", count);
+        return assetIds;
+    }
+
+    @Override
+    public void completeAsset(UUID assetId) throws AssetException
+    {
+        if (completionMode == CompletionMode.events)
+        {
+            // UploadEventConsumer has most likely seen the object and marked the asset stored already, so there's no
+            // need to ask S3. If the notification hasn't been processed yet, fall through and verify with S3 ourselves.
+            // Completing it twice fails the same way it does without events
+            AssetState state = getState(assetId);
+            Asset.Status status = state.getStatus();
+            if (status == uploaded)
+            {
+                throw AssetAlreadyCompletedException.of(assetId);
+            }
+            checkNotMultipart(state);
+            if (status == stored)
+            {
+                checkCompletion(assetId, markUploaded(assetId));
+                return;
+            }
+        }
+
+        // Verify asset was actually uploaded. Without events nothing is looked up to tell a multipart upload apart, but
+        // its object only exists once completeMultipartAsset() has assembled the parts, so there are none left to lose
+        boolean exists = storageExists.record(() -> storage.exists(assetId.toString()));
         if (!exists)
         {
             //throw new AssetException("Asset " + assetId + " has not been uploaded");
-            throw new AssetNotFoundException("Asset " + assetId + " not found");
+            throw AssetNotFoundException.of(assetId);
+        }
+
+        checkCompletion(assetId, markUploaded(assetId));
+    }
+
+    @Override
+    public MultipartUpload createMultipartAsset(long size, long expires) throws AssetException
+    {
+        if (!storage.supportsMultipart())
+        {
+            throw new MultipartUnsupportedException("Multipart uploads are only supported with S3 storage");
+        }
+        if (size > MAX_SIZE)
+        {
+            throw new AssetException("Assets can't be larger than " + MAX_SIZE + " bytes");
+        }
+
+        // Parts can't be any bigger than they need to be to stay within S3's part limit, rounded up to a whole MB
+        long partSize = Math.max(minPartSize, Math.ceilDiv(size, MAX_PARTS));
+        partSize = Math.ceilDiv(partSize, MB) * MB;
+        int parts = (int) Math.max(1, Math.ceilDiv(size, partSize));
+
+        UUID assetId = idGenerator.next();
+        String key = assetId.toString();
+
+        // S3 first so the row never exists without its upload id. If the INSERT fails the upload is left to the
+        // bucket's AbortIncompleteMultipartUpload lifecycle rule
+        String uploadId = storageInitiate.record(() -> storage.initiateMultipartUpload(key));
+        dbCreateMultipart.record(() -> stateStore.createMultipart(assetId, uploadId));
+        log.debug("Initialized multipart upload {} of asset {}", uploadId, assetId);
+
+        long now = System.currentTimeMillis();
+        List<String> partUrls = new ArrayList<>(parts);
+        for (int i = 1; i <= parts; i++)
+        {
+            int partNumber = i;
+            partUrls.add(storagePresign.record(() -> storage.getPartUploadUrl(key, uploadId, partNumber, expires, now)));
         }
+        return new MultipartUpload(assetId, partSize, partUrls);
+    }
 
-        // Check if asset was already completed
-        if (asset.getStatus() == uploaded)
+    @Override
+    public void completeMultipartAsset(UUID assetId, List<String> etags) throws AssetException
+    {
+        AssetState state = getState(assetId);
+        String uploadId = state.getUploadId();
+        if (state.getStatus() == uploaded)
+        {
+            throw AssetAlreadyCompletedException.of(assetId);
+        }
+        if (uploadId == null)
         {
-            throw new AssetException("Upload of asset " + assetId + " is already completed");
+            throw new AssetException("Asset " + assetId + " is not a multipart upload");
         }
 
-        // Update asset state in PostgreSQL
-        int count = jdbcTemplate.update("UPDATE assets SET status = ?, ts = NOW()", uploaded.toString());
-        if (count == 0)
+        long start = System.nanoTime();
+        try
+        {
+            storage.completeMultipartUpload(assetId.toString(), uploadId, etags);
+        }
+        catch (InvalidPartsException e)
+        {
+            throw new AssetException("Unable to complete upload of asset " + assetId + ": " + e.getMessage(), e);
+        }
+        finally
         {
-            throw new AssetNotFoundException("Asset " + assetId + " not found");
+            storageCompleteMultipart.stop(start);
         }
 
-        log.debug("Completed uploaded of asset {}", assetId);
+        // In events mode UploadEventConsumer may have seen the object the complete created and marked it stored, which
+        // markUploaded() completes just the same
+        checkCompletion(assetId, markUploaded(assetId));
+    }
+
+    @Override
+    public void uploadAsset(UUID assetId, InputStream content) throws AssetException, IOException
+    {
+        // Don't take an upload we'd have to throw away. Another upload can still win the race while this one is in
+        // progress, in which case the object is overwritten but markUploaded() reports the asset as already completed
+        AssetState state = getState(assetId);
+        if (state.getStatus() == uploaded)
+        {
+            throw AssetAlreadyCompletedException.of(assetId);
+        }
+        checkNotMultipart(state);
+
+        long start = System.nanoTime();
+        try
+        {
+            storage.write(assetId.toString(), content);
+        }
+        finally
+        {
+            storageWrite.stop(start);
+        }
+
+        // We know the upload happened, no need to check the storage like completeAsset() does
+        checkCompletion(assetId, markUploaded(assetId));
+    }
+
+    private AssetState getState(UUID assetId) throws AssetNotFoundException
+    {
+        AssetState state = dbGet.record(() -> stateStore.getState(assetId));
+        if (state == null)
+        {
+            throw AssetNotFoundException.of(assetId);
+        }
+        return state;
+    }
+
+    // Completing a multipart asset any other way forgets its upload id without aborting it, and its parts would be
+    // kept (and paid for) until the bucket's lifecycle rule gets to them
+    private static void checkNotMultipart(AssetState state) throws AssetException
+    {
+        if (state.getUploadId() != null)
+        {
+            throw new AssetException("Asset " + state.getId() + " is a multipart upload, complete it with its parts");
+        }
+    }
+
+    private Completion markUploaded(UUID assetId)
+    {
+        return dbComplete.record(() -> stateStore.complete(assetId));
+    }
+
+    private static void checkCompletion(UUID assetId, Completion completion) throws AssetException
+    {
+        switch (completion)
+        {
+            case notFound:
+                throw AssetNotFoundException.of(assetId);
+            case alreadyCompleted:
+                throw AssetAlreadyCompletedException.of(assetId);
+            default:
+                log.debug("Completed uploaded of asset {}", assetId);
+        }
+    }
+
+    @Override
+    public int completeAssets(List<UUID> assetIds)
+    {
+        int count = dbCompleteBatch.record(() -> stateStore.completeAll(assetIds));
+        log.debug("Completed upload of {} assets", count);
+        return count;
     }
 
     @Override
     public void deleteAsset(UUID assetId)
     {
-        s3Client.deleteObject(bucketName, assetId.toString());
-        jdbcTemplate.update("DELETE FROM assets WHERE id = ?", assetId);
+        // Leave a tombstone, DeletionPipeline deletes the stored object and the row in bulk later on
+        dbDelete.record(() -> stateStore.delete(assetId));
+
+        // No point keeping a copy of something nobody can download anymore
+        if (contentCache != null)
+        {
+            contentCache.evict(assetId);
+        }
         log.debug("Deleted asset {}", assetId);
     }
 
     @Override
     public String getUploadUrl(UUID assetId, long expires)
     {
-        // Requirements say "user should be able to make a POST call to the s3 signed url to upload the asset"
-        // but S3 pre-signed upload URLs require a PUT not a POST
-        return getPresignedUrl(assetId, HttpMethod.PUT, expires);
+        long now = System.currentTimeMillis();
+        return storagePresign.record(() -> storage.getUploadUrl(assetId.toString(), expires, now));
+    }
+
+    @Override
+    public List<String> getUploadUrls(List<UUID> assetIds, long expires)
+    {
+        long now = System.currentTimeMillis();
+
+        List<String> urls = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            urls.add(storagePresign.record(() -> storage.getUploadUrl(assetId.toString(), expires, now)));
+        }
+        return urls;
     }
 
     @Override
     public String getDownloadUrl(UUID assetId, long expires)
     {
-        return getPresignedUrl(assetId, HttpMethod.GET, expires);
+        // Only cache misses are signed, so only they count towards the presign time
+        return downloadUrlCache.get(assetId, expires, () -> storagePresign.record(() -> storage.getDownloadUrl(assetId.toString(), expires)));
     }
 
-    private String getPresignedUrl(UUID assetId, HttpMethod method, long expires)
+    @Override
+    public List<DownloadUrl> getDownloadUrls(List<UUID> assetIds, long expires)
     {
-        Date expiration = new Date(System.currentTimeMillis() + (expires * 1000));
+        Map<UUID, Asset.Status> statuses = new HashMap<>();
+        for (Asset asset : dbGetBatch.record(() -> stateStore.getAssets(assetIds)))
+        {
+            statuses.put(asset.getId(), asset.getStatus());
+        }
 
-        GeneratePresignedUrlRequest request =
-            new GeneratePresignedUrlRequest(bucketName, assetId.toString())
-                .withMethod(method)
-                .withExpiration(expiration);
+        // Not found and not uploaded are reported per asset, only the uploaded ones are signed
+        DownloadUrl[] results = new DownloadUrl[assetIds.size()];
+        List<Integer> uploadedIndexes = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++)
+        {
+            Asset.Status status = statuses.get(assetIds.get(i));
+            if (status == null)
+            {
+                results[i] = DownloadUrl.failed(assetIds.get(i), DownloadUrl.Error.notFound);
+            }
+            else if (status != uploaded)
+            {
+                results[i] = DownloadUrl.failed(assetIds.get(i), DownloadUrl.Error.notUploaded);
+            }
+            else
+            {
+                uploadedIndexes.add(i);
+            }
+        }
+
+        // The first chunk is signed on this thread while the others are signed on their own
+        int chunks = Math.max(1, Math.min(presignParallelism, uploadedIndexes.size() / MIN_PRESIGN_CHUNK));
+        List<CompletableFuture<Void>> signing = new ArrayList<>(chunks - 1);
+        for (int chunk = 1; chunk < chunks; chunk++)
+        {
+            List<Integer> indexes = chunk(uploadedIndexes, chunk, chunks);
+            signing.add(CompletableFuture.runAsync(() -> sign(assetIds, indexes, expires, results), presigners));
+        }
+        sign(assetIds, chunk(uploadedIndexes, 0, chunks), expires, results);
+
+        try
+        {
+            CompletableFuture.allOf(signing.toArray(new CompletableFuture[0])).join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return Arrays.asList(results);
+    }
+
+    private void sign(List<UUID> assetIds, List<Integer> indexes, long expires, DownloadUrl[] results)
+    {
+        for (int i : indexes)
+        {
+            UUID assetId = assetIds.get(i);
+            results[i] = DownloadUrl.of(assetId, getDownloadUrl(assetId, expires));
+        }
+    }
+
+    private static <T> List<T> chunk(List<T> list, int chunk, int chunks)
+    {
+        return list.subList(chunk * list.size() / chunks, (chunk + 1) * list.size() / chunks);
+    }
+
+    private static TracedTimer dbTimer(MeterRegistry meterRegistry, String query)
+    {
+        return new TracedTimer(Timer.builder("assets.db").tag("query", query).register(meterRegistry), "db." + query);
+    }
+
+    static Timer storageTimer(MeterRegistry meterRegistry, String operation)
+    {
+        return Timer.builder("assets.storage").tag("operation", operation).register(meterRegistry);
+    }
+
+    private static TracedTimer tracedStorageTimer(MeterRegistry meterRegistry, String operation)
+    {
+        return new TracedTimer(storageTimer(meterRegistry, operation), "storage." + operation);
+    }
+
+    /**
+     * How completeAsset() verifies an asset was uploaded
+     */
+    public enum CompletionMode
+    {
+        /**
+         * Checks the object exists in storage every time
+         */
+        head,
 
-        URL url = s3Client.generatePresignedUrl(request);
-        return url.toString();
+        /**
+         * Relies on S3 event notifications processed by UploadEventConsumer, only checking S3 if the notification
+         * hasn't arrived yet
+         */
+        events
     }
 }
@@ -0,0 +1,273 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.Asset.Status;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUpload;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Caches asset status in front of AssetServiceImpl so that GET and PUT don't have to hit the database every time.
+ *
+ * Once an asset is uploaded its status doesn't change until it is deleted, so those entries are kept for a long time.
+ * Created assets can be completed through another server at any moment, so they are only cached briefly, as are
+ * unknown ids (scanners trying random UUIDs would otherwise cost us a query each).
+ *
+ * Entries are keyed by the asset id and only hold a status byte (the boxed Bytes are shared), not full Asset objects.
+ * Eviction is Caffeine's size bounded W-TinyLFU, so memory use is set through asset.cache.max.size.
+ * TimedAssetService is what callers get injected, it sits in front of this.
+ */
+@Service
+@ConditionalOnProperty(name = "asset.cache.enabled", havingValue = "true", matchIfMissing = true)
+public class CachingAssetService implements AssetService
+{
+    private static final byte NOT_FOUND = -1;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final AssetService delegate;
+    private final AsyncCache<UUID, Byte> cache;
+
+    @Autowired
+    public CachingAssetService(AssetServiceImpl delegate,
+                               @Value("${asset.cache.max.size:1000000}") long maxSize,
+                               @Value("${asset.cache.ttl.secs:3600}") long ttlSecs,
+                               @Value("${asset.cache.negative.ttl.secs:5}") long negativeTtlSecs,
+                               MeterRegistry meterRegistry)
+    {
+        this(delegate, maxSize, ttlSecs, negativeTtlSecs, Ticker.systemTicker());
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "asset.status");
+    }
+
+    CachingAssetService(AssetService delegate, long maxSize, long ttlSecs, long negativeTtlSecs, Ticker ticker)
+    {
+        this.delegate = delegate;
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfter(new StatusExpiry(TimeUnit.SECONDS.toNanos(ttlSecs), TimeUnit.SECONDS.toNanos(negativeTtlSecs)))
+            .ticker(ticker)
+            .recordStats()
+            .buildAsync();
+    }
+
+    @Override
+    public Asset getAsset(UUID assetId) throws AssetException
+    {
+        // The entry is claimed with a future that we then complete on this thread. Loading inside the cache's mapping
+        // function would run the query while holding a (synchronized) map lock, which pins virtual threads. Callers
+        // asking for the same asset meanwhile wait on our future, and if it is invalidated while we're loading the
+        // future is dropped, so a stale status can't make it into the cache
+        CompletableFuture<Byte> loading = new CompletableFuture<>();
+        CompletableFuture<Byte> future = cache.get(assetId, (k, executor) -> loading);
+        if (future == loading)
+        {
+            try
+            {
+                loading.complete(load(assetId));
+            }
+            catch (AssetException | RuntimeException e)
+            {
+                // Failed futures are removed from the cache
+                loading.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        byte status;
+        try
+        {
+            status = future.join();
+        }
+        catch (CompletionException e)
+        {
+            // Whoever loaded it threw the cause itself, waiters get the same
+            if (e.getCause() instanceof AssetException)
+            {
+                throw (AssetException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        if (status == NOT_FOUND)
+        {
+            throw AssetNotFoundException.of(assetId);
+        }
+        return new Asset(assetId, STATUSES[status]);
+    }
+
+    @Override
+    public UUID createAsset() throws AssetException
+    {
+        return delegate.createAsset();
+    }
+
+    @Override
+    public List<UUID> createAssets(int count) throws AssetException
+    {
+        return delegate.createAssets(count);
+    }
+
+    @Override
+    public void completeAsset(UUID assetId) throws AssetException
+    {
+        try
+        {
+            delegate.completeAsset(assetId);
+        }
+        finally
+        {
+            cache.synchronous().invalidate(assetId);
+        }
+    }
+
+    @Override
+    public MultipartUpload createMultipartAsset(long size, long expires) throws AssetException
+    {
+        return delegate.createMultipartAsset(size, expires);
+    }
+
+    @Override
+    public void completeMultipartAsset(UUID assetId, List<String> etags) throws AssetException
+    {
+        try
+        {
+            delegate.completeMultipartAsset(assetId, etags);
+        }
+        finally
+        {
+            cache.synchronous().invalidate(assetId);
+        }
+    }
+
+    @Override
+    public void uploadAsset(UUID assetId, InputStream content) throws AssetException, IOException
+    {
+        try
+        {
+            delegate.uploadAsset(assetId, content);
+        }
+        finally
+        {
+            cache.synchronous().invalidate(assetId);
+        }
+    }
+
+    @Override
+    public int completeAssets(List<UUID> assetIds)
+    {
+        try
+        {
+            return delegate.completeAssets(assetIds);
+        }
+        finally
+        {
+            cache.synchronous().invalidateAll(assetIds);
+        }
+    }
+
+    @Override
+    public void deleteAsset(UUID assetId)
+    {
+        try
+        {
+            delegate.deleteAsset(assetId);
+        }
+        finally
+        {
+            cache.synchronous().invalidate(assetId);
+        }
+    }
+
+    @Override
+    public String getUploadUrl(UUID assetId, long expires)
+    {
+        return delegate.getUploadUrl(assetId, expires);
+    }
+
+    @Override
+    public List<String> getUploadUrls(List<UUID> assetIds, long expires)
+    {
+        return delegate.getUploadUrls(assetIds, expires);
+    }
+
+    @Override
+    public String getDownloadUrl(UUID assetId, long expires)
+    {
+        return delegate.getDownloadUrl(assetId, expires);
+    }
+
+    @Override
+    public List<DownloadUrl> getDownloadUrls(List<UUID> assetIds, long expires)
+    {
+        // Already a single query, going through the cache would split it into the hits and a query for the misses
+        return delegate.getDownloadUrls(assetIds, expires);
+    }
+
+    private byte load(UUID assetId) throws AssetException
+    {
+        try
+        {
+            return (byte) delegate.getAsset(assetId).getStatus().ordinal();
+        }
+        catch (AssetNotFoundException e)
+        {
+            return NOT_FOUND;
+        }
+    }
+
+    private static class StatusExpiry implements Expiry<UUID, Byte>
+    {
+        private final long ttl;
+        private final long negativeTtl;
+
+        StatusExpiry(long ttl, long negativeTtl)
+        {
+            this.ttl = ttl;
+            this.negativeTtl = negativeTtl;
+        }
+
+        @Override
+        public long expireAfterCreate(UUID assetId, Byte status, long currentTime)
+        {
+            return status == uploaded.ordinal() ? ttl : negativeTtl;
+        }
+
+        @Override
+        public long expireAfterUpdate(UUID assetId, Byte status, long currentTime, long currentDuration)
+        {
+            return expireAfterCreate(assetId, status, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(UUID assetId, Byte status, long currentTime, long currentDuration)
+        {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.LinkDirectory;
+import com.github.bwinant.assetuploader.storage.StoredObject;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Read-through cache of asset contents on the local disk, behind GET /asset/{id}/content.
+ *
+ * Assets that are downloaded over and over are read from storage once and served from disk after that, instead of
+ * paying for an S3 GET (and egress) every time. Concurrent misses for the same asset wait for a single fill rather
+ * than each downloading it.
+ *
+ * The files are bounded by their total size, asset.content.cache.max.size. Eviction is Caffeine's W-TinyLFU rather
+ * than plain LRU, so a burst of one-off downloads doesn't flush the assets that are downloaded all the time.
+ * Every fill gets a file of its own, so a file is never written to while it is being served. Deleted assets are
+ * evicted right away. Nothing is kept across restarts, whatever is left in asset.content.cache.dir is deleted on startup.
+ */
+@Component
+@ConditionalOnProperty(name = "asset.content.cache.enabled", havingValue = "true")
+public class ContentCache
+{
+    private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+
+    // How much is read from storage per FileChannel.transferFrom() call
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private final AssetStorage storage;
+    private final Path dir;
+    private final LinkDirectory links;
+    private final AsyncCache<UUID, CachedContent> cache;
+    private final Timer storageRead;
+
+    @Autowired
+    public ContentCache(AssetStorage storage,
+                        MeterRegistry meterRegistry,
+                        @Value("${asset.content.cache.dir}") String dir,
+                        @Value("${asset.content.cache.max.size:10737418240}") long maxSize)
+        throws IOException
+    {
+        this(storage, meterRegistry, Paths.get(dir), maxSize, ForkJoinPool.commonPool());
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "asset.content");
+    }
+
+    ContentCache(AssetStorage storage, MeterRegistry meterRegistry, Path dir, long maxSize, Executor executor)
+        throws IOException
+    {
+        this.storage = storage;
+        this.dir = Files.createDirectories(dir);
+        this.links = new LinkDirectory(this.dir.resolve(".links"), System::currentTimeMillis);
+        this.storageRead = AssetServiceImpl.storageTimer(meterRegistry, "read");
+
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(this.dir))
+        {
+            for (Path leftover : leftovers)
+            {
+                if (!leftover.equals(links.getDir()))
+                {
+                    Files.deleteIfExists(leftover);
+                }
+            }
+        }
+
+        // Weighed in KB, a weight has to fit in an int
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(maxSize / 1024)
+            .weigher((UUID assetId, CachedContent content) -> (int) Math.min(Integer.MAX_VALUE, Math.ceilDiv(content.getLength(), 1024)))
+            .removalListener((UUID assetId, CachedContent content, RemovalCause cause) -> {
+                if (content != null)
+                {
+                    delete(content.getFile());
+                }
+            })
+            .executor(executor)
+            .recordStats()
+            .buildAsync();
+    }
+
+    /**
+     * Returns the cached contents of the asset, reading them from storage first if they aren't cached yet.
+     * The file can be evicted at any moment, once it's open it can still be read on POSIX file systems
+     *
+     * @param assetId the asset id
+     *
+     * @return the cached contents
+     *
+     * @throws java.nio.file.NoSuchFileException if the asset isn't in storage
+     * @throws IOException if reading from storage or writing the file failed
+     */
+    public CachedContent get(UUID assetId)
+        throws IOException
+    {
+        // Claimed with a future that is completed on this thread, like in CachingAssetService, so the fill doesn't
+        // run while holding a map lock
+        CompletableFuture<CachedContent> loading = new CompletableFuture<>();
+        CompletableFuture<CachedContent> future = cache.get(assetId, (k, executor) -> loading);
+        if (future == loading)
+        {
+            CachedContent content;
+            try
+            {
+                content = fill(assetId);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // Failed futures are removed from the cache, the next request tries again
+                loading.completeExceptionally(e);
+                throw e;
+            }
+            loading.complete(content);
+
+            // Evicted while filling (the asset was deleted), nobody else will clean the file up
+            if (cache.asMap().get(assetId) != loading)
+            {
+                delete(content.getFile());
+            }
+            return content;
+        }
+
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the asset from the cache and deletes its file
+     */
+    public void evict(UUID assetId)
+    {
+        cache.synchronous().invalidate(assetId);
+    }
+
+    /**
+     * @return a link to the cached file that stays around for a while after the file is evicted (see LinkDirectory)
+     *
+     * @throws java.nio.file.NoSuchFileException if the file was evicted already
+     */
+    public Path link(CachedContent content)
+        throws IOException
+    {
+        return links.link(content.getFile());
+    }
+
+    @Scheduled(fixedDelayString = "${asset.content.cache.links.sweep.delay.ms:60000}")
+    public void sweepLinks()
+    {
+        links.sweep();
+    }
+
+    private CachedContent fill(UUID assetId)
+        throws IOException
+    {
+        String key = assetId.toString();
+        Path file = Files.createTempFile(dir, key, ".content");
+        boolean filled = false;
+        long start = System.nanoTime();
+        try (StoredObject object = storage.read(key);
+             ReadableByteChannel src = Channels.newChannel(object.getContent());
+             FileChannel out = FileChannel.open(file, WRITE))
+        {
+            long size = 0;
+            long n;
+            while ((n = out.transferFrom(src, size, TRANSFER_SIZE)) > 0)
+            {
+                size += n;
+            }
+
+            // A connection that drops part way through just looks like the end of the stream
+            if (size != object.getLength())
+            {
+                throw new IOException("Read " + size + " of " + object.getLength() + " bytes of " + key);
+            }
+
+            filled = true;
+            log.debug("Cached {} bytes of asset {}", size, assetId);
+            return new CachedContent(file, size, object.getEtag());
+        }
+        finally
+        {
+            storageRead.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (!filled)
+            {
+                delete(file);
+            }
+        }
+    }
+
+    private static void delete(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to delete {}", file, e);
+        }
+    }
+
+    public static class CachedContent
+    {
+        private final Path file;
+        private final long length;
+        private final String etag;
+
+        CachedContent(Path file, long length, String etag)
+        {
+            this.file = file;
+            this.length = length;
+            this.etag = etag;
+        }
+
+        public Path getFile()
+        {
+            return file;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        /**
+         * @return the ETag of the stored object, without quotes
+         */
+        public String getEtag()
+        {
+            return etag;
+        }
+    }
+}
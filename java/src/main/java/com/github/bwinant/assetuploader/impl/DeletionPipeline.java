@@ -0,0 +1,157 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bwinant.assetuploader.state.AssetState;
+import com.github.bwinant.assetuploader.state.AssetStateStore;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.StorageException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cleans up deleted assets in the background.
+ *
+ * deleteAsset() only leaves a tombstone. This drains tombstones oldest first, in chunks of up to 1000 (the most a
+ * single S3 DeleteObjects request accepts), removing the objects with one storage call and the rows with one DELETE
+ * per chunk. Objects that fail to delete keep their tombstone and are moved to the back of the line to be retried.
+ *
+ * Multipart uploads that were never completed (deleted by the client, or swept by AbandonedAssetSweeper) are aborted
+ * first, one request each, otherwise S3 keeps their parts around and bills for them.
+ */
+@Component
+public class DeletionPipeline
+{
+    private static final Logger log = LoggerFactory.getLogger(DeletionPipeline.class);
+
+    // S3 limit for DeleteObjects
+    private static final int MAX_CHUNK_SIZE = 1000;
+
+    private final AssetStateStore stateStore;
+    private final AssetStorage storage;
+    private final int chunkSize;
+
+    private final AtomicLong backlog = new AtomicLong();
+    private final Counter drained;
+    private final Counter failed;
+    private final Timer storageDelete;
+    private final Timer storageAbort;
+
+    @Autowired
+    public DeletionPipeline(AssetStateStore stateStore,
+                            AssetStorage storage,
+                            MeterRegistry meterRegistry,
+                            @Value("${asset.deletion.chunk.size:1000}") int chunkSize)
+    {
+        this.stateStore = stateStore;
+        this.storage = storage;
+        this.chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+
+        // Drain rate is the rate of the drained counter
+        meterRegistry.gauge("assets.deletion.backlog", backlog);
+        this.drained = meterRegistry.counter("assets.deletion.drained");
+        this.failed = meterRegistry.counter("assets.deletion.failed");
+        this.storageDelete = AssetServiceImpl.storageTimer(meterRegistry, "delete");
+        this.storageAbort = AssetServiceImpl.storageTimer(meterRegistry, "abort");
+    }
+
+    /**
+     * Drains tombstones until there are none left (or the storage starts failing)
+     *
+     * @return the number of deleted assets that were cleaned up
+     */
+    @Scheduled(fixedDelayString = "${asset.deletion.delay.ms:1000}")
+    public int drain()
+    {
+        int total = 0;
+        try
+        {
+            while (true)
+            {
+                int count = stateStore.purgeDeleted(chunkSize, this::cleanUp);
+                drained.increment(count);
+                total += count;
+
+                // A short chunk means we've caught up, or the storage is refusing some of the deletes so leave them for later
+                if (count < chunkSize)
+                {
+                    break;
+                }
+            }
+        }
+        catch (StorageException e)
+        {
+            // The whole request failed, the chunk was put back and will be picked up again on the next run
+            log.error("Unable to delete assets from storage, will retry", e);
+        }
+        finally
+        {
+            backlog.set(stateStore.countDeleted());
+        }
+
+        if (total > 0)
+        {
+            log.debug("Cleaned up {} deleted assets, {} remaining", total, backlog.get());
+        }
+        return total;
+    }
+
+    public long getBacklog()
+    {
+        return backlog.get();
+    }
+
+    private Set<UUID> cleanUp(List<AssetState> tombstones)
+    {
+        List<String> keys = new ArrayList<>(tombstones.size());
+        for (AssetState tombstone : tombstones)
+        {
+            keys.add(tombstone.getId().toString());
+        }
+
+        Set<String> failedKeys = new HashSet<>(storageDelete.record(() -> storage.delete(keys)));
+        for (AssetState tombstone : tombstones)
+        {
+            String key = tombstone.getId().toString();
+            String uploadId = tombstone.getUploadId();
+            if (uploadId == null)
+            {
+                continue;
+            }
+
+            try
+            {
+                storageAbort.record(() -> storage.abortMultipartUpload(key, uploadId));
+            }
+            catch (StorageException e)
+            {
+                log.warn("Unable to abort multipart upload {} of {}", uploadId, key, e);
+                failedKeys.add(key);
+            }
+        }
+
+        Set<UUID> failedIds = new HashSet<>(failedKeys.size());
+        for (AssetState tombstone : tombstones)
+        {
+            if (failedKeys.contains(tombstone.getId().toString()))
+            {
+                failedIds.add(tombstone.getId());
+            }
+        }
+
+        failed.increment(failedIds.size());
+        return failedIds;
+    }
+}
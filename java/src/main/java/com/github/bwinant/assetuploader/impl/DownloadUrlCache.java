@@ -0,0 +1,143 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Short lived cache of pre-signed download URLs.
+ *
+ * When an asset gets popular, lots of clients ask for a download URL for it within a few seconds of each other and
+ * would all be handed practically the same URL anyway. URLs are cached per asset and requested expiration, and are
+ * only reused for a short window, so a client never gets a URL with more than that window shaved off its lifetime.
+ * Concurrent misses for the same key wait on a single signing call instead of each signing their own URL.
+ */
+@Component
+public class DownloadUrlCache
+{
+    private final Cache<Key, CachedUrl> cache;
+    private final Ticker ticker;
+    private final long windowNanos;
+
+    @Autowired
+    public DownloadUrlCache(@Value("${download.cache.max.size:100000}") long maxSize,
+                            @Value("${download.cache.window.secs:5}") long windowSecs,
+                            MeterRegistry meterRegistry)
+    {
+        this(maxSize, windowSecs, Ticker.systemTicker());
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "download.urls");
+    }
+
+    DownloadUrlCache(long maxSize, long windowSecs, Ticker ticker)
+    {
+        this.ticker = ticker;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSecs);
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(Math.max(windowSecs, 1), TimeUnit.SECONDS)
+            .ticker(ticker)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns a cached download URL for the asset, or signs a new one if there isn't one with enough lifetime left
+     *
+     * @param assetId the asset id
+     * @param expires amount of time in seconds before the URL expires
+     * @param signer signs a new URL valid for expires seconds from now
+     *
+     * @return a pre-signed download URL
+     */
+    public String get(UUID assetId, long expires, Supplier<String> signer)
+    {
+        long lifetime = TimeUnit.SECONDS.toNanos(expires);
+        if (windowNanos == 0 || lifetime <= windowNanos)
+        {
+            // Caching is disabled, or reusing the URL could hand out one that has (nearly) expired
+            return signer.get();
+        }
+
+        CachedUrl cached = cache.get(new Key(assetId, expires), k -> sign(signer));
+
+        // Entries are evicted after the window anyway, this just guards against the ticker and eviction disagreeing
+        if (cached.signedAt + windowNanos < ticker.read())
+        {
+            cached = sign(signer);
+            cache.put(new Key(assetId, expires), cached);
+        }
+        return cached.url;
+    }
+
+    public long hitCount()
+    {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount()
+    {
+        return cache.stats().missCount();
+    }
+
+    private CachedUrl sign(Supplier<String> signer)
+    {
+        // Read the time before signing so the URL is guaranteed to live at least as long as we think
+        long signedAt = ticker.read();
+        return new CachedUrl(signer.get(), signedAt);
+    }
+
+    private static class Key
+    {
+        private final UUID assetId;
+        private final long expires;
+
+        Key(UUID assetId, long expires)
+        {
+            this.assetId = assetId;
+            this.expires = expires;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass())
+            {
+                return false;
+            }
+
+            final Key key = (Key) o;
+            return expires == key.expires && assetId.equals(key.assetId);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * assetId.hashCode() + Long.hashCode(expires);
+        }
+    }
+
+    private static class CachedUrl
+    {
+        private final String url;
+        private final long signedAt;
+
+        CachedUrl(String url, long signedAt)
+        {
+            this.url = url;
+            this.signedAt = signedAt;
+        }
+    }
+}
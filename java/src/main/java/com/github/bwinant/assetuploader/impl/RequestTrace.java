@@ -0,0 +1,120 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the time of a request went: the database, S3, signing URLs, reading and writing JSON. Spans are recorded by the
+ * same code that feeds the assets.db and assets.storage timers, RequestTraceFilter picks the requests that are traced
+ * and reports them.
+ *
+ * A trace belongs to the thread handling the request, so work handed to other threads (signing a big batch of download
+ * URLs) isn't in it. Spans with the same name are added up instead of kept one by one, which keeps a trace to a few
+ * arrays made once, however many calls a request makes. While no request is being traced, recording a span is a single
+ * volatile read.
+ */
+public final class RequestTrace
+{
+    // Span names beyond this are dropped, there are only a handful of them
+    static final int MAX_SPANS = 16;
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    // Requests being traced right now, on any thread
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final String[] names = new String[MAX_SPANS];
+    private final int[] counts = new int[MAX_SPANS];
+    private final long[] durations = new long[MAX_SPANS];
+    private int size;
+
+    /**
+     * Adds a span to the current thread's trace, if it has one
+     *
+     * @param name  a constant, like db.get
+     * @param start System.nanoTime() at the start
+     * @param end   System.nanoTime() at the end
+     */
+    public static void span(String name, long start, long end)
+    {
+        // Small enough to be inlined wherever it's called, the rest isn't
+        if (ACTIVE.get() != 0)
+        {
+            record(name, end - start);
+        }
+    }
+
+    private static void record(String name, long duration)
+    {
+        RequestTrace trace = CURRENT.get();
+        if (trace != null)
+        {
+            trace.add(name, duration);
+        }
+    }
+
+    /**
+     * Starts tracing the current thread, until end(). Whatever was recorded before is cleared
+     */
+    public void begin()
+    {
+        size = 0;
+        CURRENT.set(this);
+        ACTIVE.incrementAndGet();
+    }
+
+    public void end()
+    {
+        CURRENT.remove();
+        ACTIVE.decrementAndGet();
+    }
+
+    private void add(String name, long duration)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (names[i] == name || names[i].equals(name))
+            {
+                counts[i]++;
+                durations[i] += duration;
+                return;
+            }
+        }
+
+        if (size < MAX_SPANS)
+        {
+            names[size] = name;
+            counts[size] = 1;
+            durations[size] = duration;
+            size++;
+        }
+    }
+
+    /**
+     * @return number of different spans, in the order they were first recorded
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public String getName(int span)
+    {
+        return names[span];
+    }
+
+    /**
+     * @return how many times the span was recorded
+     */
+    public int getCount(int span)
+    {
+        return counts[span];
+    }
+
+    /**
+     * @return total time of the span in nanoseconds
+     */
+    public long getDuration(int span)
+    {
+        return durations[span];
+    }
+}
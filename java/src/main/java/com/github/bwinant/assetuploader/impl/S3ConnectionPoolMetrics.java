@@ -0,0 +1,37 @@
+package com.github.bwinant.assetuploader.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.http.pool.ConnPoolControl;
+
+/**
+ * Gauges for the S3 client's HTTP connection pool, named after the hikaricp.connections ones so both pools can be
+ * compared side by side. Reading them takes the pool's lock, which is fine once per scrape
+ */
+public class S3ConnectionPoolMetrics implements MeterBinder
+{
+    private final ConnPoolControl<?> pool;
+
+    public S3ConnectionPoolMetrics(ConnPoolControl<?> pool)
+    {
+        this.pool = pool;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry)
+    {
+        Gauge.builder("s3.connections.active", pool, p -> p.getTotalStats().getLeased())
+            .description("Connections in use")
+            .register(registry);
+        Gauge.builder("s3.connections.idle", pool, p -> p.getTotalStats().getAvailable())
+            .description("Open connections that aren't in use")
+            .register(registry);
+        Gauge.builder("s3.connections.pending", pool, p -> p.getTotalStats().getPending())
+            .description("Requests waiting for a connection")
+            .register(registry);
+        Gauge.builder("s3.connections.max", pool, p -> p.getTotalStats().getMax())
+            .description("Maximum number of connections")
+            .register(registry);
+    }
+}
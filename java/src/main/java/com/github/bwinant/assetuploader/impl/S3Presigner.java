@@ -0,0 +1,427 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Generates SigV4 pre-signed S3 URLs without going through AmazonS3.generatePresignedUrl().
+ *
+ * The SDK builds a full request pipeline and re-derives the HMAC signing key chain for every URL it signs.
+ * Here the derived signing key is cached until the date (or credentials) change, and the Mac, digest and
+ * canonical request buffers are pooled and reused. The output is identical to what the SDK generates.
+ */
+@Component
+public class S3Presigner
+{
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final String TERMINATOR = "aws4_request";
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    // Maximum lifetime of a SigV4 pre-signed URL
+    private static final long MAX_EXPIRES = 7 * 24 * 60 * 60;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AWSCredentialsProvider credentialsProvider;
+    private final String region;
+    private final String urlPrefix;
+    private final String host;
+    private final String pathPrefix;
+    private final Clock clock;
+
+    // Pooled rather than thread local, with virtual threads every request runs on a new thread
+    private final Queue<SigningState> signingStates = new ConcurrentLinkedQueue<>();
+
+    private volatile SigningKey signingKey;
+
+    @Autowired
+    public S3Presigner(AWSCredentialsProvider credentialsProvider,
+                       AmazonS3 s3Client,
+                       @Value("${aws.region}") String region,
+                       @Value("${asset.bucket}") String bucketName)
+    {
+        // Let the SDK resolve the endpoint and addressing style (virtual host vs path) so our URLs point at the same place.
+        // The region comes from config, the SDK can't tell what it is when a custom endpoint is configured
+        this(credentialsProvider, region, s3Client.getUrl(bucketName, ""), Clock.systemUTC());
+    }
+
+    S3Presigner(AWSCredentialsProvider credentialsProvider, String region, URL bucketUrl, Clock clock)
+    {
+        this.credentialsProvider = credentialsProvider;
+        this.region = region;
+        this.clock = clock;
+
+        this.host = bucketUrl.getPort() == -1 ? bucketUrl.getHost() : bucketUrl.getHost() + ":" + bucketUrl.getPort();
+        this.urlPrefix = bucketUrl.getProtocol() + "://" + host;
+
+        String path = bucketUrl.getPath();
+        this.pathPrefix = path.endsWith("/") ? path : path + "/";
+    }
+
+    /**
+     * Returns a pre-signed URL for the given object, signed at the current time
+     *
+     * @param method the HTTP method the URL is valid for
+     * @param key the object key
+     * @param expires amount of time in seconds before the URL expires
+     *
+     * @return a pre-signed URL
+     */
+    public String presign(HttpMethod method, String key, long expires)
+    {
+        return presign(method, key, expires, clock.millis());
+    }
+
+    /**
+     * Returns a pre-signed URL for the given object, signed at the given time.
+     * Useful for signing a batch of URLs that should all share the same expiration
+     *
+     * @param method the HTTP method the URL is valid for
+     * @param key the object key
+     * @param expires amount of time in seconds before the URL expires
+     * @param timestamp the signing time in epoch millis
+     *
+     * @return a pre-signed URL
+     */
+    public String presign(HttpMethod method, String key, long expires, long timestamp)
+    {
+        return presign(method, key, null, 0, expires, timestamp);
+    }
+
+    /**
+     * Returns a pre-signed URL one part of a multipart upload can be uploaded to with a PUT, signed at the given time
+     *
+     * @param key the object key
+     * @param uploadId the id S3 gave the multipart upload
+     * @param partNumber the part number, starting at 1
+     * @param expires amount of time in seconds before the URL expires
+     * @param timestamp the signing time in epoch millis
+     *
+     * @return a pre-signed URL
+     */
+    public String presignPart(String key, String uploadId, int partNumber, long expires, long timestamp)
+    {
+        return presign(HttpMethod.PUT, key, uploadId, partNumber, expires, timestamp);
+    }
+
+    private String presign(HttpMethod method, String key, String uploadId, int partNumber, long expires, long timestamp)
+    {
+        if (expires <= 0 || expires > MAX_EXPIRES)
+        {
+            throw new IllegalArgumentException("Pre-signed URLs must expire within 1 to " + MAX_EXPIRES + " seconds");
+        }
+
+        SigningState state = signingStates.poll();
+        if (state == null)
+        {
+            state = new SigningState();
+        }
+
+        try
+        {
+            return presign(method, key, uploadId, partNumber, expires, timestamp, state);
+        }
+        finally
+        {
+            signingStates.offer(state);
+        }
+    }
+
+    private String presign(HttpMethod method, String key, String uploadId, int partNumber, long expires, long timestamp, SigningState state)
+    {
+        AWSCredentials credentials = credentialsProvider.getCredentials();
+        String sessionToken = credentials instanceof AWSSessionCredentials ? ((AWSSessionCredentials) credentials).getSessionToken() : null;
+
+        state.setTimestamp(timestamp);
+        String dateStamp = state.dateStamp;
+        String amzDate = state.amzDate;
+
+        // Credential scope is <access key>/<date>/<region>/s3/aws4_request
+        StringBuilder sb = state.credential;
+        sb.setLength(0);
+        sb.append(credentials.getAWSAccessKeyId()).append('/').append(dateStamp).append('/').append(region).append('/')
+            .append(SERVICE).append('/').append(TERMINATOR);
+        int scopeStart = credentials.getAWSAccessKeyId().length() + 1;
+        String credential = encode(sb, 0, sb.length(), state.encoded, false);
+
+        // Canonical query string, parameters sorted by name
+        sb = state.query;
+        sb.setLength(0);
+        sb.append("X-Amz-Algorithm=").append(ALGORITHM)
+            .append("&X-Amz-Credential=").append(credential)
+            .append("&X-Amz-Date=").append(amzDate)
+            .append("&X-Amz-Expires=").append(expires);
+        String encodedToken = null;
+        if (sessionToken != null)
+        {
+            encodedToken = encode(sessionToken, state.encoded, false);
+            sb.append("&X-Amz-Security-Token=").append(encodedToken);
+        }
+        sb.append("&X-Amz-SignedHeaders=host");
+        String encodedUploadId = null;
+        if (uploadId != null)
+        {
+            // Lower case sorts after upper case, so the part parameters go last
+            encodedUploadId = encode(uploadId, state.encoded, false);
+            sb.append("&partNumber=").append(partNumber).append("&uploadId=").append(encodedUploadId);
+        }
+        String encodedPath = encode(pathPrefix + key, state.encoded, true);
+
+        // Canonical request
+        StringBuilder canonical = state.canonical;
+        canonical.setLength(0);
+        canonical.append(method.name()).append('\n')
+            .append(encodedPath).append('\n')
+            .append(state.query).append('\n')
+            .append("host:").append(host).append('\n')
+            .append('\n')
+            .append("host").append('\n')
+            .append("UNSIGNED-PAYLOAD");
+
+        // String to sign
+        StringBuilder stringToSign = state.stringToSign;
+        stringToSign.setLength(0);
+        stringToSign.append(ALGORITHM).append('\n')
+            .append(amzDate).append('\n')
+            .append(state.credential, scopeStart, state.credential.length()).append('\n');
+        state.digest.update(state.bytes, 0, state.ascii(canonical));
+        appendHex(stringToSign, state.digest.digest());
+
+        Mac mac = state.mac;
+        try
+        {
+            SecretKeySpec keySpec = signingKey(credentials.getAWSSecretKey(), dateStamp, state);
+            if (state.macKey != keySpec)
+            {
+                // doFinal() resets the Mac but keeps the key, so only initialize it when the signing key changes
+                mac.init(keySpec);
+                state.macKey = keySpec;
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Unable to initialize " + HMAC_SHA256, e);
+        }
+        mac.update(state.bytes, 0, state.ascii(stringToSign));
+        byte[] signature = mac.doFinal();
+
+        // Parameter order matches the SDK so URLs are byte for byte the same
+        StringBuilder url = new StringBuilder(urlPrefix.length() + encodedPath.length() + state.query.length() + 200);
+        url.append(urlPrefix).append(encodedPath).append('?');
+        if (encodedUploadId != null)
+        {
+            url.append("uploadId=").append(encodedUploadId).append("&partNumber=").append(partNumber).append('&');
+        }
+        if (encodedToken != null)
+        {
+            url.append("X-Amz-Security-Token=").append(encodedToken).append('&');
+        }
+        url.append("X-Amz-Algorithm=").append(ALGORITHM)
+            .append("&X-Amz-Date=").append(amzDate)
+            .append("&X-Amz-SignedHeaders=host")
+            .append("&X-Amz-Expires=").append(expires)
+            .append("&X-Amz-Credential=").append(credential)
+            .append("&X-Amz-Signature=");
+        appendHex(url, signature);
+        return url.toString();
+    }
+
+    private SecretKeySpec signingKey(String secretKey, String dateStamp, SigningState state)
+        throws GeneralSecurityException
+    {
+        // The derived key only changes when the date or the credentials do, so in practice it is computed once a day
+        SigningKey key = signingKey;
+        if (key != null && key.dateStamp.equals(dateStamp) && key.secretKey.equals(secretKey))
+        {
+            return key.key;
+        }
+
+        Mac mac = state.mac;
+        state.macKey = null;
+        byte[] k = hmac(mac, ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp);
+        k = hmac(mac, k, region);
+        k = hmac(mac, k, SERVICE);
+        k = hmac(mac, k, TERMINATOR);
+
+        key = new SigningKey(secretKey, dateStamp, new SecretKeySpec(k, HMAC_SHA256));
+        signingKey = key;
+        return key.key;
+    }
+
+    private static byte[] hmac(Mac mac, byte[] key, String data)
+        throws GeneralSecurityException
+    {
+        mac.init(new SecretKeySpec(key, HMAC_SHA256));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(CharSequence value, StringBuilder out, boolean path)
+    {
+        return encode(value, 0, value.length(), out, path);
+    }
+
+    /**
+     * URI encodes the value as specified by SigV4: everything except unreserved characters is percent encoded,
+     * and slashes are left alone in paths
+     */
+    private static String encode(CharSequence value, int start, int end, StringBuilder out, boolean path)
+    {
+        out.setLength(0);
+        int i = start;
+        while (i < end)
+        {
+            int c = Character.codePointAt(value, i);
+            i += Character.charCount(c);
+
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                c == '-' || c == '_' || c == '.' || c == '~' || (path && c == '/'))
+            {
+                out.append((char) c);
+            }
+            else if (c < 0x80)
+            {
+                appendEscaped(out, c);
+            }
+            else
+            {
+                for (byte b : new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8))
+                {
+                    appendEscaped(out, b & 0xff);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendEscaped(StringBuilder out, int b)
+    {
+        out.append('%').append(Character.toUpperCase(HEX[b >> 4])).append(Character.toUpperCase(HEX[b & 0xf]));
+    }
+
+    private static void appendHex(StringBuilder out, byte[] bytes)
+    {
+        for (byte b : bytes)
+        {
+            out.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+    }
+
+    private static class SigningKey
+    {
+        private final String secretKey;
+        private final String dateStamp;
+        private final SecretKeySpec key;
+
+        SigningKey(String secretKey, String dateStamp, SecretKeySpec key)
+        {
+            this.secretKey = secretKey;
+            this.dateStamp = dateStamp;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Signing resources, used by one thread at a time. Mac and MessageDigest are not thread safe and are expensive to look up,
+     * and the buffers let us build the canonical request without allocating new ones for every URL
+     */
+    private static class SigningState
+    {
+        private final Mac mac;
+        private final MessageDigest digest;
+        private final StringBuilder credential = new StringBuilder(128);
+        private final StringBuilder query = new StringBuilder(512);
+        private final StringBuilder canonical = new StringBuilder(1024);
+        private final StringBuilder stringToSign = new StringBuilder(256);
+        private final StringBuilder encoded = new StringBuilder(512);
+        private byte[] bytes = new byte[1024];
+        private SecretKeySpec macKey;
+
+        private long second = Long.MIN_VALUE;
+        private String dateStamp;
+        private String amzDate;
+
+        SigningState()
+        {
+            try
+            {
+                mac = Mac.getInstance(HMAC_SHA256);
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("Unable to initialize SigV4 signing", e);
+            }
+        }
+
+        void setTimestamp(long timestamp)
+        {
+            // Formatted dates only change once a second so don't bother reformatting them more often
+            long s = Math.floorDiv(timestamp, 1000);
+            if (s != second)
+            {
+                LocalDateTime t = LocalDateTime.ofEpochSecond(s, 0, ZoneOffset.UTC);
+                StringBuilder sb = new StringBuilder(16);
+                pad(sb, t.getYear(), 4);
+                pad(sb, t.getMonthValue(), 2);
+                pad(sb, t.getDayOfMonth(), 2);
+                dateStamp = sb.toString();
+                sb.append('T');
+                pad(sb, t.getHour(), 2);
+                pad(sb, t.getMinute(), 2);
+                pad(sb, t.getSecond(), 2);
+                sb.append('Z');
+                amzDate = sb.toString();
+                second = s;
+            }
+        }
+
+        /**
+         * Copies the (already URI encoded, so ASCII only) contents of the buffer into the reusable byte array
+         *
+         * @return the number of bytes written
+         */
+        int ascii(StringBuilder sb)
+        {
+            int length = sb.length();
+            if (bytes.length < length)
+            {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++)
+            {
+                bytes[i] = (byte) sb.charAt(i);
+            }
+            return length;
+        }
+
+        private static void pad(StringBuilder sb, int value, int width)
+        {
+            String s = Integer.toString(value);
+            for (int i = s.length(); i < width; i++)
+            {
+                sb.append('0');
+            }
+            sb.append(s);
+        }
+    }
+}
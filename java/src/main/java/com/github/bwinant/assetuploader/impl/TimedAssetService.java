@@ -0,0 +1,266 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUpload;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+
+/**
+ * Times every AssetService call as callers see it, cache hits included, as assets.service tagged with the method.
+ *
+ * AssetServiceImpl breaks its own time down into assets.db and assets.storage, so a slow completeAsset can be pinned on
+ * either the S3 HEAD or the UPDATE. Timers are looked up once up front, timing a call is just two clock reads.
+ */
+@Primary
+@Service
+public class TimedAssetService implements AssetService
+{
+    private final AssetService delegate;
+
+    private final Timer getAsset;
+    private final Timer createAsset;
+    private final Timer createAssets;
+    private final Timer completeAsset;
+    private final Timer createMultipartAsset;
+    private final Timer completeMultipartAsset;
+    private final Timer uploadAsset;
+    private final Timer completeAssets;
+    private final Timer deleteAsset;
+    private final Timer getUploadUrl;
+    private final Timer getUploadUrls;
+    private final Timer getDownloadUrl;
+    private final Timer getDownloadUrls;
+
+    @Autowired
+    public TimedAssetService(AssetServiceImpl assetService,
+                             ObjectProvider<CachingAssetService> cachingAssetService,
+                             MeterRegistry meterRegistry)
+    {
+        // The cache can be turned off (asset.cache.enabled)
+        this(Objects.requireNonNullElse(cachingAssetService.getIfAvailable(), assetService), meterRegistry);
+    }
+
+    TimedAssetService(AssetService delegate, MeterRegistry meterRegistry)
+    {
+        this.delegate = delegate;
+        this.getAsset = timer(meterRegistry, "getAsset");
+        this.createAsset = timer(meterRegistry, "createAsset");
+        this.createAssets = timer(meterRegistry, "createAssets");
+        this.completeAsset = timer(meterRegistry, "completeAsset");
+        this.createMultipartAsset = timer(meterRegistry, "createMultipartAsset");
+        this.completeMultipartAsset = timer(meterRegistry, "completeMultipartAsset");
+        this.uploadAsset = timer(meterRegistry, "uploadAsset");
+        this.completeAssets = timer(meterRegistry, "completeAssets");
+        this.deleteAsset = timer(meterRegistry, "deleteAsset");
+        this.getUploadUrl = timer(meterRegistry, "getUploadUrl");
+        this.getUploadUrls = timer(meterRegistry, "getUploadUrls");
+        this.getDownloadUrl = timer(meterRegistry, "getDownloadUrl");
+        this.getDownloadUrls = timer(meterRegistry, "getDownloadUrls");
+    }
+
+    @Override
+    public Asset getAsset(UUID assetId) throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.getAsset(assetId);
+        }
+        finally
+        {
+            stop(getAsset, start);
+        }
+    }
+
+    @Override
+    public UUID createAsset() throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.createAsset();
+        }
+        finally
+        {
+            stop(createAsset, start);
+        }
+    }
+
+    @Override
+    public List<UUID> createAssets(int count) throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.createAssets(count);
+        }
+        finally
+        {
+            stop(createAssets, start);
+        }
+    }
+
+    @Override
+    public void completeAsset(UUID assetId) throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            delegate.completeAsset(assetId);
+        }
+        finally
+        {
+            stop(completeAsset, start);
+        }
+    }
+
+    @Override
+    public MultipartUpload createMultipartAsset(long size, long expires) throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.createMultipartAsset(size, expires);
+        }
+        finally
+        {
+            stop(createMultipartAsset, start);
+        }
+    }
+
+    @Override
+    public void completeMultipartAsset(UUID assetId, List<String> etags) throws AssetException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            delegate.completeMultipartAsset(assetId, etags);
+        }
+        finally
+        {
+            stop(completeMultipartAsset, start);
+        }
+    }
+
+    @Override
+    public void uploadAsset(UUID assetId, InputStream content) throws AssetException, IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            delegate.uploadAsset(assetId, content);
+        }
+        finally
+        {
+            stop(uploadAsset, start);
+        }
+    }
+
+    @Override
+    public int completeAssets(List<UUID> assetIds)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.completeAssets(assetIds);
+        }
+        finally
+        {
+            stop(completeAssets, start);
+        }
+    }
+
+    @Override
+    public void deleteAsset(UUID assetId)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            delegate.deleteAsset(assetId);
+        }
+        finally
+        {
+            stop(deleteAsset, start);
+        }
+    }
+
+    @Override
+    public String getUploadUrl(UUID assetId, long expires)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.getUploadUrl(assetId, expires);
+        }
+        finally
+        {
+            stop(getUploadUrl, start);
+        }
+    }
+
+    @Override
+    public List<String> getUploadUrls(List<UUID> assetIds, long expires)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.getUploadUrls(assetIds, expires);
+        }
+        finally
+        {
+            stop(getUploadUrls, start);
+        }
+    }
+
+    @Override
+    public String getDownloadUrl(UUID assetId, long expires)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.getDownloadUrl(assetId, expires);
+        }
+        finally
+        {
+            stop(getDownloadUrl, start);
+        }
+    }
+
+    @Override
+    public List<DownloadUrl> getDownloadUrls(List<UUID> assetIds, long expires)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return delegate.getDownloadUrls(assetIds, expires);
+        }
+        finally
+        {
+            stop(getDownloadUrls, start);
+        }
+    }
+
+    private static void stop(Timer timer, long start)
+    {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static Timer timer(MeterRegistry meterRegistry, String method)
+    {
+        return Timer.builder("assets.service").tag("method", method).register(meterRegistry);
+    }
+}
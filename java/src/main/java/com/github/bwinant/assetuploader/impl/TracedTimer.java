@@ -0,0 +1,57 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A Timer that adds what it times to the request's trace as well, see RequestTrace. The same two clock reads serve both
+ */
+class TracedTimer
+{
+    private final Timer timer;
+    private final String span;
+
+    TracedTimer(Timer timer, String span)
+    {
+        this.timer = timer;
+        this.span = span;
+    }
+
+    <T> T record(Supplier<T> f)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return f.get();
+        }
+        finally
+        {
+            stop(start);
+        }
+    }
+
+    void record(Runnable f)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            f.run();
+        }
+        finally
+        {
+            stop(start);
+        }
+    }
+
+    /**
+     * Records the time since start, a System.nanoTime()
+     */
+    void stop(long start)
+    {
+        long end = System.nanoTime();
+        timer.record(end - start, TimeUnit.NANOSECONDS);
+        RequestTrace.span(span, start, end);
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.bwinant.assetuploader.reactive;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Access to the assets table over R2DBC.
+ * Runs the same statements as AssetServiceImpl does over JDBC
+ */
+@Repository
+@Profile("reactive")
+public class R2dbcAssetRepository
+{
+    private final DatabaseClient databaseClient;
+
+    @Autowired
+    public R2dbcAssetRepository(DatabaseClient databaseClient)
+    {
+        this.databaseClient = databaseClient;
+    }
+
+    /**
+     * @return the status of the asset, or empty if it does not exist or was deleted
+     */
+    public Mono<Status> findStatus(UUID assetId)
+    {
+        return databaseClient.sql("SELECT status FROM assets WHERE id = $1 AND status <> $2")
+            .bind(0, assetId)
+            .bind(1, deleted.toString())
+            .map((row, metadata) -> Status.valueOf(row.get("status", String.class)))
+            .one();
+    }
+
+    public Mono<Void> insert(UUID assetId)
+    {
+        return databaseClient.sql("INSERT INTO assets (id) VALUES($1)")
+            .bind(0, assetId)
+            .then();
+    }
+
+    public Mono<Void> insertAll(List<UUID> assetIds)
+    {
+        // There is no batch rewriting like the JDBC driver does, so send the ids as one array parameter instead
+        return databaseClient.sql("INSERT INTO assets (id) SELECT unnest($1::uuid[])")
+            .bind(0, assetIds.toArray(new UUID[0]))
+            .then();
+    }
+
+    /**
+     * Moves the asset from created or stored to uploaded, see AssetServiceImpl.completeAsset()
+     */
+    public Mono<Completion> complete(UUID assetId)
+    {
+        return databaseClient.sql(
+                "WITH asset AS (SELECT status FROM assets WHERE id = $1), " +
+                "completed AS (UPDATE assets SET status = $2, ts = NOW() WHERE id = $1 AND status IN ($3, $4) RETURNING id) " +
+                "SELECT (SELECT status FROM asset) AS status, (SELECT COUNT(*) FROM completed) AS completed")
+            .bind(0, assetId)
+            .bind(1, uploaded.toString())
+            .bind(2, created.toString())
+            .bind(3, stored.toString())
+            .map((row, metadata) -> {
+                String status = row.get("status", String.class);
+                Long completed = row.get("completed", Long.class);
+                if (completed != null && completed > 0)
+                {
+                    return Completion.completed;
+                }
+                return status == null || status.equals(deleted.toString()) ? Completion.notFound : Completion.alreadyCompleted;
+            })
+            .one();
+    }
+
+    /**
+     * Leaves a tombstone for DeletionPipeline to clean up
+     */
+    public Mono<Void> delete(UUID assetId)
+    {
+        return databaseClient.sql("UPDATE assets SET status = $1, ts = NOW() WHERE id = $2 AND status <> $1")
+            .bind(0, deleted.toString())
+            .bind(1, assetId)
+            .then();
+    }
+
+    public enum Completion
+    {
+        completed,
+        alreadyCompleted,
+        notFound
+    }
+}
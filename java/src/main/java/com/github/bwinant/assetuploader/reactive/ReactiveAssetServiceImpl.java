@@ -0,0 +1,162 @@
+package com.github.bwinant.assetuploader.reactive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.amazonaws.HttpMethod;
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.ReactiveAssetService;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl.CompletionMode;
+import com.github.bwinant.assetuploader.impl.DownloadUrlCache;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Reactive version of AssetServiceImpl, talks to PostgreSQL through R2DBC and to S3 through ReactiveS3Client
+ */
+@Service
+@Profile("reactive")
+public class ReactiveAssetServiceImpl implements ReactiveAssetService
+{
+    private static final Logger log = LoggerFactory.getLogger(ReactiveAssetServiceImpl.class);
+
+    private final R2dbcAssetRepository repository;
+    private final ReactiveS3Client s3Client;
+    private final S3Presigner presigner;
+    private final DownloadUrlCache downloadUrlCache;
+    private final AssetIdGenerator idGenerator;
+    private final CompletionMode completionMode;
+
+    @Autowired
+    public ReactiveAssetServiceImpl(R2dbcAssetRepository repository,
+                                    ReactiveS3Client s3Client,
+                                    S3Presigner presigner,
+                                    DownloadUrlCache downloadUrlCache,
+                                    AssetIdGenerator idGenerator,
+                                    @Value("${asset.completion.mode:head}") CompletionMode completionMode)
+    {
+        this.repository = repository;
+        this.s3Client = s3Client;
+        this.presigner = presigner;
+        this.downloadUrlCache = downloadUrlCache;
+        this.idGenerator = idGenerator;
+        this.completionMode = completionMode;
+    }
+
+    @Override
+    public Mono<Asset> getAsset(UUID assetId)
+    {
+        return repository.findStatus(assetId)
+            .map(status -> new Asset(assetId, status))
+            .switchIfEmpty(Mono.error(() -> AssetNotFoundException.of(assetId)));
+    }
+
+    @Override
+    public Mono<UUID> createAsset()
+    {
+        return Mono.defer(() -> {
+            UUID assetId = idGenerator.next();
+            return repository.insert(assetId)
+                .doOnSuccess(v -> log.debug("Initialized asset {}", assetId))
+                .thenReturn(assetId);
+        });
+    }
+
+    @Override
+    public Mono<List<UUID>> createAssets(int count)
+    {
+        return Mono.defer(() -> {
+            List<UUID> assetIds = idGenerator.next(count);
+
+            return repository.insertAll(assetIds)
+                .doOnSuccess(v -> log.debug("Initialized {} assets", count))
+                .thenReturn(assetIds);
+        });
+    }
+
+    @Override
+    public Mono<Void> completeAsset(UUID assetId)
+    {
+        Mono<Void> complete = Mono.defer(() -> s3Client.doesObjectExist(assetId.toString()))
+            .flatMap(exists -> exists ? complete(assetId) : Mono.error(AssetNotFoundException.of(assetId)));
+
+        if (completionMode == CompletionMode.events)
+        {
+            // Only go to S3 if UploadEventConsumer hasn't marked the asset as stored yet, see AssetServiceImpl
+            return getAsset(assetId)
+                .flatMap(asset -> {
+                    switch (asset.getStatus())
+                    {
+                        case uploaded:
+                            return Mono.error(AssetAlreadyCompletedException.of(assetId));
+                        case stored:
+                            return complete(assetId);
+                        default:
+                            return complete;
+                    }
+                });
+        }
+        return complete;
+    }
+
+    private Mono<Void> complete(UUID assetId)
+    {
+        return repository.complete(assetId)
+            .flatMap(completion -> {
+                switch (completion)
+                {
+                    case notFound:
+                        return Mono.error(AssetNotFoundException.of(assetId));
+                    case alreadyCompleted:
+                        return Mono.error(AssetAlreadyCompletedException.of(assetId));
+                    default:
+                        log.debug("Completed uploaded of asset {}", assetId);
+                        return Mono.empty();
+                }
+            });
+    }
+
+    @Override
+    public Mono<Void> deleteAsset(UUID assetId)
+    {
+        return repository.delete(assetId)
+            .doOnSuccess(v -> log.debug("Deleted asset {}", assetId));
+    }
+
+    @Override
+    public String getUploadUrl(UUID assetId, long expires)
+    {
+        return presigner.presign(HttpMethod.PUT, assetId.toString(), expires);
+    }
+
+    @Override
+    public List<String> getUploadUrls(List<UUID> assetIds, long expires)
+    {
+        long now = System.currentTimeMillis();
+
+        List<String> urls = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            urls.add(presigner.presign(HttpMethod.PUT, assetId.toString(), expires, now));
+        }
+        return urls;
+    }
+
+    @Override
+    public String getDownloadUrl(UUID assetId, long expires)
+    {
+        return downloadUrlCache.get(assetId, expires, () -> presigner.presign(HttpMethod.GET, assetId.toString(), expires));
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.bwinant.assetuploader.reactive;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import static io.r2dbc.spi.ConnectionFactoryOptions.*;
+
+/**
+ * Beans for the reactive stack, enabled with the reactive profile.
+ *
+ * The background jobs (DeletionPipeline, AbandonedAssetSweeper, UploadEventConsumer) keep using JDBC since they
+ * don't run on request threads, so the R2DBC pool is pointed at the same database as the JDBC one rather than
+ * being configured separately. Spring Boot doesn't create a DataSource (or its transaction manager) once there is
+ * an R2DBC ConnectionFactory, so those are declared here as well
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveConfiguration
+{
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory()
+    {
+        // Tomcat is on the classpath for the servlet stack and Spring Boot would prefer it, use the same Netty as WebClient
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionPool connectionFactory(DataSourceProperties dataSourceProperties,
+                                            @Value("${asset.r2dbc.pool.max.size:10}") int maxSize)
+    {
+        // jdbc:postgresql://host:port/db -> r2dbc:postgresql://host:port/db. Like Hikari, the pool is kept full
+        String url = dataSourceProperties.determineUrl().replaceFirst("^jdbc:", "r2dbc:");
+
+        ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(url).mutate();
+        if (dataSourceProperties.determineUsername() != null)
+        {
+            options.option(USER, dataSourceProperties.determineUsername());
+        }
+        if (dataSourceProperties.determinePassword() != null)
+        {
+            options.option(PASSWORD, dataSourceProperties.determinePassword());
+        }
+
+        ConnectionFactory connectionFactory = ConnectionFactories.get(options.build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory).initialSize(maxSize).maxSize(maxSize).build());
+    }
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource dataSource(DataSourceProperties dataSourceProperties)
+    {
+        return dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    @Bean
+    public DataSourceTransactionManager transactionManager(DataSource dataSource)
+    {
+        return new DataSourceTransactionManager(dataSource);
+    }
+
+    @Bean
+    public DatabaseClient databaseClient(ConnectionFactory connectionFactory)
+    {
+        return DatabaseClient.create(connectionFactory);
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.bwinant.assetuploader.reactive;
+
+import java.net.URI;
+import java.time.Duration;
+
+import com.amazonaws.HttpMethod;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+/**
+ * The few S3 calls the reactive stack needs, made on the Netty event loop.
+ *
+ * The AWS SDK (v1) client blocks the calling thread for the whole request. Instead we sign the request ourselves
+ * with S3Presigner and send it with WebClient, so waiting on S3 doesn't tie up a thread
+ */
+@Component
+@Profile("reactive")
+public class ReactiveS3Client
+{
+    // The signed URL is used right away, it only has to outlive the request
+    private static final long SIGNATURE_EXPIRES = 60;
+
+    private final WebClient webClient;
+    private final S3Presigner presigner;
+    private final Duration timeout;
+
+    @Autowired
+    public ReactiveS3Client(WebClient.Builder webClientBuilder,
+                            S3Presigner presigner,
+                            @Value("${aws.s3.timeout.ms:10000}") long timeoutMillis)
+    {
+        this.webClient = webClientBuilder.build();
+        this.presigner = presigner;
+        this.timeout = Duration.ofMillis(timeoutMillis);
+    }
+
+    /**
+     * Same as AmazonS3.doesObjectExist(): 404 means the object doesn't exist, any other error is signalled
+     */
+    public Mono<Boolean> doesObjectExist(String key)
+    {
+        // Mono.defer so the URL is signed at subscription time, not when the Mono is assembled
+        return Mono.defer(() -> webClient.head()
+                .uri(URI.create(presigner.presign(HttpMethod.HEAD, key, SIGNATURE_EXPIRES)))
+                .exchangeToMono(response -> {
+                    if (response.statusCode().is2xxSuccessful())
+                    {
+                        return response.releaseBody().thenReturn(true);
+                    }
+                    if (response.statusCode() == HttpStatus.NOT_FOUND)
+                    {
+                        return response.releaseBody().thenReturn(false);
+                    }
+                    return response.createException().flatMap(Mono::error);
+                }))
+            .timeout(timeout);
+    }
+}
@@ -1,15 +1,25 @@
 package com.github.bwinant.assetuploader.rest;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
+import jakarta.servlet.http.HttpServletRequest;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.github.bwinant.assetuploader.Asset;
 import com.github.bwinant.assetuploader.AssetException;
 import com.github.bwinant.assetuploader.AssetNotFoundException;
 import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUpload;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -21,20 +31,35 @@ import static org.springframework.web.bind.annotation.RequestMethod.*;
 
 @RestController
 @RequestMapping("/asset")
+@Profile("!reactive")
 public class ApiController
 {
+    // Thrown for every bad request, see InvalidRequestException
+    private static final InvalidRequestException INVALID_COUNT = new InvalidRequestException("Invalid count");
+    private static final InvalidRequestException INVALID_SIZE = new InvalidRequestException("Invalid size");
+    private static final InvalidRequestException INVALID_REQUEST = new InvalidRequestException("Invalid request");
+    private static final InvalidRequestException INVALID_IDS = new InvalidRequestException("Invalid ids");
+    private static final InvalidRequestException INVALID_TIMEOUT = new InvalidRequestException("Invalid timeout");
+    private static final InvalidRequestException INVALID_PARTS = new InvalidRequestException("Invalid parts");
+
     private final AssetService assetService;
     private final int downloadTimeout;
     private final int uploadTimeout;
+    private final int multipartUploadTimeout;
+    private final int maxBatchSize;
 
     @Autowired
     public ApiController(AssetService assetService,
                          @Value("${download.expires.secs:60}") int downloadTimeout,
-                         @Value("${upload.expires.secs:900}") int uploadTimeout)
+                         @Value("${upload.expires.secs:900}") int uploadTimeout,
+                         @Value("${multipart.upload.expires.secs:86400}") int multipartUploadTimeout,
+                         @Value("${batch.max.size:1000}") int maxBatchSize)
     {
         this.assetService = assetService;
         this.downloadTimeout = downloadTimeout;
         this.uploadTimeout = uploadTimeout;
+        this.multipartUploadTimeout = multipartUploadTimeout;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @RequestMapping(value = "", method = POST)
@@ -46,6 +71,70 @@ public class ApiController
         return new CreateResult(assetId, uploadUrl);
     }
 
+    @RequestMapping(value = "/batch", method = POST)
+    public List<CreateResult> createBatch(@RequestParam(name = "count", required = false) String countValue)
+        throws AssetException
+    {
+        // Same reasoning as the timeout param in get(): parse it ourselves so we can return a nicer error message
+        if (countValue == null)
+        {
+            throw INVALID_COUNT;
+        }
+
+        int count;
+        try
+        {
+            count = Integer.parseInt(countValue);
+        }
+        catch (NumberFormatException e)
+        {
+            throw INVALID_COUNT;
+        }
+        if (count <= 0 || count > maxBatchSize)
+        {
+            throw INVALID_COUNT;
+        }
+
+        List<UUID> assetIds = assetService.createAssets(count);
+        List<String> uploadUrls = assetService.getUploadUrls(assetIds, uploadTimeout);
+
+        List<CreateResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            results.add(new CreateResult(assetIds.get(i), uploadUrls.get(i)));
+        }
+        return results;
+    }
+
+    @RequestMapping(value = "/multipart", method = POST)
+    public MultipartCreateResult createMultipart(@RequestParam(name = "size", required = false) String sizeValue)
+        throws AssetException
+    {
+        // Same as count in createBatch()
+        if (sizeValue == null)
+        {
+            throw INVALID_SIZE;
+        }
+
+        long size;
+        try
+        {
+            size = Long.parseLong(sizeValue);
+        }
+        catch (NumberFormatException e)
+        {
+            throw INVALID_SIZE;
+        }
+        if (size <= 0)
+        {
+            throw INVALID_SIZE;
+        }
+
+        // Large uploads take a while, so the part URLs are good for longer than a single upload URL
+        MultipartUpload upload = assetService.createMultipartAsset(size, multipartUploadTimeout);
+        return new MultipartCreateResult(upload.getAssetId(), upload.getPartSize(), upload.getPartUrls());
+    }
+
     @RequestMapping(value = "/{assetId}", method = PUT)
     public void complete(@PathVariable UUID assetId,
                          @RequestBody(required = false) UpdateRequest request)
@@ -55,7 +144,7 @@ public class ApiController
         // and return a nicer error message, so let's do it ourselves
         if (request == null || request.getStatus() == null)
         {
-            throw new InvalidRequestException("Invalid request");
+            throw INVALID_REQUEST;
         }
 
         // We could let Jackson do the String to enum conversion, but again, we want nicer error messages
@@ -66,23 +155,94 @@ public class ApiController
         }
         catch (IllegalArgumentException e)
         {
-            throw new InvalidRequestException("Invalid request");
+            throw INVALID_REQUEST;
         }
 
         // How to handle a Status other than 'uploaded' is not defined in requirements
         if (status != uploaded)
         {
-            throw new InvalidRequestException("Invalid request");
+            throw INVALID_REQUEST;
         }
 
-        Asset asset = assetService.getAsset(assetId);
-        assetService.completeAsset(asset);
+        if (request.getParts() != null)
+        {
+            assetService.completeMultipartAsset(assetId, etags(request.getParts()));
+            return;
+        }
+
+        // No need to look the asset up first, completeAsset() tells us if it doesn't exist or was already completed
+        assetService.completeAsset(assetId);
+    }
+
+    @RequestMapping(value = "/{assetId}/content", method = PUT)
+    public void upload(@PathVariable UUID assetId, HttpServletRequest request)
+        throws AssetException, IOException
+    {
+        // For clients that can't reach the upload URL. The body is read straight from the request as it arrives,
+        // Spring never sees it, and the asset is completed along with it
+        assetService.uploadAsset(assetId, request.getInputStream());
     }
 
     @RequestMapping(value = "/{assetId}", method = GET)
     public GetResult get(@PathVariable UUID assetId,
                          @RequestParam(name = "timeout", required = false) String timeoutValue)
         throws AssetException
+    {
+        int timeout = timeout(timeoutValue);
+
+        Asset asset = assetService.getAsset(assetId);
+        if (asset.getStatus() != uploaded)
+        {
+            //throw new InvalidRequestException("Asset " + assetId + " has not been uploaded");
+            throw AssetNotFoundException.of(assetId);
+        }
+
+        String downloadUrl = assetService.getDownloadUrl(assetId, timeout);
+
+        return new GetResult(downloadUrl);
+    }
+
+    @RequestMapping(value = "/download-urls", method = POST)
+    public List<DownloadUrlResult> getDownloadUrls(@RequestParam(name = "timeout", required = false) String timeoutValue,
+                                                   @RequestBody(required = false) DownloadUrlsRequest request)
+    {
+        int timeout = timeout(timeoutValue);
+
+        // Ids are parsed here rather than by Jackson for the same reason, a bad one would otherwise be a 500
+        if (request == null || request.getIds() == null || request.getIds().isEmpty() || request.getIds().size() > maxBatchSize)
+        {
+            throw INVALID_IDS;
+        }
+        List<UUID> assetIds = new ArrayList<>(request.getIds().size());
+        for (String id : request.getIds())
+        {
+            try
+            {
+                assetIds.add(UUID.fromString(id));
+            }
+            catch (IllegalArgumentException | NullPointerException e)
+            {
+                throw INVALID_IDS;
+            }
+        }
+
+        List<DownloadUrl> downloadUrls = assetService.getDownloadUrls(assetIds, timeout);
+
+        List<DownloadUrlResult> results = new ArrayList<>(downloadUrls.size());
+        for (DownloadUrl downloadUrl : downloadUrls)
+        {
+            results.add(new DownloadUrlResult(downloadUrl.getAssetId(), downloadUrl.getUrl(), error(downloadUrl.getError())));
+        }
+        return results;
+    }
+
+    @RequestMapping(value = "/{assetId}", method = DELETE)
+    public void delete(@PathVariable UUID assetId)
+    {
+        assetService.deleteAsset(assetId);
+    }
+
+    private int timeout(String timeoutValue)
     {
         // We could define the @RequestParam to be a numeric type and Spring would happily convert the string param
         // However if a non-numeric value was supplied, it would be difficult to intercept the NumberFormatException that Spring
@@ -96,30 +256,55 @@ public class ApiController
             }
             catch (NumberFormatException e)
             {
-                throw new InvalidRequestException("Invalid timeout");
+                throw INVALID_TIMEOUT;
             }
         }
         if (timeout <= 0)
         {
-            throw new InvalidRequestException("Invalid timeout");
+            throw INVALID_TIMEOUT;
         }
+        return timeout;
+    }
 
-        Asset asset = assetService.getAsset(assetId);
-        if (asset.getStatus() != uploaded)
+    private static String error(DownloadUrl.Error error)
+    {
+        if (error == null)
         {
-            //throw new InvalidRequestException("Asset " + assetId + " has not been uploaded");
-            throw new AssetNotFoundException("Asset " + assetId + " not found");
+            return null;
+        }
+        switch (error)
+        {
+            case notFound:
+                return "not_found";
+            case notUploaded:
+                return "not_uploaded";
+            default:
+                throw new IllegalArgumentException("Unknown error " + error);
         }
-
-        String downloadUrl = assetService.getDownloadUrl(assetId, timeout);
-
-        return new GetResult(downloadUrl);
     }
 
-    @RequestMapping(value = "/{assetId}", method = DELETE)
-    public void delete(@PathVariable UUID assetId)
+    /**
+     * @return the ETags in part order, as long as every part from 1 up is there exactly once
+     */
+    private static List<String> etags(List<Part> parts)
     {
-        assetService.deleteAsset(assetId);
+        if (parts.isEmpty())
+        {
+            throw INVALID_PARTS;
+        }
+
+        // Clients uploading in parallel can't be expected to list the parts in order
+        String[] etags = new String[parts.size()];
+        for (Part part : parts)
+        {
+            if (part == null || part.getEtag() == null || part.getPartNumber() < 1 || part.getPartNumber() > etags.length ||
+                etags[part.getPartNumber() - 1] != null)
+            {
+                throw INVALID_PARTS;
+            }
+            etags[part.getPartNumber() - 1] = part.getEtag();
+        }
+        return Arrays.asList(etags);
     }
 
 
@@ -146,6 +331,37 @@ public class ApiController
         }
     }
 
+    public static class MultipartCreateResult
+    {
+        private final UUID id;
+        private final long partSize;
+        private final List<String> partUrls;
+
+        public MultipartCreateResult(UUID id, long partSize, List<String> partUrls)
+        {
+            this.id = id;
+            this.partSize = partSize;
+            this.partUrls = partUrls;
+        }
+
+        public UUID getId()
+        {
+            return id;
+        }
+
+        @JsonProperty("part_size")
+        public long getPartSize()
+        {
+            return partSize;
+        }
+
+        @JsonProperty("part_urls")
+        public List<String> getPartUrls()
+        {
+            return partUrls;
+        }
+    }
+
     public static class GetResult
     {
         private final String downloadUrl;
@@ -162,19 +378,110 @@ public class ApiController
         }
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class DownloadUrlResult
+    {
+        private final UUID id;
+        private final String downloadUrl;
+        private final String error;
+
+        public DownloadUrlResult(UUID id, String downloadUrl, String error)
+        {
+            this.id = id;
+            this.downloadUrl = downloadUrl;
+            this.error = error;
+        }
+
+        public UUID getId()
+        {
+            return id;
+        }
+
+        // Same name as in GetResult
+        @JsonProperty("Download_url")
+        public String getDownloadUrl()
+        {
+            return downloadUrl;
+        }
+
+        /**
+         * @return not_found or not_uploaded if there is no download URL
+         */
+        public String getError()
+        {
+            return error;
+        }
+    }
+
+    public static class DownloadUrlsRequest
+    {
+        private final List<String> ids;
+
+        @JsonCreator
+        public DownloadUrlsRequest(@JsonProperty("ids") List<String> ids)
+        {
+            this.ids = ids;
+        }
+
+        public List<String> getIds()
+        {
+            return ids;
+        }
+    }
+
     public static class UpdateRequest
     {
         private final String status;
+        private final List<Part> parts;
+
+        public UpdateRequest(String status)
+        {
+            this(status, null);
+        }
 
         @JsonCreator
-        public UpdateRequest(@JsonProperty("Status") String status)
+        public UpdateRequest(@JsonProperty("Status") String status,
+                             @JsonProperty("parts") List<Part> parts)
         {
             this.status = status;
+            this.parts = parts;
         }
 
         public String getStatus()
         {
             return status;
         }
+
+        /**
+         * @return the uploaded parts of a multipart upload, null for a single upload
+         */
+        public List<Part> getParts()
+        {
+            return parts;
+        }
+    }
+
+    public static class Part
+    {
+        private final int partNumber;
+        private final String etag;
+
+        @JsonCreator
+        public Part(@JsonProperty("part_number") int partNumber,
+                    @JsonProperty("etag") String etag)
+        {
+            this.partNumber = partNumber;
+            this.etag = etag;
+        }
+
+        public int getPartNumber()
+        {
+            return partNumber;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
     }
 }
@@ -0,0 +1,517 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.bwinant.assetuploader.impl.RequestTrace;
+import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.Part;
+import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
+import com.github.bwinant.assetuploader.rest.ExceptionControllerAdvice.ErrorResponse;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+
+/**
+ * JSON for the bodies of the requests everyone makes: CreateResult (and lists of them), GetResult, ErrorResponse and
+ * UpdateRequest. They are small and always the same shape, so instead of Jackson's databinding, responses are written
+ * from pre-encoded field names through pooled buffers, and UpdateRequest is read token by token with Jackson's
+ * streaming parser. The other bodies are still Jackson's.
+ *
+ * The output is byte for byte what Jackson writes, including its escaping. Reading follows Jackson's leniency as
+ * Spring configures it: unknown fields are skipped, scalars are taken as strings and anything after the object is
+ * ignored. Spring Boot puts converter beans ahead of its own, so this gets the first pick.
+ *
+ * The time spent is the json.read and json.write spans of a request's trace, see RequestTrace.
+ */
+@Component
+@Profile("!reactive")
+public class AssetJsonConverter extends AbstractGenericHttpMessageConverter<Object>
+{
+    private static final byte[] CREATE_ID = ascii("{\"id\":");
+    private static final byte[] CREATE_UPLOAD_URL = ascii(",\"upload_url\":");
+    private static final byte[] GET_DOWNLOAD_URL = ascii("{\"Download_url\":");
+    private static final byte[] ERROR = ascii("{\"error\":");
+    private static final byte[] NULL = ascii("null");
+
+    private static final byte[] HEX = ascii("0123456789abcdef");
+    private static final byte[] ESCAPE_HEX = ascii("0123456789ABCDEF");
+
+    // Jackson's short escapes for control characters, the rest are written as \\uXXXX
+    private static final byte[] SHORT_ESCAPES = new byte[32];
+
+    static
+    {
+        SHORT_ESCAPES['\b'] = 'b';
+        SHORT_ESCAPES['\t'] = 't';
+        SHORT_ESCAPES['\n'] = 'n';
+        SHORT_ESCAPES['\f'] = 'f';
+        SHORT_ESCAPES['\r'] = 'r';
+    }
+
+    // Tomcat's response buffer is as big, anything larger goes out in pieces anyway
+    private static final int BUFFER_SIZE = 8192;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final BufferPool buffers = new BufferPool(2 * Runtime.getRuntime().availableProcessors(), BUFFER_SIZE);
+
+    public AssetJsonConverter()
+    {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz)
+    {
+        return clazz == CreateResult.class || clazz == GetResult.class || clazz == ErrorResponse.class || clazz == UpdateRequest.class;
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType)
+    {
+        return type == UpdateRequest.class && canRead(mediaType);
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType)
+    {
+        boolean writable = clazz == CreateResult.class || clazz == GetResult.class || clazz == ErrorResponse.class ||
+                           isCreateResults(type);
+        return writable && canWrite(mediaType);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage)
+        throws IOException, HttpMessageNotReadableException
+    {
+        return readInternal(UpdateRequest.class, inputMessage);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage)
+        throws IOException, HttpMessageNotReadableException
+    {
+        long start = System.nanoTime();
+        try (JsonParser parser = jsonFactory.createParser(inputMessage.getBody()))
+        {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == JsonToken.VALUE_NULL)
+            {
+                return null;
+            }
+            expect(parser, JsonToken.START_OBJECT, inputMessage);
+
+            String status = null;
+            List<Part> parts = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("Status"))
+                {
+                    status = text(parser, inputMessage);
+                }
+                else if (field.equals("parts"))
+                {
+                    parts = parts(parser, inputMessage);
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+            return new UpdateRequest(status, parts);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new HttpMessageNotReadableException("JSON parse error: " + e.getOriginalMessage(), e, inputMessage);
+        }
+        finally
+        {
+            RequestTrace.span("json.read", start, System.nanoTime());
+        }
+    }
+
+    @Override
+    protected void writeInternal(Object value, Type type, HttpOutputMessage outputMessage)
+        throws IOException, HttpMessageNotWritableException
+    {
+        long start = System.nanoTime();
+        byte[] buffer = buffers.acquire();
+        try
+        {
+            Json json = new Json(outputMessage.getBody(), buffer);
+            if (value instanceof CreateResult)
+            {
+                createResult(json, (CreateResult) value);
+            }
+            else if (value instanceof GetResult)
+            {
+                json.write(GET_DOWNLOAD_URL).string(((GetResult) value).getDownloadUrl()).write('}');
+            }
+            else if (value instanceof ErrorResponse)
+            {
+                json.write(ERROR).string(((ErrorResponse) value).getMessage()).write('}');
+            }
+            else
+            {
+                List<?> results = (List<?>) value;
+                json.write('[');
+                for (int i = 0; i < results.size(); i++)
+                {
+                    if (i > 0)
+                    {
+                        json.write(',');
+                    }
+                    if (results.get(i) == null)
+                    {
+                        json.write(NULL);
+                    }
+                    else
+                    {
+                        createResult(json, (CreateResult) results.get(i));
+                    }
+                }
+                json.write(']');
+            }
+            json.flush();
+        }
+        finally
+        {
+            buffers.release(buffer);
+            RequestTrace.span("json.write", start, System.nanoTime());
+        }
+    }
+
+    private static void createResult(Json json, CreateResult result) throws IOException
+    {
+        json.write(CREATE_ID).uuid(result.getId()).write(CREATE_UPLOAD_URL).string(result.getUploadUrl()).write('}');
+    }
+
+    private static boolean isCreateResults(Type type)
+    {
+        if (!(type instanceof ParameterizedType))
+        {
+            return false;
+        }
+        ParameterizedType parameterized = (ParameterizedType) type;
+        return parameterized.getRawType() == List.class && parameterized.getActualTypeArguments()[0] == CreateResult.class;
+    }
+
+    private static List<Part> parts(JsonParser parser, HttpInputMessage inputMessage) throws IOException
+    {
+        if (parser.currentToken() == JsonToken.VALUE_NULL)
+        {
+            return null;
+        }
+        expect(parser, JsonToken.START_ARRAY, inputMessage);
+
+        List<Part> parts = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+        {
+            if (parser.currentToken() == JsonToken.VALUE_NULL)
+            {
+                parts.add(null);
+                continue;
+            }
+            expect(parser, JsonToken.START_OBJECT, inputMessage);
+
+            int partNumber = 0;
+            String etag = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("part_number"))
+                {
+                    partNumber = partNumber(parser, inputMessage);
+                }
+                else if (field.equals("etag"))
+                {
+                    etag = text(parser, inputMessage);
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
+            }
+            parts.add(new Part(partNumber, etag));
+        }
+        return parts;
+    }
+
+    /**
+     * @return the current value as a string, as Jackson would coerce it
+     */
+    private static String text(JsonParser parser, HttpInputMessage inputMessage) throws IOException
+    {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL)
+        {
+            return null;
+        }
+        if (!token.isScalarValue())
+        {
+            throw new HttpMessageNotReadableException("JSON parse error: expected a string, not " + token, inputMessage);
+        }
+        return parser.getText();
+    }
+
+    private static int partNumber(JsonParser parser, HttpInputMessage inputMessage) throws IOException
+    {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL)
+        {
+            return 0;
+        }
+        if (token.isNumeric())
+        {
+            return parser.getValueAsInt();
+        }
+        if (token == JsonToken.VALUE_STRING)
+        {
+            try
+            {
+                return Integer.parseInt(parser.getText().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // Fall through
+            }
+        }
+        throw new HttpMessageNotReadableException("JSON parse error: expected a part number, not " + token, inputMessage);
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected, HttpInputMessage inputMessage)
+    {
+        if (parser.currentToken() != expected)
+        {
+            throw new HttpMessageNotReadableException("JSON parse error: expected " + expected + ", not " + parser.currentToken(), inputMessage);
+        }
+    }
+
+    private static byte[] ascii(String value)
+    {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A JSON document being written to the response through a buffer
+     */
+    private static class Json
+    {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int position;
+
+        Json(OutputStream out, byte[] buffer)
+        {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        Json write(byte[] value) throws IOException
+        {
+            room(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+            return this;
+        }
+
+        Json write(char c) throws IOException
+        {
+            room(1);
+            buffer[position++] = (byte) c;
+            return this;
+        }
+
+        Json uuid(UUID uuid) throws IOException
+        {
+            if (uuid == null)
+            {
+                return write(NULL);
+            }
+
+            // 8-4-4-4-12 hex digits, same as UUID.toString() without the String
+            room(38);
+            buffer[position++] = '"';
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            hex(msb >>> 32, 8);
+            buffer[position++] = '-';
+            hex(msb >>> 16, 4);
+            buffer[position++] = '-';
+            hex(msb, 4);
+            buffer[position++] = '-';
+            hex(lsb >>> 48, 4);
+            buffer[position++] = '-';
+            hex(lsb, 12);
+            buffer[position++] = '"';
+            return this;
+        }
+
+        Json string(String value) throws IOException
+        {
+            if (value == null)
+            {
+                return write(NULL);
+            }
+
+            write('"');
+            int i = 0;
+            while (i < value.length())
+            {
+                // Most of a URL is plain ASCII, copied without checking for room until the buffer could be full
+                int end = Math.min(value.length(), i + buffer.length - position);
+                while (i < end)
+                {
+                    char c = value.charAt(i);
+                    if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\')
+                    {
+                        break;
+                    }
+                    buffer[position++] = (byte) c;
+                    i++;
+                }
+                if (i == value.length())
+                {
+                    break;
+                }
+
+                // Enough for the longest escape
+                room(6);
+                char c = value.charAt(i++);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\')
+                {
+                    buffer[position++] = (byte) c;
+                }
+                else if (c < 0x80 || Character.isSurrogate(c))
+                {
+                    // Jackson escapes each half of a surrogate pair rather than writing the 4 byte UTF-8
+                    escape(c);
+                }
+                else if (c < 0x800)
+                {
+                    buffer[position++] = (byte) (0xC0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3F);
+                }
+                else
+                {
+                    buffer[position++] = (byte) (0xE0 | c >> 12);
+                    buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buffer[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return write('"');
+        }
+
+        void flush() throws IOException
+        {
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+
+        private void escape(char c)
+        {
+            buffer[position++] = '\\';
+            if (c == '"' || c == '\\')
+            {
+                buffer[position++] = (byte) c;
+            }
+            else if (c < 0x20 && SHORT_ESCAPES[c] != 0)
+            {
+                buffer[position++] = SHORT_ESCAPES[c];
+            }
+            else
+            {
+                buffer[position++] = 'u';
+                buffer[position++] = ESCAPE_HEX[c >> 12];
+                buffer[position++] = ESCAPE_HEX[c >> 8 & 0xF];
+                buffer[position++] = ESCAPE_HEX[c >> 4 & 0xF];
+                buffer[position++] = ESCAPE_HEX[c & 0xF];
+            }
+        }
+
+        private void hex(long value, int digits)
+        {
+            for (int i = digits - 1; i >= 0; i--)
+            {
+                buffer[position + i] = HEX[(int) (value & 0xF)];
+                value >>>= 4;
+            }
+            position += digits;
+        }
+
+        private void room(int bytes) throws IOException
+        {
+            if (position + bytes > buffer.length)
+            {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * The buffers responses are written through, so they aren't allocated for every response. Threads take whichever
+     * slot has one, and get a new buffer if they all are taken. Lock free, and without thread locals that would get
+     * a buffer per virtual thread
+     */
+    private static class BufferPool
+    {
+        private final AtomicReferenceArray<byte[]> slots;
+        private final int bufferSize;
+
+        BufferPool(int size, int bufferSize)
+        {
+            this.slots = new AtomicReferenceArray<>(size);
+            this.bufferSize = bufferSize;
+        }
+
+        byte[] acquire()
+        {
+            int start = (int) (Thread.currentThread().threadId() % slots.length());
+            for (int i = 0; i < slots.length(); i++)
+            {
+                int slot = (start + i) % slots.length();
+                byte[] buffer = slots.get(slot);
+                if (buffer != null && slots.compareAndSet(slot, buffer, null))
+                {
+                    return buffer;
+                }
+            }
+            return new byte[bufferSize];
+        }
+
+        void release(byte[] buffer)
+        {
+            int start = (int) (Thread.currentThread().threadId() % slots.length());
+            for (int i = 0; i < slots.length(); i++)
+            {
+                int slot = (start + i) % slots.length();
+                if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer))
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.github.bwinant.assetuploader.rest.ConcurrencyLimiter.Endpoint;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import static org.springframework.http.HttpHeaders.*;
+
+/**
+ * Sheds load in front of ApiController when the database or S3 slow down, see ConcurrencyLimiter. Requests over the
+ * limit get a 503 with a Retry-After straight away, instead of waiting in Tomcat's queue or for a database connection
+ * until they time out anyway.
+ *
+ * Creating assets is low priority: it starts new work, while the rest is reading or finishing what was started. Asset
+ * contents (/asset/{id}/content) aren't limited, how long they take is down to their size.
+ *
+ * The current limit and what's in flight are the assets.limit and assets.limit.inflight gauges, rejections are
+ * counted by assets.limit.rejected tagged with the endpoint.
+ */
+@Component
+@Profile("!reactive")
+@ConditionalOnProperty(name = "asset.limit.enabled", havingValue = "true", matchIfMissing = true)
+public class ConcurrencyLimitFilter extends OncePerRequestFilter
+{
+    private static final String BUSY = "{\"error\":\"Server busy, try again later\"}";
+
+    private final ConcurrencyLimiter limiter;
+    private final String retryAfter;
+
+    private final Endpoint get;
+    private final Endpoint downloadUrls;
+    private final Endpoint complete;
+    private final Endpoint delete;
+    private final Endpoint create;
+    private final Endpoint createBatch;
+    private final Endpoint createMultipart;
+    private final Map<Endpoint, Counter> rejected = new HashMap<>();
+
+    @Autowired
+    public ConcurrencyLimitFilter(MeterRegistry meterRegistry,
+                                  @Value("${asset.limit.initial:100}") int initialLimit,
+                                  @Value("${asset.limit.min:20}") int minLimit,
+                                  @Value("${asset.limit.max:1000}") int maxLimit,
+                                  @Value("${asset.limit.tolerance:2}") double tolerance,
+                                  @Value("${asset.limit.low.priority.share:0.5}") double lowPriorityShare,
+                                  @Value("${asset.limit.window.ms:500}") long windowMillis,
+                                  @Value("${asset.limit.retry.after.secs:1}") int retryAfterSecs)
+    {
+        this(new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, tolerance, lowPriorityShare,
+                                    TimeUnit.MILLISECONDS.toNanos(windowMillis), System::nanoTime),
+             meterRegistry, retryAfterSecs);
+    }
+
+    ConcurrencyLimitFilter(ConcurrencyLimiter limiter, MeterRegistry meterRegistry, int retryAfterSecs)
+    {
+        this.limiter = limiter;
+        this.retryAfter = String.valueOf(retryAfterSecs);
+
+        this.get = endpoint(meterRegistry, "get", false);
+        this.downloadUrls = endpoint(meterRegistry, "downloadUrls", false);
+        this.complete = endpoint(meterRegistry, "complete", false);
+        this.delete = endpoint(meterRegistry, "delete", false);
+        this.create = endpoint(meterRegistry, "create", true);
+        this.createBatch = endpoint(meterRegistry, "createBatch", true);
+        this.createMultipart = endpoint(meterRegistry, "createMultipart", true);
+
+        meterRegistry.gauge("assets.limit", limiter, ConcurrencyLimiter::getLimit);
+        meterRegistry.gauge("assets.limit.inflight", limiter, ConcurrencyLimiter::getInFlight);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException
+    {
+        Endpoint endpoint = endpoint(request);
+        if (endpoint == null)
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if (!limiter.tryAcquire(endpoint))
+        {
+            rejected.get(endpoint).increment();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader(RETRY_AFTER, retryAfter);
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getWriter().write(BUSY);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            chain.doFilter(request, response);
+        }
+        finally
+        {
+            limiter.release(endpoint, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the ApiController endpoint the request is for, null if it isn't limited
+     */
+    private Endpoint endpoint(HttpServletRequest request)
+    {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (!path.startsWith("/asset"))
+        {
+            return null;
+        }
+
+        String method = request.getMethod();
+        String rest = path.substring("/asset".length());
+        if (rest.isEmpty() || rest.equals("/"))
+        {
+            return method.equals("POST") ? create : null;
+        }
+        if (rest.indexOf('/', 1) >= 0)
+        {
+            // /asset/{id}/content and anything unknown
+            return null;
+        }
+
+        switch (method)
+        {
+            case "POST":
+                switch (rest)
+                {
+                    case "/batch":
+                        return createBatch;
+                    case "/multipart":
+                        return createMultipart;
+                    case "/download-urls":
+                        return downloadUrls;
+                    default:
+                        return null;
+                }
+            case "GET":
+                return get;
+            case "PUT":
+                return complete;
+            case "DELETE":
+                return delete;
+            default:
+                return null;
+        }
+    }
+
+    private Endpoint endpoint(MeterRegistry meterRegistry, String name, boolean lowPriority)
+    {
+        Endpoint endpoint = limiter.endpoint(name, lowPriority);
+        rejected.put(endpoint, Counter.builder("assets.limit.rejected").tag("endpoint", name).register(meterRegistry));
+        return endpoint;
+    }
+}
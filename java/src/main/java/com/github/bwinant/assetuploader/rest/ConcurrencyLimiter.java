@@ -0,0 +1,228 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Adaptive limit on the number of requests in flight, along the lines of Netflix's Gradient2 limiter.
+ *
+ * Once per window, each endpoint's average latency over the window is compared with its long term average. Requests
+ * taking longer than usual are queueing somewhere (the Hikari pool, the S3 connection pool, PostgreSQL itself), so the
+ * limit is scaled down by how much longer they took. Otherwise it grows by its square root, the queueing we put up
+ * with. Latency is compared per endpoint because they take very different times, a GET is a cache lookup and a PUT an
+ * S3 HEAD, and a change in the mix of requests would otherwise look like a change in latency. The endpoints' ratios are
+ * averaged by how many requests each had.
+ *
+ * Low priority endpoints only get a share of the limit, so they are turned away first when it shrinks.
+ *
+ * Nothing blocks: requests are counted with atomics, and the limit is recomputed by whichever request ends a window
+ * while the others carry on.
+ */
+public class ConcurrencyLimiter
+{
+    // How quickly the limit follows the new estimate, and how far it can drop in one window
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+
+    // The long term latency averages over about this many windows
+    private static final int LONG_WINDOWS = 600;
+
+    // Fewer samples than this are carried over to the next window, a handful of requests says little
+    private static final int MIN_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double lowPriorityShare;
+    private final long windowNanos;
+    private final LongSupplier nanoClock;
+
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    private volatile long windowStart;
+    private volatile int limit;
+
+    // Only touched by the request that is updating the limit
+    private double estimatedLimit;
+
+    /**
+     * @param tolerance how much longer than usual requests can take before the limit is lowered
+     * @param lowPriorityShare the share of the limit low priority endpoints can use
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double lowPriorityShare,
+                              long windowNanos, LongSupplier nanoClock)
+    {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.lowPriorityShare = lowPriorityShare;
+        this.windowNanos = windowNanos;
+        this.nanoClock = nanoClock;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+        this.windowStart = nanoClock.getAsLong();
+    }
+
+    public Endpoint endpoint(String name, boolean lowPriority)
+    {
+        Endpoint endpoint = new Endpoint(name, lowPriority);
+        endpoints.add(endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Lets a request in if the endpoint's share of the limit allows it. Requests that get in must call release()
+     *
+     * @return false if the request should be rejected
+     */
+    public boolean tryAcquire(Endpoint endpoint)
+    {
+        int max = endpoint.lowPriority ? Math.max(1, (int) (limit * lowPriorityShare)) : limit;
+        while (true)
+        {
+            int current = inFlight.get();
+            if (current >= max)
+            {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                if (current + 1 > peakInFlight.get())
+                {
+                    peakInFlight.accumulateAndGet(current + 1, Math::max);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records a request that is done, successful or not
+     *
+     * @param latencyNanos how long it took
+     */
+    public void release(Endpoint endpoint, long latencyNanos)
+    {
+        inFlight.decrementAndGet();
+        endpoint.latencySum.add(latencyNanos);
+        endpoint.samples.increment();
+
+        long now = nanoClock.getAsLong();
+        if (now - windowStart >= windowNanos && updating.compareAndSet(false, true))
+        {
+            try
+            {
+                // Another request may have just finished the window
+                if (now - windowStart >= windowNanos)
+                {
+                    update();
+                    windowStart = now;
+                }
+            }
+            finally
+            {
+                updating.set(false);
+            }
+        }
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    private void update()
+    {
+        double ratioSum = 0;
+        long sampleSum = 0;
+        for (Endpoint endpoint : endpoints)
+        {
+            // Subtracted rather than reset, samples added meanwhile count towards the next window
+            long samples = endpoint.samples.sum();
+            if (samples < MIN_SAMPLES)
+            {
+                continue;
+            }
+            long latencySum = endpoint.latencySum.sum();
+            endpoint.samples.add(-samples);
+            endpoint.latencySum.add(-latencySum);
+
+            double latency = Math.max(1.0, (double) latencySum / samples);
+            if (endpoint.longLatency == 0)
+            {
+                endpoint.longLatency = latency;
+            }
+            else
+            {
+                endpoint.longLatency += (latency - endpoint.longLatency) * 2 / (LONG_WINDOWS + 1);
+
+                // After a slow spell, don't wait for the average to come down before we go back to growing
+                if (endpoint.longLatency > 2 * latency)
+                {
+                    endpoint.longLatency *= 0.95;
+                }
+            }
+
+            ratioSum += samples * latency / endpoint.longLatency;
+            sampleSum += samples;
+        }
+
+        int peak = peakInFlight.getAndSet(inFlight.get());
+        if (sampleSum == 0)
+        {
+            return;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * sampleSum / ratioSum));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+
+        // If we never got near the limit it isn't what's holding requests back, raising it tells us nothing
+        if (newLimit > estimatedLimit && peak < estimatedLimit / 2)
+        {
+            newLimit = estimatedLimit;
+        }
+
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    public static class Endpoint
+    {
+        private final String name;
+        private final boolean lowPriority;
+        private final LongAdder latencySum = new LongAdder();
+        private final LongAdder samples = new LongAdder();
+
+        // Only touched by the request that is updating the limit
+        private double longLatency;
+
+        private Endpoint(String name, boolean lowPriority)
+        {
+            this.name = name;
+            this.lowPriority = lowPriority;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean isLowPriority()
+        {
+            return lowPriority;
+        }
+    }
+}
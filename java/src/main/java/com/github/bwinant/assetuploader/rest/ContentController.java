@@ -0,0 +1,109 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.github.bwinant.assetuploader.storage.FileSystemStorage;
+import com.github.bwinant.assetuploader.storage.ObjectTooLargeException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import static java.nio.file.StandardOpenOption.*;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.web.bind.annotation.RequestMethod.*;
+
+/**
+ * What the signed URLs of FileSystemStorage point at. Behaves like S3 does for pre-signed URLs: a missing, invalid
+ * or expired signature is a 403, downloading an object that doesn't exist a 404.
+ */
+@RestController
+@RequestMapping("/content")
+@Profile("!reactive")
+@ConditionalOnProperty(name = "asset.storage", havingValue = "filesystem")
+public class ContentController
+{
+    private final FileSystemStorage storage;
+    private final boolean compression;
+
+    @Autowired
+    public ContentController(FileSystemStorage storage,
+                             @Value("${server.compression.enabled:false}") boolean compression)
+    {
+        this.storage = storage;
+        this.compression = compression;
+    }
+
+    @RequestMapping(value = "/{key}", method = PUT)
+    public ResponseEntity<Void> upload(@PathVariable("key") String key,
+                                       @RequestParam(name = "Expires", required = false) String expires,
+                                       @RequestParam(name = "Signature", required = false) String signature,
+                                       HttpServletRequest request)
+        throws IOException
+    {
+        if (!storage.verifyUpload(key, expires, signature))
+        {
+            return ResponseEntity.status(FORBIDDEN).build();
+        }
+
+        // Chunked uploads don't say how large they are, write() catches those
+        if (request.getContentLengthLong() > storage.getMaxSize())
+        {
+            return ResponseEntity.status(PAYLOAD_TOO_LARGE).build();
+        }
+
+        try
+        {
+            storage.write(key, request.getInputStream());
+        }
+        catch (ObjectTooLargeException e)
+        {
+            return ResponseEntity.status(PAYLOAD_TOO_LARGE).build();
+        }
+        return ResponseEntity.ok().build();
+    }
+
+    @RequestMapping(value = "/{key}", method = GET)
+    public void download(@PathVariable("key") String key,
+                         @RequestParam(name = "Expires", required = false) String expires,
+                         @RequestParam(name = "Signature", required = false) String signature,
+                         HttpServletRequest request,
+                         HttpServletResponse response)
+        throws IOException
+    {
+        if (!storage.verifyDownload(key, expires, signature))
+        {
+            response.setStatus(FORBIDDEN.value());
+            return;
+        }
+
+        // An upload replacing the object in the meantime doesn't change what the channel, or the link, reads
+        try
+        {
+            Path link = FileResponses.canSendfile(request, compression) ? storage.link(key) : null;
+            try (FileChannel channel = link == null ? storage.open(key) : FileChannel.open(link, READ))
+            {
+                long size = channel.size();
+                response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+                response.setContentLengthLong(size);
+                FileResponses.send(request, response, link, channel, 0, size);
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            response.setStatus(NOT_FOUND.value());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.impl.ContentCache;
+import com.github.bwinant.assetuploader.impl.ContentCache.CachedContent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static java.nio.file.StandardOpenOption.*;
+import static org.springframework.http.HttpHeaders.*;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.web.bind.annotation.RequestMethod.*;
+
+/**
+ * Downloads through the service, for clients that can't reach the download URL or download the same assets over and
+ * over. Served from ContentCache, with support for conditional (If-None-Match) and single range requests so clients
+ * can revalidate and resume instead of downloading everything again.
+ */
+@RestController
+@RequestMapping("/asset")
+@Profile("!reactive")
+@ConditionalOnProperty(name = "asset.content.cache.enabled", havingValue = "true")
+public class DownloadController
+{
+    private final AssetService assetService;
+    private final ContentCache contentCache;
+    private final boolean compression;
+
+    @Autowired
+    public DownloadController(AssetService assetService,
+                              ContentCache contentCache,
+                              @Value("${server.compression.enabled:false}") boolean compression)
+    {
+        this.assetService = assetService;
+        this.contentCache = contentCache;
+        this.compression = compression;
+    }
+
+    @RequestMapping(value = "/{assetId}/content", method = GET)
+    public void download(@PathVariable UUID assetId, HttpServletRequest request, HttpServletResponse response)
+        throws AssetException, IOException
+    {
+        // Same as get() in ApiController
+        Asset asset = assetService.getAsset(assetId);
+        if (asset.getStatus() != uploaded)
+        {
+            throw AssetNotFoundException.of(assetId);
+        }
+
+        boolean sendfile = FileResponses.canSendfile(request, compression);
+        CachedContent content = null;
+        Path link = null;
+        FileChannel channel = null;
+        for (int attempt = 0; channel == null; attempt++)
+        {
+            try
+            {
+                content = contentCache.get(assetId);
+                link = sendfile ? contentCache.link(content) : null;
+                channel = FileChannel.open(link == null ? content.getFile() : link, READ);
+            }
+            catch (NoSuchFileException e)
+            {
+                // Evicted before we got to open it, it's read from storage again. If that's missing too the asset
+                // was deleted in the meantime
+                if (attempt > 0)
+                {
+                    throw new AssetNotFoundException("Asset " + assetId + " not found", e);
+                }
+            }
+        }
+
+        try (FileChannel file = channel)
+        {
+            response.setHeader(ACCEPT_RANGES, "bytes");
+
+            // Sets the ETag, and a 304 if the client already has this version
+            String etag = "\"" + content.getEtag() + "\"";
+            if (new ServletWebRequest(request, response).checkNotModified(etag))
+            {
+                return;
+            }
+
+            long length = content.getLength();
+            long start = 0;
+            long end = length;
+
+            // A range of an older version is no use to the client, it gets the whole thing instead
+            String range = request.getHeader(RANGE);
+            String ifRange = request.getHeader(IF_RANGE);
+            if (range != null && (ifRange == null || ifRange.equals(etag)))
+            {
+                List<HttpRange> ranges;
+                try
+                {
+                    ranges = HttpRange.parseRanges(range);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    notSatisfiable(response, length);
+                    return;
+                }
+
+                // Multiple ranges would need a multipart/byteranges body, those get the whole thing too
+                if (ranges.size() == 1)
+                {
+                    start = ranges.get(0).getRangeStart(length);
+                    end = ranges.get(0).getRangeEnd(length) + 1;
+                    if (start >= length)
+                    {
+                        notSatisfiable(response, length);
+                        return;
+                    }
+                    response.setStatus(PARTIAL_CONTENT.value());
+                    response.setHeader(CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + length);
+                }
+            }
+
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setContentLengthLong(end - start);
+            FileResponses.send(request, response, link, file, start, end);
+        }
+    }
+
+    private static void notSatisfiable(HttpServletResponse response, long length)
+    {
+        response.setStatus(REQUESTED_RANGE_NOT_SATISFIABLE.value());
+        response.setHeader(CONTENT_RANGE, "bytes */" + length);
+    }
+}
@@ -1,11 +1,19 @@
 package com.github.bwinant.assetuploader.rest;
 
-import javax.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
 import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.MultipartUnsupportedException;
+import com.github.bwinant.assetuploader.storage.ObjectTooLargeException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -16,12 +24,41 @@ import static org.springframework.http.HttpStatus.*;
 
 /**
  * Handles all exceptions throws from @RestController annotated classes and converts them to appropriate HTTP responses
+ *
+ * Errors that are down to the client (invalid requests, assets that don't exist, completing an asset twice, uploads that
+ * are too large, multipart uploads without S3 storage) are counted by assets.client.errors tagged with the error, and
+ * only asset.log.client.errors.per.sec of them are logged, without stack traces. Anything else is logged in full.
  */
 @ControllerAdvice(annotations = {RestController.class})
+@Profile("!reactive")
 public class ExceptionControllerAdvice
 {
     private static final Logger log = LoggerFactory.getLogger(ExceptionControllerAdvice.class);
 
+    private final LogRateLimiter clientErrorLog;
+    private final Counter invalidRequests;
+    private final Counter notFound;
+    private final Counter alreadyCompleted;
+    private final Counter tooLarge;
+    private final Counter unsupported;
+
+    @Autowired
+    public ExceptionControllerAdvice(MeterRegistry meterRegistry,
+                                     @Value("${asset.log.client.errors.per.sec:10}") int clientErrorsPerSec)
+    {
+        this(new LogRateLimiter(clientErrorsPerSec, System::nanoTime), meterRegistry);
+    }
+
+    ExceptionControllerAdvice(LogRateLimiter clientErrorLog, MeterRegistry meterRegistry)
+    {
+        this.clientErrorLog = clientErrorLog;
+        this.invalidRequests = clientErrors(meterRegistry, "invalid_request");
+        this.notFound = clientErrors(meterRegistry, "not_found");
+        this.alreadyCompleted = clientErrors(meterRegistry, "already_completed");
+        this.tooLarge = clientErrors(meterRegistry, "too_large");
+        this.unsupported = clientErrors(meterRegistry, "unsupported");
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<ErrorResponse> handleException(HttpServletRequest request, Exception ex)
     {
@@ -32,15 +69,53 @@ public class ExceptionControllerAdvice
     @ExceptionHandler(InvalidRequestException.class)
     public ResponseEntity<ErrorResponse> invalidRequest(HttpServletRequest request, InvalidRequestException ex)
     {
-        log.error("{} {}", request.getMethod(), request.getRequestURI(), ex);
-        return error(INTERNAL_SERVER_ERROR, ex.getMessage());
+        return clientError(request, invalidRequests, INTERNAL_SERVER_ERROR, ex);
     }
 
     @ExceptionHandler(AssetNotFoundException.class)
     public ResponseEntity<ErrorResponse> assetNotFound(HttpServletRequest request, AssetNotFoundException ex)
     {
-        log.error("{} {}", request.getMethod(), request.getRequestURI(), ex);
-        return error(NOT_FOUND, ex.getMessage());
+        return clientError(request, notFound, NOT_FOUND, ex);
+    }
+
+    @ExceptionHandler(AssetAlreadyCompletedException.class)
+    public ResponseEntity<ErrorResponse> assetAlreadyCompleted(HttpServletRequest request, AssetAlreadyCompletedException ex)
+    {
+        return clientError(request, alreadyCompleted, INTERNAL_SERVER_ERROR, ex);
+    }
+
+    @ExceptionHandler(ObjectTooLargeException.class)
+    public ResponseEntity<ErrorResponse> objectTooLarge(HttpServletRequest request, ObjectTooLargeException ex)
+    {
+        return clientError(request, tooLarge, PAYLOAD_TOO_LARGE, ex);
+    }
+
+    @ExceptionHandler(MultipartUnsupportedException.class)
+    public ResponseEntity<ErrorResponse> multipartUnsupported(HttpServletRequest request, MultipartUnsupportedException ex)
+    {
+        // Multipart uploads with filesystem storage
+        return clientError(request, unsupported, NOT_IMPLEMENTED, ex);
+    }
+
+    private ResponseEntity<ErrorResponse> clientError(HttpServletRequest request, Counter counter, HttpStatus status, Exception ex)
+    {
+        counter.increment();
+
+        long suppressed = clientErrorLog.tryAcquire();
+        if (suppressed > 0)
+        {
+            log.warn("{} {} - {} ({} more client errors not logged)", request.getMethod(), request.getRequestURI(), ex.getMessage(), suppressed);
+        }
+        else if (suppressed == 0)
+        {
+            log.warn("{} {} - {}", request.getMethod(), request.getRequestURI(), ex.getMessage());
+        }
+        return error(status, ex.getMessage());
+    }
+
+    private static Counter clientErrors(MeterRegistry meterRegistry, String error)
+    {
+        return Counter.builder("assets.client.errors").tag("error", error).register(meterRegistry);
     }
 
     private ResponseEntity<ErrorResponse> error(HttpStatus status, String message)
@@ -48,7 +123,7 @@ public class ExceptionControllerAdvice
         return new ResponseEntity<>(new ErrorResponse(message), status);
     }
 
-    private static class ErrorResponse
+    static class ErrorResponse
     {
         private final String message;
 
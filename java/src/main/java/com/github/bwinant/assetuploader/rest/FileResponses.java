@@ -0,0 +1,72 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Sends (part of) a file as the response body without reading it into memory, shared by the controllers that serve
+ * files from the local disk
+ */
+final class FileResponses
+{
+    // Request attributes Tomcat uses to hand a file over to the connector, which sends it with sendfile(2)
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileResponses()
+    {
+    }
+
+    /**
+     * @param compression whether server.compression is enabled
+     *
+     * @return true if the file can be sent with sendfile, which needs a link to pass to send()
+     */
+    static boolean canSendfile(HttpServletRequest request, boolean compression)
+    {
+        // With TLS Tomcat's sendfile copies through its buffers like we would, and it never compresses what it sends
+        return !compression && !request.isSecure() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT));
+    }
+
+    /**
+     * Sends bytes start (inclusive) to end (exclusive) of the file. The headers, Content-Length included, have to be
+     * set already
+     *
+     * @param link a LinkDirectory link to the file to send it with sendfile, null to send it from channel
+     * @param channel the open file
+     */
+    static void send(HttpServletRequest request, HttpServletResponse response, Path link, FileChannel channel, long start, long end)
+        throws IOException
+    {
+        if (link != null)
+        {
+            // Tomcat sends the file once we return, straight from the page cache to the socket. It opens the file by
+            // name then, which is why it gets a link: by then the file itself can have been deleted (an evicted cache
+            // file) or replaced by one of another length (a new upload of the object), the link can't
+            request.setAttribute(SENDFILE_FILENAME, link.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+
+        // The servlet API only gives us a stream to write to, so the file goes through transferTo()'s small buffers
+        // instead of being read into memory
+        OutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = start;
+        while (position < end)
+        {
+            position += channel.transferTo(position, end - position, target);
+        }
+        out.flush();
+    }
+}
@@ -1,10 +1,14 @@
 package com.github.bwinant.assetuploader.rest;
 
+/**
+ * A request that can't be handled as sent. Without a cause it has no stack trace and is immutable, all there is to it
+ * is the message, so one instance can be thrown for every bad request
+ */
 public class InvalidRequestException extends RuntimeException
 {
     public InvalidRequestException(String message)
     {
-        super(message);
+        super(message, null, false, false);
     }
 
     public InvalidRequestException(String message, Throwable cause)
@@ -0,0 +1,51 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Lets a number of log lines through per second and counts the rest, so a flood of bad requests (a scanner trying
+ * random ids, say) can't make logging the most expensive thing the service does. The line that gets through after
+ * some were held back says how many.
+ */
+public class LogRateLimiter
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int perSecond;
+    private final LongSupplier nanoClock;
+
+    private final AtomicLong second;
+    private final AtomicInteger logged = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public LogRateLimiter(int perSecond, LongSupplier nanoClock)
+    {
+        this.perSecond = perSecond;
+        this.nanoClock = nanoClock;
+        this.second = new AtomicLong(nanoClock.getAsLong() / SECOND);
+    }
+
+    /**
+     * @return -1 if the line shouldn't be logged, otherwise how many lines weren't logged since the last one that was
+     */
+    public long tryAcquire()
+    {
+        long now = nanoClock.getAsLong() / SECOND;
+        long current = second.get();
+        if (now != current && second.compareAndSet(current, now))
+        {
+            logged.set(0);
+        }
+
+        // Slightly more than perSecond can get through when a second starts, that's fine for logging
+        if (logged.incrementAndGet() > perSecond)
+        {
+            suppressed.incrementAndGet();
+            return -1;
+        }
+        return suppressed.getAndSet(0);
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.ReactiveAssetService;
+import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
+import com.github.bwinant.assetuploader.rest.ExceptionControllerAdvice.ErrorResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.*;
+
+/**
+ * Reactive version of ApiController, routed by ReactiveApiRouter.
+ * Same endpoints, validation, error messages and JSON as ApiController and ExceptionControllerAdvice
+ */
+@Component
+@Profile("reactive")
+public class ReactiveApiHandler
+{
+    private static final Logger log = LoggerFactory.getLogger(ReactiveApiHandler.class);
+
+    private static final UpdateRequest EMPTY_REQUEST = new UpdateRequest(null);
+
+    private final ReactiveAssetService assetService;
+    private final int downloadTimeout;
+    private final int uploadTimeout;
+    private final int maxBatchSize;
+
+    private final LogRateLimiter clientErrorLog;
+    private final Counter invalidRequests;
+    private final Counter notFound;
+    private final Counter alreadyCompleted;
+
+    @Autowired
+    public ReactiveApiHandler(ReactiveAssetService assetService,
+                              MeterRegistry meterRegistry,
+                              @Value("${download.expires.secs:60}") int downloadTimeout,
+                              @Value("${upload.expires.secs:900}") int uploadTimeout,
+                              @Value("${batch.max.size:1000}") int maxBatchSize,
+                              @Value("${asset.log.client.errors.per.sec:10}") int clientErrorsPerSec)
+    {
+        this(assetService, new LogRateLimiter(clientErrorsPerSec, System::nanoTime), meterRegistry, downloadTimeout, uploadTimeout, maxBatchSize);
+    }
+
+    ReactiveApiHandler(ReactiveAssetService assetService, LogRateLimiter clientErrorLog, MeterRegistry meterRegistry,
+                       int downloadTimeout, int uploadTimeout, int maxBatchSize)
+    {
+        this.assetService = assetService;
+        this.downloadTimeout = downloadTimeout;
+        this.uploadTimeout = uploadTimeout;
+        this.maxBatchSize = maxBatchSize;
+
+        // Counted under the same names as ExceptionControllerAdvice, only one of them is ever running
+        this.clientErrorLog = clientErrorLog;
+        this.invalidRequests = clientErrors(meterRegistry, "invalid_request");
+        this.notFound = clientErrors(meterRegistry, "not_found");
+        this.alreadyCompleted = clientErrors(meterRegistry, "already_completed");
+    }
+
+    public Mono<ServerResponse> create(ServerRequest request)
+    {
+        return assetService.createAsset()
+            .map(assetId -> new CreateResult(assetId, assetService.getUploadUrl(assetId, uploadTimeout)))
+            .flatMap(this::ok);
+    }
+
+    public Mono<ServerResponse> createBatch(ServerRequest request)
+    {
+        int count = parseCount(request.queryParam("count").orElse(null));
+
+        return assetService.createAssets(count)
+            .map(assetIds -> {
+                List<String> uploadUrls = assetService.getUploadUrls(assetIds, uploadTimeout);
+
+                List<CreateResult> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    results.add(new CreateResult(assetIds.get(i), uploadUrls.get(i)));
+                }
+                return results;
+            })
+            .flatMap(this::ok);
+    }
+
+    public Mono<ServerResponse> complete(ServerRequest request)
+    {
+        UUID assetId = assetId(request);
+
+        return request.bodyToMono(UpdateRequest.class)
+            .defaultIfEmpty(EMPTY_REQUEST)
+            .flatMap(update -> {
+                // Anything other than {"Status": "uploaded"} is invalid, same as ApiController
+                if (!uploaded.toString().equals(update.getStatus()))
+                {
+                    return Mono.error(new InvalidRequestException("Invalid request"));
+                }
+                return assetService.completeAsset(assetId);
+            })
+            .then(ServerResponse.ok().build());
+    }
+
+    public Mono<ServerResponse> get(ServerRequest request)
+    {
+        UUID assetId = assetId(request);
+        int timeout = parseTimeout(request.queryParam("timeout").orElse(null));
+
+        return assetService.getAsset(assetId)
+            .flatMap(asset -> {
+                if (asset.getStatus() != uploaded)
+                {
+                    return Mono.error(AssetNotFoundException.of(assetId));
+                }
+                return ok(new GetResult(assetService.getDownloadUrl(assetId, timeout)));
+            });
+    }
+
+    public Mono<ServerResponse> delete(ServerRequest request)
+    {
+        return assetService.deleteAsset(assetId(request))
+            .then(ServerResponse.ok().build());
+    }
+
+    /**
+     * Converts errors to responses like ExceptionControllerAdvice does
+     */
+    public Mono<ServerResponse> handleError(Throwable ex, ServerRequest request)
+    {
+        if (ex instanceof AssetNotFoundException)
+        {
+            return clientError(request, notFound, NOT_FOUND, ex);
+        }
+        if (ex instanceof AssetAlreadyCompletedException)
+        {
+            return clientError(request, alreadyCompleted, INTERNAL_SERVER_ERROR, ex);
+        }
+        if (ex instanceof InvalidRequestException)
+        {
+            return clientError(request, invalidRequests, INTERNAL_SERVER_ERROR, ex);
+        }
+
+        log.error("{} {} - Unexpected error", request.method(), request.path(), ex);
+        return error(INTERNAL_SERVER_ERROR, ex.getMessage());
+    }
+
+    private Mono<ServerResponse> clientError(ServerRequest request, Counter counter, HttpStatus status, Throwable ex)
+    {
+        counter.increment();
+
+        long suppressed = clientErrorLog.tryAcquire();
+        if (suppressed > 0)
+        {
+            log.warn("{} {} - {} ({} more client errors not logged)", request.method(), request.path(), ex.getMessage(), suppressed);
+        }
+        else if (suppressed == 0)
+        {
+            log.warn("{} {} - {}", request.method(), request.path(), ex.getMessage());
+        }
+        return error(status, ex.getMessage());
+    }
+
+    private static Counter clientErrors(MeterRegistry meterRegistry, String error)
+    {
+        return Counter.builder("assets.client.errors").tag("error", error).register(meterRegistry);
+    }
+
+    private UUID assetId(ServerRequest request)
+    {
+        // An invalid UUID ends up as a 500 with the IllegalArgumentException message, like a type mismatch does in ApiController
+        return UUID.fromString(request.pathVariable("assetId"));
+    }
+
+    private int parseCount(String countValue)
+    {
+        int count;
+        try
+        {
+            count = countValue == null ? 0 : Integer.parseInt(countValue);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new InvalidRequestException("Invalid count");
+        }
+        if (count <= 0 || count > maxBatchSize)
+        {
+            throw new InvalidRequestException("Invalid count");
+        }
+        return count;
+    }
+
+    private int parseTimeout(String timeoutValue)
+    {
+        int timeout = downloadTimeout;
+        if (timeoutValue != null)
+        {
+            try
+            {
+                timeout = Integer.parseInt(timeoutValue);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new InvalidRequestException("Invalid timeout");
+            }
+        }
+        if (timeout <= 0)
+        {
+            throw new InvalidRequestException("Invalid timeout");
+        }
+        return timeout;
+    }
+
+    private Mono<ServerResponse> ok(Object body)
+    {
+        return ServerResponse.ok().contentType(APPLICATION_JSON).bodyValue(body);
+    }
+
+    private Mono<ServerResponse> error(HttpStatus status, String message)
+    {
+        return ServerResponse.status(status).contentType(APPLICATION_JSON).bodyValue(new ErrorResponse(message));
+    }
+}
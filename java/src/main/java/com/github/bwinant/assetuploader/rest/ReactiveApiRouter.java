@@ -0,0 +1,37 @@
+package com.github.bwinant.assetuploader.rest;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.reactive.function.server.HandlerFunction;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+/**
+ * Routes /asset requests to ReactiveApiHandler when running with the reactive profile
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveApiRouter
+{
+    @Bean
+    public RouterFunction<ServerResponse> assetRoutes(ReactiveApiHandler handler)
+    {
+        return RouterFunctions.route()
+            .POST("/asset", defer(handler::create))
+            .POST("/asset/batch", defer(handler::createBatch))
+            .PUT("/asset/{assetId}", defer(handler::complete))
+            .GET("/asset/{assetId}", defer(handler::get))
+            .DELETE("/asset/{assetId}", defer(handler::delete))
+            .onError(Throwable.class, handler::handleError)
+            .build();
+    }
+
+    private static HandlerFunction<ServerResponse> defer(HandlerFunction<ServerResponse> handlerFunction)
+    {
+        // Invalid params are thrown before the handler returns a Mono, this makes them reach onError() as well
+        return request -> Mono.defer(() -> handlerFunction.handle(request));
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import com.github.bwinant.assetuploader.impl.RequestTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Traces a sample (asset.trace.sample.rate) of the requests to /asset, see RequestTrace, to tell where the time of a
+ * slow one went. Traced responses get a Server-Timing header with the time of each span, e.g.
+ * {@code Server-Timing: db.get;dur=0.412, storage.exists;dur=23.170, db.complete;dur=1.032, total;dur=24.911}.
+ * Headers go out before the body, so writing it (json.write) isn't in there.
+ *
+ * Traced requests that take asset.trace.slow.ms or longer are logged with all their spans as key=value pairs, at most
+ * asset.trace.log.per.sec of them. Requests that aren't sampled cost a random number.
+ */
+@Component
+@Profile("!reactive")
+public class RequestTraceFilter extends OncePerRequestFilter
+{
+    private static final Logger log = LoggerFactory.getLogger(RequestTraceFilter.class);
+
+    static final String SERVER_TIMING = "Server-Timing";
+
+    private final double sampleRate;
+    private final long slowNanos;
+    private final LogRateLimiter slowLog;
+
+    // Traces are reused, without thread locals that would get one per virtual thread
+    private final AtomicReferenceArray<RequestTrace> traces = new AtomicReferenceArray<>(2 * Runtime.getRuntime().availableProcessors());
+
+    @Autowired
+    public RequestTraceFilter(@Value("${asset.trace.sample.rate:0.01}") double sampleRate,
+                              @Value("${asset.trace.slow.ms:500}") long slowMillis,
+                              @Value("${asset.trace.log.per.sec:10}") int logsPerSecond)
+    {
+        this(sampleRate, slowMillis, new LogRateLimiter(logsPerSecond, System::nanoTime));
+    }
+
+    RequestTraceFilter(double sampleRate, long slowMillis, LogRateLimiter slowLog)
+    {
+        this.sampleRate = sampleRate;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.slowLog = slowLog;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request)
+    {
+        return sampleRate <= 0 ||
+               !request.getRequestURI().startsWith("/asset", request.getContextPath().length()) ||
+               ThreadLocalRandom.current().nextDouble() >= sampleRate;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+        throws ServletException, IOException
+    {
+        RequestTrace trace = acquire();
+        TracedResponse tracedResponse = new TracedResponse(response, trace, System.nanoTime());
+        trace.begin();
+        try
+        {
+            chain.doFilter(request, tracedResponse);
+        }
+        finally
+        {
+            trace.end();
+            long duration = System.nanoTime() - tracedResponse.start;
+
+            // Nothing was written, e.g. a PUT that completed an asset
+            tracedResponse.serverTiming();
+
+            if (duration >= slowNanos)
+            {
+                logSlow(request, response, trace, duration);
+            }
+            release(trace);
+        }
+    }
+
+    private void logSlow(HttpServletRequest request, HttpServletResponse response, RequestTrace trace, long duration)
+    {
+        long suppressed = slowLog.tryAcquire();
+        if (suppressed < 0)
+        {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder(256);
+        line.append("Slow request method=").append(request.getMethod())
+            .append(" path=").append(request.getRequestURI())
+            .append(" status=").append(response.getStatus())
+            .append(" total_ms=");
+        millis(line, duration);
+        for (int i = 0; i < trace.size(); i++)
+        {
+            line.append(' ').append(trace.getName(i)).append("_ms=");
+            millis(line, trace.getDuration(i));
+            if (trace.getCount(i) > 1)
+            {
+                line.append(' ').append(trace.getName(i)).append("_count=").append(trace.getCount(i));
+            }
+        }
+        if (suppressed > 0)
+        {
+            line.append(" not_logged=").append(suppressed);
+        }
+        log.warn(line.toString());
+    }
+
+    /**
+     * Appends nanos as milliseconds with 3 decimals
+     */
+    private static void millis(StringBuilder out, long nanos)
+    {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        out.append(micros / 1000).append('.');
+        if (fraction < 100)
+        {
+            out.append(fraction < 10 ? "00" : "0");
+        }
+        out.append(fraction);
+    }
+
+    private RequestTrace acquire()
+    {
+        int start = (int) (Thread.currentThread().threadId() % traces.length());
+        for (int i = 0; i < traces.length(); i++)
+        {
+            int slot = (start + i) % traces.length();
+            RequestTrace trace = traces.get(slot);
+            if (trace != null && traces.compareAndSet(slot, trace, null))
+            {
+                return trace;
+            }
+        }
+        return new RequestTrace();
+    }
+
+    private void release(RequestTrace trace)
+    {
+        int start = (int) (Thread.currentThread().threadId() % traces.length());
+        for (int i = 0; i < traces.length(); i++)
+        {
+            int slot = (start + i) % traces.length();
+            if (traces.get(slot) == null && traces.compareAndSet(slot, null, trace))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the Server-Timing header just before the response starts going out, with the spans up to then
+     */
+    private static class TracedResponse extends HttpServletResponseWrapper
+    {
+        private final RequestTrace trace;
+        private final long start;
+        private boolean timed;
+
+        TracedResponse(HttpServletResponse response, RequestTrace trace, long start)
+        {
+            super(response);
+            this.trace = trace;
+            this.start = start;
+        }
+
+        void serverTiming()
+        {
+            if (timed || isCommitted())
+            {
+                return;
+            }
+            timed = true;
+
+            long total = System.nanoTime() - start;
+            StringBuilder header = new StringBuilder(128);
+            for (int i = 0; i < trace.size(); i++)
+            {
+                header.append(trace.getName(i)).append(";dur=");
+                millis(header, trace.getDuration(i));
+                header.append(", ");
+            }
+            header.append("total;dur=");
+            millis(header, total);
+            setHeader(SERVER_TIMING, header.toString());
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            serverTiming();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            serverTiming();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            serverTiming();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException
+        {
+            serverTiming();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException
+        {
+            serverTiming();
+            super.sendError(sc);
+        }
+    }
+}
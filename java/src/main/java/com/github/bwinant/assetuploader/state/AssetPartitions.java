@@ -0,0 +1,270 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.bwinant.assetuploader.Asset.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps the daily partitions of the partitioned assets table (see schema-partitioned.sql) in order.
+ *
+ * Partitions are created asset.partition.premake.days ahead, so inserts never find one missing even if this doesn't
+ * run for a while. Retention is enforced by dropping partitions whose whole day is more than
+ * asset.partition.retention.days old: assets created before then are gone in one DDL statement, instead of row
+ * DELETEs that leave dead tuples behind for vacuum. The bucket should expire objects after the same period, which S3
+ * lifecycle rules also count from creation.
+ * Partitions are detached concurrently first, so queries against the table don't wait on it.
+ *
+ * On startup, an assets table left by the unpartitioned schema is migrated if asset.partition.migrate is set, see
+ * migrate().
+ */
+@Component
+@Profile("partitioned")
+public class AssetPartitions
+{
+    private static final Logger log = LoggerFactory.getLogger(AssetPartitions.class);
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final Pattern PARTITION = Pattern.compile("assets_p(\\d{8})");
+    private static final OffsetDateTime EPOCH = Instant.EPOCH.atOffset(ZoneOffset.UTC);
+
+    // When a row of the unpartitioned table was created: the millis a version 7 id starts with, exactly what
+    // PartitionedAssetStateStore looks it up by. Other ids only have the time of their last change to go by. The old
+    // ts is in the session's time zone, as NOW() was when it was written
+    private static final String CREATED =
+        "CASE WHEN substr(id::text, 15, 1) = '7' " +
+        "THEN TIMESTAMPTZ 'epoch' + ('x' || lpad(substr(replace(id::text, '-', ''), 1, 12), 16, '0'))::bit(64)::bigint * INTERVAL '1 millisecond' " +
+        "ELSE ts::timestamptz END";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int retentionDays;
+    private final int premakeDays;
+    private final Clock clock;
+
+    private final Counter dropped;
+
+    @Autowired
+    public AssetPartitions(JdbcTemplate jdbcTemplate,
+                           TransactionTemplate transactionTemplate,
+                           MeterRegistry meterRegistry,
+                           @Value("${asset.partition.retention.days:90}") int retentionDays,
+                           @Value("${asset.partition.premake.days:7}") int premakeDays,
+                           @Value("${asset.partition.migrate:false}") boolean migrate)
+    {
+        this(jdbcTemplate, transactionTemplate, meterRegistry, retentionDays, premakeDays, Clock.systemUTC());
+
+        if (!isPartitioned())
+        {
+            if (!migrate)
+            {
+                throw new IllegalStateException("The assets table isn't partitioned, set asset.partition.migrate=true to migrate it");
+            }
+            migrate();
+        }
+
+        // Before the first request needs a partition
+        maintain();
+    }
+
+    AssetPartitions(JdbcTemplate jdbcTemplate,
+                    TransactionTemplate transactionTemplate,
+                    MeterRegistry meterRegistry,
+                    int retentionDays,
+                    int premakeDays,
+                    Clock clock)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.retentionDays = retentionDays;
+        this.premakeDays = premakeDays;
+        this.clock = clock;
+        this.dropped = meterRegistry.counter("assets.partitions.dropped");
+    }
+
+    /**
+     * Creates the partitions that are missing and drops the expired ones
+     */
+    @Scheduled(fixedDelayString = "${asset.partition.maintenance.delay.ms:3600000}")
+    public void maintain()
+    {
+        LocalDate today = LocalDate.now(clock);
+        Map<LocalDate, Boolean> partitions = partitions();
+
+        for (int i = 0; i <= premakeDays; i++)
+        {
+            LocalDate day = today.plusDays(i);
+            if (!partitions.containsKey(day))
+            {
+                create(day);
+            }
+        }
+
+        if (retentionDays <= 0)
+        {
+            return;
+        }
+
+        // A partition holds [day, day + 1), so it has expired once day + 1 is retentionDays before today
+        LocalDate expired = today.minusDays(retentionDays);
+        partitions.forEach((day, attached) -> {
+            if (day.isBefore(expired))
+            {
+                drop(day, attached);
+            }
+        });
+    }
+
+    /**
+     * Replaces an unpartitioned assets table with a partitioned one, in one transaction that locks the table for as long
+     * as it takes to copy it. Rows created before the retention period are left behind, they would be dropped right
+     * after. Status strings become their codes
+     */
+    void migrate()
+    {
+        log.info("Migrating the assets table to the partitioned schema");
+        LocalDate today = LocalDate.now(clock);
+
+        StringBuilder statusCode = new StringBuilder("CASE status");
+        for (Status status : Status.values())
+        {
+            statusCode.append(" WHEN '").append(status).append("' THEN ").append(status.getCode());
+        }
+        statusCode.append(" END");
+
+        int copied = transactionTemplate.execute(tx -> {
+            jdbcTemplate.execute("LOCK TABLE assets IN ACCESS EXCLUSIVE MODE");
+            jdbcTemplate.execute("ALTER TABLE assets RENAME TO assets_unpartitioned");
+
+            // Index names are per schema, the new table wants these ones
+            jdbcTemplate.execute("ALTER INDEX IF EXISTS assets_pkey RENAME TO assets_unpartitioned_pkey");
+            jdbcTemplate.execute("ALTER INDEX IF EXISTS assets_status_ts_idx RENAME TO assets_unpartitioned_status_ts_idx");
+            jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                ScriptUtils.executeSqlScript(connection, new ClassPathResource("schema-partitioned.sql"));
+                return null;
+            });
+
+            OffsetDateTime cutoff = retentionDays > 0 ? today.minusDays(retentionDays).atStartOfDay(ZoneOffset.UTC).toOffsetDateTime() : EPOCH;
+            LocalDate oldest = jdbcTemplate.queryForObject(
+                "SELECT (MIN(" + CREATED + ") AT TIME ZONE 'UTC')::date FROM assets_unpartitioned WHERE " + CREATED + " >= ?",
+                LocalDate.class, cutoff);
+            for (LocalDate day = oldest == null ? today : oldest; !day.isAfter(today.plusDays(premakeDays)); day = day.plusDays(1))
+            {
+                create(day);
+            }
+
+            int rows = jdbcTemplate.update(
+                "INSERT INTO assets (id, created, status, ts, upload_id) " +
+                "SELECT id, " + CREATED + ", " + statusCode + ", ts, upload_id FROM assets_unpartitioned WHERE " + CREATED + " >= ?",
+                cutoff
+            );
+            jdbcTemplate.execute("DROP TABLE assets_unpartitioned");
+            return rows;
+        });
+        log.info("Migrated {} assets to the partitioned schema", copied);
+    }
+
+    private boolean isPartitioned()
+    {
+        return "p".equals(jdbcTemplate.queryForObject("SELECT relkind::text FROM pg_class WHERE oid = 'assets'::regclass", String.class));
+    }
+
+    /**
+     * @return the day of every partition, and whether it is still attached. Detached ones are left if we stopped
+     * between detaching and dropping
+     */
+    private Map<LocalDate, Boolean> partitions()
+    {
+        Map<LocalDate, Boolean> partitions = new TreeMap<>();
+        jdbcTemplate.query(
+            "SELECT relname, relispartition FROM pg_class WHERE relkind = 'r' AND relname LIKE 'assets\\_p%' AND pg_table_is_visible(oid)",
+            rs -> {
+                Matcher matcher = PARTITION.matcher(rs.getString("relname"));
+                if (matcher.matches())
+                {
+                    partitions.put(LocalDate.parse(matcher.group(1), DAY), rs.getBoolean("relispartition"));
+                }
+            }
+        );
+        return partitions;
+    }
+
+    private void create(LocalDate day)
+    {
+        // Every node runs this, another one may have just created it
+        try
+        {
+            jdbcTemplate.execute(String.format(
+                "CREATE TABLE IF NOT EXISTS %s PARTITION OF assets FOR VALUES FROM ('%s 00:00:00+00') TO ('%s 00:00:00+00')",
+                name(day), day, day.plusDays(1)
+            ));
+            log.debug("Created partition {}", name(day));
+        }
+        catch (DataAccessException e)
+        {
+            log.warn("Unable to create partition {}", name(day), e);
+        }
+    }
+
+    private void drop(LocalDate day, boolean attached)
+    {
+        String name = name(day);
+        try
+        {
+            if (attached)
+            {
+                // Can't run in a transaction, the JdbcTemplate auto-commits
+                jdbcTemplate.execute("ALTER TABLE assets DETACH PARTITION " + name + " CONCURRENTLY");
+            }
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + name);
+            dropped.increment();
+            log.info("Dropped expired partition {}", name);
+        }
+        catch (DataAccessException e)
+        {
+            // Most likely another node is at it. If a concurrent detach was interrupted it has to be finished first
+            log.warn("Unable to drop partition {}", name, e);
+            finishDetach(name);
+        }
+    }
+
+    private void finishDetach(String name)
+    {
+        try
+        {
+            jdbcTemplate.execute("ALTER TABLE assets DETACH PARTITION " + name + " FINALIZE");
+        }
+        catch (DataAccessException e)
+        {
+            log.debug("Unable to finalize detaching partition {}", name, e);
+        }
+    }
+
+    private static String name(LocalDate day)
+    {
+        return "assets_p" + day.format(DAY);
+    }
+}
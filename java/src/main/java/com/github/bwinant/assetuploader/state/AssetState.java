@@ -0,0 +1,40 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset.Status;
+
+/**
+ * An asset as kept in an AssetStateStore
+ */
+public class AssetState
+{
+    private final UUID id;
+    private final Status status;
+    private final String uploadId;
+
+    public AssetState(UUID id, Status status, String uploadId)
+    {
+        this.id = id;
+        this.status = status;
+        this.uploadId = uploadId;
+    }
+
+    public UUID getId()
+    {
+        return id;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * @return the multipart upload the asset is being uploaded with, null once it's completed or if it isn't one
+     */
+    public String getUploadId()
+    {
+        return uploadId;
+    }
+}
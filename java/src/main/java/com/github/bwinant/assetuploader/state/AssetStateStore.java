@@ -0,0 +1,95 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+
+/**
+ * Where the state of every asset is kept: its status, when that last changed, and the upload id of a multipart
+ * upload that hasn't been completed yet. PostgreSQL by default, see JdbcAssetStateStore, PartitionedAssetStateStore
+ * with the partitioned profile, or EmbeddedAssetStateStore with the embedded profile.
+ *
+ * Deleted assets stay as tombstones until DeletionPipeline has cleaned up after them, and are never returned by the
+ * lookups.
+ */
+public interface AssetStateStore
+{
+    /**
+     * @return the asset, or null if it doesn't exist or was deleted
+     */
+    Asset getAsset(UUID assetId);
+
+    /**
+     * Looks up multiple assets at once
+     *
+     * @return the assets that exist and weren't deleted, in no particular order
+     */
+    List<Asset> getAssets(List<UUID> assetIds);
+
+    /**
+     * @return the asset along with its upload id, or null if it doesn't exist or was deleted
+     */
+    AssetState getState(UUID assetId);
+
+    void create(UUID assetId);
+
+    void createAll(List<UUID> assetIds);
+
+    /**
+     * Creates an asset that is uploaded with the given multipart upload
+     */
+    void createMultipart(UUID assetId, String uploadId);
+
+    /**
+     * Marks a created or stored asset as uploaded and forgets its upload id. Only one of any number of concurrent calls
+     * for the same asset succeeds
+     */
+    Completion complete(UUID assetId);
+
+    /**
+     * Marks the assets that are still created as stored, their objects are in storage but the client hasn't completed
+     * them yet
+     *
+     * @return how many were
+     */
+    int completeAll(List<UUID> assetIds);
+
+    /**
+     * Turns the asset into a tombstone, if it isn't one already
+     */
+    void delete(UUID assetId);
+
+    /**
+     * Turns up to limit assets that are still created or stored after maxAgeSecs into tombstones, oldest first
+     *
+     * @return how many were
+     */
+    int deleteAbandoned(long maxAgeSecs, int limit);
+
+    /**
+     * Hands up to limit tombstones, oldest first, to cleaner. The ones it cleaned up are removed for good, the ones it
+     * failed on are moved to the back of the line, as is the whole chunk if cleaner throws. Other callers don't get
+     * the same tombstones while cleaner has them, and cleaner isn't called within a transaction
+     *
+     * @return how many were removed
+     */
+    int purgeDeleted(int limit, TombstoneCleaner cleaner);
+
+    /**
+     * @return how many tombstones are waiting to be purged
+     */
+    long countDeleted();
+
+    @FunctionalInterface
+    interface TombstoneCleaner
+    {
+        /**
+         * Cleans up whatever deleted assets left behind in storage
+         *
+         * @return the ids of those that couldn't be cleaned up
+         */
+        Set<UUID> clean(List<AssetState> tombstones);
+    }
+}
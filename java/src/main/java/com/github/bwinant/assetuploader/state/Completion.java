@@ -0,0 +1,11 @@
+package com.github.bwinant.assetuploader.state;
+
+/**
+ * What came of AssetStateStore.complete()
+ */
+public enum Completion
+{
+    completed,
+    alreadyCompleted,
+    notFound
+}
@@ -0,0 +1,624 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.Asset.Status;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Asset state kept in this process instead of PostgreSQL, for a single node deployment (the embedded profile).
+ *
+ * Entries live in off-heap hash tables (see OffHeapAssetTable), split into segments by the hash of the id so writers
+ * to different segments don't contend. Lookups don't lock at all unless they race with a write to their segment.
+ * Upload ids of multipart uploads are the only thing kept on the heap, there's only one per upload in progress.
+ *
+ * Every change is written to an append-only log (see StateLog) and isn't acknowledged until it's on disk. Concurrent
+ * changes share an fsync. The log is compacted into a snapshot in the background once it's grown bigger than
+ * asset.state.compaction.min.size and the last snapshot, and the two are replayed on startup.
+ *
+ * A change is visible to lookups as soon as it's made, possibly just before it's durable. Once writing the log has
+ * failed every change fails with a StateStoreException, lookups keep working.
+ */
+@Component
+@Profile("embedded")
+public class EmbeddedAssetStateStore implements AssetStateStore, Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedAssetStateStore.class);
+
+    // The top bits of the hash pick the segment, the table uses the bottom ones
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private static final byte CREATED = status(created);
+    private static final byte UPLOADED = status(uploaded);
+    private static final byte DELETED = status(deleted);
+    private static final byte STORED = status(stored);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ConcurrentHashMap<UUID, String> uploadIds = new ConcurrentHashMap<>();
+    private final AtomicLong tombstones = new AtomicLong();
+    private final StateLog stateLog;
+    private final long compactionMinSize;
+    private final LongSupplier clock;
+
+    @Autowired
+    public EmbeddedAssetStateStore(MeterRegistry meterRegistry,
+                                   @Value("${asset.state.dir}") String dir,
+                                   @Value("${asset.state.initial.capacity:1048576}") int initialCapacity,
+                                   @Value("${asset.state.compaction.min.size:67108864}") long compactionMinSize)
+        throws IOException
+    {
+        this(Paths.get(dir), initialCapacity, compactionMinSize, System::currentTimeMillis);
+        meterRegistry.gauge("assets.state.entries", this, EmbeddedAssetStateStore::size);
+    }
+
+    EmbeddedAssetStateStore(Path dir, int initialCapacity, long compactionMinSize, LongSupplier clock)
+        throws IOException
+    {
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            segments[i] = new Segment(initialCapacity / SEGMENTS);
+        }
+        this.compactionMinSize = compactionMinSize;
+        this.clock = clock;
+
+        long start = System.nanoTime();
+        StateLog.replay(dir, this::apply);
+        for (Segment segment : segments)
+        {
+            segment.table.forEach((slot, msb, lsb, status, timestamp) -> {
+                if (status == DELETED)
+                {
+                    tombstones.incrementAndGet();
+                }
+            });
+        }
+
+        // Compacting right away leaves a single snapshot behind, however the last run ended
+        this.stateLog = new StateLog(dir);
+        stateLog.compact(this::snapshot);
+        log.info("Loaded {} assets from {} in {} ms", size(), dir, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public Asset getAsset(UUID assetId)
+    {
+        Segment segment = segment(assetId);
+        long msb = assetId.getMostSignificantBits();
+        long lsb = assetId.getLeastSignificantBits();
+
+        long stamp = segment.lock.tryOptimisticRead();
+        byte status = segment.status(msb, lsb);
+        if (!segment.lock.validate(stamp))
+        {
+            stamp = segment.lock.readLock();
+            try
+            {
+                status = segment.status(msb, lsb);
+            }
+            finally
+            {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return status == StateLog.REMOVED || status == DELETED ? null : new Asset(assetId, status(status));
+    }
+
+    @Override
+    public List<Asset> getAssets(List<UUID> assetIds)
+    {
+        // Nothing to save by doing them together, every lookup is a few memory reads
+        List<Asset> assets = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            Asset asset = getAsset(assetId);
+            if (asset != null)
+            {
+                assets.add(asset);
+            }
+        }
+        return assets;
+    }
+
+    @Override
+    public AssetState getState(UUID assetId)
+    {
+        Segment segment = segment(assetId);
+        long msb = assetId.getMostSignificantBits();
+        long lsb = assetId.getLeastSignificantBits();
+
+        long stamp = segment.lock.tryOptimisticRead();
+        byte status = segment.status(msb, lsb);
+        String uploadId = uploadIds.get(assetId);
+        if (!segment.lock.validate(stamp))
+        {
+            stamp = segment.lock.readLock();
+            try
+            {
+                status = segment.status(msb, lsb);
+                uploadId = uploadIds.get(assetId);
+            }
+            finally
+            {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return status == StateLog.REMOVED || status == DELETED ? null : new AssetState(assetId, status(status), uploadId);
+    }
+
+    @Override
+    public void create(UUID assetId)
+    {
+        await(insert(assetId, null));
+    }
+
+    @Override
+    public void createAll(List<UUID> assetIds)
+    {
+        // The whole batch shares one fsync
+        long sequence = 0;
+        for (UUID assetId : assetIds)
+        {
+            sequence = insert(assetId, null);
+        }
+        await(sequence);
+    }
+
+    @Override
+    public void createMultipart(UUID assetId, String uploadId)
+    {
+        await(insert(assetId, uploadId));
+    }
+
+    @Override
+    public Completion complete(UUID assetId)
+    {
+        Segment segment = segment(assetId);
+        long msb = assetId.getMostSignificantBits();
+        long lsb = assetId.getLeastSignificantBits();
+
+        long sequence;
+        long stamp = segment.lock.writeLock();
+        try
+        {
+            int slot = segment.table.find(msb, lsb);
+            byte status = slot < 0 ? StateLog.REMOVED : segment.table.status(slot);
+            if (status == StateLog.REMOVED || status == DELETED)
+            {
+                return Completion.notFound;
+            }
+            if (status != CREATED && status != STORED)
+            {
+                return Completion.alreadyCompleted;
+            }
+            sequence = update(segment, slot, assetId, UPLOADED, null);
+        }
+        finally
+        {
+            segment.lock.unlockWrite(stamp);
+        }
+
+        await(sequence);
+        return Completion.completed;
+    }
+
+    @Override
+    public int completeAll(List<UUID> assetIds)
+    {
+        int count = 0;
+        long sequence = 0;
+        for (UUID assetId : assetIds)
+        {
+            Segment segment = segment(assetId);
+            long stamp = segment.lock.writeLock();
+            try
+            {
+                int slot = segment.table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits());
+                if (slot >= 0 && segment.table.status(slot) == CREATED)
+                {
+                    sequence = update(segment, slot, assetId, STORED, null);
+                    count++;
+                }
+            }
+            finally
+            {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        await(sequence);
+        return count;
+    }
+
+    @Override
+    public void delete(UUID assetId)
+    {
+        Segment segment = segment(assetId);
+        long sequence = 0;
+        long stamp = segment.lock.writeLock();
+        try
+        {
+            int slot = segment.table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits());
+            if (slot >= 0 && segment.table.status(slot) != DELETED)
+            {
+                // The upload id stays with the tombstone, DeletionPipeline needs it to abort the upload
+                sequence = update(segment, slot, assetId, DELETED, uploadIds.get(assetId));
+                tombstones.incrementAndGet();
+            }
+        }
+        finally
+        {
+            segment.lock.unlockWrite(stamp);
+        }
+        await(sequence);
+    }
+
+    @Override
+    public int deleteAbandoned(long maxAgeSecs, int limit)
+    {
+        long before = clock.getAsLong() - maxAgeSecs * 1000;
+
+        int count = 0;
+        long sequence = 0;
+        for (Entry entry : oldest(status -> status == CREATED || status == STORED, before, limit))
+        {
+            UUID assetId = entry.id();
+            Segment segment = segment(assetId);
+            long stamp = segment.lock.writeLock();
+            try
+            {
+                // It may have been completed since we looked
+                int slot = segment.table.find(entry.msb, entry.lsb);
+                byte status = slot < 0 ? StateLog.REMOVED : segment.table.status(slot);
+                if ((status == CREATED || status == STORED) && segment.table.timestamp(slot) < before)
+                {
+                    sequence = update(segment, slot, assetId, DELETED, uploadIds.get(assetId));
+                    tombstones.incrementAndGet();
+                    count++;
+                }
+            }
+            finally
+            {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        await(sequence);
+        return count;
+    }
+
+    @Override
+    public int purgeDeleted(int limit, TombstoneCleaner cleaner)
+    {
+        List<Entry> entries = oldest(status -> status == DELETED, Long.MAX_VALUE, limit);
+        if (entries.isEmpty())
+        {
+            return 0;
+        }
+
+        List<AssetState> deletedAssets = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+        {
+            deletedAssets.add(new AssetState(entry.id(), deleted, uploadIds.get(entry.id())));
+        }
+        Set<UUID> failed = cleaner.clean(deletedAssets);
+
+        int count = 0;
+        long sequence = 0;
+        for (Entry entry : entries)
+        {
+            UUID assetId = entry.id();
+            Segment segment = segment(assetId);
+            long stamp = segment.lock.writeLock();
+            try
+            {
+                int slot = segment.table.find(entry.msb, entry.lsb);
+                if (slot < 0 || segment.table.status(slot) != DELETED)
+                {
+                    continue;
+                }
+
+                if (failed.contains(assetId))
+                {
+                    // Bumping the timestamp sends it to the back of the line so it can't block the rest of the backlog
+                    sequence = update(segment, slot, assetId, DELETED, uploadIds.get(assetId));
+                }
+                else
+                {
+                    segment.table.remove(slot);
+                    uploadIds.remove(assetId);
+                    tombstones.decrementAndGet();
+                    sequence = stateLog.append(StateLog.REMOVED, entry.msb, entry.lsb, clock.getAsLong(), null);
+                    count++;
+                }
+            }
+            finally
+            {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        await(sequence);
+        return count;
+    }
+
+    @Override
+    public long countDeleted()
+    {
+        return tombstones.get();
+    }
+
+    /**
+     * Compacts the log if it has grown enough since the last time
+     */
+    @Scheduled(fixedDelayString = "${asset.state.compaction.delay.ms:60000}")
+    public void compact()
+    {
+        if (!stateLog.needsCompaction(compactionMinSize))
+        {
+            return;
+        }
+
+        try
+        {
+            stateLog.compact(this::snapshot);
+        }
+        catch (IOException e)
+        {
+            // Nothing is lost, the log just keeps growing until the next try
+            log.error("Unable to compact the asset state log", e);
+        }
+    }
+
+    /**
+     * @return the number of assets, tombstones included
+     */
+    public long size()
+    {
+        long size = 0;
+        for (Segment segment : segments)
+        {
+            size += segment.table.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        stateLog.close();
+    }
+
+    private long insert(UUID assetId, String uploadId)
+    {
+        Segment segment = segment(assetId);
+        long msb = assetId.getMostSignificantBits();
+        long lsb = assetId.getLeastSignificantBits();
+
+        long stamp = segment.lock.writeLock();
+        try
+        {
+            // Same as the primary key of the assets table
+            if (segment.table.find(msb, lsb) >= 0)
+            {
+                throw new DuplicateKeyException("Asset " + assetId + " already exists");
+            }
+
+            long now = clock.getAsLong();
+            segment.table.put(msb, lsb, CREATED, now);
+            if (uploadId != null)
+            {
+                uploadIds.put(assetId, uploadId);
+            }
+            return stateLog.append(CREATED, msb, lsb, now, uploadId);
+        }
+        finally
+        {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Changes the status of the asset in the slot and logs it. Called with the segment's write lock held
+     */
+    private long update(Segment segment, int slot, UUID assetId, byte status, String uploadId)
+    {
+        long now = clock.getAsLong();
+        segment.table.set(slot, status, now);
+        if (uploadId == null)
+        {
+            uploadIds.remove(assetId);
+        }
+        return stateLog.append(status, assetId.getMostSignificantBits(), assetId.getLeastSignificantBits(), now, uploadId);
+    }
+
+    private void await(long sequence)
+    {
+        if (sequence == 0)
+        {
+            return;
+        }
+
+        try
+        {
+            stateLog.await(sequence);
+        }
+        catch (IOException e)
+        {
+            throw new StateStoreException("Unable to write the asset state log", e);
+        }
+    }
+
+    /**
+     * @return up to limit entries with a matching status that changed before the given time, oldest first
+     */
+    private List<Entry> oldest(IntPredicate status, long before, int limit)
+    {
+        // Max-heap on the timestamp, so the newest of the oldest so far is the one to drop
+        PriorityQueue<Entry> oldest = new PriorityQueue<>(Comparator.comparingLong((Entry entry) -> entry.timestamp).reversed());
+        for (Segment segment : segments)
+        {
+            long stamp = segment.lock.readLock();
+            try
+            {
+                segment.table.forEach((slot, msb, lsb, entryStatus, timestamp) -> {
+                    if (!status.test(entryStatus) || timestamp >= before)
+                    {
+                        return;
+                    }
+                    if (oldest.size() < limit)
+                    {
+                        oldest.add(new Entry(msb, lsb, timestamp));
+                    }
+                    else if (timestamp < oldest.peek().timestamp)
+                    {
+                        oldest.poll();
+                        oldest.add(new Entry(msb, lsb, timestamp));
+                    }
+                });
+            }
+            finally
+            {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+
+        List<Entry> entries = new ArrayList<>(oldest);
+        entries.sort(Comparator.comparingLong(entry -> entry.timestamp));
+        return entries;
+    }
+
+    private void snapshot(StateLog.Sink sink)
+        throws IOException
+    {
+        for (Segment segment : segments)
+        {
+            // Encoded under the read lock, written to disk without it
+            ByteBuffer records;
+            long stamp = segment.lock.readLock();
+            try
+            {
+                ByteBuffer[] buffer = {ByteBuffer.allocate(Math.max(1024, segment.table.size() * 32))};
+                segment.table.forEach((slot, msb, lsb, status, timestamp) -> {
+                    String uploadId = uploadIds.get(new UUID(msb, lsb));
+                    buffer[0] = StateLog.encode(buffer[0], status, msb, lsb, timestamp, uploadId);
+                });
+                records = buffer[0];
+            }
+            finally
+            {
+                segment.lock.unlockRead(stamp);
+            }
+            sink.write(records.flip());
+        }
+    }
+
+    private void apply(byte status, long msb, long lsb, long timestamp, String uploadId)
+    {
+        Segment segment = segments[OffHeapAssetTable.hash(msb, lsb) >>> (32 - SEGMENT_BITS)];
+        UUID assetId = new UUID(msb, lsb);
+        if (status == StateLog.REMOVED)
+        {
+            int slot = segment.table.find(msb, lsb);
+            if (slot >= 0)
+            {
+                segment.table.remove(slot);
+            }
+            uploadIds.remove(assetId);
+            return;
+        }
+
+        segment.table.put(msb, lsb, status, timestamp);
+        if (uploadId == null)
+        {
+            uploadIds.remove(assetId);
+        }
+        else
+        {
+            uploadIds.put(assetId, uploadId);
+        }
+    }
+
+    private Segment segment(UUID assetId)
+    {
+        return segments[OffHeapAssetTable.hash(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits()) >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static byte status(Status status)
+    {
+        // The code, not the ordinal, since it ends up in the log and snapshots. 0 is an empty slot or StateLog.REMOVED
+        return (byte) status.getCode();
+    }
+
+    private static Status status(byte status)
+    {
+        return Status.fromCode(status);
+    }
+
+    private static final class Segment
+    {
+        private final StampedLock lock = new StampedLock();
+        private final OffHeapAssetTable table;
+
+        private Segment(int initialCapacity)
+        {
+            this.table = new OffHeapAssetTable(initialCapacity);
+        }
+
+        /**
+         * @return the status of the asset, or 0 if it isn't there. Safe to call without the lock, but then it has to be
+         * validated before the result can be trusted
+         */
+        private byte status(long msb, long lsb)
+        {
+            int slot = table.find(msb, lsb);
+            return slot < 0 ? StateLog.REMOVED : table.status(slot);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final long msb;
+        private final long lsb;
+        private final long timestamp;
+
+        private Entry(long msb, long lsb, long timestamp)
+        {
+            this.msb = msb;
+            this.lsb = lsb;
+            this.timestamp = timestamp;
+        }
+
+        private UUID id()
+        {
+            return new UUID(msb, lsb);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.Asset.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Asset state in the PostgreSQL assets table (see schema.sql), shared by every node of the service
+ */
+@Component
+@Profile("!embedded & !partitioned")
+public class JdbcAssetStateStore implements AssetStateStore
+{
+    // How long a chunk of tombstones is ours to clean up, way more than a DeleteObjects and the aborts take with retries
+    static final long CLAIM_SECS = 600;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public JdbcAssetStateStore(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @Override
+    public Asset getAsset(UUID assetId)
+    {
+        try
+        {
+            return jdbcTemplate.queryForObject(
+                "SELECT status FROM assets WHERE id = ? AND status <> ?",
+                (rs, i) -> new Asset(assetId, Status.valueOf(rs.getString("status"))),
+                assetId, deleted.toString()
+            );
+        }
+        catch (EmptyResultDataAccessException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public List<Asset> getAssets(List<UUID> assetIds)
+    {
+        return jdbcTemplate.query(
+            "SELECT id, status FROM assets WHERE id = ANY(?) AND status <> ?",
+            ps -> {
+                ps.setArray(1, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setString(2, deleted.toString());
+            },
+            (rs, i) -> new Asset((UUID) rs.getObject("id"), Status.valueOf(rs.getString("status")))
+        );
+    }
+
+    @Override
+    public AssetState getState(UUID assetId)
+    {
+        Map<String, Object> row;
+        try
+        {
+            row = jdbcTemplate.queryForMap("SELECT status, upload_id FROM assets WHERE id = ? AND status <> ?", assetId, deleted.toString());
+        }
+        catch (EmptyResultDataAccessException e)
+        {
+            return null;
+        }
+        return new AssetState(assetId, Status.valueOf((String) row.get("status")), (String) row.get("upload_id"));
+    }
+
+    @Override
+    public void create(UUID assetId)
+    {
+        jdbcTemplate.update("INSERT INTO assets (id) VALUES(?)", assetId);
+    }
+
+    @Override
+    public void createAll(List<UUID> assetIds)
+    {
+        List<Object[]> batchArgs = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            batchArgs.add(new Object[]{assetId});
+        }
+
+        // Sent as a single JDBC batch. With reWriteBatchedInserts enabled the PostgreSQL driver collapses
+        // the batch into multi-row INSERT statements, so this is one round trip instead of count
+        jdbcTemplate.batchUpdate("INSERT INTO assets (id) VALUES(?)", batchArgs);
+    }
+
+    @Override
+    public void createMultipart(UUID assetId, String uploadId)
+    {
+        jdbcTemplate.update("INSERT INTO assets (id, upload_id) VALUES(?, ?)", assetId, uploadId);
+    }
+
+    @Override
+    public Completion complete(UUID assetId)
+    {
+        // The UPDATE only succeeds if the asset is still created or stored, so concurrent completes can't both
+        // win, and the CTE tells us why it didn't succeed without another query
+        // The upload id is cleared along with it, there's nothing left to abort
+        return jdbcTemplate.queryForObject(
+            "WITH asset AS (SELECT status FROM assets WHERE id = ?), " +
+            "completed AS (UPDATE assets SET status = ?, ts = NOW(), upload_id = NULL WHERE id = ? AND status IN (?, ?) RETURNING id) " +
+            "SELECT (SELECT status FROM asset) AS status, (SELECT COUNT(*) FROM completed) AS completed",
+            (rs, i) -> {
+                String status = rs.getString("status");
+                int completed = rs.getInt("completed");
+                if (completed > 0)
+                {
+                    return Completion.completed;
+                }
+                return status == null || status.equals(deleted.toString()) ? Completion.notFound : Completion.alreadyCompleted;
+            },
+            assetId, uploaded.toString(), assetId, created.toString(), stored.toString()
+        );
+    }
+
+    @Override
+    public int completeAll(List<UUID> assetIds)
+    {
+        return jdbcTemplate.update(
+            "UPDATE assets SET status = ?, ts = NOW(), upload_id = NULL WHERE id = ANY(?) AND status = ?",
+            ps -> {
+                ps.setString(1, stored.toString());
+                ps.setArray(2, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setString(3, created.toString());
+            }
+        );
+    }
+
+    @Override
+    public void delete(UUID assetId)
+    {
+        jdbcTemplate.update("UPDATE assets SET status = ?, ts = NOW() WHERE id = ? AND status <> ?", deleted.toString(), assetId, deleted.toString());
+    }
+
+    @Override
+    public int deleteAbandoned(long maxAgeSecs, int limit)
+    {
+        // Uses the (status, ts) index to find the oldest abandoned rows. SKIP LOCKED so we never wait on
+        // (or make anyone wait on) a row that is being completed right now
+        return jdbcTemplate.update(
+            "UPDATE assets SET status = ?, ts = NOW() WHERE id IN (" +
+            "SELECT id FROM assets WHERE status IN (?, ?) AND ts < NOW() - ? * INTERVAL '1 second' ORDER BY ts LIMIT ? FOR UPDATE SKIP LOCKED)",
+            deleted.toString(), created.toString(), stored.toString(), maxAgeSecs, limit
+        );
+    }
+
+    @Override
+    public int purgeDeleted(int limit, TombstoneCleaner cleaner)
+    {
+        // Claimed by pushing ts past NOW(), which hides the rows from everyone else's claim until CLAIM_SECS are up.
+        // That is its own statement, so no transaction, row lock or connection is held while the cleaner talks to
+        // the storage. If we die before we're done the claim runs out and someone else picks the chunk up
+        Map<UUID, String> uploadIds = new HashMap<>();
+        List<UUID> assetIds = jdbcTemplate.query(
+            "UPDATE assets SET ts = NOW() + ? * INTERVAL '1 second' WHERE id IN (" +
+            "SELECT id FROM assets WHERE status = ? AND ts <= NOW() ORDER BY ts LIMIT ? FOR UPDATE SKIP LOCKED) " +
+            "RETURNING id, upload_id",
+            (rs, i) -> {
+                UUID assetId = (UUID) rs.getObject("id");
+                String uploadId = rs.getString("upload_id");
+                if (uploadId != null)
+                {
+                    uploadIds.put(assetId, uploadId);
+                }
+                return assetId;
+            },
+            CLAIM_SECS, deleted.toString(), limit
+        );
+        if (assetIds.isEmpty())
+        {
+            return 0;
+        }
+
+        List<AssetState> tombstones = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            tombstones.add(new AssetState(assetId, deleted, uploadIds.get(assetId)));
+        }
+        Set<UUID> failed;
+        try
+        {
+            failed = cleaner.clean(tombstones);
+        }
+        catch (RuntimeException e)
+        {
+            release(assetIds);
+            throw e;
+        }
+
+        List<UUID> deletedIds = new ArrayList<>(assetIds.size());
+        List<UUID> failedIds = new ArrayList<>(failed.size());
+        for (UUID assetId : assetIds)
+        {
+            (failed.contains(assetId) ? failedIds : deletedIds).add(assetId);
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!deletedIds.isEmpty())
+            {
+                jdbcTemplate.update(
+                    "DELETE FROM assets WHERE id = ANY(?) AND status = ?",
+                    ps -> {
+                        ps.setArray(1, ps.getConnection().createArrayOf("uuid", deletedIds.toArray()));
+                        ps.setString(2, deleted.toString());
+                    }
+                );
+            }
+            if (!failedIds.isEmpty())
+            {
+                release(failedIds);
+            }
+        });
+        return deletedIds.size();
+    }
+
+    /**
+     * Gives up the claim on the tombstones. The timestamp becomes now, which also sends them to the back of the line so
+     * they can't block the rest of the backlog
+     */
+    private void release(List<UUID> assetIds)
+    {
+        jdbcTemplate.update(
+            "UPDATE assets SET ts = NOW() WHERE id = ANY(?) AND status = ?",
+            ps -> {
+                ps.setArray(1, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setString(2, deleted.toString());
+            }
+        );
+    }
+
+    @Override
+    public long countDeleted()
+    {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM assets WHERE status = ?", Long.class, deleted.toString());
+    }
+}
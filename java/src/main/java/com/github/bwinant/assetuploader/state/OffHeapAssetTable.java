@@ -0,0 +1,218 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing hash table of asset id to status and timestamp, in direct (off-heap) memory.
+ *
+ * Every entry is a 32 byte slot: the two longs of the UUID, the timestamp in millis and the status byte, 0 meaning the
+ * slot is empty. Nothing per entry lives on the heap, so millions of assets cost the GC nothing. Collisions are
+ * resolved with linear probing, removals shift the rest of the cluster back instead of leaving markers behind, and the
+ * table doubles once it is 3/4 full.
+ *
+ * Not thread safe. Reads may run concurrently with a write as long as the caller checks afterwards whether a write
+ * happened and retries if so (see EmbeddedAssetStateStore), they never fail or loop forever because of one.
+ */
+class OffHeapAssetTable
+{
+    static final int SLOT_SIZE = 32;
+
+    // A direct buffer is indexed by int, so 1 GB of slots (twice that wouldn't fit)
+    static final int MAX_CAPACITY = 1 << 25;
+
+    private static final int MSB = 0;
+    private static final int LSB = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int STATUS = 24;
+
+    // Volatile so a reader that races with a resize sees a complete buffer, if not necessarily the right one
+    private volatile ByteBuffer slots;
+    private int mask;
+    private int size;
+
+    OffHeapAssetTable(int initialCapacity)
+    {
+        allocate(Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1));
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * @return the slot the asset is in, or -1
+     */
+    int find(long msb, long lsb)
+    {
+        ByteBuffer slots = this.slots;
+        int mask = slots.capacity() / SLOT_SIZE - 1;
+        int slot = hash(msb, lsb) & mask;
+        for (int probes = 0; probes <= mask; probes++)
+        {
+            int offset = slot * SLOT_SIZE;
+            if (slots.get(offset + STATUS) == 0)
+            {
+                return -1;
+            }
+            if (slots.getLong(offset + MSB) == msb && slots.getLong(offset + LSB) == lsb)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    byte status(int slot)
+    {
+        return slots.get(slot * SLOT_SIZE + STATUS);
+    }
+
+    long timestamp(int slot)
+    {
+        return slots.getLong(slot * SLOT_SIZE + TIMESTAMP);
+    }
+
+    long msb(int slot)
+    {
+        return slots.getLong(slot * SLOT_SIZE + MSB);
+    }
+
+    long lsb(int slot)
+    {
+        return slots.getLong(slot * SLOT_SIZE + LSB);
+    }
+
+    void set(int slot, byte status, long timestamp)
+    {
+        slots.putLong(slot * SLOT_SIZE + TIMESTAMP, timestamp);
+        slots.put(slot * SLOT_SIZE + STATUS, status);
+    }
+
+    /**
+     * Adds the asset, or overwrites it if it's already there
+     */
+    void put(long msb, long lsb, byte status, long timestamp)
+    {
+        int slot = find(msb, lsb);
+        if (slot >= 0)
+        {
+            set(slot, status, timestamp);
+            return;
+        }
+
+        if (size + 1 > (capacity() >>> 2) * 3)
+        {
+            if (capacity() == MAX_CAPACITY)
+            {
+                throw new IllegalStateException("Asset table is full");
+            }
+            resize(capacity() << 1);
+        }
+        insert(slots, mask, msb, lsb, status, timestamp);
+        size++;
+    }
+
+    void remove(int slot)
+    {
+        // Backward shift: move every following entry of the cluster that would still be found from the hole into it,
+        // so lookups never stop early at an empty slot in the middle of a cluster
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (slots.get(next * SLOT_SIZE + STATUS) != 0)
+        {
+            int home = hash(msb(next), lsb(next)) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask))
+            {
+                copy(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.put(hole * SLOT_SIZE + STATUS, (byte) 0);
+        size--;
+    }
+
+    /**
+     * Calls visitor with every entry, in no particular order
+     */
+    void forEach(Visitor visitor)
+    {
+        for (int slot = 0; slot <= mask; slot++)
+        {
+            byte status = status(slot);
+            if (status != 0)
+            {
+                visitor.visit(slot, msb(slot), lsb(slot), status, timestamp(slot));
+            }
+        }
+    }
+
+    private void resize(int capacity)
+    {
+        ByteBuffer old = slots;
+        int oldCapacity = mask + 1;
+        allocate(capacity);
+        for (int slot = 0; slot < oldCapacity; slot++)
+        {
+            int offset = slot * SLOT_SIZE;
+            byte status = old.get(offset + STATUS);
+            if (status != 0)
+            {
+                insert(slots, mask, old.getLong(offset + MSB), old.getLong(offset + LSB), status, old.getLong(offset + TIMESTAMP));
+            }
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        // Zeroed, so every slot starts out empty. The old buffer is freed once the GC finds it unreachable
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        mask = capacity - 1;
+    }
+
+    private void copy(int from, int to)
+    {
+        slots.putLong(to * SLOT_SIZE + MSB, msb(from));
+        slots.putLong(to * SLOT_SIZE + LSB, lsb(from));
+        slots.putLong(to * SLOT_SIZE + TIMESTAMP, timestamp(from));
+        slots.put(to * SLOT_SIZE + STATUS, status(from));
+    }
+
+    private static void insert(ByteBuffer slots, int mask, long msb, long lsb, byte status, long timestamp)
+    {
+        int slot = hash(msb, lsb) & mask;
+        while (slots.get(slot * SLOT_SIZE + STATUS) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        int offset = slot * SLOT_SIZE;
+        slots.putLong(offset + MSB, msb);
+        slots.putLong(offset + LSB, lsb);
+        slots.putLong(offset + TIMESTAMP, timestamp);
+        slots.put(offset + STATUS, status);
+    }
+
+    static int hash(long msb, long lsb)
+    {
+        // Random UUIDs are already well mixed, time ordered ones aren't, so mix both halves (murmur3's finalizer)
+        long h = msb * 0x9e3779b97f4a7c15L ^ lsb;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (h ^ (h >>> 33));
+    }
+
+    @FunctionalInterface
+    interface Visitor
+    {
+        void visit(int slot, long msb, long lsb, byte status, long timestamp);
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.Asset.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+
+/**
+ * Asset state in the partitioned assets table (see schema-partitioned.sql and AssetPartitions), with the partitioned
+ * profile. The same queries as JdbcAssetStateStore, with status as a smallint code.
+ *
+ * The table is partitioned on created, which is set once on insert and never changes, so updates never move a row to
+ * another partition. Every query bounds created so PostgreSQL only looks in the partitions the rows can be in. Time
+ * ordered (version 7) ids carry their creation time, created is exactly that and a lookup goes to a single partition.
+ * Random ids could have been created any time within the retention period.
+ */
+@Component
+@Profile("partitioned")
+public class PartitionedAssetStateStore implements AssetStateStore
+{
+    // Allows for the other nodes' clocks being off from ours, and the database's, a partition is a day anyway
+    private static final long CLOCK_SKEW_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final OffsetDateTime EPOCH = Instant.EPOCH.atOffset(ZoneOffset.UTC);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int retentionDays;
+    private final Clock clock;
+
+    @Autowired
+    public PartitionedAssetStateStore(JdbcTemplate jdbcTemplate,
+                                      TransactionTemplate transactionTemplate,
+                                      @Value("${asset.partition.retention.days:90}") int retentionDays)
+    {
+        this(jdbcTemplate, transactionTemplate, retentionDays, Clock.systemUTC());
+    }
+
+    PartitionedAssetStateStore(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, int retentionDays, Clock clock)
+    {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.retentionDays = retentionDays;
+        this.clock = clock;
+    }
+
+    @Override
+    public Asset getAsset(UUID assetId)
+    {
+        try
+        {
+            return jdbcTemplate.queryForObject(
+                "SELECT status FROM assets WHERE id = ? AND created BETWEEN ? AND ? AND status <> ?",
+                (rs, i) -> new Asset(assetId, Status.fromCode(rs.getShort("status"))),
+                assetId, earliest(assetId), latest(assetId), deleted.getCode()
+            );
+        }
+        catch (EmptyResultDataAccessException e)
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public List<Asset> getAssets(List<UUID> assetIds)
+    {
+        OffsetDateTime earliest = earliest(assetIds);
+        OffsetDateTime latest = latest(assetIds);
+        return jdbcTemplate.query(
+            "SELECT id, status FROM assets WHERE id = ANY(?) AND created BETWEEN ? AND ? AND status <> ?",
+            ps -> {
+                ps.setArray(1, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setObject(2, earliest);
+                ps.setObject(3, latest);
+                ps.setShort(4, deleted.getCode());
+            },
+            (rs, i) -> new Asset((UUID) rs.getObject("id"), Status.fromCode(rs.getShort("status")))
+        );
+    }
+
+    @Override
+    public AssetState getState(UUID assetId)
+    {
+        Map<String, Object> row;
+        try
+        {
+            row = jdbcTemplate.queryForMap("SELECT status, upload_id FROM assets WHERE id = ? AND created BETWEEN ? AND ? AND status <> ?",
+                                           assetId, earliest(assetId), latest(assetId), deleted.getCode());
+        }
+        catch (EmptyResultDataAccessException e)
+        {
+            return null;
+        }
+        return new AssetState(assetId, Status.fromCode(((Number) row.get("status")).intValue()), (String) row.get("upload_id"));
+    }
+
+    @Override
+    public void create(UUID assetId)
+    {
+        jdbcTemplate.update("INSERT INTO assets (id, created) VALUES(?, ?)", assetId, createdFor(assetId));
+    }
+
+    @Override
+    public void createAll(List<UUID> assetIds)
+    {
+        List<Object[]> batchArgs = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            batchArgs.add(new Object[]{assetId, createdFor(assetId)});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO assets (id, created) VALUES(?, ?)", batchArgs);
+    }
+
+    @Override
+    public void createMultipart(UUID assetId, String uploadId)
+    {
+        jdbcTemplate.update("INSERT INTO assets (id, created, upload_id) VALUES(?, ?, ?)", assetId, createdFor(assetId), uploadId);
+    }
+
+    @Override
+    public Completion complete(UUID assetId)
+    {
+        // See JdbcAssetStateStore
+        OffsetDateTime earliest = earliest(assetId);
+        OffsetDateTime latest = latest(assetId);
+        return jdbcTemplate.queryForObject(
+            "WITH asset AS (SELECT status FROM assets WHERE id = ? AND created BETWEEN ? AND ?), " +
+            "completed AS (UPDATE assets SET status = ?, ts = NOW(), upload_id = NULL WHERE id = ? AND created BETWEEN ? AND ? AND status IN (?, ?) RETURNING id) " +
+            "SELECT (SELECT status FROM asset) AS status, (SELECT COUNT(*) FROM completed) AS completed",
+            (rs, i) -> {
+                short status = rs.getShort("status");
+                boolean found = !rs.wasNull();
+                if (rs.getInt("completed") > 0)
+                {
+                    return Completion.completed;
+                }
+                return !found || status == deleted.getCode() ? Completion.notFound : Completion.alreadyCompleted;
+            },
+            assetId, earliest, latest, uploaded.getCode(), assetId, earliest, latest, created.getCode(), stored.getCode()
+        );
+    }
+
+    @Override
+    public int completeAll(List<UUID> assetIds)
+    {
+        OffsetDateTime earliest = earliest(assetIds);
+        OffsetDateTime latest = latest(assetIds);
+        return jdbcTemplate.update(
+            "UPDATE assets SET status = ?, ts = NOW(), upload_id = NULL WHERE id = ANY(?) AND created BETWEEN ? AND ? AND status = ?",
+            ps -> {
+                ps.setShort(1, stored.getCode());
+                ps.setArray(2, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setObject(3, earliest);
+                ps.setObject(4, latest);
+                ps.setShort(5, created.getCode());
+            }
+        );
+    }
+
+    @Override
+    public void delete(UUID assetId)
+    {
+        jdbcTemplate.update("UPDATE assets SET status = ?, ts = NOW() WHERE id = ? AND created BETWEEN ? AND ? AND status <> ?",
+                            deleted.getCode(), assetId, earliest(assetId), latest(assetId), deleted.getCode());
+    }
+
+    @Override
+    public int deleteAbandoned(long maxAgeSecs, int limit)
+    {
+        // Nothing changed before it was created, so only the partitions older than maxAgeSecs are searched
+        OffsetDateTime before = now().minusSeconds(maxAgeSecs);
+        return jdbcTemplate.update(
+            "UPDATE assets SET status = ?, ts = NOW() WHERE (id, created) IN (" +
+            "SELECT id, created FROM assets WHERE status IN (?, ?) AND ts < ? AND created < ? ORDER BY ts LIMIT ? FOR UPDATE SKIP LOCKED)",
+            deleted.getCode(), created.getCode(), stored.getCode(), before, before.plus(CLOCK_SKEW_MILLIS, ChronoUnit.MILLIS), limit
+        );
+    }
+
+    @Override
+    public int purgeDeleted(int limit, TombstoneCleaner cleaner)
+    {
+        // Claimed, cleaned up and removed in separate steps like in JdbcAssetStateStore, so nothing is held while the
+        // cleaner talks to the storage
+        Map<UUID, String> uploadIds = new HashMap<>();
+        List<OffsetDateTime> creationTimes = new ArrayList<>();
+        List<UUID> assetIds = jdbcTemplate.query(
+            "UPDATE assets SET ts = NOW() + ? * INTERVAL '1 second' WHERE (id, created) IN (" +
+            "SELECT id, created FROM assets WHERE status = ? AND ts <= NOW() ORDER BY ts LIMIT ? FOR UPDATE SKIP LOCKED) " +
+            "RETURNING id, created, upload_id",
+            (rs, i) -> {
+                UUID assetId = (UUID) rs.getObject("id");
+                creationTimes.add(rs.getObject("created", OffsetDateTime.class));
+                String uploadId = rs.getString("upload_id");
+                if (uploadId != null)
+                {
+                    uploadIds.put(assetId, uploadId);
+                }
+                return assetId;
+            },
+            JdbcAssetStateStore.CLAIM_SECS, deleted.getCode(), limit
+        );
+        if (assetIds.isEmpty())
+        {
+            return 0;
+        }
+
+        // The chunk's rows are all in the partitions between these
+        OffsetDateTime from = Collections.min(creationTimes);
+        OffsetDateTime to = Collections.max(creationTimes);
+
+        List<AssetState> tombstones = new ArrayList<>(assetIds.size());
+        for (UUID assetId : assetIds)
+        {
+            tombstones.add(new AssetState(assetId, deleted, uploadIds.get(assetId)));
+        }
+        Set<UUID> failed;
+        try
+        {
+            failed = cleaner.clean(tombstones);
+        }
+        catch (RuntimeException e)
+        {
+            release(assetIds, from, to);
+            throw e;
+        }
+
+        List<UUID> deletedIds = new ArrayList<>(assetIds.size());
+        List<UUID> failedIds = new ArrayList<>(failed.size());
+        for (UUID assetId : assetIds)
+        {
+            (failed.contains(assetId) ? failedIds : deletedIds).add(assetId);
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!deletedIds.isEmpty())
+            {
+                jdbcTemplate.update(
+                    "DELETE FROM assets WHERE id = ANY(?) AND created BETWEEN ? AND ? AND status = ?",
+                    ps -> {
+                        ps.setArray(1, ps.getConnection().createArrayOf("uuid", deletedIds.toArray()));
+                        ps.setObject(2, from);
+                        ps.setObject(3, to);
+                        ps.setShort(4, deleted.getCode());
+                    }
+                );
+            }
+            if (!failedIds.isEmpty())
+            {
+                release(failedIds, from, to);
+            }
+        });
+        return deletedIds.size();
+    }
+
+    /**
+     * Gives up the claim on the tombstones and sends them to the back of the line, see JdbcAssetStateStore
+     */
+    private void release(List<UUID> assetIds, OffsetDateTime from, OffsetDateTime to)
+    {
+        jdbcTemplate.update(
+            "UPDATE assets SET ts = NOW() WHERE id = ANY(?) AND created BETWEEN ? AND ? AND status = ?",
+            ps -> {
+                ps.setArray(1, ps.getConnection().createArrayOf("uuid", assetIds.toArray()));
+                ps.setObject(2, from);
+                ps.setObject(3, to);
+                ps.setShort(4, deleted.getCode());
+            }
+        );
+    }
+
+    @Override
+    public long countDeleted()
+    {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM assets WHERE status = ?", Long.class, deleted.getCode());
+    }
+
+    /**
+     * @return when the asset was created, if the id says so (version 7 ids start with the millis they were made at),
+     * otherwise null
+     */
+    static OffsetDateTime creationTime(UUID assetId)
+    {
+        if (assetId.version() != 7)
+        {
+            return null;
+        }
+        return Instant.ofEpochMilli(assetId.getMostSignificantBits() >>> 16).atOffset(ZoneOffset.UTC);
+    }
+
+    /**
+     * @return the earliest created the asset can have
+     */
+    OffsetDateTime earliest(UUID assetId)
+    {
+        OffsetDateTime creationTime = creationTime(assetId);
+        if (creationTime != null)
+        {
+            return creationTime;
+        }
+        if (retentionDays > 0)
+        {
+            // Anything older has expired, whether or not its partition has been dropped yet
+            return now().minusDays(retentionDays).truncatedTo(ChronoUnit.DAYS);
+        }
+        return EPOCH;
+    }
+
+    /**
+     * @return the latest created the asset can have, which leaves out the partitions made ahead of time
+     */
+    OffsetDateTime latest(UUID assetId)
+    {
+        OffsetDateTime creationTime = creationTime(assetId);
+        return creationTime != null ? creationTime : now().plus(CLOCK_SKEW_MILLIS, ChronoUnit.MILLIS);
+    }
+
+    private OffsetDateTime earliest(List<UUID> assetIds)
+    {
+        OffsetDateTime earliest = null;
+        for (UUID assetId : assetIds)
+        {
+            OffsetDateTime candidate = earliest(assetId);
+            if (earliest == null || candidate.isBefore(earliest))
+            {
+                earliest = candidate;
+            }
+        }
+        return earliest == null ? EPOCH : earliest;
+    }
+
+    private OffsetDateTime latest(List<UUID> assetIds)
+    {
+        OffsetDateTime latest = null;
+        for (UUID assetId : assetIds)
+        {
+            OffsetDateTime candidate = latest(assetId);
+            if (latest == null || candidate.isAfter(latest))
+            {
+                latest = candidate;
+            }
+        }
+        return latest == null ? EPOCH : latest;
+    }
+
+    /**
+     * @return what goes in created: the time in the id, so lookups can find it again, or now for ids without one
+     */
+    private OffsetDateTime createdFor(UUID assetId)
+    {
+        OffsetDateTime creationTime = creationTime(assetId);
+        return creationTime != null ? creationTime : now();
+    }
+
+    private OffsetDateTime now()
+    {
+        return OffsetDateTime.now(clock);
+    }
+}
@@ -0,0 +1,522 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only log that makes EmbeddedAssetStateStore durable.
+ *
+ * Every change is logged as the full state of the asset afterwards (status, timestamp and upload id) or as its
+ * removal, so replaying the records in order ends in the latest state no matter how often an asset changed.
+ *
+ * Writers don't fsync one by one. A change is appended to a buffer, and whoever then finds no flush in progress
+ * writes and fsyncs everything buffered so far, for everyone waiting on it (group commit). Under load that's one fsync
+ * per batch of changes rather than one per change.
+ *
+ * The directory holds numbered logs and snapshots. Compaction starts a new log, writes every live entry to a snapshot
+ * with the same number and deletes everything numbered lower. Replay loads the newest snapshot and the logs from its
+ * number on.
+ */
+class StateLog implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(StateLog.class);
+
+    /**
+     * Status of a record that removes the asset
+     */
+    static final byte REMOVED = 0;
+
+    // Status, the UUID's two longs, timestamp and the length of the upload id, followed by the upload id and a CRC32C
+    private static final int HEADER_SIZE = 1 + 8 + 8 + 8 + 2;
+    private static final int CRC_SIZE = 4;
+
+    private static final Pattern FILE = Pattern.compile("state-(\\d+)\\.(log|snapshot)");
+    private static final String LOG = "log";
+    private static final String SNAPSHOT = "snapshot";
+
+    private final Path dir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+
+    // Everything below is guarded by lock. Records go into pending while the spare buffer is being written
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appended;
+    private long durable;
+    private boolean flushing;
+    private IOException failure;
+    private FileChannel channel;
+    private long generation;
+
+    // Written since the last snapshot, and the size of that snapshot
+    private volatile long logSize;
+    private volatile long snapshotSize;
+
+    /**
+     * Starts a new log after the newest file in dir, replay() whatever is there first
+     */
+    StateLog(Path dir)
+        throws IOException
+    {
+        this.dir = Files.createDirectories(dir);
+
+        long newest = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir))
+        {
+            for (Path file : files)
+            {
+                Matcher matcher = FILE.matcher(file.getFileName().toString());
+                if (matcher.matches())
+                {
+                    newest = Math.max(newest, Long.parseLong(matcher.group(1)));
+                }
+                else if (file.getFileName().toString().endsWith(".tmp"))
+                {
+                    // A snapshot that was cut short
+                    Files.delete(file);
+                }
+            }
+        }
+
+        this.generation = newest + 1;
+        this.channel = create(generation);
+    }
+
+    /**
+     * Buffers a record, await() makes it durable
+     *
+     * @return its sequence number
+     */
+    long append(byte status, long msb, long lsb, long timestamp, String uploadId)
+    {
+        lock.lock();
+        try
+        {
+            pending = encode(pending, status, msb, lsb, timestamp, uploadId);
+            return ++appended;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with this sequence number, and all those before it, are on disk
+     *
+     * @throws IOException if writing the log failed, it fails from then on
+     */
+    void await(long sequence)
+        throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (durable < sequence)
+            {
+                if (failure != null)
+                {
+                    throw new IOException("State log failed", failure);
+                }
+                if (flushing)
+                {
+                    // Someone else is writing, whatever was buffered in the meantime goes in the next batch
+                    flushed.awaitUninterruptibly();
+                }
+                else
+                {
+                    flush(false);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once the logs written since the last snapshot are bigger than minSize and the snapshot itself
+     */
+    boolean needsCompaction(long minSize)
+    {
+        return logSize > Math.max(minSize, snapshotSize);
+    }
+
+    /**
+     * Starts a new log and writes a snapshot to go with it, then deletes the older logs and snapshots
+     *
+     * @param snapshot writes every live entry, changes made while it runs can be in it or not
+     */
+    void compact(Snapshot snapshot)
+        throws IOException
+    {
+        long snapshotGeneration = rotate();
+
+        Path tmp = dir.resolve(name(snapshotGeneration, SNAPSHOT) + ".tmp");
+        long size;
+        try (FileChannel out = FileChannel.open(tmp, CREATE, TRUNCATE_EXISTING, WRITE))
+        {
+            snapshot.writeTo(records -> {
+                while (records.hasRemaining())
+                {
+                    out.write(records);
+                }
+            });
+            out.force(false);
+            size = out.size();
+        }
+        Files.move(tmp, dir.resolve(name(snapshotGeneration, SNAPSHOT)), ATOMIC_MOVE);
+        syncDir();
+        snapshotSize = size;
+
+        // Everything in there is in the snapshot now
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files)
+            {
+                Matcher matcher = FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < snapshotGeneration)
+                {
+                    Files.delete(file);
+                }
+            }
+        }
+        log.debug("Compacted state log into snapshot {} of {} bytes", snapshotGeneration, size);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (flushing)
+            {
+                flushed.awaitUninterruptibly();
+            }
+            if (failure == null && pending.position() > 0)
+            {
+                flush(false);
+            }
+            channel.close();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Feeds handler the newest snapshot in dir and every record logged after it, in order. A record cut short at the
+     * end of the last log (the process died while writing it) is truncated, it was never acknowledged
+     *
+     * @throws IOException if a record anywhere else is corrupt
+     */
+    static void replay(Path dir, RecordHandler handler)
+        throws IOException
+    {
+        if (!Files.isDirectory(dir))
+        {
+            return;
+        }
+
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        long snapshot = 0;
+        Path snapshotFile = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files)
+            {
+                Matcher matcher = FILE.matcher(file.getFileName().toString());
+                if (!matcher.matches())
+                {
+                    continue;
+                }
+
+                long number = Long.parseLong(matcher.group(1));
+                if (matcher.group(2).equals(LOG))
+                {
+                    logs.put(number, file);
+                }
+                else if (number > snapshot)
+                {
+                    snapshot = number;
+                    snapshotFile = file;
+                }
+            }
+        }
+
+        if (snapshotFile != null && read(snapshotFile, handler) < Files.size(snapshotFile))
+        {
+            throw new IOException("Corrupt state snapshot " + snapshotFile);
+        }
+
+        List<Path> replayed = new ArrayList<>(logs.tailMap(snapshot).values());
+        for (int i = 0; i < replayed.size(); i++)
+        {
+            Path file = replayed.get(i);
+            long valid = read(file, handler);
+            if (valid < Files.size(file))
+            {
+                if (i < replayed.size() - 1)
+                {
+                    throw new IOException("Corrupt state log " + file + " at " + valid);
+                }
+
+                log.warn("Truncating state log {} at {}, the last record is incomplete", file, valid);
+                try (FileChannel out = FileChannel.open(file, WRITE))
+                {
+                    out.truncate(valid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record to out
+     *
+     * @return out, or a larger copy of it if it didn't fit
+     */
+    static ByteBuffer encode(ByteBuffer out, byte status, long msb, long lsb, long timestamp, String uploadId)
+    {
+        byte[] id = uploadId == null ? new byte[0] : uploadId.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + id.length + CRC_SIZE;
+        if (out.remaining() < size)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size));
+            out.flip();
+            out = larger.put(out);
+        }
+
+        int start = out.position();
+        out.put(status).putLong(msb).putLong(lsb).putLong(timestamp).putShort((short) id.length).put(id);
+
+        CRC32C crc = new CRC32C();
+        crc.update(out.array(), out.arrayOffset() + start, out.position() - start);
+        return out.putInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the number of bytes of valid records at the start of the file
+     */
+    private static long read(Path file, RecordHandler handler)
+        throws IOException
+    {
+        long valid = 0;
+        byte[] header = new byte[HEADER_SIZE];
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024)))
+        {
+            while (true)
+            {
+                try
+                {
+                    in.readFully(header);
+                }
+                catch (EOFException e)
+                {
+                    return valid;
+                }
+
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                byte status = fields.get();
+                long msb = fields.getLong();
+                long lsb = fields.getLong();
+                long timestamp = fields.getLong();
+                int length = fields.getShort() & 0xffff;
+
+                byte[] id = new byte[length];
+                int crcValue;
+                try
+                {
+                    in.readFully(id);
+                    crcValue = in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    return valid;
+                }
+
+                CRC32C crc = new CRC32C();
+                crc.update(header);
+                crc.update(id);
+                if ((int) crc.getValue() != crcValue)
+                {
+                    return valid;
+                }
+
+                handler.apply(status, msb, lsb, timestamp, length == 0 ? null : new String(id, StandardCharsets.UTF_8));
+                valid += HEADER_SIZE + length + CRC_SIZE;
+            }
+        }
+    }
+
+    private long rotate()
+        throws IOException
+    {
+        lock.lock();
+        try
+        {
+            while (flushing)
+            {
+                flushed.awaitUninterruptibly();
+            }
+            flush(true);
+            if (failure != null)
+            {
+                throw new IOException("State log failed", failure);
+            }
+            return generation;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far, optionally moving on to a new log after that. Called with the
+     * lock held, which is let go of while writing
+     */
+    private void flush(boolean rotate)
+    {
+        flushing = true;
+        ByteBuffer batch = pending;
+        pending = spare;
+        long batchEnd = appended;
+        FileChannel current = channel;
+        lock.unlock();
+
+        FileChannel next = null;
+        IOException error = null;
+        try
+        {
+            batch.flip();
+            while (batch.hasRemaining())
+            {
+                current.write(batch);
+            }
+            current.force(false);
+            if (rotate)
+            {
+                next = create(generation + 1);
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        finally
+        {
+            lock.lock();
+        }
+
+        logSize += batch.limit();
+        spare = batch.clear();
+        if (error != null)
+        {
+            // Whatever made it to disk, we can't tell what did. Nothing is acknowledged from here on
+            log.error("Unable to write the state log", error);
+            failure = error;
+        }
+        else
+        {
+            durable = batchEnd;
+            if (next != null)
+            {
+                closeQuietly(current);
+                channel = next;
+                generation++;
+                logSize = 0;
+            }
+        }
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    private FileChannel create(long number)
+        throws IOException
+    {
+        FileChannel created = FileChannel.open(dir.resolve(name(number, LOG)), CREATE_NEW, WRITE);
+        syncDir();
+        return created;
+    }
+
+    private void syncDir()
+    {
+        // So a new or renamed file is still there after a crash. Not every platform can open a directory
+        try (FileChannel directory = FileChannel.open(dir, READ))
+        {
+            directory.force(true);
+        }
+        catch (IOException e)
+        {
+            log.debug("Unable to sync {}", dir, e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to close state log", e);
+        }
+    }
+
+    private static String name(long number, String type)
+    {
+        return String.format("state-%019d.%s", number, type);
+    }
+
+    @FunctionalInterface
+    interface RecordHandler
+    {
+        void apply(byte status, long msb, long lsb, long timestamp, String uploadId);
+    }
+
+    @FunctionalInterface
+    interface Snapshot
+    {
+        void writeTo(Sink sink) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface Sink
+    {
+        /**
+         * Writes records made with encode()
+         */
+        void write(ByteBuffer records) throws IOException;
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.bwinant.assetuploader.state;
+
+/**
+ * Thrown when a state change can't be made durable
+ */
+public class StateStoreException extends RuntimeException
+{
+    public StateStoreException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where asset contents live. Clients mostly upload and download them with the signed URLs handed out here rather
+ * than through the API, which only has to check an upload happened and clean up after deletes.
+ *
+ * Selected with asset.storage: s3 (the default, see S3Storage) or filesystem (see FileSystemStorage).
+ */
+public interface AssetStorage
+{
+    /**
+     * @param key the object key
+     *
+     * @return true if the object has been uploaded
+     *
+     * @throws StorageException if the storage can't be reached
+     */
+    boolean exists(String key);
+
+    /**
+     * Opens the object for reading, for when the service serves downloads itself rather than handing out URLs
+     *
+     * @param key the object key
+     *
+     * @return the object contents, which must be closed
+     *
+     * @throws java.nio.file.NoSuchFileException if the object doesn't exist
+     * @throws IOException if the object can't be opened
+     * @throws StorageException if the storage can't be reached
+     */
+    StoredObject read(String key) throws IOException;
+
+    /**
+     * Streams an upload into storage, replacing the object if it already exists. The object only appears once
+     * the whole upload is stored
+     *
+     * @param key the object key
+     * @param in the object contents, read until the end
+     *
+     * @return the size of the object
+     *
+     * @throws ObjectTooLargeException if the upload is larger than the storage accepts
+     * @throws IOException if reading the contents failed
+     * @throws StorageException if the storage can't be reached
+     */
+    long write(String key, InputStream in) throws IOException;
+
+    /**
+     * @return true if the storage does multipart uploads, the multipart methods below can only be used if it does
+     */
+    boolean supportsMultipart();
+
+    /**
+     * Starts a multipart upload, the object is uploaded in parts to the URLs from getPartUploadUrl() and only appears
+     * once completeMultipartUpload() is called
+     *
+     * @param key the object key
+     *
+     * @return the upload id
+     *
+     * @throws StorageException if the storage can't be reached
+     * @throws UnsupportedOperationException if the storage doesn't do multipart uploads, see supportsMultipart()
+     */
+    String initiateMultipartUpload(String key);
+
+    /**
+     * Returns a signed URL one part of a multipart upload can be uploaded to with a PUT, signed at the given time
+     *
+     * @param key the object key
+     * @param uploadId the upload id
+     * @param partNumber the part number, from 1 to 10000
+     * @param expires amount of time in seconds before the URL expires
+     * @param timestamp the signing time in epoch millis
+     *
+     * @return a signed URL
+     */
+    String getPartUploadUrl(String key, String uploadId, int partNumber, long expires, long timestamp);
+
+    /**
+     * Assembles the uploaded parts into the object
+     *
+     * @param key the object key
+     * @param uploadId the upload id
+     * @param etags the ETag returned for each uploaded part, in part order
+     *
+     * @throws InvalidPartsException if the parts don't match what was uploaded
+     * @throws StorageException if the storage can't be reached
+     */
+    void completeMultipartUpload(String key, String uploadId, List<String> etags) throws InvalidPartsException;
+
+    /**
+     * Throws away the parts of a multipart upload that will never be completed.
+     * Uploads that don't exist (anymore) count as aborted, so this does nothing if the storage doesn't do multipart uploads
+     *
+     * @param key the object key
+     * @param uploadId the upload id
+     *
+     * @throws StorageException if the storage can't be reached
+     */
+    void abortMultipartUpload(String key, String uploadId);
+
+    /**
+     * Deletes the given objects, objects that don't exist count as deleted
+     *
+     * @param keys the object keys, at most 1000
+     *
+     * @return the keys that could not be deleted, empty if all of them were
+     *
+     * @throws StorageException if none could be deleted because the storage can't be reached
+     */
+    Set<String> delete(List<String> keys);
+
+    /**
+     * Returns a signed URL the object can be uploaded to with a PUT, signed at the given time.
+     * Useful for signing a batch of URLs that should all share the same expiration
+     *
+     * @param key the object key
+     * @param expires amount of time in seconds before the URL expires
+     * @param timestamp the signing time in epoch millis
+     *
+     * @return a signed URL
+     */
+    String getUploadUrl(String key, long expires, long timestamp);
+
+    /**
+     * Returns a signed URL the object can be downloaded from with a GET, signed at the current time
+     *
+     * @param key the object key
+     * @param expires amount of time in seconds before the URL expires
+     *
+     * @return a signed URL
+     */
+    String getDownloadUrl(String key, long expires);
+}
@@ -0,0 +1,386 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Assets stored on the local disk, for nodes that can't use S3. The service takes the place of S3 itself: clients
+ * upload to and download from ContentController, with URLs signed the same way S3 signs them (SigV2 style, an expiry
+ * time and an HMAC of the method, key and expiry time).
+ *
+ * Objects are stored under asset.storage.fs.root in one directory per first two characters of the key, so no single
+ * directory gets too big. Uploads are written to a temporary file first and moved into place once complete, a partial
+ * upload never shows up as an object.
+ */
+@Component
+@ConditionalOnProperty(name = "asset.storage", havingValue = "filesystem")
+public class FileSystemStorage implements AssetStorage
+{
+    private static final Logger log = LoggerFactory.getLogger(FileSystemStorage.class);
+
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    // Same limit as S3 pre-signed URLs
+    private static final long MAX_EXPIRES = 7 * 24 * 60 * 60;
+
+    // Keys are asset ids. Anything else wasn't handed out by us, and could point outside the root directory
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+
+    // How much is read from the request body per FileChannel.transferFrom() call
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+    private final Path uploads;
+    private final LinkDirectory links;
+    private final String urlPrefix;
+    private final SecretKeySpec signingKey;
+    private final long maxSize;
+    private final Clock clock;
+
+    // Mac isn't thread safe and is expensive to look up, so they are pooled like in S3Presigner
+    private final Queue<Mac> macs = new ConcurrentLinkedQueue<>();
+
+    @Autowired
+    public FileSystemStorage(@Value("${asset.storage.fs.root}") String root,
+                             @Value("${asset.storage.fs.url}") String url,
+                             @Value("${asset.storage.fs.secret}") String secret,
+                             @Value("${asset.storage.fs.max.size:5368709120}") long maxSize)
+        throws IOException
+    {
+        this(Paths.get(root), url, secret.getBytes(StandardCharsets.UTF_8), maxSize, Clock.systemUTC());
+    }
+
+    FileSystemStorage(Path root, String url, byte[] secret, long maxSize, Clock clock)
+        throws IOException
+    {
+        // Shorter keys than the HMAC output make the signatures easier to forge
+        if (secret.length < 32)
+        {
+            throw new IllegalArgumentException("asset.storage.fs.secret must be at least 32 bytes");
+        }
+
+        this.root = Files.createDirectories(root).toRealPath();
+        this.urlPrefix = (url.endsWith("/") ? url : url + "/") + "content/";
+        this.signingKey = new SecretKeySpec(secret, HMAC_SHA256);
+        this.maxSize = maxSize;
+        this.clock = clock;
+
+        // Same file system as the objects so they can be moved into place atomically. Anything left in there is
+        // from uploads that were cut short by a restart
+        this.uploads = Files.createDirectories(this.root.resolve(".uploads"));
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(uploads))
+        {
+            for (Path leftover : leftovers)
+            {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        this.links = new LinkDirectory(this.root.resolve(".links"), clock::millis);
+    }
+
+    @Override
+    public boolean exists(String key)
+    {
+        return Files.isRegularFile(resolve(key));
+    }
+
+    @Override
+    public Set<String> delete(List<String> keys)
+    {
+        Set<String> failedKeys = new HashSet<>();
+        for (String key : keys)
+        {
+            try
+            {
+                Files.deleteIfExists(resolve(key));
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to delete {}", key, e);
+                failedKeys.add(key);
+            }
+        }
+        return failedKeys;
+    }
+
+    @Override
+    public String getUploadUrl(String key, long expires, long timestamp)
+    {
+        return url("PUT", key, expires, timestamp);
+    }
+
+    @Override
+    public String getDownloadUrl(String key, long expires)
+    {
+        return url("GET", key, expires, clock.millis());
+    }
+
+    // Uploads go to the service itself and are only limited by asset.storage.fs.max.size, there's nothing to gain from
+    // splitting them up
+
+    @Override
+    public boolean supportsMultipart()
+    {
+        return false;
+    }
+
+    @Override
+    public String initiateMultipartUpload(String key)
+    {
+        throw new UnsupportedOperationException("Multipart uploads are only supported with S3 storage");
+    }
+
+    @Override
+    public String getPartUploadUrl(String key, String uploadId, int partNumber, long expires, long timestamp)
+    {
+        throw new UnsupportedOperationException("Multipart uploads are only supported with S3 storage");
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<String> etags)
+    {
+        throw new UnsupportedOperationException("Multipart uploads are only supported with S3 storage");
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId)
+    {
+        // Nothing to abort, an upload id can only be left over from running with S3 storage before
+    }
+
+    /**
+     * @return true if the signature is one getUploadUrl() handed out for this key, and it hasn't expired yet
+     */
+    public boolean verifyUpload(String key, String expires, String signature)
+    {
+        return verify("PUT", key, expires, signature);
+    }
+
+    /**
+     * @return true if the signature is one getDownloadUrl() handed out for this key, and it hasn't expired yet
+     */
+    public boolean verifyDownload(String key, String expires, String signature)
+    {
+        return verify("GET", key, expires, signature);
+    }
+
+    @Override
+    public long write(String key, InputStream in)
+        throws IOException
+    {
+        Path target = resolve(key);
+        Path upload = Files.createTempFile(uploads, key, ".part");
+        try
+        {
+            long size = 0;
+            try (ReadableByteChannel src = Channels.newChannel(in);
+                 FileChannel out = FileChannel.open(upload, WRITE))
+            {
+                // Reading one past the limit is enough to tell the upload is too large
+                long n;
+                while ((n = out.transferFrom(src, size, Math.min(TRANSFER_SIZE, maxSize + 1 - size))) > 0)
+                {
+                    size += n;
+                    if (size > maxSize)
+                    {
+                        throw new ObjectTooLargeException("Objects can't be larger than " + maxSize + " bytes");
+                    }
+                }
+
+                // Like S3, once the upload is acknowledged the object is there to stay
+                out.force(false);
+            }
+
+            Files.createDirectories(target.getParent());
+            Files.move(upload, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            return size;
+        }
+        finally
+        {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    @Override
+    public StoredObject read(String key)
+        throws IOException
+    {
+        Path path = resolve(key);
+        FileChannel channel = FileChannel.open(path, READ);
+        try
+        {
+            // Objects are replaced, never modified in place, so the size and modification time identify the contents
+            long size = channel.size();
+            String etag = Long.toHexString(size) + "-" + Long.toHexString(Files.getLastModifiedTime(path).toMillis());
+            return new StoredObject(Channels.newInputStream(channel), size, etag);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the object contents, positioned at the start
+     *
+     * @throws java.nio.file.NoSuchFileException if the object doesn't exist
+     */
+    public FileChannel open(String key)
+        throws IOException
+    {
+        return FileChannel.open(resolve(key), READ);
+    }
+
+    /**
+     * @return a link to the object as it is now, that stays the same however the object changes (see LinkDirectory)
+     *
+     * @throws java.nio.file.NoSuchFileException if the object doesn't exist
+     */
+    public Path link(String key)
+        throws IOException
+    {
+        return links.link(resolve(key));
+    }
+
+    @Scheduled(fixedDelayString = "${asset.storage.fs.links.sweep.delay.ms:60000}")
+    public void sweepLinks()
+    {
+        links.sweep();
+    }
+
+    /**
+     * @return where the object is, or would be, stored
+     */
+    public Path resolve(String key)
+    {
+        if (!KEY.matcher(key).matches())
+        {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+        return root.resolve(key.length() < 2 ? key : key.substring(0, 2)).resolve(key);
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    private String url(String method, String key, long expires, long timestamp)
+    {
+        if (expires <= 0 || expires > MAX_EXPIRES)
+        {
+            throw new IllegalArgumentException("Signed URLs must expire within 1 to " + MAX_EXPIRES + " seconds");
+        }
+        if (!KEY.matcher(key).matches())
+        {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+
+        // Keys and hex signatures never need to be URL encoded
+        long expiresAt = Math.floorDiv(timestamp, 1000) + expires;
+        StringBuilder url = new StringBuilder(urlPrefix.length() + key.length() + 100);
+        url.append(urlPrefix).append(key).append("?Expires=").append(expiresAt).append("&Signature=");
+        appendHex(url, sign(method, key, expiresAt));
+        return url.toString();
+    }
+
+    private boolean verify(String method, String key, String expires, String signature)
+    {
+        if (expires == null || signature == null || !KEY.matcher(key).matches())
+        {
+            return false;
+        }
+
+        long expiresAt;
+        try
+        {
+            expiresAt = Long.parseLong(expires);
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+        if (expiresAt < Math.floorDiv(clock.millis(), 1000))
+        {
+            return false;
+        }
+
+        StringBuilder expected = new StringBuilder(64);
+        appendHex(expected, sign(method, key, expiresAt));
+
+        // Constant time, so the signature can't be guessed one byte at a time
+        return MessageDigest.isEqual(
+            expected.toString().getBytes(StandardCharsets.US_ASCII),
+            signature.getBytes(StandardCharsets.US_ASCII)
+        );
+    }
+
+    private byte[] sign(String method, String key, long expiresAt)
+    {
+        Mac mac = macs.poll();
+        try
+        {
+            if (mac == null)
+            {
+                mac = Mac.getInstance(HMAC_SHA256);
+                mac.init(signingKey);
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Unable to initialize " + HMAC_SHA256, e);
+        }
+
+        try
+        {
+            // The method is part of the signature so download URLs can't be used to overwrite the object
+            return mac.doFinal((method + '\n' + key + '\n' + expiresAt).getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            macs.offer(mac);
+        }
+    }
+
+    private static void appendHex(StringBuilder out, byte[] bytes)
+    {
+        for (byte b : bytes)
+        {
+            out.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+    }
+}
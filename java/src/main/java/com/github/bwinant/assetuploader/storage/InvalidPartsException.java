@@ -0,0 +1,13 @@
+package com.github.bwinant.assetuploader.storage;
+
+/**
+ * Thrown when a multipart upload can't be completed with the given parts: a part is missing, an ETag doesn't match
+ * what was uploaded, a part is too small, or the upload no longer exists
+ */
+public class InvalidPartsException extends Exception
+{
+    public InvalidPartsException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short-lived hard links to files that can be deleted or replaced at any moment, for handing them to something that
+ * opens them by name later on (Tomcat's sendfile, once the controller has returned). A link keeps the contents it was
+ * made for no matter what happens to the file, and nothing else ever touches it.
+ *
+ * Links are removed by sweep() once they are a minute old. Whoever they were for has opened them long before, and an
+ * open file can still be read after its last name is gone. Has to be on the same file system as the files, hard links
+ * can't cross file systems.
+ */
+public class LinkDirectory
+{
+    private static final Logger log = LoggerFactory.getLogger(LinkDirectory.class);
+
+    static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    private final Path dir;
+    private final LongSupplier clock;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public LinkDirectory(Path dir, LongSupplier clock)
+        throws IOException
+    {
+        this.dir = Files.createDirectories(dir);
+        this.clock = clock;
+
+        // Anything left in there is from before a restart and not in use any more
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(this.dir))
+        {
+            for (Path leftover : leftovers)
+            {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /**
+     * @return a new link to the file
+     *
+     * @throws java.nio.file.NoSuchFileException if the file doesn't exist
+     */
+    public Path link(Path file)
+        throws IOException
+    {
+        // A link has the modification time of the file, so when it was made goes in the name
+        return Files.createLink(dir.resolve(clock.getAsLong() + "-" + sequence.incrementAndGet()), file);
+    }
+
+    /**
+     * Removes the links that are old enough
+     *
+     * @return how many were removed
+     */
+    public int sweep()
+    {
+        long before = clock.getAsLong() - MAX_AGE_MILLIS;
+        int count = 0;
+        try (DirectoryStream<Path> links = Files.newDirectoryStream(dir))
+        {
+            for (Path link : links)
+            {
+                String name = link.getFileName().toString();
+                if (Long.parseLong(name.substring(0, name.indexOf('-'))) < before)
+                {
+                    Files.deleteIfExists(link);
+                    count++;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to remove old links from {}", dir, e);
+        }
+        return count;
+    }
+
+    public Path getDir()
+    {
+        return dir;
+    }
+}
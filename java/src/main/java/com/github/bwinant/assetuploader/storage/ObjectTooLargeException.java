@@ -0,0 +1,14 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an upload goes past the size limit of the storage
+ */
+public class ObjectTooLargeException extends IOException
+{
+    public ObjectTooLargeException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of part sized buffers shared by all uploads streamed through the service, so memory use is bounded
+ * no matter how many uploads are in progress. Buffers are allocated the first time they're needed and then kept.
+ * Part sized arrays are large enough to be allocated straight into the old generation, reusing them spares the GC.
+ */
+class PartBufferPool
+{
+    private final int bufferSize;
+    private final Semaphore available;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    PartBufferPool(int bufferSize, int maxBuffers)
+    {
+        this.bufferSize = bufferSize;
+        this.available = new Semaphore(maxBuffers, true);
+    }
+
+    /**
+     * Takes a buffer, waiting for one to be released if they are all in use
+     */
+    byte[] acquire()
+    {
+        available.acquireUninterruptibly();
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    void release(byte[] buffer)
+    {
+        free.offer(buffer);
+        available.release();
+    }
+
+    /**
+     * @return the number of buffers that can be taken without waiting
+     */
+    int getAvailable()
+    {
+        return available.availablePermits();
+    }
+
+    int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of uploads waiting for a buffer
+     */
+    int getWaiting()
+    {
+        return available.getQueueLength();
+    }
+}
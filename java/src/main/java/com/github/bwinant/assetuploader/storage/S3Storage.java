@@ -0,0 +1,498 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Assets stored in the asset bucket, uploaded and downloaded with SigV4 pre-signed URLs.
+ *
+ * Uploads streamed through the service are cut into asset.upload.part.size parts as they arrive and sent as a multipart
+ * upload, up to asset.upload.parallelism parts of an upload at a time. Part buffers come from a pool of
+ * asset.upload.buffers shared by all uploads, so at most that many parts are held in memory at once.
+ * Anything that fits in one part is sent with a single PUT instead.
+ *
+ * Clients uploading large assets themselves get a multipart upload of their own, with a pre-signed URL per part.
+ */
+@Component
+@ConditionalOnProperty(name = "asset.storage", havingValue = "s3", matchIfMissing = true)
+public class S3Storage implements AssetStorage
+{
+    private static final Logger log = LoggerFactory.getLogger(S3Storage.class);
+
+    // S3 limit for multipart uploads
+    private static final int MAX_PARTS = 10000;
+
+    private final AmazonS3 s3Client;
+    private final S3Presigner presigner;
+    private final String bucketName;
+    private final Semaphore s3Permits;
+    private final PartBufferPool partBuffers;
+    private final int parallelism;
+
+    // Part uploads are bounded by the buffer pool, not by this
+    private final ExecutorService partUploads = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Autowired
+    public S3Storage(AmazonS3 s3Client,
+                     S3Presigner presigner,
+                     MeterRegistry meterRegistry,
+                     @Value("${asset.bucket}") String bucketName,
+                     @Value("${aws.s3.max.connections:50}") int maxS3Connections,
+                     @Value("${asset.upload.part.size:8388608}") int partSize,
+                     @Value("${asset.upload.parallelism:4}") int parallelism,
+                     @Value("${asset.upload.buffers:16}") int maxBuffers)
+    {
+        this.s3Client = s3Client;
+        this.presigner = presigner;
+        this.bucketName = bucketName;
+
+        // HttpClient waits for a pooled connection while holding a monitor, which pins a virtual thread to its carrier.
+        // Enough of those and no other request can run, so wait for a free connection here instead
+        this.s3Permits = new Semaphore(maxS3Connections);
+        meterRegistry.gauge("assets.s3.waiting", s3Permits, Semaphore::getQueueLength);
+
+        this.partBuffers = new PartBufferPool(partSize, maxBuffers);
+        this.parallelism = parallelism;
+        meterRegistry.gauge("assets.upload.buffers.waiting", partBuffers, PartBufferPool::getWaiting);
+    }
+
+    @Override
+    public boolean exists(String key)
+    {
+        s3Permits.acquireUninterruptibly();
+        try
+        {
+            return s3Client.doesObjectExist(bucketName, key);
+        }
+        catch (SdkClientException e)
+        {
+            throw new StorageException("Unable to check if " + key + " exists in S3", e);
+        }
+        finally
+        {
+            s3Permits.release();
+        }
+    }
+
+    @Override
+    public StoredObject read(String key)
+        throws IOException
+    {
+        s3Permits.acquireUninterruptibly();
+        S3Object object;
+        try
+        {
+            object = s3Client.getObject(bucketName, key);
+        }
+        catch (AmazonS3Exception e)
+        {
+            s3Permits.release();
+            if (e.getStatusCode() == 404)
+            {
+                throw new NoSuchFileException(key);
+            }
+            throw new StorageException("Unable to read " + key + " from S3", e);
+        }
+        catch (SdkClientException e)
+        {
+            s3Permits.release();
+            throw new StorageException("Unable to read " + key + " from S3", e);
+        }
+
+        // The connection stays in use until the contents are closed, and so does the permit
+        InputStream content = new FilterInputStream(object.getObjectContent())
+        {
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            @Override
+            public void close()
+                throws IOException
+            {
+                if (closed.compareAndSet(false, true))
+                {
+                    try
+                    {
+                        super.close();
+                    }
+                    finally
+                    {
+                        s3Permits.release();
+                    }
+                }
+            }
+        };
+        ObjectMetadata metadata = object.getObjectMetadata();
+        return new StoredObject(content, metadata.getContentLength(), metadata.getETag());
+    }
+
+    @Override
+    public long write(String key, InputStream in)
+        throws IOException
+    {
+        byte[] buffer = partBuffers.acquire();
+        int length;
+        try
+        {
+            length = in.readNBytes(buffer, 0, buffer.length);
+        }
+        catch (IOException e)
+        {
+            partBuffers.release(buffer);
+            throw e;
+        }
+
+        if (length == buffer.length)
+        {
+            // There may be more to come, the buffer becomes the first part
+            return writeMultipart(key, in, buffer);
+        }
+
+        try
+        {
+            // Fits in a single part, one PUT instead of three requests
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            s3(() -> s3Client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(buffer, 0, length), metadata)));
+            return length;
+        }
+        finally
+        {
+            partBuffers.release(buffer);
+        }
+    }
+
+    private long writeMultipart(String key, InputStream in, byte[] firstPart)
+        throws IOException
+    {
+        String uploadId;
+        try
+        {
+            uploadId = s3(() -> s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId());
+        }
+        catch (RuntimeException e)
+        {
+            partBuffers.release(firstPart);
+            throw e;
+        }
+
+        // Held for every part being read or uploaded, the client is only read from as fast as S3 takes the parts
+        Semaphore inFlight = new Semaphore(parallelism);
+        inFlight.acquireUninterruptibly();
+
+        List<Future<PartETag>> parts = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        byte[] buffer = firstPart;
+        int length = firstPart.length;
+        long size = 0;
+        boolean completed = false;
+        try
+        {
+            // Once a part fails there's no point reading the rest, waiting on the parts below reports the failure
+            while (length > 0 && !failed.get())
+            {
+                if (parts.size() == MAX_PARTS)
+                {
+                    throw new ObjectTooLargeException("Objects can't be larger than " + MAX_PARTS + " parts of " + partBuffers.getBufferSize() + " bytes");
+                }
+
+                parts.add(uploadPart(key, uploadId, parts.size() + 1, buffer, length, inFlight, failed));
+                buffer = null;
+                size += length;
+
+                inFlight.acquireUninterruptibly();
+                buffer = partBuffers.acquire();
+                length = in.readNBytes(buffer, 0, buffer.length);
+            }
+
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts)
+            {
+                partETags.add(await(part));
+            }
+            s3(() -> s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags)));
+            completed = true;
+            return size;
+        }
+        finally
+        {
+            if (buffer != null)
+            {
+                partBuffers.release(buffer);
+                inFlight.release();
+            }
+            if (!completed)
+            {
+                abort(key, uploadId, inFlight, failed);
+            }
+        }
+    }
+
+    private Future<PartETag> uploadPart(String key, String uploadId, int partNumber, byte[] buffer, int length,
+                                        Semaphore inFlight, AtomicBoolean failed)
+    {
+        UploadPartRequest request = new UploadPartRequest()
+            .withBucketName(bucketName)
+            .withKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+            .withPartSize(length);
+
+        return partUploads.submit(() -> {
+            try
+            {
+                // The upload is being given up on, no point sending more of it
+                if (failed.get())
+                {
+                    return null;
+                }
+                return s3(() -> s3Client.uploadPart(request).getPartETag());
+            }
+            catch (RuntimeException e)
+            {
+                failed.set(true);
+                throw e;
+            }
+            finally
+            {
+                partBuffers.release(buffer);
+                inFlight.release();
+            }
+        });
+    }
+
+    private void abort(String key, String uploadId, Semaphore inFlight, AtomicBoolean failed)
+    {
+        // Parts that are still uploading could otherwise complete after the abort and be kept (and billed) by S3. They
+        // aren't cancelled, a part that never got to run wouldn't give its buffer back. Parts that haven't started skip
+        // the upload instead, and every part holds an inFlight permit until it's done, so once they're all back the
+        // parts are too
+        failed.set(true);
+        inFlight.acquireUninterruptibly(parallelism);
+
+        try
+        {
+            abortMultipartUpload(key, uploadId);
+        }
+        catch (StorageException e)
+        {
+            log.warn("Unable to abort multipart upload {} of {}, its parts are left in S3", uploadId, key, e);
+        }
+    }
+
+    int getAvailablePartBuffers()
+    {
+        return partBuffers.getAvailable();
+    }
+
+    private static PartETag await(Future<PartETag> part)
+        throws IOException
+    {
+        try
+        {
+            return part.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs an S3 request once a connection is available, see s3Permits
+     */
+    private <T> T s3(Supplier<T> request)
+    {
+        s3Permits.acquireUninterruptibly();
+        try
+        {
+            return request.get();
+        }
+        catch (SdkClientException e)
+        {
+            throw new StorageException("S3 request failed", e);
+        }
+        finally
+        {
+            s3Permits.release();
+        }
+    }
+
+    @Override
+    public boolean supportsMultipart()
+    {
+        return true;
+    }
+
+    @Override
+    public String initiateMultipartUpload(String key)
+    {
+        return s3(() -> s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId());
+    }
+
+    @Override
+    public String getPartUploadUrl(String key, String uploadId, int partNumber, long expires, long timestamp)
+    {
+        return presigner.presignPart(key, uploadId, partNumber, expires, timestamp);
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<String> etags)
+        throws InvalidPartsException
+    {
+        List<PartETag> partETags = new ArrayList<>(etags.size());
+        for (int i = 0; i < etags.size(); i++)
+        {
+            partETags.add(new PartETag(i + 1, etags.get(i)));
+        }
+
+        s3Permits.acquireUninterruptibly();
+        try
+        {
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+        }
+        catch (AmazonS3Exception e)
+        {
+            // InvalidPart, InvalidPartOrder and EntityTooSmall are 400s, NoSuchUpload a 404. Either way it's the
+            // client's parts that are wrong, the upload is left as it is so they can try again
+            if (e.getStatusCode() == 400 || e.getStatusCode() == 404)
+            {
+                throw new InvalidPartsException(e.getErrorCode() + ": " + e.getErrorMessage(), e);
+            }
+            throw new StorageException("Unable to complete multipart upload " + uploadId + " of " + key, e);
+        }
+        catch (SdkClientException e)
+        {
+            throw new StorageException("Unable to complete multipart upload " + uploadId + " of " + key, e);
+        }
+        finally
+        {
+            s3Permits.release();
+        }
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId)
+    {
+        s3Permits.acquireUninterruptibly();
+        try
+        {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        }
+        catch (AmazonS3Exception e)
+        {
+            // NoSuchUpload, already aborted or completed
+            if (e.getStatusCode() != 404)
+            {
+                throw new StorageException("Unable to abort multipart upload " + uploadId + " of " + key, e);
+            }
+        }
+        catch (SdkClientException e)
+        {
+            throw new StorageException("Unable to abort multipart upload " + uploadId + " of " + key, e);
+        }
+        finally
+        {
+            s3Permits.release();
+        }
+    }
+
+    @Override
+    public Set<String> delete(List<String> keys)
+    {
+        List<KeyVersion> keyVersions = new ArrayList<>(keys.size());
+        for (String key : keys)
+        {
+            keyVersions.add(new KeyVersion(key));
+        }
+
+        s3Permits.acquireUninterruptibly();
+        try
+        {
+            // Quiet mode, S3 only reports the keys it failed to delete
+            s3Client.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keyVersions).withQuiet(true));
+            return Collections.emptySet();
+        }
+        catch (MultiObjectDeleteException e)
+        {
+            Set<String> failedKeys = new HashSet<>();
+            for (DeleteError error : e.getErrors())
+            {
+                log.warn("Unable to delete {} from S3: {} {}", error.getKey(), error.getCode(), error.getMessage());
+                failedKeys.add(error.getKey());
+            }
+            return failedKeys;
+        }
+        catch (SdkClientException e)
+        {
+            throw new StorageException("Unable to delete " + keys.size() + " objects from S3", e);
+        }
+        finally
+        {
+            s3Permits.release();
+        }
+    }
+
+    @Override
+    public String getUploadUrl(String key, long expires, long timestamp)
+    {
+        // Requirements say "user should be able to make a POST call to the s3 signed url to upload the asset"
+        // but S3 pre-signed upload URLs require a PUT not a POST
+        return presigner.presign(HttpMethod.PUT, key, expires, timestamp);
+    }
+
+    @Override
+    public String getDownloadUrl(String key, long expires)
+    {
+        return presigner.presign(HttpMethod.GET, key, expires);
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.bwinant.assetuploader.storage;
+
+/**
+ * Thrown when the storage backend can't be reached or fails a request outright
+ */
+public class StorageException extends RuntimeException
+{
+    public StorageException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The contents of a stored object as read from storage, to be read once and closed
+ */
+public class StoredObject implements Closeable
+{
+    private final InputStream content;
+    private final long length;
+    private final String etag;
+
+    public StoredObject(InputStream content, long length, String etag)
+    {
+        this.content = content;
+        this.length = length;
+        this.etag = etag;
+    }
+
+    public InputStream getContent()
+    {
+        return content;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return identifies this version of the contents, without quotes
+     */
+    public String getEtag()
+    {
+        return etag;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        content.close();
+    }
+}
@@ -0,0 +1,17 @@
+-- The assets table with the partitioned profile (see PartitionedAssetStateStore). Range partitioned by day on created,
+-- when the asset was created, so retention drops whole partitions instead of deleting rows. AssetPartitions creates the
+-- partitions ahead of time and drops expired ones. created is set on insert and never changes, so updates never move a
+-- row between partitions, and for time ordered ids it is the time in the id. The primary key has to include created
+-- to be enforced per partition. ts is the time of the last change, like in schema.sql.
+-- Status is a smallint, see Asset.Status.getCode()
+CREATE TABLE IF NOT EXISTS assets (
+  id UUID NOT NULL,
+  created TIMESTAMPTZ NOT NULL,
+  status SMALLINT NOT NULL DEFAULT 1,
+  ts TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+  upload_id VARCHAR,
+  PRIMARY KEY (id, created)
+) PARTITION BY RANGE (created);
+
+-- Lets AbandonedAssetSweeper and DeletionPipeline find old rows in a given state without scanning the partitions
+CREATE INDEX IF NOT EXISTS assets_status_ts_idx ON assets (status, ts);
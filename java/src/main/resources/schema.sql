@@ -2,4 +2,10 @@ CREATE TABLE IF NOT EXISTS assets (
   id UUID PRIMARY KEY,
   status VARCHAR NOT NULL DEFAULT 'created',
   ts TIMESTAMP NOT NULL DEFAULT NOW()
-);
\ No newline at end of file
+);
+
+-- S3 upload id of a multipart upload until it is completed, so DeletionPipeline can abort the ones that never are
+ALTER TABLE assets ADD COLUMN IF NOT EXISTS upload_id VARCHAR;
+
+-- Lets AbandonedAssetSweeper and DeletionPipeline find old rows in a given state without scanning the table
+CREATE INDEX IF NOT EXISTS assets_status_ts_idx ON assets (status, ts);
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SqsUploadEventQueueTest
+{
+    private final SqsUploadEventQueue queue =
+        new SqsUploadEventQueue(mock(AmazonSQS.class), "https://sqs.example.com/queue", "testing123", 0, new ObjectMapper());
+
+    @Test
+    public void parseKeys()
+    {
+        String body = "{\"Records\":[" +
+            "{\"eventName\":\"ObjectCreated:Put\",\"s3\":{\"bucket\":{\"name\":\"testing123\"},\"object\":{\"key\":\"9784c04d-598c-4e69-87f6-0f2eae377fba\"}}}," +
+            "{\"eventName\":\"ObjectCreated:CompleteMultipartUpload\",\"s3\":{\"bucket\":{\"name\":\"testing123\"},\"object\":{\"key\":\"some+thing%2Felse\"}}}," +
+            "{\"eventName\":\"ObjectRemoved:Delete\",\"s3\":{\"bucket\":{\"name\":\"testing123\"},\"object\":{\"key\":\"removed\"}}}," +
+            "{\"eventName\":\"ObjectCreated:Put\",\"s3\":{\"bucket\":{\"name\":\"another\"},\"object\":{\"key\":\"other-bucket\"}}}" +
+            "]}";
+
+        assertEquals(Arrays.asList("9784c04d-598c-4e69-87f6-0f2eae377fba", "some thing/else"), queue.parseKeys(body));
+    }
+
+    @Test
+    public void parseKeys_testEvent()
+    {
+        assertEquals(Collections.emptyList(), queue.parseKeys("{\"Service\":\"Amazon S3\",\"Event\":\"s3:TestEvent\"}"));
+    }
+
+    @Test
+    public void parseKeys_garbage()
+    {
+        assertEquals(Collections.emptyList(), queue.parseKeys("not json"));
+    }
+}
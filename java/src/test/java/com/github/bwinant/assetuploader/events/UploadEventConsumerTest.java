@@ -0,0 +1,87 @@
+package com.github.bwinant.assetuploader.events;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.AssetService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UploadEventConsumerTest
+{
+    private final InMemoryUploadEventQueue queue = new InMemoryUploadEventQueue(0);
+
+    @Mock
+    private AssetService assetService;
+
+    private UploadEventConsumer consumer;
+
+    @Before
+    public void setUp()
+    {
+        consumer = new UploadEventConsumer(queue, assetService, 2);
+    }
+
+    @Test
+    public void poll_empty()
+    {
+        assertEquals(0, consumer.poll());
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void poll_batches()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        for (UUID assetId : assetIds)
+        {
+            queue.publish(assetId.toString());
+        }
+
+        when(assetService.completeAssets(anyList())).thenReturn(2, 1);
+
+        assertEquals(2, consumer.poll());
+        assertEquals(1, consumer.poll());
+        assertEquals(0, queue.size());
+
+        verify(assetService).completeAssets(assetIds.subList(0, 2));
+        verify(assetService).completeAssets(assetIds.subList(2, 3));
+    }
+
+    @Test
+    public void poll_ignoresUnknownKeys()
+    {
+        UUID assetId = UUID.randomUUID();
+        queue.publish("not-an-asset.txt");
+        queue.publish(assetId.toString());
+
+        when(assetService.completeAssets(anyList())).thenReturn(1);
+
+        assertEquals(2, consumer.poll());
+        verify(assetService).completeAssets(Arrays.asList(assetId));
+    }
+
+    @Test
+    public void poll_failureIsRetried()
+    {
+        UUID assetId = UUID.randomUUID();
+        queue.publish(assetId.toString());
+
+        when(assetService.completeAssets(anyList())).thenThrow(new IllegalStateException("Boom")).thenReturn(1);
+
+        assertEquals(1, consumer.poll());
+        assertEquals(1, queue.size());
+        assertEquals(1, consumer.poll());
+        assertEquals(0, queue.size());
+
+        verify(assetService, times(2)).completeAssets(Arrays.asList(assetId));
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.bwinant.assetuploader.impl;
+
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AbandonedAssetSweeperTest
+{
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    private AbandonedAssetSweeper sweeper;
+
+    @Before
+    public void setUp()
+    {
+        sweeper = new AbandonedAssetSweeper(new JdbcAssetStateStore(jdbcTemplate, new TransactionTemplate()), new SimpleMeterRegistry(), 3600, 10, 3, 0);
+    }
+
+    @Test
+    public void sweep_stopsWhenCaughtUp()
+    {
+        when(jdbcTemplate.update(anyString(), eq(deleted.toString()), eq(created.toString()), eq(stored.toString()), eq(3600L), eq(10))).thenReturn(10, 4);
+
+        assertEquals(14, sweeper.sweep());
+        verify(jdbcTemplate, times(2)).update(anyString(), eq(deleted.toString()), eq(created.toString()), eq(stored.toString()), eq(3600L), eq(10));
+    }
+
+    @Test
+    public void sweep_boundedBatches()
+    {
+        when(jdbcTemplate.update(anyString(), eq(deleted.toString()), eq(created.toString()), eq(stored.toString()), eq(3600L), eq(10))).thenReturn(10);
+
+        // Backlog is bigger than a single run is allowed to handle
+        assertEquals(30, sweeper.sweep());
+        verify(jdbcTemplate, times(3)).update(anyString(), eq(deleted.toString()), eq(created.toString()), eq(stored.toString()), eq(3600L), eq(10));
+    }
+}
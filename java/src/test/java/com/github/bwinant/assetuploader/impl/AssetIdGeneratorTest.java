@@ -0,0 +1,57 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AssetIdGeneratorTest
+{
+    private final AtomicLong now = new AtomicLong(1760788800000L);
+
+    @Test
+    public void next_time()
+    {
+        AssetIdGenerator generator = new AssetIdGenerator(IdType.time, now::get);
+
+        Set<UUID> ids = new HashSet<>();
+        UUID previous = null;
+        for (int i = 0; i < 1000; i++)
+        {
+            // Enough to go through a few buffers of random bytes
+            UUID id = generator.next();
+            assertEquals(7, id.version());
+            assertEquals(2, id.variant());
+            assertEquals(String.format("%012x", now.get()), id.toString().replace("-", "").substring(0, 12));
+            assertTrue(ids.add(id));
+
+            // Ordered by the millisecond they were made in, as text and in PostgreSQL
+            if (previous != null)
+            {
+                assertTrue(id.toString().compareTo(previous.toString()) > 0);
+            }
+            previous = id;
+            now.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void next_random()
+    {
+        AssetIdGenerator generator = new AssetIdGenerator(IdType.random, now::get);
+
+        List<UUID> ids = generator.next(1000);
+        assertEquals(1000, new HashSet<>(ids).size());
+        for (UUID id : ids)
+        {
+            assertEquals(4, id.version());
+            assertEquals(2, id.variant());
+        }
+    }
+}
@@ -1,83 +1,510 @@
 package com.github.bwinant.assetuploader.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Supplier;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
 import com.github.bwinant.assetuploader.AssetException;
 import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUnsupportedException;
+import com.github.bwinant.assetuploader.MultipartUpload;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl.CompletionMode;
+import com.github.bwinant.assetuploader.state.AssetStateStore;
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.InvalidPartsException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AssetServiceImplTest
 {
-    private final String bucket = "testing123";
-
     @Mock
     private JdbcTemplate jdbcTemplate;
 
     @Mock
-    private AmazonS3Client s3Client;
+    private AssetStorage storage;
+
+    @Mock
+    private DownloadUrlCache downloadUrlCache;
+
+    @Mock
+    private ContentCache contentCache;
 
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final long minPartSize = 16 * 1024 * 1024;
+
+    private AssetStateStore stateStore;
     private AssetServiceImpl assetService;
 
     @Before
     public void setUp()
     {
-        assetService = new AssetServiceImpl(jdbcTemplate, s3Client, bucket);
+        // The queries are the JDBC store's, answered by the mocked JdbcTemplate
+        stateStore = new JdbcAssetStateStore(jdbcTemplate, new TransactionTemplate());
+        assetService = new AssetServiceImpl(stateStore, storage, downloadUrlCache, new AssetIdGenerator(IdType.time), contentCache, meterRegistry, CompletionMode.head, minPartSize);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void createAssets()
+    {
+        List<UUID> assetIds = assetService.createAssets(3);
+        assertEquals(3, assetIds.size());
+        assertEquals(3, assetIds.stream().distinct().count());
+
+        // All rows should go out in a single batch
+        verify(jdbcTemplate, times(1)).batchUpdate(anyString(), any(List.class));
+        verifyNoMoreInteractions(jdbcTemplate);
     }
 
     @Test
-    public void completeAsset() throws AssetException
+    public void completeAsset() throws Exception
     {
         UUID assetId = UUID.randomUUID();
-        Asset asset = new Asset(assetId, created);
 
-        when(s3Client.doesObjectExist(bucket, assetId.toString())).thenReturn(true);
-        when(jdbcTemplate.update(anyString(), eq(uploaded.toString()))).thenReturn(1);
+        when(storage.exists(assetId.toString())).thenReturn(true);
+        completeReturns(created.toString(), 1);
 
-        assetService.completeAsset(asset);
+        assetService.completeAsset(assetId);
     }
 
-    @Test(expected = AssetException.class)
-    public void completeAsset_notInS3() throws AssetException
+    @Test
+    public void completeAsset_timesDatabaseAndStorage() throws Exception
     {
         UUID assetId = UUID.randomUUID();
-        Asset asset = new Asset(assetId, created);
 
-        when(s3Client.doesObjectExist(bucket, assetId.toString())).thenReturn(false);
+        when(storage.exists(assetId.toString())).thenReturn(true);
+        completeReturns(created.toString(), 1);
 
-        assetService.completeAsset(asset);
+        assetService.completeAsset(assetId);
+        assertEquals(1, meterRegistry.get("assets.storage").tag("operation", "exists").timer().count());
+        assertEquals(1, meterRegistry.get("assets.db").tag("query", "complete").timer().count());
+        assertEquals(0, meterRegistry.get("assets.db").tag("query", "get").timer().count());
     }
 
     @Test(expected = AssetException.class)
-    public void completeAsset_alreadyCompleted() throws AssetException
+    public void completeAsset_notInStorage() throws AssetException
     {
         UUID assetId = UUID.randomUUID();
-        Asset asset = new Asset(assetId, uploaded);
 
-        when(s3Client.doesObjectExist(bucket, assetId.toString())).thenReturn(true);
+        when(storage.exists(assetId.toString())).thenReturn(false);
 
-        assetService.completeAsset(asset);
+        assetService.completeAsset(assetId);
+    }
+
+    @Test
+    public void completeAsset_alreadyCompleted() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+
+        when(storage.exists(assetId.toString())).thenReturn(true);
+        completeReturns(uploaded.toString(), 0);
+
+        try
+        {
+            assetService.completeAsset(assetId);
+            fail("Expected AssetAlreadyCompletedException");
+        }
+        catch (AssetAlreadyCompletedException e)
+        {
+            // Expected, without a stack trace like not found
+            assertEquals(0, e.getStackTrace().length);
+        }
     }
 
     @Test(expected = AssetNotFoundException.class)
-    public void completeAsset_notInDb() throws AssetException
+    public void completeAsset_notInDb() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+
+        when(storage.exists(assetId.toString())).thenReturn(true);
+        completeReturns(null, 0);
+
+        assetService.completeAsset(assetId);
+    }
+
+    @Test
+    public void completeAsset_eventsStored() throws Exception
     {
         UUID assetId = UUID.randomUUID();
-        Asset asset = new Asset(assetId, created);
+        assetService = new AssetServiceImpl(stateStore, storage, downloadUrlCache, new AssetIdGenerator(IdType.time), contentCache, meterRegistry, CompletionMode.events, minPartSize);
+
+        stateReturns(assetId, stored, null);
+        completeReturns(stored.toString(), 1);
+
+        assetService.completeAsset(assetId);
+
+        // The upload notification already said the object is there, so there is no need to check the storage
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    public void completeAsset_eventsAlreadyUploaded()
+    {
+        UUID assetId = UUID.randomUUID();
+        assetService = new AssetServiceImpl(stateStore, storage, downloadUrlCache, new AssetIdGenerator(IdType.time), contentCache, meterRegistry, CompletionMode.events, minPartSize);
+
+        stateReturns(assetId, uploaded, null);
+
+        // Completing twice fails like it does without events
+        try
+        {
+            assetService.completeAsset(assetId);
+            fail("Should have failed");
+        }
+        catch (AssetException e)
+        {
+            assertTrue(e.getMessage().contains("already completed"));
+        }
+        verifyNoInteractions(storage);
+    }
 
-        when(s3Client.doesObjectExist(bucket, assetId.toString())).thenReturn(true);
-        when(jdbcTemplate.update(anyString(), eq(uploaded.toString()))).thenReturn(0);
+    @Test
+    public void completeAsset_eventsNotYetUploaded() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        assetService = new AssetServiceImpl(stateStore, storage, downloadUrlCache, new AssetIdGenerator(IdType.time), contentCache, meterRegistry, CompletionMode.events, minPartSize);
+
+        when(storage.exists(assetId.toString())).thenReturn(true);
+        stateReturns(assetId, created, null);
+        completeReturns(created.toString(), 1);
+
+        assetService.completeAsset(assetId);
+
+        // Notification hasn't been processed yet, so we check the storage ourselves
+        verify(storage).exists(assetId.toString());
+    }
+
+    @Test
+    public void completeAsset_eventsMultipart() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        assetService = new AssetServiceImpl(stateStore, storage, downloadUrlCache, new AssetIdGenerator(IdType.time), contentCache, meterRegistry, CompletionMode.events, minPartSize);
+
+        stateReturns(assetId, created, "upload-1");
+
+        try
+        {
+            assetService.completeAsset(assetId);
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            assertTrue(e.getMessage().contains("multipart upload"));
+        }
+
+        // Still has its upload id, so the parts get aborted if it's never completed with them
+        verifyNoInteractions(storage);
+        verify(jdbcTemplate, never()).queryForObject(anyString(), any(RowMapper.class), any(Object[].class));
+    }
+
+    @Test
+    public void uploadAsset() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        InputStream content = new ByteArrayInputStream(new byte[10]);
+
+        stateReturns(assetId, created, null);
+        completeReturns(created.toString(), 1);
+
+        assetService.uploadAsset(assetId, content);
+
+        // Completed without asking the storage whether the object is there
+        verify(storage).write(assetId.toString(), content);
+        verify(storage, never()).exists(anyString());
+        assertEquals(1, meterRegistry.get("assets.storage").tag("operation", "write").timer().count());
+    }
+
+    @Test
+    public void uploadAsset_alreadyUploaded() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+
+        stateReturns(assetId, uploaded, null);
+
+        try
+        {
+            assetService.uploadAsset(assetId, new ByteArrayInputStream(new byte[10]));
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            // Expected
+        }
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    public void uploadAsset_multipart() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+
+        stateReturns(assetId, created, "upload-1");
+
+        try
+        {
+            assetService.uploadAsset(assetId, new ByteArrayInputStream(new byte[10]));
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            assertTrue(e.getMessage().contains("multipart upload"));
+        }
+
+        // Completing it would forget the upload id without aborting the upload
+        verifyNoInteractions(storage);
+        verify(jdbcTemplate, never()).queryForObject(anyString(), any(RowMapper.class), any(Object[].class));
+    }
+
+    @Test
+    public void createMultipartAsset() throws Exception
+    {
+        when(storage.supportsMultipart()).thenReturn(true);
+        when(storage.initiateMultipartUpload(anyString())).thenReturn("upload-1");
+        when(storage.getPartUploadUrl(anyString(), eq("upload-1"), anyInt(), eq(60L), anyLong()))
+            .thenAnswer(invocation -> "https://example.com/part/" + invocation.getArgument(2));
+
+        // 100 MB in parts of the minimum size, the last one smaller
+        MultipartUpload upload = assetService.createMultipartAsset(100 * 1024 * 1024, 60);
+
+        assertEquals(minPartSize, upload.getPartSize());
+        assertEquals(7, upload.getPartUrls().size());
+        assertEquals("https://example.com/part/1", upload.getPartUrls().get(0));
+        assertEquals("https://example.com/part/7", upload.getPartUrls().get(6));
+        verify(storage).initiateMultipartUpload(upload.getAssetId().toString());
+        verify(jdbcTemplate).update(anyString(), eq(upload.getAssetId()), eq("upload-1"));
+    }
+
+    @Test
+    public void createMultipartAsset_large() throws Exception
+    {
+        long size = 1024L * 1024 * 1024 * 1024;
+        when(storage.supportsMultipart()).thenReturn(true);
+        when(storage.initiateMultipartUpload(anyString())).thenReturn("upload-1");
+        when(storage.getPartUploadUrl(anyString(), eq("upload-1"), anyInt(), eq(60L), anyLong())).thenReturn("https://example.com/part");
+
+        // 1 TB doesn't fit in 10000 parts of the minimum size, so the parts get bigger, in whole MBs
+        MultipartUpload upload = assetService.createMultipartAsset(size, 60);
+
+        assertEquals(105 * 1024 * 1024, upload.getPartSize());
+        assertEquals(9987, upload.getPartUrls().size());
+    }
+
+    @Test
+    public void createMultipartAsset_tooLarge() throws Exception
+    {
+        when(storage.supportsMultipart()).thenReturn(true);
+
+        try
+        {
+            assetService.createMultipartAsset(6L * 1024 * 1024 * 1024 * 1024, 60);
+            fail("Expected AssetException");
+        }
+        catch (MultipartUnsupportedException e)
+        {
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test(expected = MultipartUnsupportedException.class)
+    public void createMultipartAsset_unsupported() throws Exception
+    {
+        when(storage.supportsMultipart()).thenReturn(false);
+
+        assetService.createMultipartAsset(100 * 1024 * 1024, 60);
+    }
+
+    @Test
+    public void completeMultipartAsset() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        List<String> etags = Arrays.asList("etag-1", "etag-2");
+
+        when(jdbcTemplate.queryForMap(anyString(), eq(assetId), eq(deleted.toString())))
+            .thenReturn(Map.of("status", created.toString(), "upload_id", "upload-1"));
+        completeReturns(created.toString(), 1);
+
+        assetService.completeMultipartAsset(assetId, etags);
+
+        verify(storage).completeMultipartUpload(assetId.toString(), "upload-1", etags);
+        verify(storage, never()).exists(anyString());
+    }
+
+    @Test
+    public void completeMultipartAsset_notMultipart() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+
+        Map<String, Object> row = new HashMap<>();
+        row.put("status", created.toString());
+        row.put("upload_id", null);
+        when(jdbcTemplate.queryForMap(anyString(), eq(assetId), eq(deleted.toString()))).thenReturn(row);
+
+        try
+        {
+            assetService.completeMultipartAsset(assetId, Collections.singletonList("etag-1"));
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            // Expected
+        }
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void completeMultipartAsset_invalidParts() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        List<String> etags = Collections.singletonList("etag-1");
+
+        when(jdbcTemplate.queryForMap(anyString(), eq(assetId), eq(deleted.toString())))
+            .thenReturn(Map.of("status", created.toString(), "upload_id", "upload-1"));
+        doThrow(new InvalidPartsException("InvalidPart", new RuntimeException()))
+            .when(storage).completeMultipartUpload(assetId.toString(), "upload-1", etags);
+
+        try
+        {
+            assetService.completeMultipartAsset(assetId, etags);
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            // Expected
+        }
+
+        // Still created, the client can try again with the right parts
+        verify(jdbcTemplate, never()).queryForObject(anyString(), any(RowMapper.class), any(Object[].class));
+    }
+
+    @Test
+    public void completeAssets()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
+
+        when(jdbcTemplate.update(anyString(), any(PreparedStatementSetter.class))).thenReturn(2);
+
+        assertEquals(2, assetService.completeAssets(assetIds));
+        verify(jdbcTemplate, times(1)).update(anyString(), any(PreparedStatementSetter.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getDownloadUrls()
+    {
+        UUID uploadedId = UUID.randomUUID();
+        UUID createdId = UUID.randomUUID();
+        UUID missingId = UUID.randomUUID();
+        List<UUID> assetIds = Arrays.asList(missingId, uploadedId, createdId);
+
+        when(jdbcTemplate.query(anyString(), any(PreparedStatementSetter.class), any(RowMapper.class)))
+            .thenReturn(Arrays.asList(new Asset(createdId, created), new Asset(uploadedId, uploaded)));
+        when(downloadUrlCache.get(eq(uploadedId), eq(60L), any())).thenReturn("https://example.com/uploaded");
+
+        List<DownloadUrl> results = assetService.getDownloadUrls(assetIds, 60);
+        assertEquals(3, results.size());
+        assertEquals(missingId, results.get(0).getAssetId());
+        assertEquals(DownloadUrl.Error.notFound, results.get(0).getError());
+        assertNull(results.get(0).getUrl());
+        assertEquals(uploadedId, results.get(1).getAssetId());
+        assertEquals("https://example.com/uploaded", results.get(1).getUrl());
+        assertNull(results.get(1).getError());
+        assertEquals(createdId, results.get(2).getAssetId());
+        assertEquals(DownloadUrl.Error.notUploaded, results.get(2).getError());
+
+        // One query for all of them, only the uploaded one is signed
+        verify(jdbcTemplate, times(1)).query(anyString(), any(PreparedStatementSetter.class), any(RowMapper.class));
+        verify(downloadUrlCache, times(1)).get(any(), anyLong(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getDownloadUrls_large()
+    {
+        // Enough to be split up among threads, which mustn't mix up the order
+        List<UUID> assetIds = new ArrayList<>();
+        List<Asset> assets = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+        {
+            assetIds.add(UUID.randomUUID());
+            assets.add(new Asset(assetIds.get(i), uploaded));
+        }
+
+        when(jdbcTemplate.query(anyString(), any(PreparedStatementSetter.class), any(RowMapper.class))).thenReturn(assets);
+        when(downloadUrlCache.get(any(), eq(60L), any())).thenAnswer(invocation -> ((Supplier<String>) invocation.getArgument(2)).get());
+        when(storage.getDownloadUrl(anyString(), eq(60L))).thenAnswer(invocation -> "https://example.com/" + invocation.getArgument(0));
+
+        List<DownloadUrl> results = assetService.getDownloadUrls(assetIds, 60);
+        for (int i = 0; i < assetIds.size(); i++)
+        {
+            assertEquals(assetIds.get(i), results.get(i).getAssetId());
+            assertEquals("https://example.com/" + assetIds.get(i), results.get(i).getUrl());
+        }
+    }
+
+    @Test
+    public void deleteAsset()
+    {
+        UUID assetId = UUID.randomUUID();
+
+        assetService.deleteAsset(assetId);
+
+        // Only a tombstone, the stored object is deleted later by DeletionPipeline
+        verify(jdbcTemplate).update(anyString(), eq(deleted.toString()), eq(assetId), eq(deleted.toString()));
+        verifyNoInteractions(storage);
+
+        // Not kept around on disk either
+        verify(contentCache).evict(assetId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stateReturns(UUID assetId, Asset.Status status, String uploadId)
+    {
+        Map<String, Object> row = new HashMap<>();
+        row.put("status", status.toString());
+        row.put("upload_id", uploadId);
+        when(jdbcTemplate.queryForMap(anyString(), eq(assetId), eq(deleted.toString()))).thenReturn(row);
+    }
+
+    private void completeReturns(String previousStatus, int completed) throws SQLException
+    {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString("status")).thenReturn(previousStatus);
+        when(rs.getInt("completed")).thenReturn(completed);
 
-        assetService.completeAsset(asset);
+        when(jdbcTemplate.queryForObject(anyString(), any(RowMapper.class), any(Object[].class)))
+            .thenAnswer(invocation -> ((RowMapper<?>) invocation.getArgument(1)).mapRow(rs, 0));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,225 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.AssetService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingAssetServiceTest
+{
+    private final AtomicLong time = new AtomicLong();
+
+    @Mock
+    private AssetService delegate;
+
+    private CachingAssetService assetService;
+
+    @Before
+    public void setUp()
+    {
+        assetService = new CachingAssetService(delegate, 100, 60, 5, time::get);
+    }
+
+    @Test
+    public void getAsset_uploadedIsCached() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenReturn(new Asset(assetId, uploaded));
+
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+        advance(30);
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+
+        verify(delegate, times(1)).getAsset(assetId);
+    }
+
+    @Test
+    public void getAsset_uploadedExpires() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenReturn(new Asset(assetId, uploaded));
+
+        assetService.getAsset(assetId);
+        advance(61);
+        assetService.getAsset(assetId);
+
+        verify(delegate, times(2)).getAsset(assetId);
+    }
+
+    @Test
+    public void getAsset_createdIsCachedBriefly() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenReturn(new Asset(assetId, created));
+
+        assertEquals(new Asset(assetId, created), assetService.getAsset(assetId));
+        assertEquals(new Asset(assetId, created), assetService.getAsset(assetId));
+        advance(6);
+        assetService.getAsset(assetId);
+
+        verify(delegate, times(2)).getAsset(assetId);
+    }
+
+    @Test
+    public void getAsset_notFoundIsCached() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenThrow(new AssetNotFoundException("Asset " + assetId + " not found"));
+
+        assertNotFound(assetId);
+        assertNotFound(assetId);
+        advance(6);
+        assertNotFound(assetId);
+
+        verify(delegate, times(2)).getAsset(assetId);
+    }
+
+    @Test(expected = AssetException.class)
+    public void getAsset_errorIsNotCached() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenThrow(new AssetException("Boom"));
+
+        assetService.getAsset(assetId);
+    }
+
+    @Test
+    public void getAsset_errorIsNotCachedForNextCaller() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId))
+            .thenThrow(new AssetException("Boom"))
+            .thenReturn(new Asset(assetId, uploaded));
+
+        try
+        {
+            assetService.getAsset(assetId);
+            fail("Expected AssetException");
+        }
+        catch (AssetException e)
+        {
+            assertEquals("Boom", e.getMessage());
+        }
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+    }
+
+    @Test
+    public void getAsset_errorIsNotWrappedForWaiters() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        AtomicReference<Throwable> waiterError = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try
+            {
+                assetService.getAsset(assetId);
+            }
+            catch (Throwable e)
+            {
+                waiterError.set(e);
+            }
+        });
+        when(delegate.getAsset(assetId))
+            .thenAnswer(invocation -> {
+                // Fails once the waiter is waiting on our load
+                waiter.start();
+                while (waiter.getState() != Thread.State.WAITING)
+                {
+                    Thread.sleep(1);
+                }
+                throw new IllegalStateException("Boom");
+            })
+            .thenReturn(new Asset(assetId, uploaded));
+
+        try
+        {
+            assetService.getAsset(assetId);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        waiter.join();
+
+        // The same exception as the thread that loaded it, not a CompletionException
+        assertTrue(String.valueOf(waiterError.get()), waiterError.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void getAsset_invalidatedWhileLoading() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId))
+            .thenAnswer(invocation -> {
+                // Completed by another server while we were reading the old status
+                assetService.completeAsset(assetId);
+                return new Asset(assetId, created);
+            })
+            .thenReturn(new Asset(assetId, uploaded));
+
+        assertEquals(new Asset(assetId, created), assetService.getAsset(assetId));
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+    }
+
+    @Test
+    public void completeAsset_invalidates() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        Asset asset = new Asset(assetId, created);
+        when(delegate.getAsset(assetId)).thenReturn(asset, new Asset(assetId, uploaded));
+
+        assertEquals(asset, assetService.getAsset(assetId));
+        assetService.completeAsset(assetId);
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+
+        verify(delegate).completeAsset(assetId);
+    }
+
+    @Test
+    public void deleteAsset_invalidates() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId))
+            .thenReturn(new Asset(assetId, uploaded))
+            .thenThrow(new AssetNotFoundException("Asset " + assetId + " not found"));
+
+        assetService.getAsset(assetId);
+        assetService.deleteAsset(assetId);
+        assertNotFound(assetId);
+
+        verify(delegate).deleteAsset(assetId);
+    }
+
+    private void assertNotFound(UUID assetId) throws AssetException
+    {
+        try
+        {
+            assetService.getAsset(assetId);
+            fail("Expected AssetNotFoundException");
+        }
+        catch (AssetNotFoundException e)
+        {
+            // Expected
+        }
+    }
+
+    private void advance(long secs)
+    {
+        time.addAndGet(TimeUnit.SECONDS.toNanos(secs));
+    }
+}
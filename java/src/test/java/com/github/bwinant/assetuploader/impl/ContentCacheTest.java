@@ -0,0 +1,215 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import com.github.bwinant.assetuploader.impl.ContentCache.CachedContent;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.StoredObject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ContentCacheTest
+{
+    private final byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private AssetStorage storage;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private Path dir;
+    private ContentCache contentCache;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = folder.getRoot().toPath().resolve("cache");
+        contentCache = new ContentCache(storage, meterRegistry, dir, 1024 * 1024, Runnable::run);
+    }
+
+    @Test
+    public void get() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(storage.read(assetId.toString())).thenAnswer(invocation -> stored(contents));
+
+        CachedContent content = contentCache.get(assetId);
+        assertArrayEquals(contents, Files.readAllBytes(content.getFile()));
+        assertEquals(contents.length, content.getLength());
+        assertEquals("etag", content.getEtag());
+
+        // Read from storage only once
+        assertSame(content, contentCache.get(assetId));
+        verify(storage, times(1)).read(assetId.toString());
+        assertEquals(1, meterRegistry.get("assets.storage").tag("operation", "read").timer().count());
+    }
+
+    @Test
+    public void get_singleFlight() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(storage.read(assetId.toString())).thenAnswer(invocation -> {
+            reading.countDown();
+            release.await();
+            return stored(contents);
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<CachedContent> first = executor.submit(() -> contentCache.get(assetId));
+            reading.await();
+            Future<CachedContent> second = executor.submit(() -> contentCache.get(assetId));
+            release.countDown();
+
+            assertSame(first.get(), second.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        verify(storage, times(1)).read(assetId.toString());
+    }
+
+    @Test
+    public void get_notInStorage() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(storage.read(assetId.toString())).thenThrow(new NoSuchFileException(assetId.toString()));
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                contentCache.get(assetId);
+                fail("Expected NoSuchFileException");
+            }
+            catch (NoSuchFileException e)
+            {
+                // Expected
+            }
+        }
+
+        // Failures aren't cached, and leave no files behind
+        verify(storage, times(2)).read(assetId.toString());
+        assertEquals(0, cachedFiles());
+    }
+
+    @Test
+    public void get_truncated() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(storage.read(assetId.toString())).thenReturn(new StoredObject(new ByteArrayInputStream(contents), contents.length + 1, "etag"));
+
+        try
+        {
+            contentCache.get(assetId);
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+        assertEquals(0, cachedFiles());
+    }
+
+    @Test
+    public void evict() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(storage.read(assetId.toString())).thenAnswer(invocation -> stored(contents));
+
+        CachedContent content = contentCache.get(assetId);
+        contentCache.evict(assetId);
+        assertFalse(Files.exists(content.getFile()));
+
+        // Read from storage again next time
+        contentCache.get(assetId);
+        verify(storage, times(2)).read(assetId.toString());
+    }
+
+    @Test
+    public void link() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(storage.read(assetId.toString())).thenAnswer(invocation -> stored(contents));
+
+        // Outlives the eviction
+        CachedContent content = contentCache.get(assetId);
+        Path link = contentCache.link(content);
+        contentCache.evict(assetId);
+        assertArrayEquals(contents, Files.readAllBytes(link));
+
+        try
+        {
+            contentCache.link(content);
+            fail();
+        }
+        catch (NoSuchFileException e)
+        {
+            // Too late
+        }
+    }
+
+    @Test
+    public void maxSize() throws IOException
+    {
+        // Room for 2 KB, each asset weighs 1
+        contentCache = new ContentCache(storage, meterRegistry, dir, 2048, Runnable::run);
+        when(storage.read(anyString())).thenAnswer(invocation -> stored(contents));
+
+        for (int i = 0; i < 10; i++)
+        {
+            contentCache.get(UUID.randomUUID());
+        }
+        assertTrue(cachedFiles() <= 2);
+    }
+
+    @Test
+    public void leftoversDeleted() throws IOException
+    {
+        Files.write(dir.resolve("leftover.content"), contents);
+
+        new ContentCache(storage, meterRegistry, dir, 1024 * 1024, Runnable::run);
+        assertEquals(0, cachedFiles());
+    }
+
+    private long cachedFiles() throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static StoredObject stored(byte[] contents)
+    {
+        return new StoredObject(new ByteArrayInputStream(contents), contents.length, "etag");
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.state.JdbcAssetStateStore;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.StorageException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeletionPipelineTest
+{
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private AssetStorage storage;
+
+    private DeletionPipeline pipeline;
+
+    @Before
+    public void setUp()
+    {
+        pipeline = new DeletionPipeline(new JdbcAssetStateStore(jdbcTemplate, new TransactionTemplate(transactionManager)), storage, new SimpleMeterRegistry(), 2);
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class), eq(deleted.toString()))).thenReturn(0L);
+    }
+
+    @Test
+    public void drain_empty()
+    {
+        tombstones(Collections.emptyList());
+
+        assertEquals(0, pipeline.drain());
+        verifyNoInteractions(storage);
+    }
+
+    @Test
+    public void drain_chunks()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        tombstones(assetIds.subList(0, 2), assetIds.subList(2, 3));
+
+        assertEquals(3, pipeline.drain());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> keys = ArgumentCaptor.forClass(List.class);
+        verify(storage, times(2)).delete(keys.capture());
+        assertEquals(2, keys.getAllValues().get(0).size());
+        assertEquals(Collections.singletonList(assetIds.get(2).toString()), keys.getAllValues().get(1));
+
+        // One DELETE per chunk
+        verify(jdbcTemplate, times(2)).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+    }
+
+    @Test
+    public void drain_partialFailure()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
+        tombstones(assetIds);
+
+        when(storage.delete(anyList())).thenReturn(Collections.singleton(assetIds.get(1).toString()));
+
+        // The failed one keeps its tombstone and is retried later, so the run stops here
+        assertEquals(1, pipeline.drain());
+        verify(jdbcTemplate).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+        verify(jdbcTemplate).update(startsWith("UPDATE"), any(PreparedStatementSetter.class));
+    }
+
+    @Test
+    public void drain_storageFailure()
+    {
+        tombstones(Arrays.asList(UUID.randomUUID(), UUID.randomUUID()));
+
+        when(storage.delete(anyList())).thenThrow(new StorageException("Boom", new RuntimeException()));
+
+        // The chunk is put back for the next run
+        assertEquals(0, pipeline.drain());
+        verify(jdbcTemplate, never()).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+        verify(jdbcTemplate).update(startsWith("UPDATE"), any(PreparedStatementSetter.class));
+        verifyNoInteractions(transactionManager);
+    }
+
+    @Test
+    public void drain_noTransactionDuringStorageCalls()
+    {
+        tombstones(Arrays.asList(UUID.randomUUID(), UUID.randomUUID()));
+
+        pipeline.drain();
+
+        // Claimed by a statement of its own, only the rows are removed in a transaction, after the storage is done
+        InOrder inOrder = inOrder(jdbcTemplate, storage, transactionManager);
+        inOrder.verify(jdbcTemplate).query(startsWith("UPDATE"), any(RowMapper.class), any(Object[].class));
+        inOrder.verify(storage).delete(anyList());
+        inOrder.verify(transactionManager).getTransaction(any());
+        inOrder.verify(jdbcTemplate).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+        inOrder.verify(transactionManager).commit(any());
+    }
+
+    @Test
+    public void drain_abortsMultipartUploads() throws SQLException
+    {
+        UUID single = UUID.randomUUID();
+        UUID multipart = UUID.randomUUID();
+        multipartTombstones(single, multipart);
+
+        assertEquals(2, pipeline.drain());
+
+        // Only the one that has an upload id
+        verify(storage).abortMultipartUpload(multipart.toString(), "upload-1");
+        verify(storage, times(1)).abortMultipartUpload(anyString(), anyString());
+        verify(jdbcTemplate).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+    }
+
+    @Test
+    public void drain_abortFailure() throws SQLException
+    {
+        UUID single = UUID.randomUUID();
+        UUID multipart = UUID.randomUUID();
+        multipartTombstones(single, multipart);
+
+        doThrow(new StorageException("Boom", new RuntimeException())).when(storage).abortMultipartUpload(multipart.toString(), "upload-1");
+
+        // Retried later like a failed delete, the other one is still cleaned up
+        assertEquals(1, pipeline.drain());
+        verify(jdbcTemplate).update(startsWith("DELETE"), any(PreparedStatementSetter.class));
+        verify(jdbcTemplate).update(startsWith("UPDATE"), any(PreparedStatementSetter.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void multipartTombstones(UUID single, UUID multipart) throws SQLException
+    {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getObject("id")).thenReturn(single, multipart);
+        when(rs.getString("upload_id")).thenReturn(null, "upload-1");
+
+        when(jdbcTemplate.query(anyString(), any(RowMapper.class), any(Object[].class)))
+            .thenAnswer(invocation -> {
+                RowMapper<UUID> rowMapper = invocation.getArgument(1);
+                return Arrays.asList(rowMapper.mapRow(rs, 0), rowMapper.mapRow(rs, 1));
+            })
+            .thenReturn(Collections.emptyList());
+    }
+
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    private final void tombstones(List<UUID>... chunks)
+    {
+        Iterator<List<UUID>> results = Arrays.asList(chunks).iterator();
+
+        when(jdbcTemplate.query(anyString(), any(RowMapper.class), any(Object[].class)))
+            .thenAnswer(invocation -> results.hasNext() ? results.next() : Collections.emptyList());
+    }
+}
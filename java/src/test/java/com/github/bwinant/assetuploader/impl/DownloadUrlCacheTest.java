@@ -0,0 +1,136 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadUrlCacheTest
+{
+    private final AtomicLong time = new AtomicLong();
+    private final AtomicInteger signed = new AtomicInteger();
+
+    private final DownloadUrlCache cache = new DownloadUrlCache(100, 5, time::get);
+
+    @Test
+    public void get_reusesUrlWithinWindow()
+    {
+        UUID assetId = UUID.randomUUID();
+
+        String url = cache.get(assetId, 60, this::sign);
+        advance(4);
+        assertEquals(url, cache.get(assetId, 60, this::sign));
+
+        assertEquals(1, signed.get());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void get_resignsAfterWindow()
+    {
+        UUID assetId = UUID.randomUUID();
+
+        String url = cache.get(assetId, 60, this::sign);
+        advance(6);
+        assertNotEquals(url, cache.get(assetId, 60, this::sign));
+
+        assertEquals(2, signed.get());
+    }
+
+    @Test
+    public void get_keyedByExpiration()
+    {
+        UUID assetId = UUID.randomUUID();
+
+        String url = cache.get(assetId, 60, this::sign);
+        assertNotEquals(url, cache.get(assetId, 120, this::sign));
+        assertNotEquals(url, cache.get(UUID.randomUUID(), 60, this::sign));
+
+        assertEquals(3, signed.get());
+    }
+
+    @Test
+    public void get_shortExpirationNotCached()
+    {
+        UUID assetId = UUID.randomUUID();
+
+        // A URL that lives no longer than the reuse window could be handed out already expired
+        String url = cache.get(assetId, 5, this::sign);
+        assertNotEquals(url, cache.get(assetId, 5, this::sign));
+
+        assertEquals(2, signed.get());
+    }
+
+    @Test
+    public void get_coalescesConcurrentMisses() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        int threads = 8;
+
+        CountDownLatch signing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                results.add(executor.submit(() -> cache.get(assetId, 60, () -> {
+                    signing.countDown();
+                    await(release);
+                    return sign();
+                })));
+            }
+
+            // Hold the first signing call until every thread has had a chance to miss
+            assertTrue(signing.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            release.countDown();
+
+            String url = results.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<String> result : results)
+            {
+                assertEquals(url, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, signed.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private String sign()
+    {
+        return "https://example.com/something?sig=" + signed.incrementAndGet();
+    }
+
+    private void advance(long secs)
+    {
+        time.addAndGet(TimeUnit.SECONDS.toNanos(secs));
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.bwinant.assetuploader.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestTraceTest
+{
+    @Test
+    public void span()
+    {
+        RequestTrace trace = new RequestTrace();
+
+        // Not tracing yet
+        RequestTrace.span("db.get", 0, 10);
+
+        trace.begin();
+        try
+        {
+            RequestTrace.span("db.get", 100, 150);
+            RequestTrace.span("storage.presign", 150, 160);
+            RequestTrace.span("storage.presign", 160, 175);
+            RequestTrace.span(new String("db.get"), 200, 210);
+        }
+        finally
+        {
+            trace.end();
+        }
+        RequestTrace.span("db.get", 300, 400);
+
+        assertEquals(2, trace.size());
+        assertEquals("db.get", trace.getName(0));
+        assertEquals(2, trace.getCount(0));
+        assertEquals(60, trace.getDuration(0));
+        assertEquals("storage.presign", trace.getName(1));
+        assertEquals(2, trace.getCount(1));
+        assertEquals(25, trace.getDuration(1));
+
+        // Reused for the next request
+        trace.begin();
+        RequestTrace.span("db.complete", 0, 5);
+        trace.end();
+        assertEquals(1, trace.size());
+        assertEquals("db.complete", trace.getName(0));
+    }
+
+    @Test
+    public void tooManySpans()
+    {
+        RequestTrace trace = new RequestTrace();
+        trace.begin();
+        try
+        {
+            for (int i = 0; i < RequestTrace.MAX_SPANS + 5; i++)
+            {
+                RequestTrace.span("span" + i, 0, 1);
+            }
+            RequestTrace.span("span0", 0, 1);
+        }
+        finally
+        {
+            trace.end();
+        }
+
+        assertEquals(RequestTrace.MAX_SPANS, trace.size());
+        assertEquals(2, trace.getCount(0));
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.UUID;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.auth.SdkClock;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class S3PresignerTest
+{
+    private final String bucket = "testing123";
+    private final String key = UUID.randomUUID().toString();
+
+    // Arbitrary fixed signing time so the SDK and our presigner sign at exactly the same instant
+    private final long now = Instant.parse("2018-12-03T23:59:58.250Z").toEpochMilli();
+
+    private final AWSCredentialsProvider credentials =
+        new AWSStaticCredentialsProvider(new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY"));
+
+    private final AWSCredentialsProvider sessionCredentials =
+        new AWSStaticCredentialsProvider(new BasicSessionCredentials("ASIAEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", "FQoGZXIvYXdzE/token+=="));
+
+    @After
+    public void tearDown()
+    {
+        SdkClock.Instance.reset();
+    }
+
+    @Test
+    public void presign_matchesSdk_usEast1()
+    {
+        assertMatchesSdk(credentials, "us-east-1", false, HttpMethod.PUT, 900);
+        assertMatchesSdk(credentials, "us-east-1", false, HttpMethod.GET, 60);
+    }
+
+    @Test
+    public void presign_matchesSdk_otherRegion()
+    {
+        assertMatchesSdk(credentials, "eu-west-1", false, HttpMethod.PUT, 900);
+        assertMatchesSdk(credentials, "eu-west-1", false, HttpMethod.GET, 60);
+    }
+
+    @Test
+    public void presign_matchesSdk_pathStyle()
+    {
+        assertMatchesSdk(credentials, "us-west-2", true, HttpMethod.GET, 3600);
+    }
+
+    @Test
+    public void presign_matchesSdk_sessionCredentials()
+    {
+        assertMatchesSdk(sessionCredentials, "us-west-2", false, HttpMethod.PUT, 900);
+        assertMatchesSdk(sessionCredentials, "us-west-2", false, HttpMethod.GET, 60);
+    }
+
+    @Test
+    public void presign_cachedSigningKey()
+    {
+        AmazonS3 s3Client = s3Client(credentials, "us-west-2", false);
+        S3Presigner presigner = presigner(credentials, s3Client, now);
+
+        // Signing the same request twice must not be affected by the cached key or reused buffers,
+        // and crossing midnight must derive a new signing key
+        String first = presigner.presign(HttpMethod.GET, key, 60, now);
+        assertEquals(first, presigner.presign(HttpMethod.GET, key, 60, now));
+        assertEquals(sdkUrl(s3Client, HttpMethod.GET, 60, now + 2000), presigner.presign(HttpMethod.GET, key, 60, now + 2000));
+        assertEquals(first, presigner.presign(HttpMethod.GET, key, 60, now));
+    }
+
+    @Test
+    public void presignPart_matchesSdk()
+    {
+        AmazonS3 s3Client = s3Client(sessionCredentials, "us-west-2", false);
+        S3Presigner presigner = presigner(sessionCredentials, s3Client, now);
+
+        // Upload ids aren't guaranteed to be URL safe
+        String uploadId = "VXBsb2FkIElE+for/6zmkuRTqg==";
+        for (int partNumber : new int[]{1, 2, 10000})
+        {
+            SdkClock.Instance.set(new SdkClock.MockClock(now));
+            GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, key)
+                .withMethod(HttpMethod.PUT)
+                .withExpiration(new Date(now + 900 * 1000));
+            request.addRequestParameter("partNumber", Integer.toString(partNumber));
+            request.addRequestParameter("uploadId", uploadId);
+
+            assertEquals(s3Client.generatePresignedUrl(request).toString(), presigner.presignPart(key, uploadId, partNumber, 900, now));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void presign_tooLong()
+    {
+        AmazonS3 s3Client = s3Client(credentials, "us-west-2", false);
+        presigner(credentials, s3Client, now).presign(HttpMethod.GET, key, 8 * 24 * 60 * 60);
+    }
+
+    private void assertMatchesSdk(AWSCredentialsProvider credentialsProvider, String region, boolean pathStyle, HttpMethod method, long expires)
+    {
+        AmazonS3 s3Client = s3Client(credentialsProvider, region, pathStyle);
+        S3Presigner presigner = presigner(credentialsProvider, s3Client, now);
+
+        assertEquals(sdkUrl(s3Client, method, expires, now), presigner.presign(method, key, expires));
+    }
+
+    private String sdkUrl(AmazonS3 s3Client, HttpMethod method, long expires, long timestamp)
+    {
+        SdkClock.Instance.set(new SdkClock.MockClock(timestamp));
+
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, key)
+            .withMethod(method)
+            .withExpiration(new Date(timestamp + expires * 1000));
+        return s3Client.generatePresignedUrl(request).toString();
+    }
+
+    private AmazonS3 s3Client(AWSCredentialsProvider credentialsProvider, String region, boolean pathStyle)
+    {
+        return AmazonS3ClientBuilder.standard()
+            .withCredentials(credentialsProvider)
+            .withRegion(region)
+            .withPathStyleAccessEnabled(pathStyle)
+            .build();
+    }
+
+    private S3Presigner presigner(AWSCredentialsProvider credentialsProvider, AmazonS3 s3Client, long timestamp)
+    {
+        Clock clock = Clock.fixed(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
+        return new S3Presigner(credentialsProvider, s3Client.getRegionName(), s3Client.getUrl(bucket, ""), clock);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.bwinant.assetuploader.impl;
+
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.AssetService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TimedAssetServiceTest
+{
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Mock
+    private AssetService delegate;
+
+    private TimedAssetService assetService;
+
+    @Before
+    public void setUp()
+    {
+        assetService = new TimedAssetService(delegate, meterRegistry);
+    }
+
+    @Test
+    public void getAsset() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        when(delegate.getAsset(assetId)).thenReturn(new Asset(assetId, uploaded));
+
+        assertEquals(new Asset(assetId, uploaded), assetService.getAsset(assetId));
+        assertEquals(1, count("getAsset"));
+        assertEquals(0, count("completeAsset"));
+    }
+
+    @Test
+    public void completeAsset_failuresAreTimed() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        doThrow(new AssetNotFoundException("Asset " + assetId + " not found")).when(delegate).completeAsset(assetId);
+
+        try
+        {
+            assetService.completeAsset(assetId);
+            fail("Expected AssetNotFoundException");
+        }
+        catch (AssetNotFoundException e)
+        {
+            // Expected
+        }
+        assertEquals(1, count("completeAsset"));
+    }
+
+    private long count(String method)
+    {
+        return meterRegistry.get("assets.service").tag("method", method).timer().count();
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.bwinant.assetuploader.reactive;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator;
+import com.github.bwinant.assetuploader.impl.AssetIdGenerator.IdType;
+import com.github.bwinant.assetuploader.impl.AssetServiceImpl.CompletionMode;
+import com.github.bwinant.assetuploader.impl.DownloadUrlCache;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import com.github.bwinant.assetuploader.reactive.R2dbcAssetRepository.Completion;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import reactor.core.publisher.Mono;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReactiveAssetServiceImplTest
+{
+    @Mock
+    private R2dbcAssetRepository repository;
+
+    @Mock
+    private ReactiveS3Client s3Client;
+
+    @Mock
+    private S3Presigner presigner;
+
+    @Mock
+    private DownloadUrlCache downloadUrlCache;
+
+    private ReactiveAssetServiceImpl assetService;
+
+    @Before
+    public void setUp()
+    {
+        assetService = new ReactiveAssetServiceImpl(repository, s3Client, presigner, downloadUrlCache, new AssetIdGenerator(IdType.time), CompletionMode.head);
+    }
+
+    @Test
+    public void getAsset()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(repository.findStatus(assetId)).thenReturn(Mono.just(uploaded));
+
+        Asset asset = assetService.getAsset(assetId).block();
+        assertEquals(new Asset(assetId, uploaded), asset);
+    }
+
+    @Test
+    public void getAsset_notFound()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(repository.findStatus(assetId)).thenReturn(Mono.empty());
+
+        assertTrue(errorOf(assetService.getAsset(assetId)) instanceof AssetNotFoundException);
+    }
+
+    @Test
+    public void createAssets()
+    {
+        when(repository.insertAll(anyList())).thenReturn(Mono.empty());
+
+        List<UUID> assetIds = assetService.createAssets(3).block();
+        assertEquals(3, assetIds.size());
+        verify(repository).insertAll(assetIds);
+    }
+
+    @Test
+    public void completeAsset()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(s3Client.doesObjectExist(assetId.toString())).thenReturn(Mono.just(true));
+        when(repository.complete(assetId)).thenReturn(Mono.just(Completion.completed));
+
+        assetService.completeAsset(assetId).block();
+        verify(repository).complete(assetId);
+    }
+
+    @Test
+    public void completeAsset_notUploaded()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(s3Client.doesObjectExist(assetId.toString())).thenReturn(Mono.just(false));
+
+        assertTrue(errorOf(assetService.completeAsset(assetId)) instanceof AssetNotFoundException);
+        verify(repository, never()).complete(any());
+    }
+
+    @Test
+    public void completeAsset_alreadyCompleted()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(s3Client.doesObjectExist(assetId.toString())).thenReturn(Mono.just(true));
+        when(repository.complete(assetId)).thenReturn(Mono.just(Completion.alreadyCompleted));
+
+        Throwable error = errorOf(assetService.completeAsset(assetId));
+        assertEquals(AssetAlreadyCompletedException.class, error.getClass());
+    }
+
+    @Test
+    public void completeAsset_eventsStored()
+    {
+        assetService = new ReactiveAssetServiceImpl(repository, s3Client, presigner, downloadUrlCache, new AssetIdGenerator(IdType.time), CompletionMode.events);
+
+        UUID assetId = UUID.randomUUID();
+        when(repository.findStatus(assetId)).thenReturn(Mono.just(stored));
+        when(repository.complete(assetId)).thenReturn(Mono.just(Completion.completed));
+
+        assetService.completeAsset(assetId).block();
+        verifyNoInteractions(s3Client);
+    }
+
+    @Test
+    public void completeAsset_eventsAlreadyUploaded()
+    {
+        assetService = new ReactiveAssetServiceImpl(repository, s3Client, presigner, downloadUrlCache, new AssetIdGenerator(IdType.time), CompletionMode.events);
+
+        UUID assetId = UUID.randomUUID();
+        when(repository.findStatus(assetId)).thenReturn(Mono.just(uploaded));
+
+        assertTrue(errorOf(assetService.completeAsset(assetId)) instanceof AssetAlreadyCompletedException);
+        verifyNoInteractions(s3Client);
+        verify(repository, never()).complete(any());
+    }
+
+    @Test
+    public void deleteAsset()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(repository.delete(assetId)).thenReturn(Mono.empty());
+
+        assetService.deleteAsset(assetId).block();
+        verify(repository).delete(assetId);
+    }
+
+    private static Throwable errorOf(Mono<?> mono)
+    {
+        // block() would wrap the checked AssetExceptions, so get hold of the error signal itself
+        return mono.then(Mono.<Throwable>empty()).onErrorResume(Mono::just).block();
+    }
+}
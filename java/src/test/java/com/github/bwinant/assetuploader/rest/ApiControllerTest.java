@@ -1,19 +1,30 @@
 package com.github.bwinant.assetuploader.rest;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import com.github.bwinant.assetuploader.Asset;
 import com.github.bwinant.assetuploader.AssetException;
 import com.github.bwinant.assetuploader.AssetNotFoundException;
 import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.DownloadUrl;
+import com.github.bwinant.assetuploader.MultipartUpload;
 import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.DownloadUrlResult;
+import com.github.bwinant.assetuploader.rest.ApiController.DownloadUrlsRequest;
 import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.MultipartCreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.Part;
 import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
 
 import static com.github.bwinant.assetuploader.Asset.Status.*;
 import static org.junit.Assert.*;
@@ -32,7 +43,7 @@ public class ApiControllerTest
     @Before
     public void setUp()
     {
-        apiController = new ApiController(assetService, timeout, timeout);
+        apiController = new ApiController(assetService, timeout, timeout, timeout, 10);
     }
 
     @Test
@@ -50,6 +61,47 @@ public class ApiControllerTest
         assertEquals(uploadUrl, result.getUploadUrl());
     }
 
+    @Test
+    public void createBatch() throws AssetException
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
+        List<String> uploadUrls = Arrays.asList("https://example.com/one", "https://example.com/two");
+
+        when(assetService.createAssets(2)).thenReturn(assetIds);
+        when(assetService.getUploadUrls(assetIds, timeout)).thenReturn(uploadUrls);
+
+        List<CreateResult> results = apiController.createBatch("2");
+        assertEquals(2, results.size());
+        assertEquals(assetIds.get(0), results.get(0).getId());
+        assertEquals(uploadUrls.get(0), results.get(0).getUploadUrl());
+        assertEquals(assetIds.get(1), results.get(1).getId());
+        assertEquals(uploadUrls.get(1), results.get(1).getUploadUrl());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createBatch_noCount() throws AssetException
+    {
+        apiController.createBatch(null);
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createBatch_nonNumericCount() throws AssetException
+    {
+        apiController.createBatch("abc123");
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createBatch_zeroCount() throws AssetException
+    {
+        apiController.createBatch("0");
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createBatch_tooLarge() throws AssetException
+    {
+        apiController.createBatch("11");
+    }
+
     @Test(expected = InvalidRequestException.class)
     public void complete_noPostBody() throws AssetException
     {
@@ -83,9 +135,81 @@ public class ApiControllerTest
         UUID assetId = UUID.randomUUID();
         UpdateRequest request = new UpdateRequest("uploaded");
 
-        when(assetService.getAsset(assetId)).thenReturn(new Asset(assetId, created));
+        apiController.complete(assetId, request);
+
+        verify(assetService).completeAsset(assetId);
+        verify(assetService, never()).getAsset(assetId);
+    }
+
+    @Test
+    public void complete_multipart() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+
+        // Parts can be listed in any order
+        UpdateRequest request = new UpdateRequest("uploaded", Arrays.asList(new Part(2, "etag-2"), new Part(1, "etag-1")));
 
         apiController.complete(assetId, request);
+
+        verify(assetService).completeMultipartAsset(assetId, Arrays.asList("etag-1", "etag-2"));
+        verify(assetService, never()).completeAsset(assetId);
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void complete_multipartMissingPart() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        UpdateRequest request = new UpdateRequest("uploaded", Arrays.asList(new Part(1, "etag-1"), new Part(3, "etag-3")));
+
+        apiController.complete(assetId, request);
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void complete_multipartDuplicatePart() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        UpdateRequest request = new UpdateRequest("uploaded", Arrays.asList(new Part(1, "etag-1"), new Part(1, "etag-1")));
+
+        apiController.complete(assetId, request);
+    }
+
+    @Test
+    public void createMultipart() throws AssetException
+    {
+        UUID assetId = UUID.randomUUID();
+        List<String> partUrls = Arrays.asList("https://example.com/1", "https://example.com/2");
+
+        when(assetService.createMultipartAsset(20000000, timeout)).thenReturn(new MultipartUpload(assetId, 16777216, partUrls));
+
+        MultipartCreateResult result = apiController.createMultipart("20000000");
+        assertEquals(assetId, result.getId());
+        assertEquals(16777216, result.getPartSize());
+        assertEquals(partUrls, result.getPartUrls());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createMultipart_invalidSize() throws AssetException
+    {
+        apiController.createMultipart("big");
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void createMultipart_emptyAsset() throws AssetException
+    {
+        apiController.createMultipart("0");
+    }
+
+    @Test
+    public void upload() throws AssetException, IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/asset/" + assetId + "/content");
+        request.setContent(new byte[10]);
+
+        apiController.upload(assetId, request);
+
+        verify(assetService).uploadAsset(assetId, request.getInputStream());
+        verify(assetService, never()).completeAsset(assetId);
     }
 
     @Test(expected = InvalidRequestException.class)
@@ -159,4 +283,54 @@ public class ApiControllerTest
         assertNotNull(result);
         assertEquals(downloadUrl, result.getDownloadUrl());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getDownloadUrls()
+    {
+        UUID uploadedId = UUID.randomUUID();
+        UUID createdId = UUID.randomUUID();
+        UUID missingId = UUID.randomUUID();
+        List<UUID> assetIds = Arrays.asList(uploadedId, createdId, missingId);
+
+        when(assetService.getDownloadUrls(assetIds, timeout)).thenReturn(Arrays.asList(
+            DownloadUrl.of(uploadedId, "https://example.com/something"),
+            DownloadUrl.failed(createdId, DownloadUrl.Error.notUploaded),
+            DownloadUrl.failed(missingId, DownloadUrl.Error.notFound)
+        ));
+
+        List<DownloadUrlResult> results = apiController.getDownloadUrls(
+            null, new DownloadUrlsRequest(Arrays.asList(uploadedId.toString(), createdId.toString(), missingId.toString())));
+        assertEquals(3, results.size());
+        assertEquals(uploadedId, results.get(0).getId());
+        assertEquals("https://example.com/something", results.get(0).getDownloadUrl());
+        assertNull(results.get(0).getError());
+        assertEquals(createdId, results.get(1).getId());
+        assertNull(results.get(1).getDownloadUrl());
+        assertEquals("not_uploaded", results.get(1).getError());
+        assertEquals(missingId, results.get(2).getId());
+        assertEquals("not_found", results.get(2).getError());
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void getDownloadUrls_invalidId()
+    {
+        apiController.getDownloadUrls(null, new DownloadUrlsRequest(Arrays.asList(UUID.randomUUID().toString(), "1")));
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void getDownloadUrls_noIds()
+    {
+        apiController.getDownloadUrls(null, new DownloadUrlsRequest(List.of()));
+    }
+
+    @Test(expected = InvalidRequestException.class)
+    public void getDownloadUrls_tooMany()
+    {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 11; i++)
+        {
+            ids.add(UUID.randomUUID().toString());
+        }
+        apiController.getDownloadUrls(null, new DownloadUrlsRequest(ids));
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.rest.ApiController.CreateResult;
+import com.github.bwinant.assetuploader.rest.ApiController.DownloadUrlResult;
+import com.github.bwinant.assetuploader.rest.ApiController.GetResult;
+import com.github.bwinant.assetuploader.rest.ApiController.UpdateRequest;
+import com.github.bwinant.assetuploader.rest.ExceptionControllerAdvice.ErrorResponse;
+import org.junit.Test;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import static org.junit.Assert.*;
+
+public class AssetJsonConverterTest
+{
+    // Everything Jackson escapes, and UTF-8 of every length
+    private static final String[] STRINGS = {
+        "https://bucket.s3.amazonaws.com/key?X-Amz-Signature=abc%2Fdef&X-Amz-Expires=900",
+        "",
+        "quote \" backslash \\ slash /",
+        "\b\t\n\f\r \u0000 \u0001 \u001f \u007f",
+        "café € 😀",
+        "unpaired \uD83D surrogate \uDE00"
+    };
+
+    private static final Type CREATE_RESULTS = new ParameterizedTypeReference<List<CreateResult>>() {}.getType();
+
+    private final AssetJsonConverter converter = new AssetJsonConverter();
+    private final MappingJackson2HttpMessageConverter jackson =
+        new MappingJackson2HttpMessageConverter(Jackson2ObjectMapperBuilder.json().build());
+
+    @Test
+    public void write_sameAsJackson() throws IOException
+    {
+        for (String value : STRINGS)
+        {
+            assertSameAsJackson(new CreateResult(UUID.randomUUID(), value), CreateResult.class);
+            assertSameAsJackson(new GetResult(value), GetResult.class);
+            assertSameAsJackson(new ErrorResponse(value), ErrorResponse.class);
+        }
+        assertSameAsJackson(new CreateResult(null, null), CreateResult.class);
+        assertSameAsJackson(new GetResult(null), GetResult.class);
+        assertSameAsJackson(new ErrorResponse(null), ErrorResponse.class);
+
+        assertSameAsJackson(Collections.emptyList(), CREATE_RESULTS);
+        assertSameAsJackson(Arrays.asList(new CreateResult(UUID.randomUUID(), STRINGS[0]),
+                                          new CreateResult(new UUID(0, 0), STRINGS[3]),
+                                          new CreateResult(new UUID(-1, -1), STRINGS[4])), CREATE_RESULTS);
+
+        // More than fits in a buffer
+        List<CreateResult> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            results.add(new CreateResult(UUID.randomUUID(), STRINGS[i % STRINGS.length]));
+        }
+        assertSameAsJackson(results, CREATE_RESULTS);
+    }
+
+    @Test
+    public void canWrite()
+    {
+        assertTrue(converter.canWrite(CREATE_RESULTS, List.class, MediaType.APPLICATION_JSON));
+        assertTrue(converter.canWrite(GetResult.class, GetResult.class, null));
+        assertFalse(converter.canWrite(GetResult.class, GetResult.class, MediaType.TEXT_PLAIN));
+
+        // Left to Jackson
+        Type downloadUrlResults = new ParameterizedTypeReference<List<DownloadUrlResult>>() {}.getType();
+        assertFalse(converter.canWrite(downloadUrlResults, List.class, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canWrite(List.class, List.class, MediaType.APPLICATION_JSON));
+        assertFalse(converter.canRead(CreateResult.class, ApiController.class, MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void read()
+    {
+        UpdateRequest request = read("{\"Status\": \"uploaded\"}");
+        assertEquals("uploaded", request.getStatus());
+        assertNull(request.getParts());
+
+        request = read("{\"unknown\": {\"Status\": [1]}, \"parts\": [{\"part_number\": 1, \"etag\": \"\\\"a\\\"\"}," +
+                       "{\"etag\": \"b\", \"part_number\": \"2\", \"size\": 5}, null], \"Status\": \"uploaded\"} trailing");
+        assertEquals("uploaded", request.getStatus());
+        assertEquals(3, request.getParts().size());
+        assertEquals(1, request.getParts().get(0).getPartNumber());
+        assertEquals("\"a\"", request.getParts().get(0).getEtag());
+        assertEquals(2, request.getParts().get(1).getPartNumber());
+        assertEquals("b", request.getParts().get(1).getEtag());
+        assertNull(request.getParts().get(2));
+
+        // Scalars are coerced like Jackson does
+        assertEquals("5", read("{\"Status\": 5}").getStatus());
+        assertEquals("true", read("{\"Status\": true}").getStatus());
+        assertNull(read("{\"Status\": null}").getStatus());
+        assertEquals(1, read("{\"parts\": [{\"part_number\": 1.5}]}").getParts().get(0).getPartNumber());
+
+        assertNull(read("null"));
+        assertNull(read(""));
+    }
+
+    @Test
+    public void read_invalid()
+    {
+        for (String body : new String[] {"[]", "{\"Status\": {}}", "{\"Status\": [\"uploaded\"]}", "{\"parts\": {}}",
+                                         "{\"parts\": \"a\"}", "{\"parts\": [{\"part_number\": \"x\"}]}", "{\"Status\": ",
+                                         "{Status: \"uploaded\"}"})
+        {
+            try
+            {
+                read(body);
+                fail(body);
+            }
+            catch (HttpMessageNotReadableException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private UpdateRequest read(String body)
+    {
+        try
+        {
+            MockHttpInputMessage input = new MockHttpInputMessage(body.getBytes(StandardCharsets.UTF_8));
+            return (UpdateRequest) converter.read(UpdateRequest.class, ApiController.class, input);
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void assertSameAsJackson(Object value, Type type) throws IOException
+    {
+        Class<?> clazz = value.getClass();
+        assertTrue(converter.canWrite(type, clazz, MediaType.APPLICATION_JSON));
+
+        MockHttpOutputMessage expected = new MockHttpOutputMessage();
+        jackson.write(value, type, MediaType.APPLICATION_JSON, expected);
+        MockHttpOutputMessage actual = new MockHttpOutputMessage();
+        converter.write(value, type, MediaType.APPLICATION_JSON, actual);
+
+        assertEquals(expected.getBodyAsString(StandardCharsets.UTF_8), actual.getBodyAsString(StandardCharsets.UTF_8));
+        assertArrayEquals(expected.getBodyAsBytes(), actual.getBodyAsBytes());
+        assertEquals(expected.getHeaders(), actual.getHeaders());
+    }
+}
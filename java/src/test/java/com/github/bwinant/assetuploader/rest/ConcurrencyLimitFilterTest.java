@@ -0,0 +1,75 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimitFilterTest
+{
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private ConcurrencyLimitFilter filter;
+
+    @Before
+    public void setUp()
+    {
+        // A fixed limit of 2, creates get 1 of it
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 2, 1.5, 0.5, 1_000_000_000L, System::nanoTime);
+        filter = new ConcurrencyLimitFilter(limiter, meterRegistry, 3);
+    }
+
+    @Test
+    public void rejectsOverLimit() throws Exception
+    {
+        MockHttpServletResponse[] inner = new MockHttpServletResponse[3];
+        MockHttpServletResponse outer = filter(new MockHttpServletRequest("GET", "/asset/" + UUID.randomUUID()), (req, res) -> {
+            // With one GET in flight there is room for another, but not for a create
+            inner[0] = filter(new MockHttpServletRequest("POST", "/asset"), (req2, res2) -> fail("Should have been rejected"));
+            inner[1] = filter(new MockHttpServletRequest("GET", "/asset/" + UUID.randomUUID()), (req2, res2) -> {
+                inner[2] = filter(new MockHttpServletRequest("PUT", "/asset/" + UUID.randomUUID()), (req3, res3) -> fail("Should have been rejected"));
+            });
+        });
+
+        assertEquals(200, outer.getStatus());
+        assertEquals(200, inner[1].getStatus());
+        for (MockHttpServletResponse response : new MockHttpServletResponse[]{inner[0], inner[2]})
+        {
+            assertEquals(503, response.getStatus());
+            assertEquals("3", response.getHeader("Retry-After"));
+            assertTrue(response.getContentAsString().contains("error"));
+        }
+        assertEquals(1, meterRegistry.get("assets.limit.rejected").tag("endpoint", "create").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("assets.limit.rejected").tag("endpoint", "complete").counter().count(), 0);
+        assertEquals(0, meterRegistry.get("assets.limit.inflight").gauge().value(), 0);
+    }
+
+    @Test
+    public void contentIsNotLimited() throws Exception
+    {
+        String content = "/asset/" + UUID.randomUUID() + "/content";
+        MockHttpServletResponse outer = filter(new MockHttpServletRequest("PUT", content), (req, res) -> {
+            filter(new MockHttpServletRequest("GET", content), (req2, res2) -> {
+                filter(new MockHttpServletRequest("PUT", content), (req3, res3) -> res3.getWriter().write("ok"));
+            });
+        });
+        assertEquals(200, outer.getStatus());
+        assertEquals(0, meterRegistry.get("assets.limit.inflight").gauge().value(), 0);
+    }
+
+    private MockHttpServletResponse filter(MockHttpServletRequest request, FilterChain chain) throws ServletException, IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+}
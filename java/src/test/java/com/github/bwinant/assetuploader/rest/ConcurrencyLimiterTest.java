@@ -0,0 +1,114 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.bwinant.assetuploader.rest.ConcurrencyLimiter.Endpoint;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest
+{
+    private final long window = TimeUnit.MILLISECONDS.toNanos(100);
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void tryAcquire()
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 100, 1.5, 0.5, window, now::get);
+        Endpoint get = limiter.endpoint("get", false);
+        Endpoint create = limiter.endpoint("create", true);
+
+        // Low priority only gets half of the limit
+        assertTrue(limiter.tryAcquire(create));
+        assertTrue(limiter.tryAcquire(create));
+        assertFalse(limiter.tryAcquire(create));
+        assertTrue(limiter.tryAcquire(get));
+        assertTrue(limiter.tryAcquire(get));
+        assertFalse(limiter.tryAcquire(get));
+        assertEquals(4, limiter.getInFlight());
+
+        limiter.release(get, 1000);
+        assertTrue(limiter.tryAcquire(get));
+        limiter.release(create, 1000);
+        assertFalse(limiter.tryAcquire(create));
+    }
+
+    @Test
+    public void grows_whenBusy()
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 10, 100, 1.5, 0.75, window, now::get);
+        Endpoint get = limiter.endpoint("get", false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            window(limiter, get, 20, 10);
+        }
+        assertTrue(limiter.getLimit() > 20);
+    }
+
+    @Test
+    public void doesNotGrow_whenIdle()
+    {
+        // Never more than 10 in flight, a limit of 100 isn't what's holding anything back
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(100, 10, 1000, 1.5, 0.75, window, now::get);
+        Endpoint get = limiter.endpoint("get", false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            window(limiter, get, 10, 10);
+        }
+        assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    public void shrinks_whenSlow()
+    {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(40, 10, 100, 1.5, 0.75, window, now::get);
+        Endpoint get = limiter.endpoint("get", false);
+        Endpoint complete = limiter.endpoint("complete", false);
+
+        for (int i = 0; i < 5; i++)
+        {
+            window(limiter, get, 20, 1);
+            window(limiter, complete, 20, 10);
+        }
+        int limit = limiter.getLimit();
+
+        // One endpoint slowing down is enough, even if the other is as fast as ever
+        for (int i = 0; i < 5; i++)
+        {
+            window(limiter, get, 10, 1);
+            window(limiter, complete, 10, 40);
+        }
+        assertTrue(limiter.getLimit() < limit);
+
+        // Never below the minimum
+        for (int i = 0; i < 50; i++)
+        {
+            window(limiter, complete, 10, 400);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    /**
+     * Runs a window with concurrency requests in flight at once that all take latencyMillis
+     */
+    private void window(ConcurrencyLimiter limiter, Endpoint endpoint, int concurrency, long latencyMillis)
+    {
+        long latency = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        for (int i = 0; i < concurrency; i++)
+        {
+            assertTrue(limiter.tryAcquire(endpoint));
+        }
+        for (int i = 0; i < concurrency - 1; i++)
+        {
+            limiter.release(endpoint, latency);
+        }
+
+        // The last one ends the window
+        now.addAndGet(window);
+        limiter.release(endpoint, latency);
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import jakarta.servlet.ServletOutputStream;
+
+import com.github.bwinant.assetuploader.storage.FileSystemStorage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import static org.junit.Assert.*;
+
+public class ContentControllerTest
+{
+    private final byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystemStorage storage;
+    private ContentController controller;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        storage = new FileSystemStorage(folder.getRoot().getPath(), "http://localhost:8080", "0123456789abcdef0123456789abcdef", 1024);
+        controller = new ContentController(storage, false);
+    }
+
+    @Test
+    public void upload() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        UriComponents url = url(storage.getUploadUrl(key, 60, System.currentTimeMillis()));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", url.getPath());
+        request.setContent(contents);
+
+        assertEquals(200, upload(key, url, request));
+        assertTrue(storage.exists(key));
+    }
+
+    @Test
+    public void upload_forbidden() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+
+        // Download URLs can't be used to upload
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", url.getPath());
+        request.setContent(contents);
+
+        assertEquals(403, upload(key, url, request));
+        assertFalse(storage.exists(key));
+    }
+
+    @Test
+    public void upload_tooLarge() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        UriComponents url = url(storage.getUploadUrl(key, 60, System.currentTimeMillis()));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", url.getPath());
+        request.setContent(new byte[2048]);
+
+        assertEquals(413, upload(key, url, request));
+        assertFalse(storage.exists(key));
+    }
+
+    @Test
+    public void download() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(contents));
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+
+        MockHttpServletResponse response = download(key, url);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(contents.length, response.getContentLengthLong());
+        assertArrayEquals(contents, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void download_replacedWhileSending() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(contents));
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+
+        // Uploaded again after Content-Length was set, right before the body goes out
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        {
+            @Override
+            public ServletOutputStream getOutputStream()
+            {
+                try
+                {
+                    storage.write(key, new ByteArrayInputStream(new byte[100]));
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                return super.getOutputStream();
+            }
+        };
+        controller.download(key, url.getQueryParams().getFirst("Expires"), url.getQueryParams().getFirst("Signature"), get(key), response);
+
+        // The version we started with, matching the Content-Length
+        assertEquals(200, response.getStatus());
+        assertEquals(contents.length, response.getContentLengthLong());
+        assertArrayEquals(contents, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void download_sendfile() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(contents));
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+
+        MockHttpServletRequest request = get(key);
+        request.setAttribute(FileResponses.SENDFILE_SUPPORT, true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.download(key, url.getQueryParams().getFirst("Expires"), url.getQueryParams().getFirst("Signature"), request, response);
+
+        // Left to Tomcat
+        assertEquals(200, response.getStatus());
+        assertEquals(contents.length, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(0L, request.getAttribute(FileResponses.SENDFILE_START));
+        assertEquals((long) contents.length, request.getAttribute(FileResponses.SENDFILE_END));
+
+        // Which opens it by name later on, when the object may have been replaced
+        Path file = Paths.get((String) request.getAttribute(FileResponses.SENDFILE_FILENAME));
+        assertNotEquals(storage.resolve(key), file);
+        storage.write(key, new ByteArrayInputStream(new byte[100]));
+        assertArrayEquals(contents, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void download_sendfileSecure() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(contents));
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+
+        // Tomcat would copy it through its TLS buffers anyway
+        MockHttpServletRequest request = get(key);
+        request.setAttribute(FileResponses.SENDFILE_SUPPORT, true);
+        request.setSecure(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.download(key, url.getQueryParams().getFirst("Expires"), url.getQueryParams().getFirst("Signature"), request, response);
+
+        assertNull(request.getAttribute(FileResponses.SENDFILE_FILENAME));
+        assertArrayEquals(contents, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void download_notFound() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        UriComponents url = url(storage.getDownloadUrl(key, 60));
+
+        assertEquals(404, download(key, url).getStatus());
+    }
+
+    @Test
+    public void download_forbidden() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(contents));
+
+        // Signed for another object
+        UriComponents url = url(storage.getDownloadUrl(UUID.randomUUID().toString(), 60));
+        MockHttpServletResponse response = download(key, url);
+
+        assertEquals(403, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    private int upload(String key, UriComponents url, MockHttpServletRequest request) throws IOException
+    {
+        return controller.upload(key, url.getQueryParams().getFirst("Expires"), url.getQueryParams().getFirst("Signature"), request)
+            .getStatusCode().value();
+    }
+
+    private MockHttpServletResponse download(String key, UriComponents url) throws IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.download(key, url.getQueryParams().getFirst("Expires"), url.getQueryParams().getFirst("Signature"), get(key), response);
+        return response;
+    }
+
+    private static MockHttpServletRequest get(String key)
+    {
+        return new MockHttpServletRequest("GET", "/content/" + key);
+    }
+
+    private static UriComponents url(String url)
+    {
+        return UriComponentsBuilder.fromUri(URI.create(url)).build();
+    }
+}
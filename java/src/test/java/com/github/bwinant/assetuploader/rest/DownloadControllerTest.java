@@ -0,0 +1,236 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+
+import jakarta.servlet.ServletOutputStream;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.AssetService;
+import com.github.bwinant.assetuploader.impl.ContentCache;
+import com.github.bwinant.assetuploader.storage.AssetStorage;
+import com.github.bwinant.assetuploader.storage.StoredObject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DownloadControllerTest
+{
+    private final byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+    private final UUID assetId = UUID.randomUUID();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private AssetService assetService;
+
+    @Mock
+    private AssetStorage storage;
+
+    private DownloadController controller;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        ContentCache contentCache = new ContentCache(storage, new SimpleMeterRegistry(), folder.getRoot().getPath(), 1024 * 1024);
+        controller = new DownloadController(assetService, contentCache, false);
+    }
+
+    @Test
+    public void download() throws Exception
+    {
+        uploaded();
+
+        MockHttpServletResponse response = download(get());
+
+        assertEquals(200, response.getStatus());
+        assertEquals("\"etag\"", response.getHeader("ETag"));
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertArrayEquals(contents, response.getContentAsByteArray());
+
+        // Served from the cache from now on
+        download(get());
+        verify(storage, times(1)).read(assetId.toString());
+    }
+
+    @Test
+    public void download_deletedWhileSending() throws Exception
+    {
+        uploaded();
+
+        // Evicted and deleted after the headers went out, right before the body does
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        {
+            @Override
+            public ServletOutputStream getOutputStream()
+            {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.getRoot().toPath()))
+                {
+                    for (Path file : files)
+                    {
+                        if (Files.isRegularFile(file))
+                        {
+                            Files.delete(file);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                return super.getOutputStream();
+            }
+        };
+        controller.download(assetId, get(), response);
+
+        // Still sent in full from the file we had open
+        assertEquals(200, response.getStatus());
+        assertEquals(contents.length, response.getContentLengthLong());
+        assertArrayEquals(contents, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void download_sendfile() throws Exception
+    {
+        uploaded();
+
+        MockHttpServletRequest request = get();
+        request.setAttribute(FileResponses.SENDFILE_SUPPORT, true);
+        request.addHeader("Range", "bytes=6-");
+        MockHttpServletResponse response = download(request);
+
+        // Left to Tomcat
+        assertEquals(206, response.getStatus());
+        assertEquals(5, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(6L, request.getAttribute(FileResponses.SENDFILE_START));
+        assertEquals(11L, request.getAttribute(FileResponses.SENDFILE_END));
+
+        // Which opens it by name later on, when the cached file may have been evicted
+        Path file = Paths.get((String) request.getAttribute(FileResponses.SENDFILE_FILENAME));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.getRoot().toPath(), "*.content"))
+        {
+            for (Path cached : files)
+            {
+                Files.delete(cached);
+            }
+        }
+        assertArrayEquals(contents, Files.readAllBytes(file));
+    }
+
+    @Test
+    public void download_notModified() throws Exception
+    {
+        uploaded();
+
+        MockHttpServletRequest request = get();
+        request.addHeader("If-None-Match", "\"etag\"");
+        MockHttpServletResponse response = download(request);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void download_range() throws Exception
+    {
+        uploaded();
+
+        MockHttpServletRequest request = get();
+        request.addHeader("Range", "bytes=0-4");
+        MockHttpServletResponse response = download(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 0-4/11", response.getHeader("Content-Range"));
+        assertEquals(5, response.getContentLengthLong());
+        assertEquals("Hello", response.getContentAsString());
+
+        // The last 5
+        request = get();
+        request.addHeader("Range", "bytes=-5");
+        response = download(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 6-10/11", response.getHeader("Content-Range"));
+        assertEquals("world", response.getContentAsString());
+    }
+
+    @Test
+    public void download_rangeOfOtherVersion() throws Exception
+    {
+        uploaded();
+
+        MockHttpServletRequest request = get();
+        request.addHeader("Range", "bytes=0-4");
+        request.addHeader("If-Range", "\"other\"");
+        MockHttpServletResponse response = download(request);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(contents, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void download_rangeNotSatisfiable() throws Exception
+    {
+        uploaded();
+
+        for (String range : new String[] { "bytes=11-", "bytes=5-2", "lines=1-2" })
+        {
+            MockHttpServletRequest request = get();
+            request.addHeader("Range", range);
+            MockHttpServletResponse response = download(request);
+
+            assertEquals(range, 416, response.getStatus());
+            assertEquals("bytes */11", response.getHeader("Content-Range"));
+            assertEquals(0, response.getContentAsByteArray().length);
+        }
+    }
+
+    @Test(expected = AssetNotFoundException.class)
+    public void download_notUploaded() throws Exception
+    {
+        when(assetService.getAsset(assetId)).thenReturn(new Asset(assetId, created));
+
+        download(get());
+    }
+
+    private void uploaded() throws AssetException, IOException
+    {
+        when(assetService.getAsset(assetId)).thenReturn(new Asset(assetId, uploaded));
+        when(storage.read(assetId.toString())).thenAnswer(invocation -> new StoredObject(new ByteArrayInputStream(contents), contents.length, "etag"));
+    }
+
+    private MockHttpServletRequest get()
+    {
+        return new MockHttpServletRequest("GET", "/asset/" + assetId + "/content");
+    }
+
+    private MockHttpServletResponse download(MockHttpServletRequest request) throws AssetException, IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.download(assetId, request, response);
+        return response;
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.MultipartUnsupportedException;
+import com.github.bwinant.assetuploader.rest.ExceptionControllerAdvice.ErrorResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.junit.Assert.*;
+
+public class ExceptionControllerAdviceTest
+{
+    @Test
+    public void clientErrors()
+    {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ExceptionControllerAdvice advice = new ExceptionControllerAdvice(new LogRateLimiter(1, System::nanoTime), meterRegistry);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/asset/x");
+
+        UUID assetId = UUID.randomUUID();
+        AssetNotFoundException notFound = AssetNotFoundException.of(assetId);
+        assertEquals(0, notFound.getStackTrace().length);
+        for (int i = 0; i < 3; i++)
+        {
+            ResponseEntity<ErrorResponse> response = advice.assetNotFound(request, notFound);
+            assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+            assertEquals("Asset " + assetId + " not found", response.getBody().getMessage());
+        }
+
+        ResponseEntity<ErrorResponse> response = advice.invalidRequest(request, new InvalidRequestException("Invalid count"));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+        assertEquals("Invalid count", response.getBody().getMessage());
+
+        response = advice.assetAlreadyCompleted(request, AssetAlreadyCompletedException.of(assetId));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
+        assertEquals("Upload of asset " + assetId + " is already completed", response.getBody().getMessage());
+
+        response = advice.multipartUnsupported(request, new MultipartUnsupportedException("Multipart uploads are only supported with S3 storage"));
+        assertEquals(HttpStatus.NOT_IMPLEMENTED, response.getStatusCode());
+
+        // Counted whether they were logged or not
+        assertEquals(3, meterRegistry.get("assets.client.errors").tag("error", "not_found").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("assets.client.errors").tag("error", "invalid_request").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("assets.client.errors").tag("error", "already_completed").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("assets.client.errors").tag("error", "unsupported").counter().count(), 0);
+        assertEquals(0, meterRegistry.get("assets.client.errors").tag("error", "too_large").counter().count(), 0);
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogRateLimiterTest
+{
+    private final AtomicLong now = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(100));
+
+    @Test
+    public void tryAcquire()
+    {
+        LogRateLimiter limiter = new LogRateLimiter(2, now::get);
+
+        assertEquals(0, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+        assertEquals(-1, limiter.tryAcquire());
+        assertEquals(-1, limiter.tryAcquire());
+        assertEquals(-1, limiter.tryAcquire());
+
+        // The first line in the next second reports what was held back
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(3, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+        assertEquals(-1, limiter.tryAcquire());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.AssetAlreadyCompletedException;
+import com.github.bwinant.assetuploader.AssetNotFoundException;
+import com.github.bwinant.assetuploader.ReactiveAssetService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.MediaType.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReactiveApiHandlerTest
+{
+    private final int timeout = 60;
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Mock
+    private ReactiveAssetService assetService;
+
+    private WebTestClient client;
+
+    @Before
+    public void setUp()
+    {
+        ReactiveApiHandler handler = new ReactiveApiHandler(assetService, new LogRateLimiter(1, System::nanoTime), meterRegistry, timeout, timeout, 10);
+        client = WebTestClient.bindToRouterFunction(new ReactiveApiRouter().assetRoutes(handler)).build();
+    }
+
+    @Test
+    public void create()
+    {
+        UUID assetId = UUID.randomUUID();
+        String uploadUrl = "https://example.com/something";
+
+        when(assetService.createAsset()).thenReturn(Mono.just(assetId));
+        when(assetService.getUploadUrl(assetId, timeout)).thenReturn(uploadUrl);
+
+        client.post().uri("/asset").exchange()
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("$.id").isEqualTo(assetId.toString())
+            .jsonPath("$.upload_url").isEqualTo(uploadUrl);
+    }
+
+    @Test
+    public void createBatch()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID());
+        List<String> uploadUrls = Arrays.asList("https://example.com/one", "https://example.com/two");
+
+        when(assetService.createAssets(2)).thenReturn(Mono.just(assetIds));
+        when(assetService.getUploadUrls(assetIds, timeout)).thenReturn(uploadUrls);
+
+        client.post().uri("/asset/batch?count=2").exchange()
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("$.length()").isEqualTo(2)
+            .jsonPath("$[1].id").isEqualTo(assetIds.get(1).toString())
+            .jsonPath("$[1].upload_url").isEqualTo(uploadUrls.get(1));
+    }
+
+    @Test
+    public void createBatch_tooLarge()
+    {
+        client.post().uri("/asset/batch?count=11").exchange()
+            .expectStatus().is5xxServerError()
+            .expectBody().jsonPath("$.error").isEqualTo("Invalid count");
+
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void complete()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(assetService.completeAsset(assetId)).thenReturn(Mono.empty());
+
+        client.put().uri("/asset/" + assetId).contentType(APPLICATION_JSON).bodyValue("{\"Status\": \"uploaded\"}").exchange()
+            .expectStatus().isOk();
+
+        verify(assetService).completeAsset(assetId);
+    }
+
+    @Test
+    public void complete_noPostBody()
+    {
+        client.put().uri("/asset/" + UUID.randomUUID()).contentType(APPLICATION_JSON).exchange()
+            .expectStatus().is5xxServerError()
+            .expectBody().jsonPath("$.error").isEqualTo("Invalid request");
+
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void complete_invalidStatus()
+    {
+        client.put().uri("/asset/" + UUID.randomUUID()).contentType(APPLICATION_JSON).bodyValue("{\"Status\": \"created\"}").exchange()
+            .expectStatus().is5xxServerError()
+            .expectBody().jsonPath("$.error").isEqualTo("Invalid request");
+
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void complete_notFound()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(assetService.completeAsset(assetId)).thenReturn(Mono.error(AssetNotFoundException.of(assetId)));
+
+        client.put().uri("/asset/" + assetId).contentType(APPLICATION_JSON).bodyValue("{\"Status\": \"uploaded\"}").exchange()
+            .expectStatus().isNotFound()
+            .expectBody().jsonPath("$.error").isEqualTo("Asset " + assetId + " not found");
+
+        // A client error like in ExceptionControllerAdvice
+        assertEquals(1, meterRegistry.get("assets.client.errors").tag("error", "not_found").counter().count(), 0);
+    }
+
+    @Test
+    public void complete_alreadyCompleted()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(assetService.completeAsset(assetId)).thenReturn(Mono.error(AssetAlreadyCompletedException.of(assetId)));
+
+        client.put().uri("/asset/" + assetId).contentType(APPLICATION_JSON).bodyValue("{\"Status\": \"uploaded\"}").exchange()
+            .expectStatus().is5xxServerError()
+            .expectBody().jsonPath("$.error").isEqualTo("Upload of asset " + assetId + " is already completed");
+
+        assertEquals(1, meterRegistry.get("assets.client.errors").tag("error", "already_completed").counter().count(), 0);
+    }
+
+    @Test
+    public void get()
+    {
+        UUID assetId = UUID.randomUUID();
+        String downloadUrl = "https://example.com/something";
+
+        when(assetService.getAsset(assetId)).thenReturn(Mono.just(new Asset(assetId, uploaded)));
+        when(assetService.getDownloadUrl(assetId, 30)).thenReturn(downloadUrl);
+
+        client.get().uri("/asset/" + assetId + "?timeout=30").exchange()
+            .expectStatus().isOk()
+            .expectBody().jsonPath("$.Download_url").isEqualTo(downloadUrl);
+    }
+
+    @Test
+    public void get_invalidTimeout()
+    {
+        client.get().uri("/asset/" + UUID.randomUUID() + "?timeout=abc").exchange()
+            .expectStatus().is5xxServerError()
+            .expectBody().jsonPath("$.error").isEqualTo("Invalid timeout");
+
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void get_assetNotUploaded()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(assetService.getAsset(assetId)).thenReturn(Mono.just(new Asset(assetId, created)));
+
+        client.get().uri("/asset/" + assetId).exchange()
+            .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void get_invalidAssetId()
+    {
+        client.get().uri("/asset/nope").exchange()
+            .expectStatus().is5xxServerError();
+
+        verifyNoInteractions(assetService);
+    }
+
+    @Test
+    public void delete()
+    {
+        UUID assetId = UUID.randomUUID();
+        when(assetService.deleteAsset(assetId)).thenReturn(Mono.empty());
+
+        client.delete().uri("/asset/" + assetId).exchange()
+            .expectStatus().isOk();
+
+        verify(assetService).deleteAsset(assetId);
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.bwinant.assetuploader.rest;
+
+import java.io.IOException;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+
+import com.github.bwinant.assetuploader.impl.RequestTrace;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.*;
+
+public class RequestTraceFilterTest
+{
+    private final LogRateLimiter slowLog = new LogRateLimiter(10, System::nanoTime);
+
+    @Test
+    public void serverTiming() throws Exception
+    {
+        RequestTraceFilter filter = new RequestTraceFilter(1, 0, slowLog);
+
+        MockHttpServletResponse response = filter(filter, new MockHttpServletRequest("PUT", "/asset/x"), (req, res) -> {
+            RequestTrace.span("db.get", 0, 1_500_000);
+            RequestTrace.span("storage.exists", 0, 23_170_000);
+            RequestTrace.span("db.complete", 0, 1_032_000);
+            res.getOutputStream().write('{');
+
+            // After the headers went out
+            RequestTrace.span("json.write", 0, 20_000);
+        });
+
+        String serverTiming = response.getHeader(RequestTraceFilter.SERVER_TIMING);
+        assertTrue(serverTiming, serverTiming.matches(
+            "db\\.get;dur=1\\.500, storage\\.exists;dur=23\\.170, db\\.complete;dur=1\\.032, total;dur=\\d+\\.\\d{3}"));
+    }
+
+    @Test
+    public void noBody() throws Exception
+    {
+        RequestTraceFilter filter = new RequestTraceFilter(1, 500, slowLog);
+
+        MockHttpServletResponse response = filter(filter, new MockHttpServletRequest("PUT", "/asset/x"), (req, res) -> {
+            RequestTrace.span("db.complete", 0, 5_000);
+        });
+        assertTrue(response.getHeader(RequestTraceFilter.SERVER_TIMING).startsWith("db.complete;dur=0.005, total;dur="));
+    }
+
+    @Test
+    public void notTraced() throws Exception
+    {
+        FilterChain chain = (req, res) -> res.getWriter().write("{}");
+
+        // Not sampled
+        RequestTraceFilter filter = new RequestTraceFilter(0, 0, slowLog);
+        assertNull(filter(filter, new MockHttpServletRequest("GET", "/asset/x"), chain).getHeader(RequestTraceFilter.SERVER_TIMING));
+
+        // Not the API
+        filter = new RequestTraceFilter(1, 0, slowLog);
+        assertNull(filter(filter, new MockHttpServletRequest("GET", "/actuator/prometheus"), chain).getHeader(RequestTraceFilter.SERVER_TIMING));
+    }
+
+    private static MockHttpServletResponse filter(RequestTraceFilter filter, MockHttpServletRequest request, FilterChain chain)
+        throws ServletException, IOException
+    {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+}
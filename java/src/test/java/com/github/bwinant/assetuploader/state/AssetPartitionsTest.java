@@ -0,0 +1,97 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.sql.ResultSet;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AssetPartitionsTest
+{
+    private final Clock clock = Clock.fixed(Instant.parse("2026-10-18T12:00:00Z"), ZoneOffset.UTC);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private ResultSet resultSet;
+
+    private AssetPartitions partitions;
+
+    @Before
+    public void setUp()
+    {
+        partitions = new AssetPartitions(jdbcTemplate, new TransactionTemplate(), meterRegistry, 90, 2, clock);
+    }
+
+    @Test
+    public void maintain() throws Exception
+    {
+        // One expired partition still attached, one left detached, today's and tomorrow's
+        when(resultSet.getString("relname")).thenReturn("assets_p20260701", "assets_p20260702", "assets_p20261018", "assets_p20261019");
+        when(resultSet.getBoolean("relispartition")).thenReturn(true, false, true, true);
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (int i = 0; i < 4; i++)
+            {
+                handler.processRow(resultSet);
+            }
+            return null;
+        }).when(jdbcTemplate).query(startsWith("SELECT relname"), any(RowCallbackHandler.class));
+
+        partitions.maintain();
+
+        verify(jdbcTemplate).execute(
+            "CREATE TABLE IF NOT EXISTS assets_p20261020 PARTITION OF assets FOR VALUES FROM ('2026-10-20 00:00:00+00') TO ('2026-10-21 00:00:00+00')");
+        verify(jdbcTemplate).execute("ALTER TABLE assets DETACH PARTITION assets_p20260701 CONCURRENTLY");
+        verify(jdbcTemplate).execute("DROP TABLE IF EXISTS assets_p20260701");
+        verify(jdbcTemplate).execute("DROP TABLE IF EXISTS assets_p20260702");
+        verify(jdbcTemplate).query(startsWith("SELECT relname"), any(RowCallbackHandler.class));
+        verifyNoMoreInteractions(jdbcTemplate);
+        assertEquals(2, meterRegistry.get("assets.partitions.dropped").counter().count(), 0);
+    }
+
+    @Test
+    public void maintain_retentionBoundary()
+    {
+        // Holds 2026-07-19 until 2026-07-20, exactly 90 days before today
+        partitions = new AssetPartitions(jdbcTemplate, new TransactionTemplate(), meterRegistry, 90, 0, clock);
+        doAnswer(invocation -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.getString("relname")).thenReturn("assets_p20261018");
+            when(rs.getBoolean("relispartition")).thenReturn(true);
+            ((RowCallbackHandler) invocation.getArgument(1)).processRow(rs);
+
+            ResultSet expired = mock(ResultSet.class);
+            when(expired.getString("relname")).thenReturn("assets_p20260719");
+            when(expired.getBoolean("relispartition")).thenReturn(true);
+            ((RowCallbackHandler) invocation.getArgument(1)).processRow(expired);
+
+            ResultSet kept = mock(ResultSet.class);
+            when(kept.getString("relname")).thenReturn("assets_p20260720");
+            when(kept.getBoolean("relispartition")).thenReturn(true);
+            ((RowCallbackHandler) invocation.getArgument(1)).processRow(kept);
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class));
+
+        partitions.maintain();
+
+        verify(jdbcTemplate).execute("DROP TABLE IF EXISTS assets_p20260719");
+        verify(jdbcTemplate, never()).execute("DROP TABLE IF EXISTS assets_p20260720");
+    }
+}
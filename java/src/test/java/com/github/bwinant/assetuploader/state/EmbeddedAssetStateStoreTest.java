@@ -0,0 +1,376 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.github.bwinant.assetuploader.Asset;
+import com.github.bwinant.assetuploader.Asset.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.dao.DuplicateKeyException;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedAssetStateStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private Path dir;
+    private EmbeddedAssetStateStore stateStore;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = folder.getRoot().toPath().resolve("state");
+        stateStore = open(0);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        stateStore.close();
+    }
+
+    @Test
+    public void create()
+    {
+        UUID assetId = UUID.randomUUID();
+        assertNull(stateStore.getAsset(assetId));
+
+        stateStore.create(assetId);
+        assertEquals(new Asset(assetId, Status.created), stateStore.getAsset(assetId));
+        assertNull(stateStore.getState(assetId).getUploadId());
+    }
+
+    @Test(expected = DuplicateKeyException.class)
+    public void create_duplicate()
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+        stateStore.create(assetId);
+    }
+
+    @Test
+    public void createMultipart()
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.createMultipart(assetId, "upload-1");
+        assertEquals("upload-1", stateStore.getState(assetId).getUploadId());
+
+        // Completing forgets the upload id
+        assertEquals(Completion.completed, stateStore.complete(assetId));
+        AssetState state = stateStore.getState(assetId);
+        assertEquals(Status.uploaded, state.getStatus());
+        assertNull(state.getUploadId());
+    }
+
+    @Test
+    public void getAssets()
+    {
+        UUID createdId = UUID.randomUUID();
+        UUID deletedId = UUID.randomUUID();
+        stateStore.create(createdId);
+        stateStore.create(deletedId);
+        stateStore.delete(deletedId);
+
+        // Missing and deleted ones are left out
+        assertEquals(List.of(new Asset(createdId, Status.created)),
+                     stateStore.getAssets(List.of(createdId, deletedId, UUID.randomUUID())));
+    }
+
+    @Test
+    public void complete()
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+
+        assertEquals(Completion.completed, stateStore.complete(assetId));
+        assertEquals(Completion.alreadyCompleted, stateStore.complete(assetId));
+        assertEquals(Status.uploaded, stateStore.getAsset(assetId).getStatus());
+
+        assertEquals(Completion.notFound, stateStore.complete(UUID.randomUUID()));
+        stateStore.delete(assetId);
+        assertEquals(Completion.notFound, stateStore.complete(assetId));
+    }
+
+    @Test
+    public void completeAll()
+    {
+        List<UUID> assetIds = Arrays.asList(UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID());
+        stateStore.createAll(assetIds);
+        stateStore.complete(assetIds.get(0));
+
+        assertEquals(2, stateStore.completeAll(assetIds));
+        assertEquals(Status.uploaded, stateStore.getAsset(assetIds.get(0)).getStatus());
+        assertEquals(Status.stored, stateStore.getAsset(assetIds.get(1)).getStatus());
+
+        // Still up to the client to complete them
+        assertEquals(Completion.completed, stateStore.complete(assetIds.get(1)));
+        assertEquals(Status.uploaded, stateStore.getAsset(assetIds.get(1)).getStatus());
+        assertEquals(0, stateStore.completeAll(assetIds));
+    }
+
+    @Test
+    public void delete()
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+
+        stateStore.delete(assetId);
+        stateStore.delete(assetId);
+        assertNull(stateStore.getAsset(assetId));
+        assertNull(stateStore.getState(assetId));
+        assertEquals(1, stateStore.countDeleted());
+    }
+
+    @Test
+    public void deleteAbandoned()
+    {
+        UUID abandoned1 = UUID.randomUUID();
+        UUID abandoned2 = UUID.randomUUID();
+        UUID completed = UUID.randomUUID();
+        stateStore.create(abandoned1);
+        now.addAndGet(1000);
+        stateStore.create(abandoned2);
+        stateStore.create(completed);
+        stateStore.complete(completed);
+        now.addAndGet(1000);
+        UUID recent = UUID.randomUUID();
+        stateStore.create(recent);
+        now.addAndGet(500);
+
+        // Oldest first, and only those older than a second
+        assertEquals(1, stateStore.deleteAbandoned(1, 1));
+        assertNull(stateStore.getAsset(abandoned1));
+        assertNotNull(stateStore.getAsset(abandoned2));
+
+        assertEquals(1, stateStore.deleteAbandoned(1, 10));
+        assertNull(stateStore.getAsset(abandoned2));
+        assertNotNull(stateStore.getAsset(completed));
+        assertNotNull(stateStore.getAsset(recent));
+        assertEquals(2, stateStore.countDeleted());
+    }
+
+    @Test
+    public void purgeDeleted()
+    {
+        UUID assetId1 = UUID.randomUUID();
+        UUID assetId2 = UUID.randomUUID();
+        UUID assetId3 = UUID.randomUUID();
+        stateStore.createMultipart(assetId1, "upload-1");
+        stateStore.create(assetId2);
+        stateStore.create(assetId3);
+        stateStore.delete(assetId1);
+        now.incrementAndGet();
+        stateStore.delete(assetId2);
+        now.incrementAndGet();
+        stateStore.delete(assetId3);
+        now.incrementAndGet();
+
+        List<AssetState> cleaned = new ArrayList<>();
+        assertEquals(1, stateStore.purgeDeleted(2, tombstones -> {
+            cleaned.addAll(tombstones);
+            return Collections.singleton(assetId2);
+        }));
+
+        // Oldest first, with the upload id to abort
+        assertEquals(2, cleaned.size());
+        assertEquals(assetId1, cleaned.get(0).getId());
+        assertEquals("upload-1", cleaned.get(0).getUploadId());
+        assertEquals(assetId2, cleaned.get(1).getId());
+        assertEquals(2, stateStore.countDeleted());
+
+        // The one that failed went to the back of the line
+        cleaned.clear();
+        assertEquals(2, stateStore.purgeDeleted(2, tombstones -> {
+            cleaned.addAll(tombstones);
+            return Collections.emptySet();
+        }));
+        assertEquals(Arrays.asList(assetId3, assetId2), cleaned.stream().map(AssetState::getId).collect(Collectors.toList()));
+        assertEquals(0, stateStore.countDeleted());
+        assertEquals(0, stateStore.size());
+    }
+
+    @Test
+    public void purgeDeleted_cleanerFails()
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+        stateStore.delete(assetId);
+
+        try
+        {
+            stateStore.purgeDeleted(10, tombstones -> {
+                throw new IllegalStateException();
+            });
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        assertEquals(1, stateStore.countDeleted());
+    }
+
+    @Test
+    public void reopen() throws IOException
+    {
+        UUID created = UUID.randomUUID();
+        UUID multipart = UUID.randomUUID();
+        UUID uploaded = UUID.randomUUID();
+        UUID deleted = UUID.randomUUID();
+        UUID purged = UUID.randomUUID();
+        stateStore.create(created);
+        stateStore.createMultipart(multipart, "upload-1");
+        stateStore.create(uploaded);
+        stateStore.complete(uploaded);
+        stateStore.create(deleted);
+        stateStore.delete(deleted);
+        stateStore.create(purged);
+        stateStore.delete(purged);
+        stateStore.purgeDeleted(10, tombstones -> Collections.singleton(deleted));
+
+        stateStore.close();
+        stateStore = open(0);
+        assertReopened(created, multipart, uploaded, deleted, purged);
+
+        // Once more, from the snapshot written on startup
+        stateStore.close();
+        stateStore = open(0);
+        assertReopened(created, multipart, uploaded, deleted, purged);
+    }
+
+    @Test
+    public void reopen_statusCodes() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+        stateStore.delete(assetId);
+        stateStore.purgeDeleted(10, tombstones -> Collections.emptySet());
+        stateStore.close();
+
+        // The log has the codes, which stay the same if Status is ever reordered
+        List<Byte> statuses = new ArrayList<>();
+        StateLog.replay(dir, (status, msb, lsb, timestamp, uploadId) -> statuses.add(status));
+        assertEquals(Arrays.asList((byte) Status.created.getCode(), (byte) Status.deleted.getCode(), StateLog.REMOVED), statuses);
+
+        stateStore = open(0);
+        assertNull(stateStore.getAsset(assetId));
+    }
+
+    @Test
+    public void reopen_incompleteRecord() throws IOException
+    {
+        UUID assetId = UUID.randomUUID();
+        stateStore.create(assetId);
+        stateStore.close();
+
+        // As if the process died halfway through writing the next record
+        Files.write(lastLog(), new byte[]{2, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        stateStore = open(0);
+        assertEquals(Status.created, stateStore.getAsset(assetId).getStatus());
+        assertEquals(1, stateStore.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void reopen_corruptSnapshot() throws IOException
+    {
+        stateStore.create(UUID.randomUUID());
+        stateStore.close();
+
+        // Reopening writes a snapshot of it
+        stateStore = open(0);
+        stateStore.close();
+
+        Path snapshot = files().stream().filter(file -> file.toString().endsWith(".snapshot")).findFirst().orElseThrow();
+        byte[] bytes = Files.readAllBytes(snapshot);
+        bytes[5] ^= 1;
+        Files.write(snapshot, bytes);
+
+        open(0);
+    }
+
+    @Test
+    public void compact() throws IOException
+    {
+        stateStore.close();
+        stateStore = open(1024);
+
+        // Not worth it yet
+        stateStore.create(UUID.randomUUID());
+        List<Path> files = files();
+        stateStore.compact();
+        assertEquals(files, files());
+
+        List<UUID> assetIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            UUID assetId = UUID.randomUUID();
+            stateStore.create(assetId);
+            stateStore.complete(assetId);
+            assetIds.add(assetId);
+        }
+        stateStore.compact();
+
+        // A new log and the snapshot that goes with it
+        files = files();
+        assertEquals(2, files.size());
+        assertEquals(0, Files.size(files.get(0)));
+        assertTrue(files.get(1).toString().endsWith(".snapshot"));
+
+        stateStore.close();
+        stateStore = open(1024);
+        assertEquals(101, stateStore.size());
+        for (UUID assetId : assetIds)
+        {
+            assertEquals(Status.uploaded, stateStore.getAsset(assetId).getStatus());
+        }
+    }
+
+    private void assertReopened(UUID created, UUID multipart, UUID uploaded, UUID deleted, UUID purged)
+    {
+        assertEquals(Status.created, stateStore.getAsset(created).getStatus());
+        assertEquals("upload-1", stateStore.getState(multipart).getUploadId());
+        assertEquals(Status.uploaded, stateStore.getAsset(uploaded).getStatus());
+        assertNull(stateStore.getAsset(deleted));
+        assertNull(stateStore.getAsset(purged));
+        assertEquals(1, stateStore.countDeleted());
+        assertEquals(4, stateStore.size());
+    }
+
+    private EmbeddedAssetStateStore open(long compactionMinSize) throws IOException
+    {
+        return new EmbeddedAssetStateStore(dir, 64, compactionMinSize, now::get);
+    }
+
+    private Path lastLog() throws IOException
+    {
+        List<Path> logs = files().stream().filter(file -> file.toString().endsWith(".log")).collect(Collectors.toList());
+        return logs.get(logs.size() - 1);
+    }
+
+    private List<Path> files() throws IOException
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+}
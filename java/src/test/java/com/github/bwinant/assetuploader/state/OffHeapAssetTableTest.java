@@ -0,0 +1,97 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapAssetTableTest
+{
+    @Test
+    public void put()
+    {
+        OffHeapAssetTable table = new OffHeapAssetTable(16);
+        UUID assetId = UUID.randomUUID();
+        assertEquals(-1, table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits()));
+
+        table.put(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits(), (byte) 1, 100);
+        int slot = table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits());
+        assertEquals(1, table.status(slot));
+        assertEquals(100, table.timestamp(slot));
+        assertEquals(assetId, new UUID(table.msb(slot), table.lsb(slot)));
+
+        // Overwrites
+        table.put(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits(), (byte) 2, 200);
+        assertEquals(1, table.size());
+        slot = table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits());
+        assertEquals(2, table.status(slot));
+        assertEquals(200, table.timestamp(slot));
+    }
+
+    @Test
+    public void put_resize()
+    {
+        OffHeapAssetTable table = new OffHeapAssetTable(16);
+        List<UUID> assetIds = fill(table, 1000);
+        assertEquals(1000, table.size());
+        assertTrue(table.capacity() >= 1000 * 4 / 3);
+
+        for (int i = 0; i < assetIds.size(); i++)
+        {
+            int slot = find(table, assetIds.get(i));
+            assertTrue(slot >= 0);
+            assertEquals(i, table.timestamp(slot));
+        }
+    }
+
+    @Test
+    public void remove()
+    {
+        // Small enough that clusters are long, so removals have plenty to shift back
+        OffHeapAssetTable table = new OffHeapAssetTable(64);
+        List<UUID> assetIds = fill(table, 48);
+
+        for (int i = 0; i < assetIds.size(); i += 2)
+        {
+            table.remove(find(table, assetIds.get(i)));
+        }
+        assertEquals(24, table.size());
+
+        for (int i = 0; i < assetIds.size(); i++)
+        {
+            assertEquals(i % 2 == 1, find(table, assetIds.get(i)) >= 0);
+        }
+    }
+
+    @Test
+    public void forEach()
+    {
+        OffHeapAssetTable table = new OffHeapAssetTable(16);
+        List<UUID> assetIds = fill(table, 10);
+
+        List<UUID> visited = new ArrayList<>();
+        table.forEach((slot, msb, lsb, status, timestamp) -> visited.add(new UUID(msb, lsb)));
+        assertEquals(10, visited.size());
+        assertTrue(visited.containsAll(assetIds));
+    }
+
+    private static List<UUID> fill(OffHeapAssetTable table, int count)
+    {
+        List<UUID> assetIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            UUID assetId = UUID.randomUUID();
+            table.put(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits(), (byte) 1, i);
+            assetIds.add(assetId);
+        }
+        return assetIds;
+    }
+
+    private static int find(OffHeapAssetTable table, UUID assetId)
+    {
+        return table.find(assetId.getMostSignificantBits(), assetId.getLeastSignificantBits());
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.bwinant.assetuploader.state;
+
+import java.sql.ResultSet;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import com.github.bwinant.assetuploader.Asset;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.github.bwinant.assetuploader.Asset.Status.*;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PartitionedAssetStateStoreTest
+{
+    private final Clock clock = Clock.fixed(Instant.parse("2026-10-18T12:00:00Z"), ZoneOffset.UTC);
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private ResultSet resultSet;
+
+    private PartitionedAssetStateStore stateStore;
+
+    @Before
+    public void setUp()
+    {
+        stateStore = new PartitionedAssetStateStore(jdbcTemplate, new TransactionTemplate(), 90, clock);
+    }
+
+    @Test
+    public void bounds()
+    {
+        // Random ids can be anywhere within the retention period, up to a day of clock skew ahead
+        UUID random = UUID.randomUUID();
+        assertNull(PartitionedAssetStateStore.creationTime(random));
+        assertEquals(OffsetDateTime.parse("2026-07-20T00:00:00Z"), stateStore.earliest(random));
+        assertEquals(OffsetDateTime.parse("2026-10-19T12:00:00Z"), stateStore.latest(random));
+
+        // Time ordered ones were created exactly when they say
+        OffsetDateTime created = OffsetDateTime.parse("2026-10-10T08:00:00.123Z");
+        UUID assetId = timeOrdered(created);
+        assertEquals(created, PartitionedAssetStateStore.creationTime(assetId));
+        assertEquals(created, stateStore.earliest(assetId));
+        assertEquals(created, stateStore.latest(assetId));
+
+        // Without retention there's no telling
+        stateStore = new PartitionedAssetStateStore(jdbcTemplate, new TransactionTemplate(), 0, clock);
+        assertEquals(OffsetDateTime.parse("1970-01-01T00:00:00Z"), stateStore.earliest(random));
+    }
+
+    @Test
+    public void create()
+    {
+        // The time in the id, so it's found again in the same partition
+        OffsetDateTime created = OffsetDateTime.parse("2026-10-18T11:59:59.500Z");
+        UUID assetId = timeOrdered(created);
+        stateStore.create(assetId);
+        verify(jdbcTemplate).update("INSERT INTO assets (id, created) VALUES(?, ?)", assetId, created);
+
+        // Now, for the ones without
+        UUID random = UUID.randomUUID();
+        stateStore.create(random);
+        verify(jdbcTemplate).update("INSERT INTO assets (id, created) VALUES(?, ?)", random, OffsetDateTime.now(clock));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getAsset() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        when(resultSet.getShort("status")).thenReturn(uploaded.getCode());
+        when(jdbcTemplate.queryForObject(anyString(), any(RowMapper.class), any(Object[].class)))
+            .thenAnswer(invocation -> ((RowMapper<Asset>) invocation.getArgument(1)).mapRow(resultSet, 0));
+
+        assertEquals(new Asset(assetId, uploaded), stateStore.getAsset(assetId));
+
+        // Bounded by created, with the status as its code
+        ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+        verify(jdbcTemplate).queryForObject(contains("created BETWEEN ? AND ?"), any(RowMapper.class), args.capture());
+        assertArrayEquals(new Object[]{assetId, stateStore.earliest(assetId), stateStore.latest(assetId), deleted.getCode()},
+                          args.getValue());
+
+        // Exactly, for time ordered ids, which only leaves the one partition
+        OffsetDateTime created = OffsetDateTime.parse("2026-10-10T08:00:00Z");
+        UUID timeOrdered = timeOrdered(created);
+        stateStore.getAsset(timeOrdered);
+        verify(jdbcTemplate, times(2)).queryForObject(anyString(), any(RowMapper.class), args.capture());
+        assertArrayEquals(new Object[]{timeOrdered, created, created, deleted.getCode()}, args.getValue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void complete() throws Exception
+    {
+        UUID assetId = UUID.randomUUID();
+        when(jdbcTemplate.queryForObject(anyString(), any(RowMapper.class), any(Object[].class)))
+            .thenAnswer(invocation -> ((RowMapper<Completion>) invocation.getArgument(1)).mapRow(resultSet, 0));
+
+        when(resultSet.getShort("status")).thenReturn(created.getCode());
+        when(resultSet.getInt("completed")).thenReturn(1);
+        assertEquals(Completion.completed, stateStore.complete(assetId));
+
+        when(resultSet.getShort("status")).thenReturn(uploaded.getCode());
+        when(resultSet.getInt("completed")).thenReturn(0);
+        assertEquals(Completion.alreadyCompleted, stateStore.complete(assetId));
+
+        when(resultSet.getShort("status")).thenReturn(deleted.getCode());
+        assertEquals(Completion.notFound, stateStore.complete(assetId));
+
+        when(resultSet.getShort("status")).thenReturn((short) 0);
+        when(resultSet.wasNull()).thenReturn(true);
+        assertEquals(Completion.notFound, stateStore.complete(assetId));
+    }
+
+    private static UUID timeOrdered(OffsetDateTime created)
+    {
+        return new UUID(created.toInstant().toEpochMilli() << 16 | 0x7000, 0x8000000000000000L);
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class FileSystemStorageTest
+{
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    // 2018-11-30T12:00:00Z
+    private final long now = 1543579200000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private FileSystemStorage storage;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        root = folder.getRoot().toPath();
+        storage = storage(now);
+    }
+
+    @Test
+    public void uploadUrl()
+    {
+        String key = UUID.randomUUID().toString();
+        Map<String, String> params = params(storage.getUploadUrl(key, 60, now));
+
+        assertEquals("/content/" + key, URI.create(storage.getUploadUrl(key, 60, now)).getPath());
+        assertEquals(Long.toString(now / 1000 + 60), params.get("Expires"));
+        assertTrue(storage.verifyUpload(key, params.get("Expires"), params.get("Signature")));
+
+        // Only good for uploading that object
+        assertFalse(storage.verifyDownload(key, params.get("Expires"), params.get("Signature")));
+        assertFalse(storage.verifyUpload(UUID.randomUUID().toString(), params.get("Expires"), params.get("Signature")));
+        assertFalse(storage.verifyUpload(key, Long.toString(now / 1000 + 3600), params.get("Signature")));
+    }
+
+    @Test
+    public void downloadUrl()
+    {
+        String key = UUID.randomUUID().toString();
+        Map<String, String> params = params(storage.getDownloadUrl(key, 60));
+
+        assertTrue(storage.verifyDownload(key, params.get("Expires"), params.get("Signature")));
+        assertFalse(storage.verifyUpload(key, params.get("Expires"), params.get("Signature")));
+    }
+
+    @Test
+    public void verify_expired() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        Map<String, String> params = params(storage.getDownloadUrl(key, 60));
+
+        assertTrue(storage(now + 60_000).verifyDownload(key, params.get("Expires"), params.get("Signature")));
+        assertFalse(storage(now + 61_000).verifyDownload(key, params.get("Expires"), params.get("Signature")));
+    }
+
+    @Test
+    public void verify_malformed()
+    {
+        String key = UUID.randomUUID().toString();
+        Map<String, String> params = params(storage.getDownloadUrl(key, 60));
+
+        assertFalse(storage.verifyDownload(key, null, params.get("Signature")));
+        assertFalse(storage.verifyDownload(key, params.get("Expires"), null));
+        assertFalse(storage.verifyDownload(key, "tomorrow", params.get("Signature")));
+        assertFalse(storage.verifyDownload(key, params.get("Expires"), params.get("Signature").substring(1)));
+        assertFalse(storage.verifyDownload("../" + key, params.get("Expires"), params.get("Signature")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void url_tooLong()
+    {
+        storage.getDownloadUrl(UUID.randomUUID().toString(), 7 * 24 * 60 * 60 + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolve_outsideRoot()
+    {
+        storage.resolve("../etc");
+    }
+
+    @Test
+    public void writeAndRead() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(storage.exists(key));
+        assertEquals(contents.length, storage.write(key, new ByteArrayInputStream(contents)));
+        assertTrue(storage.exists(key));
+        assertEquals(root.resolve(key.substring(0, 2)).resolve(key), storage.resolve(key));
+
+        try (FileChannel channel = storage.open(key))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(contents.length);
+            channel.read(buffer);
+            assertArrayEquals(contents, buffer.array());
+        }
+
+        // Uploading again replaces the object
+        storage.write(key, new ByteArrayInputStream(new byte[3]));
+        assertEquals(3, Files.size(storage.resolve(key)));
+    }
+
+    @Test
+    public void link() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+        storage.write(key, new ByteArrayInputStream(contents));
+
+        // Keeps the contents it was made for, however the object changes
+        Path link = storage.link(key);
+        assertEquals(root.resolve(".links"), link.getParent());
+        storage.write(key, new ByteArrayInputStream(new byte[3]));
+        assertArrayEquals(contents, Files.readAllBytes(link));
+        storage.delete(Arrays.asList(key));
+        assertArrayEquals(contents, Files.readAllBytes(link));
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void link_notFound() throws IOException
+    {
+        storage.link(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void write_tooLarge() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+
+        try
+        {
+            storage.write(key, new ByteArrayInputStream(new byte[1025]));
+            fail("Expected ObjectTooLargeException");
+        }
+        catch (ObjectTooLargeException e)
+        {
+            // Expected
+        }
+        assertFalse(storage.exists(key));
+        assertEquals(0, Files.list(root.resolve(".uploads")).count());
+
+        // Right at the limit is fine
+        storage.write(key, new ByteArrayInputStream(new byte[1024]));
+        assertTrue(storage.exists(key));
+    }
+
+    @Test
+    public void write_cutShort() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        InputStream in = new InputStream()
+        {
+            private int remaining = 100;
+
+            @Override
+            public int read() throws IOException
+            {
+                if (remaining-- == 0)
+                {
+                    throw new IOException("Connection reset");
+                }
+                return 'a';
+            }
+        };
+
+        try
+        {
+            storage.write(key, in);
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+
+        // Half an upload never shows up
+        assertFalse(storage.exists(key));
+        assertEquals(0, Files.list(root.resolve(".uploads")).count());
+    }
+
+    @Test
+    public void abortMultipartUpload()
+    {
+        assertFalse(storage.supportsMultipart());
+
+        // Tombstones from running with S3 storage before can still have an upload id, they must not hold up the deletion
+        // pipeline
+        storage.abortMultipartUpload(UUID.randomUUID().toString(), "upload-1");
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void open_missing() throws IOException
+    {
+        storage.open(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void delete() throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        storage.write(key, new ByteArrayInputStream(new byte[10]));
+
+        // Objects that aren't there are already deleted
+        assertTrue(storage.delete(Arrays.asList(key, UUID.randomUUID().toString())).isEmpty());
+        assertFalse(storage.exists(key));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortSecret() throws IOException
+    {
+        new FileSystemStorage(root, "http://localhost:8080", new byte[16], 1024, Clock.systemUTC());
+    }
+
+    private FileSystemStorage storage(long timestamp) throws IOException
+    {
+        Clock clock = Clock.fixed(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC);
+        return new FileSystemStorage(root, "http://localhost:8080", SECRET, 1024, clock);
+    }
+
+    private static Map<String, String> params(String url)
+    {
+        Map<String, String> params = new HashMap<>();
+        for (String param : URI.create(url).getQuery().split("&"))
+        {
+            String[] parts = param.split("=", 2);
+            params.put(parts[0], parts[1]);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LinkDirectoryTest
+{
+    private final byte[] contents = "Hello world".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private Path file;
+    private Path dir;
+    private LinkDirectory links;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = Files.write(folder.getRoot().toPath().resolve("file"), contents);
+        dir = folder.getRoot().toPath().resolve("links");
+        links = new LinkDirectory(dir, now::get);
+    }
+
+    @Test
+    public void link() throws IOException
+    {
+        Path first = links.link(file);
+        Path second = links.link(file);
+        assertNotEquals(first, second);
+
+        Files.delete(file);
+        assertArrayEquals(contents, Files.readAllBytes(first));
+        assertArrayEquals(contents, Files.readAllBytes(second));
+    }
+
+    @Test
+    public void sweep() throws IOException
+    {
+        Path old = links.link(file);
+        now.addAndGet(LinkDirectory.MAX_AGE_MILLIS);
+        Path recent = links.link(file);
+
+        // Not quite old enough yet
+        assertEquals(0, links.sweep());
+
+        now.incrementAndGet();
+        assertEquals(1, links.sweep());
+        assertFalse(Files.exists(old));
+        assertTrue(Files.exists(recent));
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    public void leftoversDeleted() throws IOException
+    {
+        links.link(file);
+
+        new LinkDirectory(dir, now::get);
+        try (Stream<Path> leftovers = Files.list(dir))
+        {
+            assertEquals(0, leftovers.count());
+        }
+    }
+}
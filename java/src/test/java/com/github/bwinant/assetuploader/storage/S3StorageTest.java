@@ -0,0 +1,394 @@
+package com.github.bwinant.assetuploader.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.github.bwinant.assetuploader.impl.S3Presigner;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class S3StorageTest
+{
+    private final String bucket = "testing123";
+
+    @Mock
+    private AmazonS3Client s3Client;
+
+    @Mock
+    private S3Presigner presigner;
+
+    private S3Storage storage;
+
+    @Before
+    public void setUp()
+    {
+        // Tiny parts so a few bytes make a multipart upload
+        storage = new S3Storage(s3Client, presigner, new SimpleMeterRegistry(), bucket, 10, 4, 2, 3);
+    }
+
+    @Test
+    public void exists()
+    {
+        when(s3Client.doesObjectExist(bucket, "one")).thenReturn(true);
+
+        assertTrue(storage.exists("one"));
+        assertFalse(storage.exists("two"));
+    }
+
+    @Test(expected = StorageException.class)
+    public void exists_s3Failure()
+    {
+        when(s3Client.doesObjectExist(bucket, "one")).thenThrow(new SdkClientException("Boom"));
+
+        storage.exists("one");
+    }
+
+    @Test
+    public void write_singlePart() throws IOException
+    {
+        assertEquals(3, storage.write("one", new ByteArrayInputStream(bytes("abc"))));
+
+        ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(s3Client).putObject(request.capture());
+        assertEquals("one", request.getValue().getKey());
+        assertEquals(3, request.getValue().getMetadata().getContentLength());
+        verify(s3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void write_multipart() throws IOException
+    {
+        Map<Integer, String> parts = multipart();
+
+        assertEquals(10, storage.write("one", new ByteArrayInputStream(bytes("abcdefghij"))));
+
+        assertEquals("abcd", parts.get(1));
+        assertEquals("efgh", parts.get(2));
+        assertEquals("ij", parts.get(3));
+
+        // ETags in part order, whichever part finished first
+        ArgumentCaptor<CompleteMultipartUploadRequest> request = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(request.capture());
+        assertEquals("upload-1", request.getValue().getUploadId());
+        assertEquals(3, request.getValue().getPartETags().size());
+        for (int i = 0; i < 3; i++)
+        {
+            PartETag partETag = request.getValue().getPartETags().get(i);
+            assertEquals(i + 1, partETag.getPartNumber());
+            assertEquals("etag-" + (i + 1), partETag.getETag());
+        }
+        verify(s3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void write_partFailure() throws IOException
+    {
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated());
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenThrow(new SdkClientException("Boom"));
+
+        try
+        {
+            storage.write("one", new ByteArrayInputStream(new byte[100]));
+            fail("Expected StorageException");
+        }
+        catch (StorageException e)
+        {
+            // Expected
+        }
+
+        // The parts already uploaded are thrown away
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void write_clientFailure() throws IOException
+    {
+        multipart();
+        ByteArrayInputStream body = new ByteArrayInputStream(bytes("abcdefgh"))
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                // The client goes away after two parts
+                if (available() == 0)
+                {
+                    throw new IllegalStateException("Connection reset");
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        try
+        {
+            storage.write("one", body);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+        // Every buffer made it back to the pool, or this would never get one
+        for (int i = 0; i < 5; i++)
+        {
+            storage.write("two", new ByteArrayInputStream(bytes("abc")));
+        }
+    }
+
+    @Test
+    public void write_clientFailureWhileUploading() throws Exception
+    {
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated());
+        CountDownLatch uploading = new CountDownLatch(1);
+        AtomicBoolean partDone = new AtomicBoolean();
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            uploading.countDown();
+            Thread.sleep(200);
+            partDone.set(true);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(invocation.getArgument(0, UploadPartRequest.class).getPartNumber());
+            result.setETag("etag");
+            return result;
+        });
+        doAnswer(invocation -> {
+            // Parts still uploading are waited for, or S3 could keep them
+            assertTrue(partDone.get());
+            return null;
+        }).when(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        InputStream body = new InputStream()
+        {
+            private int read;
+
+            @Override
+            public int read()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                // A first part, and the client goes away while it's being uploaded
+                if (read > 0)
+                {
+                    try
+                    {
+                        uploading.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IOException(e);
+                    }
+                    throw new IOException("Connection reset");
+                }
+                read = Math.min(len, 8);
+                Arrays.fill(b, off, off + read, (byte) 'a');
+                return read;
+            }
+        };
+
+        try
+        {
+            storage.write("one", body);
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertEquals(3, storage.getAvailablePartBuffers());
+    }
+
+    @Test
+    public void read() throws IOException
+    {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(bytes("abc")));
+        object.getObjectMetadata().setContentLength(3);
+        object.getObjectMetadata().setHeader(Headers.ETAG, "etag-1");
+        when(s3Client.getObject(bucket, "one")).thenReturn(object);
+
+        // Each read holds on to a connection until it's closed, more than 10 in a row only work if they're given back
+        for (int i = 0; i < 20; i++)
+        {
+            object.setObjectContent(new ByteArrayInputStream(bytes("abc")));
+            try (StoredObject stored = storage.read("one"))
+            {
+                assertEquals("abc", new String(stored.getContent().readAllBytes(), StandardCharsets.UTF_8));
+                assertEquals(3, stored.getLength());
+                assertEquals("etag-1", stored.getEtag());
+            }
+        }
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void read_notFound() throws IOException
+    {
+        when(s3Client.getObject(bucket, "one")).thenThrow(s3Exception(404, "NoSuchKey"));
+
+        storage.read("one");
+    }
+
+    @Test
+    public void completeMultipartUpload() throws InvalidPartsException
+    {
+        storage.completeMultipartUpload("one", "upload-1", Arrays.asList("etag-1", "etag-2"));
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> request = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(request.capture());
+        assertEquals("upload-1", request.getValue().getUploadId());
+        assertEquals(2, request.getValue().getPartETags().size());
+        assertEquals(2, request.getValue().getPartETags().get(1).getPartNumber());
+        assertEquals("etag-2", request.getValue().getPartETags().get(1).getETag());
+    }
+
+    @Test(expected = InvalidPartsException.class)
+    public void completeMultipartUpload_invalidPart() throws InvalidPartsException
+    {
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenThrow(s3Exception(400, "InvalidPart"));
+
+        storage.completeMultipartUpload("one", "upload-1", Collections.singletonList("etag-1"));
+    }
+
+    @Test(expected = StorageException.class)
+    public void completeMultipartUpload_s3Failure() throws InvalidPartsException
+    {
+        when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenThrow(s3Exception(500, "InternalError"));
+
+        storage.completeMultipartUpload("one", "upload-1", Collections.singletonList("etag-1"));
+    }
+
+    @Test
+    public void abortMultipartUpload_noSuchUpload()
+    {
+        doThrow(s3Exception(404, "NoSuchUpload")).when(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        // Nothing left to abort
+        storage.abortMultipartUpload("one", "upload-1");
+    }
+
+    @Test
+    public void delete()
+    {
+        List<String> keys = Arrays.asList("one", "two");
+
+        assertTrue(storage.delete(keys).isEmpty());
+
+        // One quiet request for all of them
+        ArgumentCaptor<DeleteObjectsRequest> request = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(s3Client).deleteObjects(request.capture());
+        assertEquals(bucket, request.getValue().getBucketName());
+        assertEquals(2, request.getValue().getKeys().size());
+        assertTrue(request.getValue().getQuiet());
+    }
+
+    @Test
+    public void delete_partialFailure()
+    {
+        DeleteError error = new DeleteError();
+        error.setKey("two");
+        error.setCode("InternalError");
+        when(s3Client.deleteObjects(any(DeleteObjectsRequest.class)))
+            .thenThrow(new MultiObjectDeleteException(Collections.singletonList(error), Collections.emptyList()));
+
+        assertEquals(Collections.singleton("two"), storage.delete(Arrays.asList("one", "two")));
+    }
+
+    @Test(expected = StorageException.class)
+    public void delete_s3Failure()
+    {
+        when(s3Client.deleteObjects(any(DeleteObjectsRequest.class))).thenThrow(new SdkClientException("Boom"));
+
+        storage.delete(Arrays.asList("one", "two"));
+    }
+
+    @Test
+    public void urls()
+    {
+        when(presigner.presign(HttpMethod.PUT, "one", 60, 1000L)).thenReturn("https://example.com/put");
+        when(presigner.presign(HttpMethod.GET, "one", 60)).thenReturn("https://example.com/get");
+
+        assertEquals("https://example.com/put", storage.getUploadUrl("one", 60, 1000L));
+        assertEquals("https://example.com/get", storage.getDownloadUrl("one", 60));
+    }
+
+    private Map<Integer, String> multipart()
+    {
+        Map<Integer, String> parts = new ConcurrentHashMap<>();
+        when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated());
+        when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            parts.put(request.getPartNumber(), new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+        return parts;
+    }
+
+    private static AmazonS3Exception s3Exception(int statusCode, String errorCode)
+    {
+        AmazonS3Exception e = new AmazonS3Exception("Boom");
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+    private static InitiateMultipartUploadResult initiated()
+    {
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId("upload-1");
+        return result;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}